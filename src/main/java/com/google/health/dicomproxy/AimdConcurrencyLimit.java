@@ -0,0 +1,112 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Ticker;
+import java.util.Arrays;
+
+/**
+ * Concurrency limit which adapts to the capacity of an upstream service, using additive increase /
+ * multiplicative decrease (AIMD), as TCP congestion control does.
+ *
+ * <p>Each successful request raises the limit by {@code 1 / limit}, so it grows by about one per
+ * round of requests. The limit is halved when the upstream is overloaded: when it throttles or
+ * times out a request, or when the 99th percentile latency rises well above the lowest seen
+ * recently. Overload signals from requests which were started before the last decrease are ignored,
+ * since they reflect the old limit, and would otherwise collapse it all at once.
+ */
+final class AimdConcurrencyLimit {
+  private static final double DECREASE_FACTOR = 0.5;
+  /** Number of latency samples the 99th percentile is computed over. */
+  private static final int LATENCY_WINDOW = 100;
+  /** The limit is decreased if latency exceeds the baseline by more than this factor. */
+  private static final double LATENCY_TOLERANCE = 2.0;
+  /**
+   * Fraction by which the baseline moves towards a higher latency in each window, so that the limit
+   * doesn't stay at its minimum after a lasting change in upstream latency.
+   */
+  private static final double BASELINE_DRIFT = 0.1;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final Ticker ticker;
+
+  private double limit;
+  private long lastDecreaseNanos;
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private int latencyCount = 0;
+  /** Lowest recent 99th percentile latency, or -1 until the first window is complete. */
+  private long baselineNanos = -1;
+
+  /**
+   * @param minLimit the limit never drops below this
+   * @param maxLimit the limit never rises above this; it starts out at the minimum
+   * @param ticker source of the times passed to the other methods
+   */
+  AimdConcurrencyLimit(int minLimit, int maxLimit, Ticker ticker) {
+    checkArgument(
+        minLimit > 0 && maxLimit >= minLimit, "Invalid limits: %s to %s", minLimit, maxLimit);
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.ticker = ticker;
+    this.limit = minLimit;
+    this.lastDecreaseNanos = ticker.read();
+  }
+
+  /** Returns the number of requests which may currently be in flight. */
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Records a successful request.
+   *
+   * @param startNanos ticker value when the request was started
+   * @param latencyNanos latency of the request, normalized for its size by the caller
+   */
+  synchronized void onSuccess(long startNanos, long latencyNanos) {
+    latencies[latencyCount++] = latencyNanos;
+    if (latencyCount == LATENCY_WINDOW) {
+      latencyCount = 0;
+      long p99 = percentile99();
+      if (baselineNanos < 0 || p99 < baselineNanos) {
+        baselineNanos = p99;
+      } else {
+        boolean overloaded = p99 > baselineNanos * LATENCY_TOLERANCE;
+        baselineNanos += (long) ((p99 - baselineNanos) * BASELINE_DRIFT);
+        if (overloaded) {
+          Logging.info("Upload latency p99 rose to %s ms", p99 / 1_000_000);
+          onOverload(startNanos);
+          return;
+        }
+      }
+    }
+
+    limit = Math.min(maxLimit, limit + 1 / limit);
+  }
+
+  /**
+   * Records that the upstream is overloaded, because it throttled or timed out a request.
+   *
+   * @param startNanos ticker value when the request was started
+   */
+  synchronized void onOverload(long startNanos) {
+    if (startNanos - lastDecreaseNanos < 0) {
+      return;
+    }
+    lastDecreaseNanos = ticker.read();
+    limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+    Logging.info("Reduced upload concurrency limit to %s", getLimit());
+  }
+
+  private long percentile99() {
+    long[] sorted = latencies.clone();
+    Arrays.sort(sorted);
+    return sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+  }
+}
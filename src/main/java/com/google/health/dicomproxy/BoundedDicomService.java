@@ -0,0 +1,88 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.function.Function;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.DicomService;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Limits how many requests a {@link DicomService} handles at once, across all associations.
+ *
+ * <p>Requests are handled on the thread reading their association, as their data is streamed from
+ * it, so this bounds the requests in progress rather than handing them to a smaller thread pool.
+ * Requests beyond the limit wait before any of their data is read, which pushes back on the sender,
+ * and don't hold up requests for other services. Waiting requests are admitted in turns by peer, so
+ * that a peer with many associations can't starve the others; see {@link FairShareGate}.
+ */
+final class BoundedDicomService implements DicomService {
+  private final DicomService service;
+  private final FairShareGate gate;
+  private final Function<Association, String> peerOf;
+
+  /**
+   * Constructs a service which admits waiting requests in the order they arrived.
+   *
+   * @param maxConcurrentRequests maximum number of requests handled at once
+   */
+  BoundedDicomService(DicomService service, int maxConcurrentRequests) {
+    this(service, maxConcurrentRequests, as -> "");
+  }
+
+  /**
+   * @param maxConcurrentRequests maximum number of requests handled at once
+   * @param peerOf identifies the peer which sent requests on an association
+   */
+  BoundedDicomService(
+      DicomService service, int maxConcurrentRequests, Function<Association, String> peerOf) {
+    checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+    this.service = checkNotNull(service);
+    this.gate = new FairShareGate(maxConcurrentRequests);
+    this.peerOf = checkNotNull(peerOf);
+  }
+
+  @Override
+  public String[] getSOPClasses() {
+    return service.getSOPClasses();
+  }
+
+  @Override
+  public void onDimseRQ(
+      Association as, PresentationContext pc, Dimse dimse, Attributes cmd, PDVInputStream data)
+      throws IOException {
+    try {
+      gate.acquire(peerOf.apply(as));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DicomServiceException(Status.ProcessingFailure, e);
+    }
+    try {
+      service.onDimseRQ(as, pc, dimse, cmd, data);
+    } finally {
+      gate.release();
+    }
+  }
+
+  @Override
+  public void onClose(Association as) {
+    service.onClose(as);
+  }
+
+  /** Returns the number of requests which may currently be started without waiting. */
+  int getAvailablePermits() {
+    return gate.getAvailable();
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.javanet.ConnectionFactory;
+import com.google.api.client.http.javanet.DefaultConnectionFactory;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections of a {@link com.google.api.client.http.javanet.NetHttpTransport} so that a
+ * {@link Cancellation} can abort a request while it waits for the response's headers, which {@link
+ * HttpRequest#execute} gives no other way to interrupt.
+ */
+final class CancelableConnectionFactory implements ConnectionFactory {
+  private final ConnectionFactory delegate = new DefaultConnectionFactory();
+  // The cancellation of the request being executed on each thread.
+  private final ThreadLocal<Cancellation> cancellations = new ThreadLocal<>();
+
+  /**
+   * Executes the request, which must come from a transport using this factory, disconnecting its
+   * connection if the cancellation is canceled before the response arrives.
+   */
+  HttpResponse execute(HttpRequest request, String spanName, Cancellation cancellation)
+      throws IOException {
+    cancellations.set(cancellation);
+    try {
+      return Tracing.execute(request, spanName);
+    } catch (RuntimeException e) {
+      // HttpURLConnection may fail this way when it's disconnected from another thread.
+      if (cancellation.isCanceled()) {
+        throw new IOException("Request was canceled", e);
+      }
+      throw e;
+    } finally {
+      cancellations.remove();
+    }
+  }
+
+  @Override
+  public HttpURLConnection openConnection(URL url) throws IOException {
+    HttpURLConnection connection = delegate.openConnection(url);
+    Cancellation cancellation = cancellations.get();
+    if (cancellation != null) {
+      cancellation.setAbortAction(connection::disconnect);
+      if (cancellation.isCanceled()) {
+        throw new IOException("Request was canceled");
+      }
+    }
+    return connection;
+  }
+}
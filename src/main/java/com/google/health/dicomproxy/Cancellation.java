@@ -0,0 +1,55 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signals that an operation was canceled, such as a query by a C-CANCEL, and aborts whatever the
+ * operation is blocked on, such as reading an upstream response.
+ *
+ * <p>The operation checks {@link #isCanceled} between steps, and sets an abort action while it's
+ * blocked; {@link #cancel} may be called from any thread.
+ */
+final class Cancellation {
+  // Guarded by this.
+  private boolean canceled = false;
+  @Nullable private Runnable abortAction;
+
+  /** Returns true if the operation was canceled. */
+  synchronized boolean isCanceled() {
+    return canceled;
+  }
+
+  /** Cancels the operation, running its abort action, if it has one. */
+  void cancel() {
+    Runnable action;
+    synchronized (this) {
+      if (canceled) {
+        return;
+      }
+      canceled = true;
+      action = abortAction;
+    }
+    if (action != null) {
+      action.run();
+    }
+  }
+
+  /**
+   * Sets the action which aborts what the operation is blocked on, or clears it if null. If the
+   * operation was already canceled, the action is run at once.
+   */
+  void setAbortAction(@Nullable Runnable action) {
+    synchronized (this) {
+      abortAction = action;
+      if (!canceled || action == null) {
+        return;
+      }
+    }
+    action.run();
+  }
+}
@@ -20,14 +20,166 @@ import javax.annotation.Nullable;
 final class Configuration {
   enum ConfigKey {
     TEMP_FOLDER("temp-data", "com.google.health.dicomproxy.temp-folder"),
+    /**
+     * How received instances are stored until uploaded: "files" stores one file per instance, and
+     * "segment-log" appends instances to large segment files.
+     */
+    SPOOL_FORMAT(
+        "files",
+        "com.google.health.dicomproxy.spool-format",
+        Configuration::validateSpoolFormat),
+    /** Size of each segment file, in megabytes, when using the "segment-log" spool format. */
+    SPOOL_SEGMENT_SIZE_MB("256", "com.google.health.dicomproxy.spool-segment-size-mb"),
+    /**
+     * How received instances are compressed in the spool: "none" stores them as received, and "lz4"
+     * compresses them as they're written and decompresses them as they're uploaded.
+     */
+    SPOOL_CODEC(
+        "none", "com.google.health.dicomproxy.spool-codec", Configuration::validateSpoolCodec),
+    /**
+     * When received instances are synced to disk, before being acknowledged: "none" leaves it to
+     * the operating system, "instance" syncs each instance, and "group" syncs every instance
+     * received within each group commit interval together.
+     */
+    SPOOL_DURABILITY(
+        "none",
+        "com.google.health.dicomproxy.spool-durability",
+        Configuration::validateSpoolDurability),
+    /** Interval, in milliseconds, between syncs when using the "group" spool durability. */
+    SPOOL_GROUP_COMMIT_MILLIS("10", "com.google.health.dicomproxy.spool-group-commit-millis"),
+    /**
+     * Off-heap memory, in megabytes, which small instances may be kept in instead of on disk. Zero
+     * stores every instance on disk. Ignored unless the spool durability is "none".
+     */
+    SPOOL_MEMORY_BUDGET_MB("0", "com.google.health.dicomproxy.spool-memory-budget-mb"),
+    /** Instances larger than this many kilobytes are always stored on disk. */
+    SPOOL_MEMORY_THRESHOLD_KB("1024", "com.google.health.dicomproxy.spool-memory-threshold-kb"),
+    /**
+     * Comma-separated keywords of the attributes extracted from each instance as it's received, and
+     * recorded in a metadata sidecar per batch, along with the instance's size and checksum. Empty
+     * disables attribute extraction.
+     */
+    SPOOL_METADATA_TAGS(
+        "StudyInstanceUID,SeriesInstanceUID,Modality,SOPClassUID",
+        "com.google.health.dicomproxy.spool-metadata-tags",
+        MetadataSidecar::parseTags),
+    /**
+     * If true, the temp folder is shared with other proxy nodes, for example on a network
+     * filesystem, and any node may upload batches received by another. Requires the "files" spool
+     * format; instances are never kept in memory.
+     */
+    SPOOL_SHARED("false", "com.google.health.dicomproxy.spool-shared"),
+    /** Identifies this node in the leases it holds on a shared spool. Defaults to host and PID. */
+    SPOOL_NODE_ID("", "com.google.health.dicomproxy.spool-node-id"),
+    /**
+     * How long, in seconds, a node's claim on a batch in a shared spool lasts without a heartbeat,
+     * after which another node may take the batch over.
+     */
+    SPOOL_LEASE_SECONDS("60", "com.google.health.dicomproxy.spool-lease-seconds"),
+    /** Interval, in seconds, between scans of a shared spool for batches to claim. */
+    SPOOL_SCAN_SECONDS("10", "com.google.health.dicomproxy.spool-scan-seconds"),
+    /**
+     * Disk space, in megabytes, which batches in the "files" spool format may take up. Uploaded
+     * batches are deleted early to stay within it; once batches waiting to be uploaded fill it,
+     * instances are refused. Zero means unlimited.
+     */
+    SPOOL_QUOTA_MB("0", "com.google.health.dicomproxy.spool-quota-mb"),
+    /** How long, in hours, uploaded batches are kept in the spool, so they can be sent again. */
+    SPOOL_RETENTION_HOURS("24", "com.google.health.dicomproxy.spool-retention-hours"),
+    /** Interval, in seconds, between scans of the spool for batches to delete. */
+    SPOOL_CLEANUP_SECONDS("60", "com.google.health.dicomproxy.spool-cleanup-seconds"),
+    /** Maximum number of spool files deleted per second, to limit the disk I/O of cleanup. */
+    SPOOL_CLEANUP_DELETES_PER_SECOND(
+        "100", "com.google.health.dicomproxy.spool-cleanup-deletes-per-second"),
     RECEIVE_PORT("4008", "com.google.health.dicomproxy.receive-port"),
+    /**
+     * Maximum number of C-STORE requests handled at once, across all associations. Zero means
+     * unlimited. C-ECHO and C-FIND requests aren't counted, so they're answered during bursts.
+     */
+    STORE_CONCURRENCY("0", "com.google.health.dicomproxy.store-concurrency"),
+    /** Number of threads answering C-FIND queries, apart from those receiving instances. */
+    QUERY_THREADS("4", "com.google.health.dicomproxy.query-threads"),
+    /**
+     * Maximum number of worklist matches returned to each calling AE title; see {@link
+     * WorklistMatchLimits}. Empty is unlimited.
+     */
+    WORKLIST_MAX_MATCHES(
+        "", "com.google.health.dicomproxy.worklist-max-matches", WorklistMatchLimits::parse),
+    /**
+     * Maximum number of associations open at once with each calling AE title. Further associations
+     * are rejected. Zero means unlimited.
+     */
+    MAX_ASSOCIATIONS_PER_AE("0", "com.google.health.dicomproxy.max-associations-per-ae"),
+    /** Maximum number of associations open at once with each IP address. Zero is unlimited. */
+    MAX_ASSOCIATIONS_PER_ADDRESS("0", "com.google.health.dicomproxy.max-associations-per-address"),
+    /**
+     * Preferred transfer syntaxes by SOP class, chosen ahead of others proposed by the same
+     * presentation context; see {@link TransferSyntaxPreferences}. Empty accepts the first transfer
+     * syntax each peer proposes.
+     */
+    TRANSFER_SYNTAX_PREFERENCES(
+        "",
+        "com.google.health.dicomproxy.transfer-syntax-preferences",
+        TransferSyntaxPreferences::parse),
+    /** Maximum rate of instances received from each calling AE title. Zero means unlimited. */
+    INSTANCES_PER_SECOND_PER_AE("0", "com.google.health.dicomproxy.instances-per-second-per-ae"),
+    /** Maximum rate of instances received from each IP address. Zero means unlimited. */
+    INSTANCES_PER_SECOND_PER_ADDRESS(
+        "0", "com.google.health.dicomproxy.instances-per-second-per-address"),
     UPLOAD_URI(
         null /* Required, unless operating in worklist-only mode. */,
         "com.google.health.dicomproxy.upload-uri",
         Configuration::validateUpstreamUri),
+    /**
+     * Maximum number of concurrent uploads. The actual number adapts to the capacity of the
+     * upstream service, between UPLOAD_MIN_PARALLELISM and this.
+     */
     UPLOAD_PARALLELISM(
       "10", "com.google.health.dicomproxy.upload-parallelism"
     ),
+    UPLOAD_MIN_PARALLELISM("1", "com.google.health.dicomproxy.upload-min-parallelism"),
+    /**
+     * Maximum rate of requests to each upstream host, per second, shared by uploads and worklist
+     * queries. Zero means unlimited.
+     */
+    RATE_LIMIT_REQUESTS_PER_SECOND(
+        "0", "com.google.health.dicomproxy.rate-limit-requests-per-second"),
+    /** Maximum rate of request bytes sent to each upstream host, per second. Zero is unlimited. */
+    RATE_LIMIT_BYTES_PER_SECOND("0", "com.google.health.dicomproxy.rate-limit-bytes-per-second"),
+    /** How many seconds' worth of requests or bytes may be sent at once, after a quiet period. */
+    RATE_LIMIT_BURST_SECONDS("1", "com.google.health.dicomproxy.rate-limit-burst-seconds"),
+    /**
+     * How long, in seconds, an uploaded instance is remembered. Instances received again within
+     * this window with identical content are acknowledged without being uploaded again. Zero
+     * disables duplicate suppression.
+     */
+    DEDUPE_WINDOW_SECONDS("0", "com.google.health.dicomproxy.dedupe-window-seconds"),
+    DEDUPE_INDEX_FILE("dedupe-index.bin", "com.google.health.dicomproxy.dedupe-index-file"),
+    /** Number of instances the dedupe index can hold; each one takes 32 bytes. */
+    DEDUPE_INDEX_CAPACITY("1048576", "com.google.health.dicomproxy.dedupe-index-capacity"),
+    /**
+     * Addresses of modalities which may request storage commitment, as {@code
+     * <ae-title>=<host>:<port>} entries separated by commas. Storage commitment is only offered if
+     * this is set.
+     */
+    STORAGE_COMMITMENT_PEERS(
+        "",
+        "com.google.health.dicomproxy.storage-commitment-peers",
+        StorageCommitmentService::parsePeers),
+    /**
+     * How long, in seconds, a storage commitment waits for its instances to be uploaded, after
+     * which they're reported as failed.
+     */
+    STORAGE_COMMITMENT_TIMEOUT_SECONDS(
+        "3600", "com.google.health.dicomproxy.storage-commitment-timeout-seconds"),
+    /** Interval, in seconds, at which storage commitment results are reported in batches. */
+    STORAGE_COMMITMENT_REPORT_SECONDS(
+        "5", "com.google.health.dicomproxy.storage-commitment-report-seconds"),
+    /**
+     * File of rules for changing the attributes of received instances before they're uploaded, such
+     * as to de-identify them; see {@link TagMorpher}. If not set, instances are unchanged.
+     */
+    TAG_MORPHING_RULES(null, "com.google.health.dicomproxy.tag-morphing-rules"),
     WORKLIST_URI(
         null /* Required, unless operating in upload-only mode. */,
         "com.google.health.dicomproxy.worklist-uri",
@@ -37,6 +189,63 @@ final class Configuration {
      * client has specified.
      */
     WORKLIST_INCLUDEFIELD_ALL("false", "com.google.health.dicomproxy.worklist-includefield-all"),
+    /**
+     * If true, the worklist is cached, and kept up to date by subscribing to UPS-RS workitem
+     * events, so that queries are answered without querying the upstream service.
+     */
+    WORKLIST_CACHE("false", "com.google.health.dicomproxy.worklist-cache"),
+    /** AE title the worklist cache subscribes to workitem events for. */
+    WORKLIST_SUBSCRIBER_AE_TITLE(
+        "DICOMWEB_PROXY", "com.google.health.dicomproxy.worklist-subscriber-ae-title"),
+    /**
+     * Interval, in seconds, at which the worklist cache checks its event channel. While the channel
+     * is closed, the whole worklist is fetched at this interval instead.
+     */
+    WORKLIST_RESYNC_SECONDS("60", "com.google.health.dicomproxy.worklist-resync-seconds"),
+    /**
+     * Root of a QIDO-RS service, under which its studies resource is found. If set, Study Root
+     * C-FIND queries are answered by searching it.
+     */
+    QIDO_URI(
+        null /* Optional. */,
+        "com.google.health.dicomproxy.qido-uri",
+        Configuration::validateUpstreamUri),
+    /** How long, in seconds, QIDO-RS results are reused for repeated queries. Zero disables. */
+    QIDO_CACHE_SECONDS("60", "com.google.health.dicomproxy.qido-cache-seconds"),
+    /** Total number of QIDO-RS results which may be cached at once. */
+    QIDO_CACHE_MAX_RESULTS("10000", "com.google.health.dicomproxy.qido-cache-max-results"),
+    /**
+     * Root of a WADO-RS service, under which its studies resource is found. If set, Study Root
+     * C-GET and C-MOVE requests are answered by retrieving from it.
+     */
+    WADO_URI(
+        null /* Optional. */,
+        "com.google.health.dicomproxy.wado-uri",
+        Configuration::validateUpstreamUri),
+    /** Number of threads performing C-GET and C-MOVE retrievals. */
+    RETRIEVE_THREADS("4", "com.google.health.dicomproxy.retrieve-threads"),
+    /**
+     * Addresses of C-MOVE destinations, as {@code <ae-title>=<host>:<port>} entries separated by
+     * commas. C-MOVE requests to other AE titles are refused.
+     */
+    MOVE_DESTINATIONS(
+        "",
+        "com.google.health.dicomproxy.move-destinations",
+        StorageCommitmentService::parsePeers),
+    /** Size, in megabytes, of the disk cache of retrieved studies. Zero disables it. */
+    RETRIEVE_CACHE_MB("1024", "com.google.health.dicomproxy.retrieve-cache-mb"),
+    /**
+     * File to which latency traces of received instances are written, in the OpenTelemetry JSON
+     * encoding. If not set, tracing is disabled.
+     */
+    TRACE_FILE(null /* Optional. */, "com.google.health.dicomproxy.trace-file"),
+    /** Fraction, from 0 to 1, of associations and upstream requests which are traced. */
+    TRACE_SAMPLE_RATIO(
+        "0.01",
+        "com.google.health.dicomproxy.trace-sample-ratio",
+        Configuration::validateSampleRatio),
+    /** Size, in megabytes, beyond which the trace file is rotated. */
+    TRACE_FILE_MAX_MB("100", "com.google.health.dicomproxy.trace-file-max-mb"),
     SERVICE_ACCOUNT_CREDS_JSON(
         "service_account_creds.json", "com.google.health.dicomproxy.service-account-creds-json-file"),
     ;
@@ -79,6 +288,14 @@ final class Configuration {
       return Integer.parseInt(getString());
     }
 
+    long getLong() {
+      return Long.parseLong(getString());
+    }
+
+    double getDouble() {
+      return Double.parseDouble(getString());
+    }
+
     boolean getBoolean() {
       return Boolean.getBoolean(systemProperty);
     }
@@ -88,12 +305,32 @@ final class Configuration {
     }
 
     private static void validateConfig() {
-      if (UPLOAD_URI.getString() == null && WORKLIST_URI.getString() == null) {
+      if (UPLOAD_URI.getString() == null
+          && WORKLIST_URI.getString() == null
+          && QIDO_URI.getString() == null
+          && WADO_URI.getString() == null) {
+        throw new IllegalArgumentException(
+            String.format(
+                "None of Upload URI, Worklist URI, QIDO URI and WADO URI was configured. "
+                    + "Please specify at least one of system properties '%s', '%s', '%s' and "
+                    + "'%s'.",
+                UPLOAD_URI.systemProperty,
+                WORKLIST_URI.systemProperty,
+                QIDO_URI.systemProperty,
+                WADO_URI.systemProperty));
+      }
+      if (SPOOL_SHARED.getBoolean() && !SPOOL_FORMAT.getString().equals(SPOOL_FORMAT_FILES)) {
         throw new IllegalArgumentException(
             String.format(
-                "Neither Upload URI not Worklist URI was configured. "
-                    + "Please specify at least one of system properties '%s' and '%s'.",
-                UPLOAD_URI.systemProperty, WORKLIST_URI.systemProperty));
+                "A shared spool requires the '%s' spool format (system property '%s').",
+                SPOOL_FORMAT_FILES, SPOOL_FORMAT.systemProperty));
+      }
+      if (SPOOL_QUOTA_MB.getLong() > 0 && !SPOOL_FORMAT.getString().equals(SPOOL_FORMAT_FILES)) {
+        throw new IllegalArgumentException(
+            String.format(
+                "A spool quota (system property '%s') requires the '%s' spool format (system "
+                    + "property '%s').",
+                SPOOL_QUOTA_MB.systemProperty, SPOOL_FORMAT_FILES, SPOOL_FORMAT.systemProperty));
       }
     }
   }
@@ -129,6 +366,66 @@ final class Configuration {
             upstreamUri));
   }
 
+  /** Values accepted for {@link ConfigKey#SPOOL_FORMAT}. */
+  static final String SPOOL_FORMAT_FILES = "files";
+  static final String SPOOL_FORMAT_SEGMENT_LOG = "segment-log";
+
+  private static void validateSpoolFormat(String spoolFormat) {
+    if (!spoolFormat.equals(SPOOL_FORMAT_FILES) && !spoolFormat.equals(SPOOL_FORMAT_SEGMENT_LOG)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The specified spool format is not valid: '%s'. Expected '%s' or '%s'.",
+              spoolFormat, SPOOL_FORMAT_FILES, SPOOL_FORMAT_SEGMENT_LOG));
+    }
+  }
+
+  /** Values accepted for {@link ConfigKey#SPOOL_CODEC}. */
+  static final String SPOOL_CODEC_NONE = "none";
+  static final String SPOOL_CODEC_LZ4 = "lz4";
+
+  private static void validateSpoolCodec(String spoolCodec) {
+    if (!spoolCodec.equals(SPOOL_CODEC_NONE) && !spoolCodec.equals(SPOOL_CODEC_LZ4)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The specified spool codec is not valid: '%s'. Expected '%s' or '%s'.",
+              spoolCodec, SPOOL_CODEC_NONE, SPOOL_CODEC_LZ4));
+    }
+  }
+
+  /** Values accepted for {@link ConfigKey#SPOOL_DURABILITY}. */
+  static final String SPOOL_DURABILITY_NONE = "none";
+  static final String SPOOL_DURABILITY_INSTANCE = "instance";
+  static final String SPOOL_DURABILITY_GROUP = "group";
+
+  private static void validateSpoolDurability(String spoolDurability) {
+    if (!spoolDurability.equals(SPOOL_DURABILITY_NONE)
+        && !spoolDurability.equals(SPOOL_DURABILITY_INSTANCE)
+        && !spoolDurability.equals(SPOOL_DURABILITY_GROUP)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The specified spool durability is not valid: '%s'. Expected '%s', '%s' or '%s'.",
+              spoolDurability,
+              SPOOL_DURABILITY_NONE,
+              SPOOL_DURABILITY_INSTANCE,
+              SPOOL_DURABILITY_GROUP));
+    }
+  }
+
+  private static void validateSampleRatio(String sampleRatio) {
+    double ratio;
+    try {
+      ratio = Double.parseDouble(sampleRatio);
+    } catch (NumberFormatException e) {
+      ratio = Double.NaN;
+    }
+    if (!(ratio >= 0 && ratio <= 1)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The specified sample ratio is not valid: '%s'. Expected a number from 0 to 1.",
+              sampleRatio));
+    }
+  }
+
   /** Prevent instantiation. */
   private Configuration() {}
 }
@@ -5,10 +5,10 @@
 // file, you can obtain one at http://mozilla.org/MPL/2.0/.
 package com.google.health.dicomproxy;
 
-import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.google.health.dicomproxy.Configuration.ConfigKey;
 
@@ -16,12 +16,32 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Executors;
 
 /** Utilities for working with OAuth credentials. */
 final class Credentials {
+  private static RefreshingCredential serviceAccountCredentials;
 
-  /** Provides auto-refreshing Google service account credentials. */
-  static Credential getServiceAccountCredentials() {
+  /**
+   * Provides Google service account credentials, shared by every client in the process. The first
+   * call starts fetching an access token in the background, and it's then kept refreshed.
+   */
+  static synchronized RefreshingCredential getServiceAccountCredentials() {
+    if (serviceAccountCredentials == null) {
+      serviceAccountCredentials =
+          new RefreshingCredential(
+              loadServiceAccountCredentials(),
+              Executors.newSingleThreadScheduledExecutor(
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("credential-refresh")
+                      .setDaemon(true)
+                      .build()));
+      serviceAccountCredentials.start();
+    }
+    return serviceAccountCredentials;
+  }
+
+  private static GoogleCredential loadServiceAccountCredentials() {
     String credsJsonPath = ConfigKey.SERVICE_ACCOUNT_CREDS_JSON.getString();
     GoogleCredential creds = null;
 
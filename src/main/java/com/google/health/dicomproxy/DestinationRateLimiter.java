@@ -0,0 +1,289 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.common.base.Ticker;
+import com.google.health.dicomproxy.Configuration.ConfigKey;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits the rate of requests, and of request bytes, sent to an upstream destination, so that the
+ * proxy paces itself within a shared quota rather than exhausting it and being throttled.
+ *
+ * <p>Limits are applied by an {@link HttpRequestInitializer} wrapped around the credentials, just
+ * before each request is sent. If the destination responds with 429 or 503, no further requests are
+ * sent to it until its Retry-After delay has passed. All clients of the same host share a limiter,
+ * since they share its quota.
+ */
+final class DestinationRateLimiter implements RateLimiterMXBean {
+  private static final Map<String, DestinationRateLimiter> limitersByHost = new HashMap<>();
+
+  private final String destination;
+  @Nullable private final TokenBucket requests;
+  @Nullable private final TokenBucket bytes;
+  private final Ticker ticker;
+  private final Clock clock;
+  private final Sleeper sleeper;
+
+  private final AtomicLong throttledNanos = new AtomicLong();
+  private final AtomicLong throttledResponses = new AtomicLong();
+  // Guarded by this.
+  private long retryAtNanos;
+
+  /**
+   * @param destination host the limits apply to
+   * @param requests limits requests, or null if they're unlimited
+   * @param bytes limits request bytes, or null if they're unlimited
+   * @param sleeper waits out the limits; the time it sleeps for is read from the ticker
+   */
+  DestinationRateLimiter(
+      String destination,
+      @Nullable TokenBucket requests,
+      @Nullable TokenBucket bytes,
+      Ticker ticker,
+      Clock clock,
+      Sleeper sleeper) {
+    this.destination = checkNotNull(destination);
+    this.requests = requests;
+    this.bytes = bytes;
+    this.ticker = checkNotNull(ticker);
+    this.clock = checkNotNull(clock);
+    this.sleeper = checkNotNull(sleeper);
+    this.retryAtNanos = ticker.read();
+  }
+
+  /**
+   * Returns the limiter for the host of the given URI, creating it from the configured limits if
+   * necessary, and registering its metrics with JMX.
+   */
+  static synchronized DestinationRateLimiter forUri(String uri) {
+    String host = URI.create(uri).getAuthority();
+    DestinationRateLimiter limiter = limitersByHost.get(host);
+    if (limiter == null) {
+      limiter = create(host);
+      limitersByHost.put(host, limiter);
+      try {
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(
+                limiter,
+                new ObjectName(
+                    "com.google.health.dicomproxy:type=RateLimiter,name="
+                        + ObjectName.quote(host)));
+      } catch (JMException e) {
+        Logging.error(e, "Unable to register rate limiter metrics for %s", host);
+      }
+    }
+    return limiter;
+  }
+
+  private static DestinationRateLimiter create(String host) {
+    Ticker ticker = Ticker.systemTicker();
+    double burstSeconds = ConfigKey.RATE_LIMIT_BURST_SECONDS.getInt();
+    int requestsPerSecond = ConfigKey.RATE_LIMIT_REQUESTS_PER_SECOND.getInt();
+    long bytesPerSecond = ConfigKey.RATE_LIMIT_BYTES_PER_SECOND.getLong();
+    return new DestinationRateLimiter(
+        host,
+        requestsPerSecond > 0
+            ? new TokenBucket(requestsPerSecond, capacity(requestsPerSecond, burstSeconds), ticker)
+            : null,
+        bytesPerSecond > 0
+            ? new TokenBucket(bytesPerSecond, capacity(bytesPerSecond, burstSeconds), ticker)
+            : null,
+        ticker,
+        Clock.systemUTC(),
+        TimeUnit.NANOSECONDS::sleep);
+  }
+
+  private static double capacity(double ratePerSecond, double burstSeconds) {
+    // Always allow at least one request, or write, without waiting for the bucket to fill.
+    return Math.max(1, ratePerSecond * burstSeconds);
+  }
+
+  /** Returns an initializer which applies these limits to requests, along with the delegate. */
+  HttpRequestInitializer wrap(HttpRequestInitializer delegate) {
+    checkNotNull(delegate);
+    return request -> {
+      delegate.initialize(request);
+      HttpExecuteInterceptor delegateInterceptor = request.getInterceptor();
+      request.setInterceptor(
+          r -> {
+            beforeRequest(r);
+            if (delegateInterceptor != null) {
+              delegateInterceptor.intercept(r);
+            }
+          });
+      HttpResponseInterceptor delegateResponseInterceptor = request.getResponseInterceptor();
+      request.setResponseInterceptor(
+          response -> {
+            afterResponse(response);
+            if (delegateResponseInterceptor != null) {
+              delegateResponseInterceptor.interceptResponse(response);
+            }
+          });
+    };
+  }
+
+  private void beforeRequest(HttpRequest request) throws IOException {
+    long startNanos = ticker.read();
+    try {
+      long pauseNanos;
+      while ((pauseNanos = getRetryAfterRemainingNanos()) > 0) {
+        sleeper.sleep(pauseNanos);
+      }
+      if (requests != null) {
+        sleeper.sleep(requests.reserve(1));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for rate limit");
+    } finally {
+      throttledNanos.addAndGet(ticker.read() - startNanos);
+    }
+
+    // The interceptor runs again if the request is retried, but the content only needs wrapping
+    // once.
+    if (bytes != null
+        && request.getContent() != null
+        && !(request.getContent() instanceof RateLimitedContent)) {
+      request.setContent(new RateLimitedContent(request.getContent()));
+    }
+  }
+
+  private void afterResponse(HttpResponse response) {
+    if (RetryAfter.isThrottled(response.getStatusCode())) {
+      throttledResponses.incrementAndGet();
+      retryAfter(RetryAfter.fromResponse(response, clock).orElse(RetryAfter.DEFAULT_DELAY));
+    }
+  }
+
+  /** Holds off all requests to the destination for the given delay. */
+  synchronized void retryAfter(Duration delay) {
+    long retryAt = ticker.read() + delay.toNanos();
+    if (retryAt - retryAtNanos > 0) {
+      retryAtNanos = retryAt;
+    }
+  }
+
+  private synchronized long getRetryAfterRemainingNanos() {
+    return retryAtNanos - ticker.read();
+  }
+
+  @Override
+  public String getDestination() {
+    return destination;
+  }
+
+  @Override
+  public double getRequestsPerSecond() {
+    return requests == null ? 0 : requests.getRatePerSecond();
+  }
+
+  @Override
+  public double getAvailableRequests() {
+    return requests == null ? 0 : requests.getAvailableTokens();
+  }
+
+  @Override
+  public double getBytesPerSecond() {
+    return bytes == null ? 0 : bytes.getRatePerSecond();
+  }
+
+  @Override
+  public double getAvailableBytes() {
+    return bytes == null ? 0 : bytes.getAvailableTokens();
+  }
+
+  @Override
+  public long getThrottledMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+  }
+
+  @Override
+  public long getThrottledResponseCount() {
+    return throttledResponses.get();
+  }
+
+  @Override
+  public long getRetryAfterRemainingMillis() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(getRetryAfterRemainingNanos()));
+  }
+
+  /** Waits for a number of nanoseconds. */
+  interface Sleeper {
+    void sleep(long nanos) throws InterruptedException;
+  }
+
+  /** Request content which is written no faster than the byte rate limit allows. */
+  private final class RateLimitedContent implements HttpContent {
+    private final HttpContent delegate;
+
+    RateLimitedContent(HttpContent delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+      return delegate.getLength();
+    }
+
+    @Override
+    public String getType() {
+      return delegate.getType();
+    }
+
+    @Override
+    public boolean retrySupported() {
+      return delegate.retrySupported();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      delegate.writeTo(
+          new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+              write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              long startNanos = ticker.read();
+              try {
+                sleeper.sleep(bytes.reserve(len));
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for rate limit");
+              } finally {
+                throttledNanos.addAndGet(ticker.read() - startNanos);
+              }
+              out.write(b, off, len);
+            }
+          });
+    }
+  }
+}
@@ -5,10 +5,11 @@
 // file, you can obtain one at http://mozilla.org/MPL/2.0/.
 package com.google.health.dicomproxy;
 
-import java.io.File;
-
 /** Interface to decouple DICOM receiver from DICOMweb uploader. */
 interface DicomUploader {
-  /** Upload the files directly contained in the specified directory. */
-  void uploadDirectory(File directoryToUpload);
+  /** Upload the instances of a completed spool batch. */
+  void upload(SpoolBatch batch);
+
+  /** Registers a listener to be notified of each successful upload. */
+  void addUploadListener(UploadListener listener);
 }
@@ -0,0 +1,81 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import javax.annotation.Nullable;
+
+/**
+ * Pool of fixed-size, off-heap buffers, which together never exceed a memory budget.
+ *
+ * <p>Buffers are allocated lazily, and kept for reuse once released, so the cost of allocating
+ * direct memory is only paid until the pool reaches its working size.
+ */
+final class DirectBufferPool {
+  private final int bufferSize;
+  private final int maxBuffers;
+
+  /** Guards the mutable state below. */
+  private final Object lock = new Object();
+
+  private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+  private int allocatedBuffers = 0;
+  private int buffersInUse = 0;
+
+  /**
+   * @param bufferSize size of each buffer, in bytes
+   * @param budget maximum total size of all buffers, in bytes
+   */
+  DirectBufferPool(int bufferSize, long budget) {
+    checkArgument(bufferSize > 0, "Buffer size must be positive: %s", bufferSize);
+    checkArgument(budget >= bufferSize, "Budget %s is smaller than one buffer", budget);
+    this.bufferSize = bufferSize;
+    this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, budget / bufferSize);
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Returns a cleared buffer, or null if the whole budget is in use. */
+  @Nullable
+  ByteBuffer tryAcquire() {
+    synchronized (lock) {
+      ByteBuffer buffer = freeBuffers.pollFirst();
+      if (buffer == null) {
+        if (allocatedBuffers == maxBuffers) {
+          return null;
+        }
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        allocatedBuffers++;
+      }
+      buffersInUse++;
+      return buffer;
+    }
+  }
+
+  /** Returns a buffer obtained from {@link #tryAcquire} to the pool. */
+  void release(ByteBuffer buffer) {
+    checkArgument(buffer.capacity() == bufferSize, "Buffer was not acquired from this pool");
+    buffer.clear();
+    synchronized (lock) {
+      buffersInUse--;
+      // Reusing the most recently released buffer is more likely to hit warm memory.
+      freeBuffers.addFirst(buffer);
+    }
+  }
+
+  /** Returns the number of bytes in buffers which have been acquired and not yet released. */
+  long getBytesInUse() {
+    synchronized (lock) {
+      return (long) buffersInUse * bufferSize;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits how many tasks run at once, sharing the limit fairly between peers.
+ *
+ * <p>While tasks are waiting, peers take turns: each freed slot goes to the next waiting task of
+ * the peer which has waited longest since its last turn, however many tasks each peer is waiting
+ * with. A peer sending many tasks at once therefore can't crowd out one sending a few.
+ */
+final class FairShareGate {
+  private final Object lock = new Object();
+
+  // Guarded by lock.
+  private int available;
+  // Waiting tasks, by peer, with peers in the order they take their turns.
+  private final LinkedHashMap<String, ArrayDeque<Waiter>> waiting = new LinkedHashMap<>();
+
+  /** @param maxRunning maximum number of tasks which may run at once */
+  FairShareGate(int maxRunning) {
+    checkArgument(maxRunning > 0, "maxRunning must be positive: %s", maxRunning);
+    this.available = maxRunning;
+  }
+
+  /** Waits until a task from the given peer may run. Must be followed by {@link #release}. */
+  void acquire(String peer) throws InterruptedException {
+    checkNotNull(peer);
+    Waiter waiter;
+    synchronized (lock) {
+      if (available > 0 && waiting.isEmpty()) {
+        available--;
+        return;
+      }
+      waiter = new Waiter();
+      waiting.computeIfAbsent(peer, p -> new ArrayDeque<>()).add(waiter);
+      try {
+        while (!waiter.admitted) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        if (waiter.admitted) {
+          // Admitted just as it was interrupted; pass the slot on.
+          releaseLocked();
+        } else {
+          ArrayDeque<Waiter> peerWaiters = waiting.get(peer);
+          peerWaiters.remove(waiter);
+          if (peerWaiters.isEmpty()) {
+            waiting.remove(peer);
+          }
+        }
+        throw e;
+      }
+    }
+  }
+
+  /** Marks a task as finished, letting the next waiting task run. */
+  void release() {
+    synchronized (lock) {
+      releaseLocked();
+    }
+  }
+
+  /** Returns the number of tasks which may currently be started without waiting. */
+  int getAvailable() {
+    synchronized (lock) {
+      return available;
+    }
+  }
+
+  private void releaseLocked() {
+    Iterator<Map.Entry<String, ArrayDeque<Waiter>>> peers = waiting.entrySet().iterator();
+    if (!peers.hasNext()) {
+      available++;
+      return;
+    }
+    Map.Entry<String, ArrayDeque<Waiter>> next = peers.next();
+    String peer = next.getKey();
+    ArrayDeque<Waiter> peerWaiters = next.getValue();
+    peerWaiters.poll().admitted = true;
+    // The peer goes to the back of the line for its next turn.
+    peers.remove();
+    if (!peerWaiters.isEmpty()) {
+      waiting.put(peer, peerWaiters);
+    }
+    lock.notifyAll();
+  }
+
+  private static final class Waiter {
+    boolean admitted = false;
+  }
+}
@@ -0,0 +1,312 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spool which stores each batch as a directory, containing one {@code <SOP Instance UID>.dcm} file
+ * per instance.
+ *
+ * <p>Completed batches are marked with a {@code batch.complete} file, so that those which weren't
+ * uploaded can be recovered on restart. Batches which were never completed, because their
+ * association failed or the proxy stopped mid-association, aren't recovered.
+ *
+ * <p>Released batches are kept, marked with a {@code batch.uploaded} file, so that they can be sent
+ * again quickly; a {@link SpoolManager} deletes them once they expire or space runs short.
+ */
+final class FileSpool implements Spool {
+  /** Marks a batch which has been uploaded; its modification time is when it was uploaded. */
+  static final String UPLOADED_FILE = "batch.uploaded";
+  /** Marks a batch whose association completed, which is recovered if it isn't uploaded. */
+  private static final String COMPLETE_FILE = "batch.complete";
+
+  private static final String INSTANCE_FILE_SUFFIX = ".dcm";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final File tempFolder;
+  private final SpoolDurability durability;
+  private final SpoolDurability.Syncable tempFolderSync;
+  /**
+   * Syncables for the directories of batches which are known to exist, to avoid checking for every
+   * instance. Each directory has a single syncable, so that group commits sync it only once.
+   */
+  private final Map<String, SpoolDurability.Syncable> batchFolderSyncs = new ConcurrentHashMap<>();
+
+  FileSpool(File tempFolder, SpoolDurability durability) {
+    this.tempFolder = tempFolder;
+    this.durability = checkNotNull(durability);
+    this.tempFolderSync = SpoolDurability.directory(tempFolder);
+    checkArgument(
+        !tempFolder.exists() || tempFolder.isDirectory(),
+        "Temp Folder %s already exists, but is not a directory.",
+        tempFolder);
+
+    if (!tempFolder.isDirectory()) {
+      checkArgument(tempFolder.mkdirs(), "Unable to create temp folder %s.", tempFolder);
+    }
+  }
+
+  @Override
+  public PendingInstance newInstance(String batchId, String sopInstanceUid) throws IOException {
+    File batchFolder = getBatchFolder(batchId);
+    List<SpoolDurability.Syncable> folderSyncs = new ArrayList<>(2);
+    SpoolDurability.Syncable batchFolderSync = batchFolderSyncs.get(batchId);
+    if (batchFolderSync == null) {
+      if (!batchFolder.isDirectory() && !batchFolder.mkdirs()) {
+        throw new IOException(String.format("Unable to create temp folder %s", batchFolder));
+      }
+      batchFolderSync = SpoolDurability.directory(batchFolder);
+      batchFolderSyncs.put(batchId, batchFolderSync);
+      // The batch folder's own entry must be durable too.
+      folderSyncs.add(tempFolderSync);
+    }
+    folderSyncs.add(batchFolderSync);
+
+    File permanentFile = new File(batchFolder, sopInstanceUid + INSTANCE_FILE_SUFFIX);
+    return new PendingFile(
+        sopInstanceUid,
+        new File(permanentFile.getPath() + TEMP_FILE_SUFFIX),
+        permanentFile,
+        folderSyncs);
+  }
+
+  @Override
+  public SpoolBatch completeBatch(String batchId) throws IOException {
+    SpoolDurability.Syncable batchFolderSync = batchFolderSyncs.remove(batchId);
+    File batchFolder = getBatchFolder(batchId);
+    if (batchFolder.isDirectory()) {
+      try {
+        Files.createFile(new File(batchFolder, COMPLETE_FILE).toPath());
+      } catch (FileAlreadyExistsException e) {
+        // Completed again, for example after being claimed from a shared spool.
+      }
+      if (durability.isEnabled()) {
+        durability.sync(
+            ImmutableList.of(
+                batchFolderSync != null
+                    ? batchFolderSync
+                    : SpoolDurability.directory(batchFolder)));
+      }
+    }
+    return readBatch(batchId);
+  }
+
+  /** Returns the instances committed to the batch so far, which may have been written by others. */
+  SpoolBatch readBatch(String batchId) {
+    File batchFolder = getBatchFolder(batchId);
+    File[] files = batchFolder.listFiles();
+    if (files == null) {
+      // No instances were ever written for this batch.
+      return new SpoolBatch(batchId, ImmutableList.of());
+    }
+
+    // Filter out partially-written files, and anything else which might have gotten in there
+    // through mysterious means.
+    return new SpoolBatch(
+        batchId,
+        Arrays.stream(files)
+            .filter(f -> f.isFile() && f.getName().endsWith(INSTANCE_FILE_SUFFIX))
+            .map(
+                f -> {
+                  String name = f.getName();
+                  return new InstanceFile(
+                      name.substring(0, name.length() - INSTANCE_FILE_SUFFIX.length()), f);
+                })
+            .collect(ImmutableList.toImmutableList()));
+  }
+
+  @Override
+  public void release(SpoolBatch batch) {
+    File batchFolder = getBatchFolder(batch.getId());
+    if (!batchFolder.isDirectory()) {
+      // No instances were written to disk, for example because they were kept in memory.
+      return;
+    }
+    Path marker = new File(batchFolder, UPLOADED_FILE).toPath();
+    try {
+      try {
+        Files.createFile(marker);
+      } catch (FileAlreadyExistsException e) {
+        // Already marked, for example by a shared spool.
+      }
+      Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // The batch is then kept as though it weren't uploaded, which is safe.
+      Logging.error(e, "Unable to mark %s as uploaded", batch);
+    }
+  }
+
+  @Override
+  public void abandonBatch(String batchId) {
+    // The instances are kept, but the batch's folder won't need syncing again.
+    batchFolderSyncs.remove(batchId);
+  }
+
+  @Override
+  public ImmutableList<SpoolBatch> recoverBatches() {
+    File[] batchFolders = tempFolder.listFiles(File::isDirectory);
+    if (batchFolders == null) {
+      Logging.error("Unable to list spool folder %s", tempFolder);
+      return ImmutableList.of();
+    }
+    return Arrays.stream(batchFolders)
+        .filter(
+            f -> new File(f, COMPLETE_FILE).exists() && !new File(f, UPLOADED_FILE).exists())
+        .map(f -> readBatch(f.getName()))
+        .filter(batch -> !batch.getInstances().isEmpty())
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private File getBatchFolder(String batchId) {
+    return new File(tempFolder, batchId);
+  }
+
+  /**
+   * Instance written to a temporary file, which is renamed once it is committed. If the spool is
+   * durable, the file is synced before the rename, and its directory after it.
+   */
+  private final class PendingFile implements PendingInstance {
+    private final String sopInstanceUid;
+    private final File tmpFile;
+    private final File permanentFile;
+    private final List<SpoolDurability.Syncable> folderSyncs;
+    private final FileOutputStream fileOut;
+    private final OutputStream out;
+    /**
+     * Given to writers, who close it before committing the instance. The file stays open until the
+     * commit, so that it can still be synced.
+     */
+    private final OutputStream unclosableOut;
+    private final FlightEvents.SpoolFileWrite writeEvent = new FlightEvents.SpoolFileWrite();
+    private boolean committed = false;
+
+    PendingFile(
+        String sopInstanceUid,
+        File tmpFile,
+        File permanentFile,
+        List<SpoolDurability.Syncable> folderSyncs)
+        throws IOException {
+      this.sopInstanceUid = sopInstanceUid;
+      this.tmpFile = tmpFile;
+      this.permanentFile = permanentFile;
+      this.folderSyncs = folderSyncs;
+      writeEvent.begin();
+      this.fileOut = new FileOutputStream(tmpFile);
+      this.out = new BufferedOutputStream(fileOut);
+      this.unclosableOut =
+          new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+              flush();
+            }
+          };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return unclosableOut;
+    }
+
+    @Override
+    public SpooledInstance commit() throws IOException {
+      out.flush();
+      if (durability.isEnabled()) {
+        durability.sync(ImmutableList.of(() -> fileOut.getFD().sync()));
+      }
+      out.close();
+      writeEvent.end();
+      if (writeEvent.shouldCommit()) {
+        writeEvent.path = tmpFile.getPath();
+        writeEvent.bytes = tmpFile.length();
+        writeEvent.commit();
+      }
+
+      FlightEvents.SpoolFileRename renameEvent = new FlightEvents.SpoolFileRename();
+      renameEvent.begin();
+      // TODO: make sure this works on Windows.
+      if (!tmpFile.renameTo(permanentFile)) {
+        throw new IOException(
+            String.format("Unable to rename %s to %s.", tmpFile, permanentFile));
+      }
+      renameEvent.end();
+      if (renameEvent.shouldCommit()) {
+        renameEvent.source = tmpFile.getPath();
+        renameEvent.destination = permanentFile.getPath();
+        renameEvent.commit();
+      }
+      committed = true;
+      durability.sync(folderSyncs);
+      return new InstanceFile(sopInstanceUid, permanentFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        out.close();
+        if (tmpFile.exists() && !tmpFile.delete()) {
+          Logging.error("Unable to delete %s", tmpFile);
+        }
+      }
+    }
+  }
+
+  /** A committed instance file. */
+  private static final class InstanceFile implements SpooledInstance {
+    private final String sopInstanceUid;
+    private final File file;
+
+    InstanceFile(String sopInstanceUid, File file) {
+      this.sopInstanceUid = sopInstanceUid;
+      this.file = file;
+    }
+
+    @Override
+    public String getSopInstanceUid() {
+      return sopInstanceUid;
+    }
+
+    @Override
+    public long getLength() {
+      return file.length();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      return new FileInputStream(file);
+    }
+
+    @Override
+    public String toString() {
+      return file.toString();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the proxy's hot paths, so that recordings show where time goes in
+ * context with GC, I/O and lock events.
+ *
+ * <p>Events are timed with {@link Event#begin()} and {@link Event#end()}, and their fields are only
+ * filled in if {@link Event#shouldCommit()}, so that they cost next to nothing unless recorded.
+ * Stack traces are left out, as the events are already specific to one call site.
+ */
+final class FlightEvents {
+  private static final String CATEGORY = "DICOMweb Proxy";
+
+  @Name("com.google.health.dicomproxy.CStoreReceive")
+  @Label("C-STORE Receive")
+  @Description("Receipt of an instance, until it's stored in the spool")
+  @Category({CATEGORY, "DIMSE"})
+  @StackTrace(false)
+  static final class CStoreReceive extends Event {
+    @Label("Calling AE Title")
+    String callingAeTitle;
+
+    @Label("SOP Class UID")
+    String sopClassUid;
+
+    @Label("SOP Instance UID")
+    String sopInstanceUid;
+
+    @Label("Transfer Syntax UID")
+    String transferSyntax;
+
+    @Label("Bytes")
+    @Description("Size of the stored instance; zero if it was skipped as a duplicate")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("com.google.health.dicomproxy.SpoolFileWrite")
+  @Label("Spool File Write")
+  @Description("Writing of an instance to its temporary spool file, including any sync")
+  @Category({CATEGORY, "Spool"})
+  @StackTrace(false)
+  static final class SpoolFileWrite extends Event {
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("com.google.health.dicomproxy.SpoolFileRename")
+  @Label("Spool File Rename")
+  @Description("Renaming of a temporary spool file, which commits the instance")
+  @Category({CATEGORY, "Spool"})
+  @StackTrace(false)
+  static final class SpoolFileRename extends Event {
+    @Label("Source")
+    String source;
+
+    @Label("Destination")
+    String destination;
+  }
+
+  @Name("com.google.health.dicomproxy.MultipartPartWrite")
+  @Label("Multipart Part Write")
+  @Description("Streaming of an instance into a STOW-RS request body")
+  @Category({CATEGORY, "STOW-RS"})
+  @StackTrace(false)
+  static final class MultipartPartWrite extends Event {
+    @Label("SOP Instance UID")
+    String sopInstanceUid;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("com.google.health.dicomproxy.StowRsRequest")
+  @Label("STOW-RS Request")
+  @Description("Upload of a batch, from sending the request until its response is read")
+  @Category({CATEGORY, "STOW-RS"})
+  @StackTrace(false)
+  static final class StowRsRequest extends Event {
+    @Label("Batch")
+    String batchId;
+
+    @Label("Instances")
+    int instances;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Status Code")
+    @Description("HTTP status of the response; zero if none was received")
+    int statusCode;
+  }
+
+  @Name("com.google.health.dicomproxy.UpsRsQuery")
+  @Label("UPS-RS Query")
+  @Description("Worklist query, until every result has been parsed")
+  @Category({CATEGORY, "UPS-RS"})
+  @StackTrace(false)
+  static final class UpsRsQuery extends Event {
+    @Label("URL")
+    String url;
+
+    @Label("Status Code")
+    @Description("HTTP status of the response; zero if none was received")
+    int statusCode;
+  }
+
+  @Name("com.google.health.dicomproxy.XmlPartParse")
+  @Label("XML Part Parse")
+  @Description("Parsing of one DICOM XML part of a DICOMweb response")
+  @Category({CATEGORY, "DICOMweb"})
+  @StackTrace(false)
+  static final class XmlPartParse extends Event {
+    @Label("Characters")
+    long characters;
+
+    @Label("Attributes")
+    int attributes;
+  }
+
+  /** Prevent instantiation. */
+  private FlightEvents() {}
+}
@@ -0,0 +1,415 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Spool which keeps small instances in pooled off-heap buffers, and stores everything else in
+ * another spool on disk.
+ *
+ * <p>The size of an instance isn't known until it has been received, so every instance starts out
+ * in memory, and is spilled to disk as soon as it grows beyond the threshold, or the memory budget
+ * runs out. Instances held in memory are uploaded directly from there, and their buffers are
+ * returned to the pool once their batch has been released. If the upload of a batch fails, its
+ * instances in memory are moved to the disk spool, so that they're kept like the rest of the batch.
+ *
+ * <p>Instances in memory don't survive a restart, so this spool must only be used when the spool
+ * isn't required to be durable.
+ */
+final class HybridSpool implements Spool, UploadListener {
+  /** Size of each pooled buffer; instances in memory waste less than one buffer each. */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Spool diskSpool;
+  private final DirectBufferPool bufferPool;
+  private final long threshold;
+
+  /** Instances of each incomplete batch, in memory or not, keyed by batch ID. */
+  private final Map<String, Map<String, MemoryInstance>> pendingBatches = new HashMap<>();
+  /** Memory instances of completed batches which haven't been released yet. */
+  private final Map<String, List<MemoryInstance>> completedBatches = new HashMap<>();
+
+  /**
+   * @param diskSpool spool for instances which aren't kept in memory
+   * @param bufferPool buffers which instances in memory are stored in
+   * @param threshold instances larger than this many bytes are always stored on disk
+   */
+  HybridSpool(Spool diskSpool, DirectBufferPool bufferPool, long threshold) {
+    checkArgument(threshold > 0, "Threshold must be positive: %s", threshold);
+    this.diskSpool = checkNotNull(diskSpool);
+    this.bufferPool = checkNotNull(bufferPool);
+    this.threshold = threshold;
+  }
+
+  @Override
+  public PendingInstance newInstance(String batchId, String sopInstanceUid) {
+    return new PendingHybridInstance(batchId, sopInstanceUid);
+  }
+
+  @Override
+  public SpoolBatch completeBatch(String batchId) throws IOException {
+    SpoolBatch diskBatch = diskSpool.completeBatch(batchId);
+    Map<String, MemoryInstance> latest;
+    synchronized (this) {
+      latest = pendingBatches.remove(batchId);
+      if (latest == null) {
+        return diskBatch;
+      }
+    }
+
+    ImmutableList.Builder<SpooledInstance> instances = ImmutableList.builder();
+    for (SpooledInstance instance : diskBatch.getInstances()) {
+      // Leave out instances which were resent, and then kept in memory.
+      if (latest.get(instance.getSopInstanceUid()) == null) {
+        instances.add(instance);
+      }
+    }
+    List<MemoryInstance> memoryInstances = new ArrayList<>();
+    for (MemoryInstance instance : latest.values()) {
+      if (instance != null) {
+        memoryInstances.add(instance);
+        instances.add(instance);
+      }
+    }
+    synchronized (this) {
+      completedBatches.put(batchId, memoryInstances);
+    }
+    return new SpoolBatch(batchId, instances.build());
+  }
+
+  @Override
+  public void release(SpoolBatch batch) {
+    List<MemoryInstance> memoryInstances;
+    synchronized (this) {
+      memoryInstances = completedBatches.remove(batch.getId());
+    }
+    if (memoryInstances != null) {
+      for (MemoryInstance instance : memoryInstances) {
+        instance.free();
+      }
+    }
+    diskSpool.release(batch);
+  }
+
+  /** Frees the instances in memory of a batch whose association failed. */
+  @Override
+  public void abandonBatch(String batchId) {
+    Map<String, MemoryInstance> latest;
+    synchronized (this) {
+      latest = pendingBatches.remove(batchId);
+    }
+    if (latest != null) {
+      for (MemoryInstance instance : latest.values()) {
+        if (instance != null) {
+          instance.free();
+        }
+      }
+    }
+    diskSpool.abandonBatch(batchId);
+  }
+
+  @Override
+  public void onUploadSucceeded(SpoolBatch batch) {
+    release(batch);
+  }
+
+  /**
+   * Moves the instances in memory of a batch which failed to upload to the disk spool, and
+   * completes the batch there again, so that it's recovered on restart like a batch stored entirely
+   * on disk.
+   */
+  @Override
+  public void onUploadFailed(SpoolBatch batch) {
+    List<MemoryInstance> memoryInstances;
+    synchronized (this) {
+      memoryInstances = completedBatches.remove(batch.getId());
+    }
+    if (memoryInstances == null || memoryInstances.isEmpty()) {
+      return;
+    }
+    try {
+      for (MemoryInstance instance : memoryInstances) {
+        try (PendingInstance pending =
+                diskSpool.newInstance(batch.getId(), instance.getSopInstanceUid());
+            InputStream in = instance.openStream()) {
+          ByteStreams.copy(in, pending.getOutputStream());
+          pending.commit();
+        }
+      }
+      diskSpool.completeBatch(batch.getId());
+    } catch (IOException e) {
+      Logging.error(e, "Unable to move instances of %s from memory to disk; they're lost", batch);
+    } finally {
+      for (MemoryInstance instance : memoryInstances) {
+        instance.free();
+      }
+    }
+  }
+
+  @Override
+  public ImmutableList<SpoolBatch> recoverBatches() throws IOException {
+    return diskSpool.recoverBatches();
+  }
+
+  /**
+   * Records the latest copy of an instance in its batch, with null standing for one on disk, and
+   * frees any earlier copy held in memory.
+   */
+  private void addToBatch(
+      String batchId, String sopInstanceUid, @Nullable MemoryInstance instance) {
+    MemoryInstance previous;
+    synchronized (this) {
+      previous =
+          pendingBatches
+              .computeIfAbsent(batchId, unused -> new LinkedHashMap<>())
+              .put(sopInstanceUid, instance);
+    }
+    if (previous != null) {
+      previous.free();
+    }
+  }
+
+  /** An instance being written, which starts out in memory and may be spilled to disk. */
+  private final class PendingHybridInstance implements PendingInstance {
+    private final String batchId;
+    private final String sopInstanceUid;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final OutputStream out = new PendingOutputStream();
+    private long length = 0;
+    /** Set once the instance has been spilled to disk. */
+    @Nullable private PendingInstance diskInstance = null;
+    private boolean committed = false;
+
+    PendingHybridInstance(String batchId, String sopInstanceUid) {
+      this.batchId = batchId;
+      this.sopInstanceUid = sopInstanceUid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+      if (diskInstance == null) {
+        if (length + len <= threshold) {
+          int written = writeToMemory(b, off, len);
+          if (written == len) {
+            return;
+          }
+          off += written;
+          len -= written;
+        }
+        // Too large to keep in memory, or out of budget.
+        spill();
+      }
+      diskInstance.getOutputStream().write(b, off, len);
+    }
+
+    /** Appends as much as the memory budget allows, returning the number of bytes written. */
+    private int writeToMemory(byte[] b, int off, int len) {
+      int written = 0;
+      while (written < len) {
+        ByteBuffer last = buffers.isEmpty() ? null : buffers.get(buffers.size() - 1);
+        if (last == null || !last.hasRemaining()) {
+          last = bufferPool.tryAcquire();
+          if (last == null) {
+            break;
+          }
+          buffers.add(last);
+        }
+        int chunk = Math.min(len - written, last.remaining());
+        last.put(b, off + written, chunk);
+        written += chunk;
+      }
+      length += written;
+      return written;
+    }
+
+    /** Moves everything written so far to a new instance in the disk spool. */
+    private void spill() throws IOException {
+      diskInstance = diskSpool.newInstance(batchId, sopInstanceUid);
+      OutputStream out = diskInstance.getOutputStream();
+      byte[] chunk = new byte[bufferPool.getBufferSize()];
+      for (ByteBuffer buffer : buffers) {
+        buffer.flip();
+        int size = buffer.remaining();
+        buffer.get(chunk, 0, size);
+        out.write(chunk, 0, size);
+      }
+      freeBuffers();
+    }
+
+    @Override
+    public SpooledInstance commit() throws IOException {
+      SpooledInstance instance;
+      if (diskInstance != null) {
+        instance = diskInstance.commit();
+        addToBatch(batchId, sopInstanceUid, null);
+      } else {
+        MemoryInstance memoryInstance =
+            new MemoryInstance(sopInstanceUid, ImmutableList.copyOf(buffers), length);
+        buffers.clear();
+        addToBatch(batchId, sopInstanceUid, memoryInstance);
+        instance = memoryInstance;
+      }
+      committed = true;
+      return instance;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        freeBuffers();
+      }
+      if (diskInstance != null) {
+        diskInstance.close();
+      }
+    }
+
+    private void freeBuffers() {
+      for (ByteBuffer buffer : buffers) {
+        bufferPool.release(buffer);
+      }
+      buffers.clear();
+      length = 0;
+    }
+
+    /**
+     * Stream of the pending instance. Writers close it before committing the instance, so closing
+     * it only flushes; what was written is kept until the instance is committed or closed.
+     */
+    private final class PendingOutputStream extends OutputStream {
+      private final byte[] singleByte = new byte[1];
+
+      @Override
+      public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        PendingHybridInstance.this.write(singleByte, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        PendingHybridInstance.this.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (diskInstance != null) {
+          diskInstance.getOutputStream().flush();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    }
+  }
+
+  /** A committed instance held in pooled buffers. */
+  private final class MemoryInstance implements SpooledInstance {
+    private final String sopInstanceUid;
+    private final ImmutableList<ByteBuffer> buffers;
+    private final long length;
+    private boolean freed = false;
+
+    MemoryInstance(String sopInstanceUid, ImmutableList<ByteBuffer> buffers, long length) {
+      this.sopInstanceUid = sopInstanceUid;
+      this.buffers = buffers;
+      this.length = length;
+    }
+
+    @Override
+    public String getSopInstanceUid() {
+      return sopInstanceUid;
+    }
+
+    @Override
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public InputStream openStream() {
+      synchronized (this) {
+        checkState(!freed, "Instance %s has already been released", sopInstanceUid);
+      }
+      return new BufferListInputStream(buffers);
+    }
+
+    synchronized void free() {
+      if (!freed) {
+        freed = true;
+        for (ByteBuffer buffer : buffers) {
+          bufferPool.release(buffer);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("memory (%s bytes)", length);
+    }
+  }
+
+  /** Reads the written part of each of a list of buffers, without modifying them. */
+  private static final class BufferListInputStream extends InputStream {
+    private final List<ByteBuffer> buffers;
+    private int index = 0;
+    @Nullable private ByteBuffer current;
+
+    BufferListInputStream(List<ByteBuffer> buffers) {
+      this.buffers = buffers;
+      this.current = nextBuffer();
+    }
+
+    @Nullable
+    private ByteBuffer nextBuffer() {
+      if (index == buffers.size()) {
+        return null;
+      }
+      ByteBuffer buffer = buffers.get(index++).duplicate();
+      buffer.flip();
+      return buffer;
+    }
+
+    @Override
+    public int read() {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      while (current != null && !current.hasRemaining()) {
+        current = nextBuffer();
+      }
+      if (current == null) {
+        return -1;
+      }
+      int chunk = Math.min(len, current.remaining());
+      current.get(b, off, chunk);
+      return chunk;
+    }
+  }
+}
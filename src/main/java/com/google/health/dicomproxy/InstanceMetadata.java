@@ -0,0 +1,159 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32C;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+
+/**
+ * Size, checksum and header attributes of a spooled instance, recorded while it was received, so
+ * that they can be used without reading the instance again.
+ */
+final class InstanceMetadata {
+  private final String sopInstanceUid;
+  private final long length;
+  private final int crc32c;
+  private final ImmutableMap<Integer, String> values;
+
+  /**
+   * @param sopInstanceUid the SOP Instance UID of the instance
+   * @param length size of the instance as received, in bytes
+   * @param crc32c CRC32C checksum of the spooled instance
+   * @param values string values of the extracted attributes, by tag
+   */
+  InstanceMetadata(
+      String sopInstanceUid, long length, int crc32c, ImmutableMap<Integer, String> values) {
+    this.sopInstanceUid = checkNotNull(sopInstanceUid);
+    this.length = length;
+    this.crc32c = crc32c;
+    this.values = checkNotNull(values);
+  }
+
+  /**
+   * Extracts the given tags from a dataset, if it could be parsed. Tags which are missing or empty
+   * are left out, and multiple values are joined with backslashes, as they're encoded in DICOM.
+   */
+  static InstanceMetadata extract(
+      String sopInstanceUid, long length, int crc32c, @Nullable Attributes dataset, int[] tags) {
+    ImmutableMap.Builder<Integer, String> values = ImmutableMap.builder();
+    if (dataset != null) {
+      for (int tag : tags) {
+        String[] tagValues = dataset.getStrings(tag);
+        if (tagValues != null && tagValues.length > 0) {
+          values.put(tag, Joiner.on('\\').useForNull("").join(tagValues));
+        }
+      }
+    }
+    return new InstanceMetadata(sopInstanceUid, length, crc32c, values.build());
+  }
+
+  String getSopInstanceUid() {
+    return sopInstanceUid;
+  }
+
+  /** Returns the size of the spooled instance, in bytes. */
+  long getLength() {
+    return length;
+  }
+
+  /** Returns the CRC32C checksum of the spooled instance. */
+  int getCrc32c() {
+    return crc32c;
+  }
+
+  /**
+   * Returns a stream which reads the spooled instance from {@code in}, and which fails at its end
+   * if the instance doesn't match the recorded size and checksum.
+   */
+  InputStream verifying(InputStream in) {
+    return new VerifyingInputStream(in);
+  }
+
+  /** Returns the value of the given tag, or null if it wasn't extracted or had no value. */
+  @Nullable
+  String getString(int tag) {
+    return values.get(tag);
+  }
+
+  ImmutableMap<Integer, String> getValues() {
+    return values;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s (%s bytes, CRC32C %08x): %s", sopInstanceUid, length, crc32c, values);
+  }
+
+  /** Checksums the instance as it's read, and verifies it once the end is reached. */
+  private final class VerifyingInputStream extends FilterInputStream {
+    private final CRC32C checksum = new CRC32C();
+    private long count = 0;
+    private boolean verified = false;
+
+    VerifyingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        verify();
+      } else {
+        checksum.update(b);
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n == -1) {
+        verify();
+      } else {
+        checksum.update(b, off, n);
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes must still be checksummed.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void verify() throws IOException {
+      if (verified) {
+        return;
+      }
+      if (count != length || (int) checksum.getValue() != crc32c) {
+        throw new IOException(
+            String.format(
+                "Spooled instance %s is corrupt: read %s bytes with CRC32C %08x, expected %s",
+                sopInstanceUid, count, (int) checksum.getValue(), InstanceMetadata.this));
+      }
+      verified = true;
+    }
+  }
+}
@@ -5,7 +5,11 @@
 // file, you can obtain one at http://mozilla.org/MPL/2.0/.
 package com.google.health.dicomproxy;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.time.Duration;
+import java.util.concurrent.Executors;
 
 /** Main entry point for DicomProxy. */
 public class Main {
@@ -19,14 +23,50 @@ public class Main {
           }
         });
 
-    // TODO: check for old temp folders and clean them up and/or upload them.
+    if (Configuration.ConfigKey.TRACE_FILE.getString() != null) {
+      OtlpFileExporter exporter =
+          new OtlpFileExporter(
+              new File(Configuration.ConfigKey.TRACE_FILE.getString()),
+              Configuration.ConfigKey.TRACE_FILE_MAX_MB.getLong() * 1024 * 1024,
+              Executors.newSingleThreadScheduledExecutor(
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("trace-export")
+                      .setDaemon(true)
+                      .build()));
+      exporter.start();
+      Tracing.start(new Tracer(exporter, Configuration.ConfigKey.TRACE_SAMPLE_RATIO.getDouble()));
+    }
 
     ProxyServer proxyServer = new ProxyServer();
     if (Configuration.ConfigKey.UPLOAD_URI.getString() != null) {
       proxyServer.setDicomUploader(new StowRsUploader());
     }
     if (Configuration.ConfigKey.WORKLIST_URI.getString() != null) {
-        proxyServer.setWorklistClient(new UpsWorklistClient());
+        UpsWorklistClient worklistClient = new UpsWorklistClient();
+        if (Configuration.ConfigKey.WORKLIST_CACHE.getBoolean()) {
+          WorklistCache worklistCache =
+              new WorklistCache(
+                  worklistClient,
+                  worklistClient,
+                  Configuration.ConfigKey.WORKLIST_SUBSCRIBER_AE_TITLE.getString(),
+                  Executors.newSingleThreadScheduledExecutor(
+                      new ThreadFactoryBuilder()
+                          .setNameFormat("worklist-cache")
+                          .setDaemon(true)
+                          .build()),
+                  Duration.ofSeconds(Configuration.ConfigKey.WORKLIST_RESYNC_SECONDS.getInt()));
+          worklistCache.start();
+          proxyServer.setWorklistClient(worklistCache);
+        } else {
+          proxyServer.setWorklistClient(worklistClient);
+        }
+        proxyServer.setWorkitemClient(worklistClient);
+    }
+    if (Configuration.ConfigKey.QIDO_URI.getString() != null) {
+      proxyServer.setStudyQueryClient(new QidoRsClient());
+    }
+    if (Configuration.ConfigKey.WADO_URI.getString() != null) {
+      proxyServer.setRetrieveClient(new WadoRsClient());
     }
     proxyServer.startListening();
   }
@@ -0,0 +1,193 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dcm4che3.data.ElementDictionary;
+
+/**
+ * Index of the metadata of the instances in each spool batch, kept in a small file per batch
+ * alongside the spool. Each instance's metadata is appended as it's committed, so it can be looked
+ * up without reading the instance itself.
+ *
+ * <p>Each file starts with {@link #MAGIC}, followed by one record per instance: its SOP Instance
+ * UID, length and CRC32C checksum, and the number of attributes followed by each attribute's tag
+ * and value. If an instance is received more than once, the last record wins. A record cut short by
+ * a crash is ignored.
+ */
+final class MetadataSidecar implements UploadListener {
+  private static final int MAGIC = 0x444d4431; // "DMD1"
+  private static final String FILE_SUFFIX = ".meta";
+
+  private final File folder;
+  private final int[] tags;
+  /** Open sidecars of the batches currently being received. */
+  private final Map<String, DataOutputStream> openSidecars = new ConcurrentHashMap<>();
+
+  /**
+   * @param folder folder in which sidecar files are stored
+   * @param tags tags to extract from each instance
+   */
+  MetadataSidecar(File folder, int[] tags) {
+    this.folder = checkNotNull(folder);
+    this.tags = tags.clone();
+    if (!folder.isDirectory()) {
+      checkArgument(folder.mkdirs(), "Unable to create metadata folder %s.", folder);
+    }
+  }
+
+  /**
+   * Parses a comma-separated list of attribute keywords, such as "StudyInstanceUID,Modality".
+   *
+   * @throws IllegalArgumentException if any keyword isn't a known attribute
+   */
+  static int[] parseTags(String keywords) {
+    return Arrays.stream(keywords.split(","))
+        .map(String::trim)
+        .filter(keyword -> !keyword.isEmpty())
+        .mapToInt(
+            keyword -> {
+              int tag = ElementDictionary.tagForKeyword(keyword, null);
+              checkArgument(tag != -1, "Unknown attribute keyword: %s", keyword);
+              return tag;
+            })
+        .toArray();
+  }
+
+  /** Returns the tags to extract from each instance. */
+  int[] getTags() {
+    return tags.clone();
+  }
+
+  /** Appends an instance's metadata to the sidecar of its batch. */
+  void append(String batchId, InstanceMetadata metadata) throws IOException {
+    DataOutputStream out = openSidecars.get(batchId);
+    if (out == null) {
+      out = openSidecars.computeIfAbsent(batchId, this::open);
+      if (out == null) {
+        throw new IOException(String.format("Unable to open metadata sidecar for %s", batchId));
+      }
+    }
+
+    synchronized (out) {
+      out.writeUTF(metadata.getSopInstanceUid());
+      out.writeLong(metadata.getLength());
+      out.writeInt(metadata.getCrc32c());
+      out.writeShort(metadata.getValues().size());
+      for (Map.Entry<Integer, String> value : metadata.getValues().entrySet()) {
+        out.writeInt(value.getKey());
+        out.writeUTF(value.getValue());
+      }
+      out.flush();
+    }
+  }
+
+  /** Closes the sidecar of a batch which won't receive any more instances. */
+  void closeBatch(String batchId) {
+    DataOutputStream out = openSidecars.remove(batchId);
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        Logging.error(e, "Error closing metadata sidecar for %s", batchId);
+      }
+    }
+  }
+
+  /** Returns the metadata of the instances in a batch, by SOP Instance UID, in received order. */
+  ImmutableMap<String, InstanceMetadata> read(String batchId) throws IOException {
+    Map<String, InstanceMetadata> instances = new LinkedHashMap<>();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(getFile(batchId))))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(String.format("%s is not a metadata sidecar", getFile(batchId)));
+      }
+      while (true) {
+        String sopInstanceUid;
+        try {
+          sopInstanceUid = in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        long length = in.readLong();
+        int crc32c = in.readInt();
+        int count = in.readUnsignedShort();
+        ImmutableMap.Builder<Integer, String> values = ImmutableMap.builder();
+        for (int i = 0; i < count; i++) {
+          values.put(in.readInt(), in.readUTF());
+        }
+        instances.remove(sopInstanceUid);
+        instances.put(
+            sopInstanceUid, new InstanceMetadata(sopInstanceUid, length, crc32c, values.build()));
+      }
+    } catch (FileNotFoundException e) {
+      // No instances were committed to the batch.
+    } catch (EOFException e) {
+      // The last record was cut short.
+    }
+    return ImmutableMap.copyOf(instances);
+  }
+
+  /**
+   * Returns the batch with the metadata of its instances attached, so they can be verified as
+   * they're uploaded. If the sidecar can't be read, the batch is returned without metadata.
+   */
+  SpoolBatch attachTo(SpoolBatch batch) {
+    try {
+      return batch.withMetadata(read(batch.getId()));
+    } catch (IOException e) {
+      Logging.error(e, "Unable to read metadata of %s", batch);
+      return batch;
+    }
+  }
+
+  /** Deletes the sidecar of an uploaded batch. */
+  @Override
+  public void onUploadSucceeded(SpoolBatch batch) {
+    closeBatch(batch.getId());
+    File file = getFile(batch.getId());
+    if (file.exists() && !file.delete()) {
+      Logging.error("Unable to delete %s", file);
+    }
+  }
+
+  private DataOutputStream open(String batchId) {
+    File file = getFile(batchId);
+    try {
+      boolean isNew = !file.exists();
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+      if (isNew) {
+        out.writeInt(MAGIC);
+      }
+      return out;
+    } catch (IOException e) {
+      Logging.error(e, "Unable to open %s", file);
+      return null;
+    }
+  }
+
+  private File getFile(String batchId) {
+    return new File(folder, batchId + FILE_SUFFIX);
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.net.HostAndPort;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Destination of a C-MOVE, to which the proxy opens associations for storing instances.
+ *
+ * <p>The SOP classes of a retrieval aren't known until its instances arrive, so the association is
+ * opened for the first instance, and opened again, proposing everything needed so far, whenever an
+ * instance needs a SOP class or transfer syntax which wasn't proposed yet. Each SOP class is
+ * proposed in the retrieved transfer syntax, in a presentation context of its own, and uncompressed
+ * ones are proposed in the transfer syntaxes they may be re-encoded in as well.
+ */
+final class MoveDestination implements StreamingRetrieveTask.Destination {
+  /** Presentation context IDs are odd numbers from 1 to 255. */
+  private static final int MAX_PRESENTATION_CONTEXTS = 128;
+
+  private final ApplicationEntity applicationEntity;
+  private final String callingAet;
+  private final String calledAet;
+  private final HostAndPort address;
+
+  // Transfer syntaxes proposed, by SOP class.
+  private final SetMultimap<String, String> proposed = LinkedHashMultimap.create();
+  @Nullable private Association as;
+
+  /**
+   * @param applicationEntity application entity from which associations are opened
+   * @param callingAet AE title of the proxy, as called by the C-MOVE requestor
+   * @param calledAet AE title of the destination
+   */
+  MoveDestination(
+      ApplicationEntity applicationEntity,
+      String callingAet,
+      String calledAet,
+      HostAndPort address) {
+    this.applicationEntity = checkNotNull(applicationEntity);
+    this.callingAet = checkNotNull(callingAet);
+    this.calledAet = checkNotNull(calledAet);
+    this.address = checkNotNull(address);
+  }
+
+  @Override
+  public Association associationFor(String sopClassUid, String transferSyntax)
+      throws IOException, InterruptedException {
+    Set<String> needed = new LinkedHashSet<>();
+    needed.add(transferSyntax);
+    if (StreamingRetrieveTask.UNCOMPRESSED_TRANSFER_SYNTAXES.contains(transferSyntax)) {
+      needed.addAll(StreamingRetrieveTask.REENCODED_TRANSFER_SYNTAXES);
+    }
+    if (as != null
+        && as.isReadyForDataTransfer()
+        && proposed.get(sopClassUid).containsAll(needed)) {
+      // Already negotiated, whether or not the destination accepted it.
+      return as;
+    }
+
+    proposed.putAll(sopClassUid, needed);
+    if (proposed.size() > MAX_PRESENTATION_CONTEXTS) {
+      // Instances of the earlier SOP classes have been stored already.
+      proposed.clear();
+      proposed.putAll(sopClassUid, needed);
+    }
+    close();
+    as = connect();
+    return as;
+  }
+
+  private Association connect() throws IOException, InterruptedException {
+    AAssociateRQ rq = new AAssociateRQ();
+    rq.setCallingAET(callingAet);
+    rq.setCalledAET(calledAet);
+    int pcid = 1;
+    for (Map.Entry<String, String> entry : proposed.entries()) {
+      rq.addPresentationContext(new PresentationContext(pcid, entry.getKey(), entry.getValue()));
+      pcid += 2;
+    }
+    Logging.info(
+        "Opening association with %s at %s for %s SOP classes",
+        calledAet, address, proposed.keySet().size());
+    try {
+      return applicationEntity.connect(
+          new Connection(null, address.getHost(), address.getPort()), rq);
+    } catch (IncompatibleConnectionException | GeneralSecurityException e) {
+      throw new IOException("Unable to connect to " + calledAet, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (as == null) {
+      return;
+    }
+    try {
+      as.waitForOutstandingRSP();
+      as.release();
+    } catch (IOException e) {
+      Logging.error(e, "Unable to release association with %s", calledAet);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      as.abort();
+    }
+    as = null;
+  }
+}
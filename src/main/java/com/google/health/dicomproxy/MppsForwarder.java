@@ -0,0 +1,195 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+
+/**
+ * Forwards the procedure steps in an {@link MppsQueue} to UPS-RS in the background.
+ *
+ * <p>The first time a procedure step is forwarded, its workitem is found through the worklist and
+ * claimed (changed to IN PROGRESS). Each time it changes, the workitem is updated with the step's
+ * performed attributes, and once the step is completed or discontinued, the workitem is changed to
+ * its final state. See {@link MppsTranslator}.
+ *
+ * <p>Changes are forwarded in passes, started whenever one is queued. A pass forwards each step
+ * which changed since the last, combining its N-CREATE and any N-SETs received meanwhile into a
+ * single update, so that a burst of changes costs a few requests per step rather than per change.
+ * When the upstream service can't be reached, the pass is retried with exponential backoff. Steps
+ * which the service refuses are set aside rather than retried; a state change is only taken as
+ * refused if the workitem isn't already in that state, as a retry may repeat a change which was
+ * made, but whose response was lost.
+ */
+final class MppsForwarder {
+  private final MppsQueue queue;
+  private final WorklistClient worklistClient;
+  private final WorkitemClient workitemClient;
+  private final ScheduledExecutorService executor;
+  private final long minRetryDelayNanos;
+  private final long maxRetryDelayNanos;
+  private final Ticker ticker;
+
+  // Only accessed on the executor.
+  private long retryDelayNanos = 0;
+  private long retryAtNanos;
+
+  /**
+   * @param worklistClient client with which the workitem of each procedure step is found
+   * @param executor single-threaded executor on which steps are forwarded
+   * @param minRetryDelay delay before the first retry after the upstream service can't be reached
+   * @param maxRetryDelay longest delay between retries
+   */
+  MppsForwarder(
+      MppsQueue queue,
+      WorklistClient worklistClient,
+      WorkitemClient workitemClient,
+      ScheduledExecutorService executor,
+      Duration minRetryDelay,
+      Duration maxRetryDelay,
+      Ticker ticker) {
+    checkArgument(!minRetryDelay.isNegative() && !minRetryDelay.isZero());
+    checkArgument(maxRetryDelay.compareTo(minRetryDelay) >= 0);
+    this.queue = checkNotNull(queue);
+    this.worklistClient = checkNotNull(worklistClient);
+    this.workitemClient = checkNotNull(workitemClient);
+    this.executor = checkNotNull(executor);
+    this.minRetryDelayNanos = minRetryDelay.toNanos();
+    this.maxRetryDelayNanos = maxRetryDelay.toNanos();
+    this.ticker = checkNotNull(ticker);
+  }
+
+  /** Starts a pass, such as after a change was queued, unless a retry is already scheduled. */
+  void wake() {
+    executor.execute(this::forwardAll);
+  }
+
+  private void forwardAll() {
+    if (retryDelayNanos > 0 && ticker.read() - retryAtNanos < 0) {
+      // Waiting to retry; the scheduled retry picks up this change too.
+      return;
+    }
+    for (MppsQueue.Step step : queue.getUnforwarded()) {
+      try {
+        forward(step);
+      } catch (WorkitemClient.RejectedException e) {
+        Logging.error(e, "Unable to forward procedure step %s; setting it aside", step);
+        queue.fail(step.getSopInstanceUid());
+      } catch (IOException e) {
+        retryDelayNanos =
+            retryDelayNanos == 0
+                ? minRetryDelayNanos
+                : Math.min(2 * retryDelayNanos, maxRetryDelayNanos);
+        retryAtNanos = ticker.read() + retryDelayNanos;
+        Logging.error(
+            e,
+            "Error forwarding procedure step %s; retrying in %s ms",
+            step,
+            TimeUnit.NANOSECONDS.toMillis(retryDelayNanos));
+        @SuppressWarnings("unused")
+        Future<?> unused =
+            executor.schedule(this::forwardAll, retryDelayNanos, TimeUnit.NANOSECONDS);
+        return;
+      } catch (RuntimeException e) {
+        // Such as a malformed dataset; retrying won't help.
+        Logging.error(e, "Unable to translate procedure step %s; setting it aside", step);
+        queue.fail(step.getSopInstanceUid());
+      }
+    }
+    retryDelayNanos = 0;
+  }
+
+  private void forward(MppsQueue.Step step) throws IOException {
+    String workitemUid = step.getWorkitemUid();
+    if (workitemUid == null) {
+      workitemUid = findWorkitem(step);
+      queue.setWorkitem(step.getSopInstanceUid(), workitemUid);
+    }
+
+    String transactionUid = MppsTranslator.transactionUidFor(step.getSopInstanceUid());
+    if (!step.isClaimed()) {
+      changeState(workitemUid, MppsTranslator.IN_PROGRESS, transactionUid);
+      queue.setClaimed(step.getSopInstanceUid());
+    }
+    String status = step.getAttributes().getString(Tag.PerformedProcedureStepStatus);
+    String finalState =
+        MppsTranslator.isFinal(status) ? MppsTranslator.toProcedureStepState(status) : null;
+    boolean alreadyFinal = false;
+    try {
+      workitemClient.updateWorkitem(
+          workitemUid, transactionUid, MppsTranslator.buildWorkitemUpdate(step.getAttributes()));
+    } catch (WorkitemClient.RejectedException e) {
+      // A workitem in its final state can't be updated. If an earlier attempt put it there, and
+      // only its response was lost, the update was made before it.
+      if (finalState == null || !isInState(workitemUid, finalState)) {
+        throw e;
+      }
+      alreadyFinal = true;
+    }
+    if (finalState != null && !alreadyFinal) {
+      changeState(workitemUid, finalState, transactionUid);
+    }
+    queue.setForwarded(step);
+    Logging.info("Forwarded procedure step %s to workitem %s", step, workitemUid);
+  }
+
+  /**
+   * Changes the state of a workitem. A change which is refused because the workitem is already in
+   * that state counts as made, as it may have been made by an earlier attempt whose response was
+   * lost.
+   */
+  private void changeState(String workitemUid, String state, String transactionUid)
+      throws IOException {
+    try {
+      workitemClient.changeWorkitemState(workitemUid, state, transactionUid);
+    } catch (WorkitemClient.RejectedException e) {
+      if (!isInState(workitemUid, state)) {
+        throw e;
+      }
+      Logging.info("Workitem %s is already %s", workitemUid, state);
+    }
+  }
+
+  private boolean isInState(String workitemUid, String state) throws IOException {
+    Attributes workitem = workitemClient.retrieveWorkitem(workitemUid);
+    return workitem != null && state.equals(workitem.getString(Tag.ProcedureStepState));
+  }
+
+  private String findWorkitem(MppsQueue.Step step) throws IOException {
+    Attributes query = MppsTranslator.buildWorkitemQuery(step.getAttributes());
+    if (query == null) {
+      throw new WorkitemClient.RejectedException(
+          String.format("Procedure step %s doesn't reference a scheduled step", step));
+    }
+    ImmutableList<Attributes> matches = worklistClient.listWorkitems(query);
+    Set<String> workitemUids = new LinkedHashSet<>();
+    for (Attributes match : matches) {
+      String workitemUid = match.getString(Tag.SOPInstanceUID);
+      if (workitemUid != null) {
+        workitemUids.add(workitemUid);
+      }
+    }
+    if (workitemUids.size() != 1) {
+      throw new WorkitemClient.RejectedException(
+          String.format(
+              "Procedure step %s matches %s workitems, rather than one",
+              step, workitemUids.size()));
+    }
+    return workitemUids.iterator().next();
+  }
+}
@@ -0,0 +1,372 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Durable queue of the Modality Performed Procedure Steps received from modalities, kept until
+ * their changes have been forwarded upstream.
+ *
+ * <p>Each procedure step has a log file of its own, named by its SOP Instance UID. Its N-CREATE and
+ * each N-SET are appended to the log, and synced to disk, before they're acknowledged, so that no
+ * acknowledged change is lost. Progress in forwarding the step, that is the workitem it was matched
+ * with and whether that workitem was claimed, is appended as well. The log is deleted once the
+ * step's final state has been forwarded.
+ *
+ * <p>Each file starts with {@link #MAGIC}, followed by records which each start with a type byte.
+ * Datasets are written as their length followed by the dataset in Explicit VR Little Endian. A
+ * record cut short by a crash was never acknowledged, and is truncated when the queue is opened.
+ */
+final class MppsQueue {
+  private static final int MAGIC = 0x4d505331; // "MPS1"
+  private static final String FILE_SUFFIX = ".mpps";
+  private static final String FAILED_SUFFIX = ".failed";
+
+  private static final byte RECORD_CREATE = 'C';
+  private static final byte RECORD_SET = 'S';
+  private static final byte RECORD_WORKITEM = 'W';
+  private static final byte RECORD_CLAIMED = 'P';
+
+  /** Status of an N-SET of a procedure step which was already completed or discontinued. */
+  static final int STATUS_NOT_IN_PROGRESS = 0xC310;
+
+  private final File folder;
+  // Procedure steps by SOP Instance UID, in the order they were created; guarded by this.
+  private final Map<String, StepLog> steps = new LinkedHashMap<>();
+
+  private MppsQueue(File folder) {
+    this.folder = checkNotNull(folder);
+  }
+
+  /**
+   * Opens the queue in a folder, recovering the procedure steps which weren't forwarded before the
+   * last shutdown.
+   *
+   * @throws IOException if the folder can't be read
+   */
+  static MppsQueue open(File folder) throws IOException {
+    if (!folder.isDirectory()) {
+      checkArgument(folder.mkdirs(), "Unable to create MPPS queue folder %s.", folder);
+    }
+    MppsQueue queue = new MppsQueue(folder);
+    File[] files = folder.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+    if (files == null) {
+      throw new IOException(String.format("Unable to list %s", folder));
+    }
+    // Steps changed longest ago are forwarded first.
+    Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+    for (File file : files) {
+      String name = file.getName();
+      String sopInstanceUid = name.substring(0, name.length() - FILE_SUFFIX.length());
+      StepLog step = read(sopInstanceUid, file);
+      if (step == null) {
+        // The N-CREATE was never acknowledged.
+        Files.delete(file.toPath());
+      } else {
+        Logging.info("Recovered procedure step %s", sopInstanceUid);
+        queue.steps.put(sopInstanceUid, step);
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * Adds a procedure step created by an N-CREATE.
+   *
+   * @throws DicomServiceException if the procedure step already exists
+   * @throws IOException if it couldn't be stored
+   */
+  synchronized void create(String sopInstanceUid, Attributes attributes) throws IOException {
+    if (steps.containsKey(sopInstanceUid)) {
+      throw new DicomServiceException(Status.DuplicateSOPinstance)
+          .setErrorComment("Procedure step " + sopInstanceUid + " already exists");
+    }
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    new DataOutputStream(contents).writeInt(MAGIC);
+    contents.write(datasetRecord(RECORD_CREATE, attributes));
+    write(getFile(sopInstanceUid), contents.toByteArray(), /* append= */ false);
+    steps.put(sopInstanceUid, new StepLog(sopInstanceUid, new Attributes(attributes)));
+  }
+
+  /**
+   * Applies the changes of an N-SET to a procedure step.
+   *
+   * @throws DicomServiceException if there's no such procedure step, or it was already completed or
+   *     discontinued
+   * @throws IOException if the changes couldn't be stored
+   */
+  synchronized void set(String sopInstanceUid, Attributes changes) throws IOException {
+    StepLog step = steps.get(sopInstanceUid);
+    if (step == null) {
+      throw new DicomServiceException(Status.NoSuchObjectInstance)
+          .setErrorComment("No procedure step " + sopInstanceUid);
+    }
+    if (step.isFinal()) {
+      throw new DicomServiceException(STATUS_NOT_IN_PROGRESS)
+          .setErrorComment("Procedure step " + sopInstanceUid + " may no longer be updated");
+    }
+    write(getFile(sopInstanceUid), datasetRecord(RECORD_SET, changes), /* append= */ true);
+    step.apply(changes);
+    if (step.failed && step.isFinal()) {
+      setAside(step);
+    }
+  }
+
+  /** Returns the procedure steps with changes which haven't been forwarded yet, oldest first. */
+  synchronized ImmutableList<Step> getUnforwarded() {
+    ImmutableList.Builder<Step> unforwarded = ImmutableList.builder();
+    for (StepLog step : steps.values()) {
+      if (!step.failed && step.version > step.forwardedVersion) {
+        unforwarded.add(
+            new Step(
+                step.sopInstanceUid,
+                new Attributes(step.attributes),
+                step.version,
+                step.workitemUid,
+                step.claimed));
+      }
+    }
+    return unforwarded.build();
+  }
+
+  /** Records the workitem which a procedure step was matched with. */
+  synchronized void setWorkitem(String sopInstanceUid, String workitemUid) throws IOException {
+    StepLog step = steps.get(sopInstanceUid);
+    if (step != null) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(record);
+      out.writeByte(RECORD_WORKITEM);
+      out.writeUTF(workitemUid);
+      write(getFile(sopInstanceUid), record.toByteArray(), /* append= */ true);
+      step.workitemUid = workitemUid;
+    }
+  }
+
+  /** Records that the workitem of a procedure step was claimed. */
+  synchronized void setClaimed(String sopInstanceUid) throws IOException {
+    StepLog step = steps.get(sopInstanceUid);
+    if (step != null) {
+      write(getFile(sopInstanceUid), new byte[] {RECORD_CLAIMED}, /* append= */ true);
+      step.claimed = true;
+    }
+  }
+
+  /**
+   * Records that a procedure step was forwarded as it stood in the given snapshot. A step whose
+   * final state was forwarded is removed.
+   */
+  synchronized void setForwarded(Step forwarded) throws IOException {
+    StepLog step = steps.get(forwarded.getSopInstanceUid());
+    if (step == null) {
+      return;
+    }
+    step.forwardedVersion = Math.max(step.forwardedVersion, forwarded.version);
+    if (step.isFinal() && step.forwardedVersion == step.version) {
+      steps.remove(step.sopInstanceUid);
+      Files.delete(getFile(step.sopInstanceUid).toPath());
+    }
+  }
+
+  /**
+   * Stops forwarding a procedure step which the upstream service refused. Further changes from the
+   * modality are still accepted, and once the step is final, its log is kept with a {@code .failed}
+   * suffix for inspection.
+   */
+  synchronized void fail(String sopInstanceUid) {
+    StepLog step = steps.get(sopInstanceUid);
+    if (step != null) {
+      step.failed = true;
+      if (step.isFinal()) {
+        setAside(step);
+      }
+    }
+  }
+
+  /** Returns the number of procedure steps in the queue. */
+  synchronized int size() {
+    return steps.size();
+  }
+
+  private void setAside(StepLog step) {
+    steps.remove(step.sopInstanceUid);
+    File file = getFile(step.sopInstanceUid);
+    File failed = new File(folder, file.getName() + FAILED_SUFFIX);
+    if (!file.renameTo(failed)) {
+      Logging.error("Unable to rename %s to %s", file, failed);
+    }
+  }
+
+  private File getFile(String sopInstanceUid) {
+    return new File(folder, sopInstanceUid + FILE_SUFFIX);
+  }
+
+  private static void write(File file, byte[] bytes, boolean append) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file, append)) {
+      out.write(bytes);
+      // Changes are acknowledged once they're written, so they must survive a crash.
+      out.getFD().sync();
+    }
+  }
+
+  private static byte[] datasetRecord(byte type, Attributes attributes) throws IOException {
+    ByteArrayOutputStream dataset = new ByteArrayOutputStream();
+    try (DicomOutputStream out = new DicomOutputStream(dataset, UID.ExplicitVRLittleEndian)) {
+      out.writeDataset(null, attributes);
+    }
+    ByteArrayOutputStream record = new ByteArrayOutputStream(dataset.size() + 5);
+    DataOutputStream out = new DataOutputStream(record);
+    out.writeByte(type);
+    out.writeInt(dataset.size());
+    dataset.writeTo(out);
+    return record.toByteArray();
+  }
+
+  /** Reads a procedure step's log, returning null if it has no complete N-CREATE record. */
+  @Nullable
+  private static StepLog read(String sopInstanceUid, File file) throws IOException {
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    StepLog step = null;
+    int completeLength = 0;
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(String.format("%s is not an MPPS log", file));
+      }
+      completeLength = bytes.length - in.available();
+      while (in.available() > 0) {
+        byte type = in.readByte();
+        if (type == RECORD_CREATE) {
+          step = new StepLog(sopInstanceUid, readDataset(in));
+        } else if (step == null) {
+          throw new IOException(String.format("%s doesn't start with an N-CREATE", file));
+        } else if (type == RECORD_SET) {
+          step.apply(readDataset(in));
+        } else if (type == RECORD_WORKITEM) {
+          step.workitemUid = in.readUTF();
+        } else if (type == RECORD_CLAIMED) {
+          step.claimed = true;
+        } else {
+          throw new IOException(String.format("Unknown record type %s in %s", type, file));
+        }
+        completeLength = bytes.length - in.available();
+      }
+    } catch (EOFException e) {
+      Logging.info("Truncating incomplete record at %s in %s", completeLength, file);
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(completeLength);
+      }
+    }
+    return step;
+  }
+
+  private static Attributes readDataset(DataInputStream in) throws IOException {
+    byte[] dataset = new byte[in.readInt()];
+    in.readFully(dataset);
+    try (DicomInputStream datasetIn =
+        new DicomInputStream(new ByteArrayInputStream(dataset), UID.ExplicitVRLittleEndian)) {
+      return datasetIn.readDataset(-1, -1);
+    }
+  }
+
+  /** A snapshot of a procedure step, as it stood when it was taken from the queue. */
+  static final class Step {
+    private final String sopInstanceUid;
+    private final Attributes attributes;
+    private final int version;
+    @Nullable private final String workitemUid;
+    private final boolean claimed;
+
+    private Step(
+        String sopInstanceUid,
+        Attributes attributes,
+        int version,
+        @Nullable String workitemUid,
+        boolean claimed) {
+      this.sopInstanceUid = sopInstanceUid;
+      this.attributes = attributes;
+      this.version = version;
+      this.workitemUid = workitemUid;
+      this.claimed = claimed;
+    }
+
+    String getSopInstanceUid() {
+      return sopInstanceUid;
+    }
+
+    /** Returns the procedure step's attributes, with all of its N-SETs so far applied. */
+    Attributes getAttributes() {
+      return attributes;
+    }
+
+    /** Returns the SOP Instance UID of the workitem the step was matched with, if it was. */
+    @Nullable
+    String getWorkitemUid() {
+      return workitemUid;
+    }
+
+    /** Returns true if the workitem was claimed for the step. */
+    boolean isClaimed() {
+      return claimed;
+    }
+
+    @Override
+    public String toString() {
+      return sopInstanceUid;
+    }
+  }
+
+  /** A procedure step in the queue; guarded by the queue. */
+  private static final class StepLog {
+    private final String sopInstanceUid;
+    private final Attributes attributes;
+    // Number of changes received, and the number which were forwarded.
+    private int version = 1;
+    private int forwardedVersion = 0;
+    @Nullable private String workitemUid;
+    private boolean claimed = false;
+    private boolean failed = false;
+
+    StepLog(String sopInstanceUid, Attributes attributes) {
+      this.sopInstanceUid = sopInstanceUid;
+      this.attributes = attributes;
+    }
+
+    void apply(Attributes changes) {
+      attributes.addAll(changes);
+      version++;
+    }
+
+    boolean isFinal() {
+      return MppsTranslator.isFinal(attributes.getString(Tag.PerformedProcedureStepStatus));
+    }
+  }
+}
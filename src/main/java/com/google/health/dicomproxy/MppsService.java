@@ -0,0 +1,89 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Modality Performed Procedure Step (MPPS) SCP which proxies to DICOMweb UPS-RS.
+ *
+ * <p>N-CREATE and N-SET requests are acknowledged as soon as they're stored in the durable {@link
+ * MppsQueue}. The {@link MppsForwarder} then forwards them in the background, so that modalities
+ * don't wait on the upstream service.
+ */
+final class MppsService extends AbstractDicomService {
+  private final MppsQueue queue;
+  private final MppsForwarder forwarder;
+
+  MppsService(MppsQueue queue, MppsForwarder forwarder) {
+    super(UID.ModalityPerformedProcedureStepSOPClass);
+    this.queue = checkNotNull(queue);
+    this.forwarder = checkNotNull(forwarder);
+  }
+
+  @Override
+  protected void onDimseRQ(
+      Association as, PresentationContext pc, Dimse dimse, Attributes rq, Attributes data)
+      throws IOException {
+    Attributes rsp;
+    switch (dimse) {
+      case N_CREATE_RQ:
+        rsp = create(as, rq, data);
+        break;
+      case N_SET_RQ:
+        rsp = set(as, rq, data);
+        break;
+      default:
+        throw new DicomServiceException(Status.UnrecognizedOperation);
+    }
+    as.writeDimseRSP(pc, rsp, null);
+    forwarder.wake();
+  }
+
+  private Attributes create(Association as, Attributes rq, Attributes data) throws IOException {
+    // Assigns a SOP Instance UID if the modality didn't.
+    Attributes rsp = Commands.mkNCreateRSP(rq, Status.Success);
+    String sopInstanceUid = rsp.getString(Tag.AffectedSOPInstanceUID);
+    String status = data == null ? null : data.getString(Tag.PerformedProcedureStepStatus);
+    if (!MppsTranslator.IN_PROGRESS.equals(status)) {
+      throw new DicomServiceException(Status.InvalidAttributeValue)
+          .setErrorComment("Performed Procedure Step Status must be IN PROGRESS");
+    }
+    queue.create(sopInstanceUid, data);
+    Logging.info("Procedure step %s created by %s", sopInstanceUid, as.getCallingAET());
+    return rsp;
+  }
+
+  private Attributes set(Association as, Attributes rq, Attributes data) throws IOException {
+    String sopInstanceUid = rq.getString(Tag.RequestedSOPInstanceUID);
+    if (data == null) {
+      throw new DicomServiceException(Status.MissingAttribute)
+          .setErrorComment("Missing modification list");
+    }
+    String status = data.getString(Tag.PerformedProcedureStepStatus);
+    if (status != null && MppsTranslator.toProcedureStepState(status) == null) {
+      throw new DicomServiceException(Status.InvalidAttributeValue)
+          .setErrorComment("Unknown Performed Procedure Step Status " + status);
+    }
+    queue.set(sopInstanceUid, data);
+    Logging.info(
+        "Procedure step %s set to %s by %s",
+        sopInstanceUid, status == null ? "(unchanged)" : status, as.getCallingAET());
+    return Commands.mkNSetRSP(rq, Status.Success);
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+
+/**
+ * Converts Modality Performed Procedure Step (MPPS) datasets to UPS-RS workitem changes.
+ *
+ * <p>As with {@link WorklistQueryTranslator}, there's not a 1:1 mapping between MPPS and UPS. The
+ * workitem a procedure step performs is found by querying the worklist for the scheduled step it
+ * references; its progress then becomes the workitem's Procedure Step State, and the performed
+ * attributes are moved into the Unified Procedure Step Performed Procedure Sequence, converting
+ * Date + Time to DateTime.
+ *
+ * <p>For details on the UPS attributes, see <a
+ * href="http://dicom.nema.org/medical/dicom/2019a/output/chtml/part04/sect_CC.2.5.html">the DICOM
+ * Standard</a>.
+ */
+final class MppsTranslator {
+
+  static final String IN_PROGRESS = "IN PROGRESS";
+  static final String COMPLETED = "COMPLETED";
+  static final String DISCONTINUED = "DISCONTINUED";
+
+  /** UPS state of a workitem which was discontinued; UPS has no DISCONTINUED state. */
+  static final String CANCELED = "CANCELED";
+
+  /** Root of UIDs derived from UUIDs; see PS3.5 Section B.2. */
+  private static final String UUID_UID_ROOT = "2.25.";
+
+  private MppsTranslator() {}
+
+  /**
+   * Returns an MWL query for the workitem of the scheduled step a procedure step references,
+   * returning its SOP Instance UID, or null if it doesn't reference one (an unscheduled step).
+   */
+  @Nullable
+  static Attributes buildWorkitemQuery(Attributes mpps) {
+    Attributes scheduledStep = firstItem(mpps, Tag.ScheduledStepAttributesSequence);
+    if (scheduledStep == null) {
+      return null;
+    }
+    Attributes query = new Attributes();
+    query.setNull(Tag.SOPInstanceUID, VR.UI);
+    boolean referencesStep = false;
+    referencesStep |= copyMatchKey(scheduledStep, query, Tag.StudyInstanceUID, VR.UI);
+    referencesStep |= copyMatchKey(scheduledStep, query, Tag.AccessionNumber, VR.SH);
+    referencesStep |= copyMatchKey(scheduledStep, query, Tag.RequestedProcedureID, VR.SH);
+    return referencesStep ? query : null;
+  }
+
+  /**
+   * Returns the UPS Procedure Step State matching a Performed Procedure Step Status, or null if the
+   * status isn't valid.
+   */
+  @Nullable
+  static String toProcedureStepState(@Nullable String performedProcedureStepStatus) {
+    if (performedProcedureStepStatus == null) {
+      return null;
+    }
+    switch (performedProcedureStepStatus) {
+      case IN_PROGRESS:
+      case COMPLETED:
+        return performedProcedureStepStatus;
+      case DISCONTINUED:
+        return CANCELED;
+      default:
+        return null;
+    }
+  }
+
+  /** Returns true if a procedure step with this status can't be changed any more. */
+  static boolean isFinal(@Nullable String performedProcedureStepStatus) {
+    return COMPLETED.equals(performedProcedureStepStatus)
+        || DISCONTINUED.equals(performedProcedureStepStatus);
+  }
+
+  /** Returns the attributes to update the workitem with, for a procedure step as it stands. */
+  static Attributes buildWorkitemUpdate(Attributes mpps) {
+    Attributes performed = new Attributes();
+    setDateTime(
+        mpps,
+        Tag.PerformedProcedureStepStartDate,
+        Tag.PerformedProcedureStepStartTime,
+        performed,
+        Tag.PerformedProcedureStepStartDateTime);
+    setDateTime(
+        mpps,
+        Tag.PerformedProcedureStepEndDate,
+        Tag.PerformedProcedureStepEndTime,
+        performed,
+        Tag.PerformedProcedureStepEndDateTime);
+    String description = mpps.getString(Tag.PerformedProcedureStepDescription);
+    if (description != null) {
+      performed.setString(Tag.PerformedProcedureStepDescription, VR.LO, description);
+    }
+    copySequence(mpps, Tag.ProcedureCodeSequence, performed, Tag.PerformedWorkitemCodeSequence);
+
+    Sequence performedSeries = mpps.getSequence(Tag.PerformedSeriesSequence);
+    if (performedSeries != null && !performedSeries.isEmpty()) {
+      Attributes scheduledStep = firstItem(mpps, Tag.ScheduledStepAttributesSequence);
+      String studyInstanceUid =
+          scheduledStep == null ? null : scheduledStep.getString(Tag.StudyInstanceUID);
+      Sequence outputs =
+          performed.newSequence(Tag.OutputInformationSequence, performedSeries.size());
+      for (Attributes series : performedSeries) {
+        outputs.add(toOutputInformation(series, studyInstanceUid));
+      }
+    }
+
+    Attributes update = new Attributes();
+    update.newSequence(Tag.UnifiedProcedureStepPerformedProcedureSequence, 1).add(performed);
+
+    Sequence reasons =
+        mpps.getSequence(Tag.PerformedProcedureStepDiscontinuationReasonCodeSequence);
+    if (reasons != null && !reasons.isEmpty()) {
+      Attributes progress = new Attributes();
+      copySequence(
+          mpps,
+          Tag.PerformedProcedureStepDiscontinuationReasonCodeSequence,
+          progress,
+          Tag.ProcedureStepDiscontinuationReasonCodeSequence);
+      update.newSequence(Tag.ProcedureStepProgressInformationSequence, 1).add(progress);
+    }
+    return update;
+  }
+
+  /**
+   * Returns the Transaction UID with which the proxy claims the workitem of a procedure step.
+   *
+   * <p>It's derived from the procedure step's SOP Instance UID, so that it's known to every later
+   * change of the step without being stored, including after a restart.
+   */
+  static String transactionUidFor(String mppsInstanceUid) {
+    UUID uuid = UUID.nameUUIDFromBytes(mppsInstanceUid.getBytes(UTF_8));
+    byte[] bytes =
+        ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    return UUID_UID_ROOT + new BigInteger(/* signum= */ 1, bytes);
+  }
+
+  private static Attributes toOutputInformation(
+      Attributes series, @Nullable String studyInstanceUid) {
+    Attributes output = new Attributes();
+    output.setString(Tag.TypeOfInstances, VR.CS, "DICOM");
+    if (studyInstanceUid != null) {
+      output.setString(Tag.StudyInstanceUID, VR.UI, studyInstanceUid);
+    }
+    String seriesInstanceUid = series.getString(Tag.SeriesInstanceUID);
+    if (seriesInstanceUid != null) {
+      output.setString(Tag.SeriesInstanceUID, VR.UI, seriesInstanceUid);
+    }
+    String retrieveAeTitle = series.getString(Tag.RetrieveAETitle);
+    if (retrieveAeTitle != null) {
+      output.setString(Tag.RetrieveAETitle, VR.AE, retrieveAeTitle);
+    }
+
+    // MPPS lists image and non-image instances separately; UPS lists them together.
+    Sequence images = series.getSequence(Tag.ReferencedImageSequence);
+    Sequence nonImages = series.getSequence(Tag.ReferencedNonImageCompositeSOPInstanceSequence);
+    int count = (images == null ? 0 : images.size()) + (nonImages == null ? 0 : nonImages.size());
+    Sequence referencedSops = output.newSequence(Tag.ReferencedSOPSequence, count);
+    for (Sequence instances : new Sequence[] {images, nonImages}) {
+      if (instances == null) {
+        continue;
+      }
+      for (Attributes instance : instances) {
+        Attributes referencedSop = new Attributes(2);
+        referencedSop.addSelected(
+            instance, Tag.ReferencedSOPClassUID, Tag.ReferencedSOPInstanceUID);
+        referencedSops.add(referencedSop);
+      }
+    }
+    return output;
+  }
+
+  private static boolean copyMatchKey(Attributes from, Attributes to, int tag, VR vr) {
+    String value = from.getString(tag);
+    if (value == null || value.isBlank()) {
+      return false;
+    }
+    to.setString(tag, vr, value);
+    return true;
+  }
+
+  private static void setDateTime(
+      Attributes from, int dateTag, int timeTag, Attributes to, int dateTimeTag) {
+    String date = from.getString(dateTag);
+    if (date == null || date.isBlank()) {
+      return;
+    }
+    String time = from.getString(timeTag);
+    to.setString(dateTimeTag, VR.DT, time == null ? date : date + time);
+  }
+
+  private static void copySequence(Attributes from, int fromTag, Attributes to, int toTag) {
+    Sequence items = from.getSequence(fromTag);
+    if (items == null || items.isEmpty()) {
+      return;
+    }
+    Sequence copy = to.newSequence(toTag, items.size());
+    for (Attributes item : items) {
+      copy.add(new Attributes(item));
+    }
+  }
+
+  @Nullable
+  private static Attributes firstItem(Attributes attributes, int sequenceTag) {
+    Sequence sequence = attributes.getSequence(sequenceTag);
+    return sequence == null || sequence.isEmpty() ? null : sequence.get(0);
+  }
+}
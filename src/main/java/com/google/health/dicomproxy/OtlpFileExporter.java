@@ -0,0 +1,225 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Exports spans to a local file, in the OpenTelemetry protocol's JSON encoding, so that they can be
+ * loaded by an OpenTelemetry Collector's file receiver or read directly.
+ *
+ * <p>Ended spans are queued, and written every second, as one {@code ExportTraceServiceRequest} per
+ * line. Spans are dropped, rather than delaying the operations they trace, if the queue is full.
+ * Once the file grows beyond its maximum size, it's renamed with a ".1" suffix, replacing the
+ * previous one, and a new file is started.
+ */
+final class OtlpFileExporter implements Consumer<Span> {
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+  private static final String SERVICE_NAME = "dicomweb-proxy";
+  private static final String SCOPE_NAME = "com.google.health.dicomproxy";
+  private static final int QUEUE_CAPACITY = 10_000;
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+  /** Status code of spans which failed. */
+  private static final int STATUS_CODE_ERROR = 2;
+
+  private final File file;
+  private final long maxBytes;
+  private final ScheduledExecutorService executor;
+  private final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param file file the spans are appended to
+   * @param maxBytes size beyond which the file is rotated
+   * @param executor executor on which queued spans are written
+   */
+  OtlpFileExporter(File file, long maxBytes, ScheduledExecutorService executor) {
+    this.file = checkNotNull(file);
+    this.maxBytes = maxBytes;
+    this.executor = checkNotNull(executor);
+  }
+
+  /** Starts writing queued spans periodically. */
+  void start() {
+    @SuppressWarnings("unused")
+    Future<?> unused =
+        executor.scheduleWithFixedDelay(
+            () -> {
+              try {
+                flush();
+              } catch (IOException e) {
+                Logging.error(e, "Unable to write spans to %s", file);
+              }
+            },
+            FLUSH_INTERVAL_MILLIS,
+            FLUSH_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::shutDown, "trace-export-shutdown"));
+  }
+
+  @Override
+  public void accept(Span span) {
+    if (!queue.offer(span)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /** Writes every queued span to the file. */
+  synchronized void flush() throws IOException {
+    long droppedSpans = dropped.getAndSet(0);
+    if (droppedSpans > 0) {
+      Logging.error("Dropped %s spans which couldn't be exported in time", droppedSpans);
+    }
+    List<Span> spans = new ArrayList<>();
+    queue.drainTo(spans);
+    if (spans.isEmpty()) {
+      return;
+    }
+    if (file.length() > maxBytes) {
+      Files.move(
+          file.toPath(),
+          new File(file.getPath() + ".1").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    String line = encode(spans);
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8)) {
+      writer.write(line);
+      writer.write('\n');
+    }
+  }
+
+  private void shutDown() {
+    executor.shutdown();
+    try {
+      flush();
+    } catch (IOException e) {
+      Logging.error(e, "Unable to write spans to %s", file);
+    }
+  }
+
+  /** Encodes spans as an OTLP/JSON ExportTraceServiceRequest, on a single line. */
+  static String encode(List<Span> spans) throws IOException {
+    StringWriter json = new StringWriter();
+    JsonGenerator generator = JSON_FACTORY.createJsonGenerator(json);
+    generator.writeStartObject();
+    generator.writeFieldName("resourceSpans");
+    generator.writeStartArray();
+    generator.writeStartObject();
+
+    generator.writeFieldName("resource");
+    generator.writeStartObject();
+    generator.writeFieldName("attributes");
+    generator.writeStartArray();
+    writeAttribute(generator, "service.name", SERVICE_NAME);
+    generator.writeEndArray();
+    generator.writeEndObject();
+
+    generator.writeFieldName("scopeSpans");
+    generator.writeStartArray();
+    generator.writeStartObject();
+    generator.writeFieldName("scope");
+    generator.writeStartObject();
+    generator.writeFieldName("name");
+    generator.writeString(SCOPE_NAME);
+    generator.writeEndObject();
+    generator.writeFieldName("spans");
+    generator.writeStartArray();
+    for (Span span : spans) {
+      writeSpan(generator, span);
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+    generator.writeEndArray();
+
+    generator.writeEndObject();
+    generator.writeEndArray();
+    generator.writeEndObject();
+    generator.close();
+    return json.toString();
+  }
+
+  private static void writeSpan(JsonGenerator generator, Span span) throws IOException {
+    generator.writeStartObject();
+    generator.writeFieldName("traceId");
+    generator.writeString(span.getTraceId());
+    generator.writeFieldName("spanId");
+    generator.writeString(span.getSpanId());
+    if (span.getParentSpanId() != null) {
+      generator.writeFieldName("parentSpanId");
+      generator.writeString(span.getParentSpanId());
+    }
+    generator.writeFieldName("name");
+    generator.writeString(span.getName());
+    generator.writeFieldName("kind");
+    generator.writeNumber(span.getKind());
+    // 64-bit integers are encoded as strings in the JSON encoding.
+    generator.writeFieldName("startTimeUnixNano");
+    generator.writeString(Long.toString(span.getStartEpochNanos()));
+    generator.writeFieldName("endTimeUnixNano");
+    generator.writeString(Long.toString(span.getEndEpochNanos()));
+
+    generator.writeFieldName("attributes");
+    generator.writeStartArray();
+    for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+      writeAttribute(generator, attribute.getKey(), attribute.getValue());
+    }
+    generator.writeEndArray();
+
+    if (span.isError()) {
+      generator.writeFieldName("status");
+      generator.writeStartObject();
+      generator.writeFieldName("code");
+      generator.writeNumber(STATUS_CODE_ERROR);
+      if (span.getErrorMessage() != null) {
+        generator.writeFieldName("message");
+        generator.writeString(span.getErrorMessage());
+      }
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+  }
+
+  private static void writeAttribute(JsonGenerator generator, String key, Object value)
+      throws IOException {
+    generator.writeStartObject();
+    generator.writeFieldName("key");
+    generator.writeString(key);
+    generator.writeFieldName("value");
+    generator.writeStartObject();
+    if (value instanceof Long) {
+      generator.writeFieldName("intValue");
+      generator.writeString(value.toString());
+    } else {
+      generator.writeFieldName("stringValue");
+      generator.writeString(value.toString());
+    }
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+}
@@ -0,0 +1,226 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRJ;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.DicomService;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Limits the associations and instances accepted from each peer, identified both by its calling AE
+ * title and by its IP address, so that one misbehaving device can't starve the others.
+ *
+ * <p>Associations beyond a peer's limit are rejected with A-ASSOCIATE-RJ, as transient, with the
+ * reason "local limit exceeded", so that the peer may try again later. Instances beyond a peer's
+ * rate are held back before they're read, which pushes back on the peer without failing them.
+ *
+ * <p>Associations are admitted and released by {@link ProxyAssociationHandler}.
+ */
+final class PeerLimiter {
+  private static final String PEERS_PROPERTY = "peer-limiter-peers";
+
+  private final int maxAssociationsPerAe;
+  private final int maxAssociationsPerAddress;
+  private final double instancesPerSecondPerAe;
+  private final double instancesPerSecondPerAddress;
+  private final Ticker ticker;
+
+  // Peers with open associations, by AE title and by address. Guarded by this.
+  private final Map<String, Peer> peersByAe = new HashMap<>();
+  private final Map<String, Peer> peersByAddress = new HashMap<>();
+
+  /**
+   * Limits of zero are unlimited.
+   *
+   * @param maxAssociationsPerAe maximum number of open associations with each calling AE title
+   * @param maxAssociationsPerAddress maximum number of open associations with each IP address
+   * @param instancesPerSecondPerAe maximum rate of instances received from each calling AE title
+   * @param instancesPerSecondPerAddress maximum rate of instances received from each IP address
+   */
+  PeerLimiter(
+      int maxAssociationsPerAe,
+      int maxAssociationsPerAddress,
+      double instancesPerSecondPerAe,
+      double instancesPerSecondPerAddress,
+      Ticker ticker) {
+    checkArgument(maxAssociationsPerAe >= 0, "maxAssociationsPerAe must not be negative");
+    checkArgument(
+        maxAssociationsPerAddress >= 0, "maxAssociationsPerAddress must not be negative");
+    checkArgument(instancesPerSecondPerAe >= 0, "instancesPerSecondPerAe must not be negative");
+    checkArgument(
+        instancesPerSecondPerAddress >= 0, "instancesPerSecondPerAddress must not be negative");
+    this.maxAssociationsPerAe = maxAssociationsPerAe;
+    this.maxAssociationsPerAddress = maxAssociationsPerAddress;
+    this.instancesPerSecondPerAe = instancesPerSecondPerAe;
+    this.instancesPerSecondPerAddress = instancesPerSecondPerAddress;
+    this.ticker = checkNotNull(ticker);
+  }
+
+  /**
+   * Counts a requested association against its peer's limits. Must be followed by {@link #release}
+   * once the association closes, or if it isn't accepted after all.
+   *
+   * @throws AAssociateRJ if the peer already has as many associations open as it's allowed
+   */
+  void admit(Association as, AAssociateRQ rq) throws AAssociateRJ {
+    as.setProperty(
+        PEERS_PROPERTY, open(rq.getCallingAET(), as.getSocket().getInetAddress().getHostAddress()));
+  }
+
+  /** Uncounts an association admitted by {@link #admit}; does nothing for any other. */
+  void release(Association as) {
+    @SuppressWarnings("unchecked")
+    ImmutableList<Peer> peers = (ImmutableList<Peer>) as.clearProperty(PEERS_PROPERTY);
+    if (peers != null) {
+      close(peers);
+    }
+  }
+
+  /**
+   * Returns a service which holds back requests for {@code service} while their peer is over its
+   * instance rate.
+   */
+  DicomService throttle(DicomService service) {
+    checkNotNull(service);
+    if (instancesPerSecondPerAe == 0 && instancesPerSecondPerAddress == 0) {
+      return service;
+    }
+    return new DicomService() {
+      @Override
+      public String[] getSOPClasses() {
+        return service.getSOPClasses();
+      }
+
+      @Override
+      public void onDimseRQ(
+          Association as, PresentationContext pc, Dimse dimse, Attributes cmd, PDVInputStream data)
+          throws IOException {
+        @SuppressWarnings("unchecked")
+        ImmutableList<Peer> peers = (ImmutableList<Peer>) as.getProperty(PEERS_PROPERTY);
+        if (peers != null) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(reserveInstance(peers));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+          }
+        }
+        service.onDimseRQ(as, pc, dimse, cmd, data);
+      }
+
+      @Override
+      public void onClose(Association as) {
+        service.onClose(as);
+      }
+    };
+  }
+
+  /**
+   * Counts a new association with the given peer.
+   *
+   * @throws AAssociateRJ if the peer already has as many associations open as it's allowed
+   */
+  @VisibleForTesting
+  synchronized ImmutableList<Peer> open(String callingAet, String address) throws AAssociateRJ {
+    Peer ae =
+        peersByAe.computeIfAbsent(
+            callingAet, key -> new Peer(peersByAe, key, instancesPerSecondPerAe));
+    Peer host =
+        peersByAddress.computeIfAbsent(
+            address, key -> new Peer(peersByAddress, key, instancesPerSecondPerAddress));
+    if (isFull(ae, maxAssociationsPerAe) || isFull(host, maxAssociationsPerAddress)) {
+      Logging.info(
+          "Rejecting association from %s at %s: %s and %s associations already open",
+          callingAet, address, ae.associations, host.associations);
+      // Forget peers which were only just added.
+      ae.forgetIfUnused();
+      host.forgetIfUnused();
+      throw new AAssociateRJ(
+          AAssociateRJ.RESULT_REJECTED_TRANSIENT,
+          AAssociateRJ.SOURCE_SERVICE_PROVIDER_PRES,
+          AAssociateRJ.REASON_LOCAL_LIMIT_EXCEEDED);
+    }
+    ae.associations++;
+    host.associations++;
+    return ImmutableList.of(ae, host);
+  }
+
+  /** Uncounts an association counted by {@link #open}. */
+  @VisibleForTesting
+  synchronized void close(ImmutableList<Peer> peers) {
+    for (Peer peer : peers) {
+      peer.associations--;
+      peer.forgetIfUnused();
+    }
+  }
+
+  /** Takes an instance from each peer's rate, returning how long to wait before receiving it. */
+  @VisibleForTesting
+  long reserveInstance(ImmutableList<Peer> peers) {
+    long waitNanos = 0;
+    for (Peer peer : peers) {
+      if (peer.instances != null) {
+        waitNanos = Math.max(waitNanos, peer.instances.reserve(1));
+      }
+    }
+    return waitNanos;
+  }
+
+  /** Returns the number of associations open with the given calling AE title. */
+  @VisibleForTesting
+  synchronized int getAssociationsForAe(String callingAet) {
+    Peer peer = peersByAe.get(callingAet);
+    return peer == null ? 0 : peer.associations;
+  }
+
+  private static boolean isFull(Peer peer, int maxAssociations) {
+    return maxAssociations > 0 && peer.associations >= maxAssociations;
+  }
+
+  /** A peer, identified either by its calling AE title or by its address. */
+  final class Peer {
+    private final Map<String, Peer> peers;
+    private final String key;
+    @Nullable private final TokenBucket instances;
+    // Guarded by the PeerLimiter.
+    private int associations = 0;
+
+    private Peer(Map<String, Peer> peers, String key, double instancesPerSecond) {
+      this.peers = peers;
+      this.key = key;
+      // Allow up to a second's worth of instances at once.
+      this.instances =
+          instancesPerSecond > 0
+              ? new TokenBucket(instancesPerSecond, Math.max(1, instancesPerSecond), ticker)
+              : null;
+    }
+
+    /** Forgets this peer once it has no associations open, which also resets its rate. */
+    private void forgetIfUnused() {
+      if (associations <= 0) {
+        peers.remove(key, this);
+      }
+    }
+  }
+}
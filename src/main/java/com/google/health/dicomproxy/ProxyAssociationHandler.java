@@ -0,0 +1,47 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.AssociationHandler;
+import org.dcm4che3.net.pdu.AAssociateAC;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+
+/**
+ * Negotiates incoming associations, applying per-peer limits and transfer syntax preferences before
+ * dcm4che's usual negotiation.
+ */
+final class ProxyAssociationHandler extends AssociationHandler {
+  private final PeerLimiter peerLimiter;
+  private final TransferSyntaxPreferences transferSyntaxPreferences;
+
+  ProxyAssociationHandler(
+      PeerLimiter peerLimiter, TransferSyntaxPreferences transferSyntaxPreferences) {
+    this.peerLimiter = checkNotNull(peerLimiter);
+    this.transferSyntaxPreferences = checkNotNull(transferSyntaxPreferences);
+  }
+
+  @Override
+  protected AAssociateAC negotiate(Association as, AAssociateRQ rq) throws IOException {
+    peerLimiter.admit(as, rq);
+    try {
+      transferSyntaxPreferences.apply(rq);
+      return super.negotiate(as, rq);
+    } catch (IOException | RuntimeException e) {
+      peerLimiter.release(as);
+      throw e;
+    }
+  }
+
+  @Override
+  protected void onClose(Association as) {
+    super.onClose(as);
+    peerLimiter.release(as);
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * DICOM Study Root Query/Retrieve C-GET and C-MOVE listener which proxies to DICOMweb WADO-RS, so
+ * that viewers can fetch studies, such as priors, which were uploaded.
+ *
+ * <p>Retrievals run on the retrieve executor, as {@link StreamingRetrieveTask}s. C-GET stores
+ * instances on the requesting association; C-MOVE stores them on associations the proxy opens with
+ * the destination, whose address must be configured.
+ */
+final class ProxyRetrieveService extends AbstractDicomService {
+  private final RetrieveClient retrieveClient;
+  private final Executor retrieveExecutor;
+  private final ImmutableMap<String, HostAndPort> moveDestinations;
+
+  /** @param moveDestinations addresses of the C-MOVE destinations, by AE title */
+  ProxyRetrieveService(
+      RetrieveClient retrieveClient,
+      Executor retrieveExecutor,
+      ImmutableMap<String, HostAndPort> moveDestinations) {
+    super(
+        UID.StudyRootQueryRetrieveInformationModelGET,
+        UID.StudyRootQueryRetrieveInformationModelMOVE);
+    this.retrieveClient = checkNotNull(retrieveClient);
+    this.retrieveExecutor = checkNotNull(retrieveExecutor);
+    this.moveDestinations = checkNotNull(moveDestinations);
+  }
+
+  @Override
+  protected void onDimseRQ(
+      Association as, PresentationContext pc, Dimse dimse, Attributes rq, Attributes keys)
+      throws IOException {
+    StreamingRetrieveTask.Destination destination;
+    if (dimse == Dimse.C_GET_RQ) {
+      destination = (sopClassUid, transferSyntax) -> as;
+    } else if (dimse == Dimse.C_MOVE_RQ) {
+      String moveDestination = rq.getString(Tag.MoveDestination);
+      HostAndPort address = moveDestination == null ? null : moveDestinations.get(moveDestination);
+      if (address == null) {
+        throw new DicomServiceException(Status.MoveDestinationUnknown)
+            .setErrorComment("No address is configured for " + moveDestination);
+      }
+      destination =
+          new MoveDestination(
+              as.getApplicationEntity(), as.getCalledAET(), moveDestination, address);
+    } else {
+      throw new DicomServiceException(Status.UnrecognizedOperation);
+    }
+    Logging.info("Received retrieval from %s:\n%s", as.getCallingAET(), keys.toString(1000, 1000));
+
+    StreamingRetrieveTask retrieveTask =
+        new StreamingRetrieveTask(as, pc, dimse, rq, keys, retrieveClient, destination);
+    // Listen for C-CANCEL while the retrieval waits for a thread, too.
+    as.addCancelRQHandler(rq.getInt(Tag.MessageID, -1), retrieveTask);
+    retrieveExecutor.execute(retrieveTask);
+  }
+}
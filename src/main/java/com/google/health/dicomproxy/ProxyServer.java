@@ -5,19 +5,29 @@
 // file, you can obtain one at http://mozilla.org/MPL/2.0/.
 package com.google.health.dicomproxy;
 
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.health.dicomproxy.Configuration.ConfigKey;
 
+import java.io.File;
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
 
 import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.TransferCapability;
 import org.dcm4che3.net.TransferCapability.Role;
 import org.dcm4che3.net.service.BasicCEchoSCP;
+import org.dcm4che3.net.service.DicomService;
 import org.dcm4che3.net.service.DicomServiceRegistry;
 
 import static com.google.common.base.Preconditions.*;
@@ -30,16 +40,41 @@ final class ProxyServer {
   private static final String ALL_ALLOWED_SOP_CLASSES = "*";
   private static final String ALL_ALLOWED_TRANSFER_SYNTAXES = "*";
 
+  /** Subfolder of the temp folder in which metadata sidecars are kept. */
+  private static final String METADATA_FOLDER = "metadata";
+
+  /** Subfolder of the temp folder in which MPPS changes are queued. */
+  private static final String MPPS_FOLDER = "mpps";
+
+  /** Bounds on the delay before retrying to forward MPPS changes upstream. */
+  private static final Duration MPPS_MIN_RETRY_DELAY = Duration.ofSeconds(1);
+  private static final Duration MPPS_MAX_RETRY_DELAY = Duration.ofMinutes(5);
+
+  /** Number of recent upload outcomes remembered for storage commitment requests. */
+  private static final int STORAGE_COMMITMENT_RECENT_OUTCOMES = 100000;
+
   private final int listenPort = ConfigKey.RECEIVE_PORT.getInt();
 
   private final Device device = new Device("dicomweb-proxy");
   private final ApplicationEntity applicationEntity = new ApplicationEntity(ALL_ALLOWED_AE_TITLES);
   private final Connection connection = new Connection();
   private final DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
+  private final PeerLimiter peerLimiter =
+      new PeerLimiter(
+          ConfigKey.MAX_ASSOCIATIONS_PER_AE.getInt(),
+          ConfigKey.MAX_ASSOCIATIONS_PER_ADDRESS.getInt(),
+          ConfigKey.INSTANCES_PER_SECOND_PER_AE.getInt(),
+          ConfigKey.INSTANCES_PER_SECOND_PER_ADDRESS.getInt(),
+          Ticker.systemTicker());
 
   // Don't assume that we always are running a specific proxy type.
   private DicomUploader dicomUploader = null;
   private WorklistClient worklistClient = null;
+  private WorkitemClient workitemClient = null;
+  private StudyQueryClient studyQueryClient = null;
+  private RetrieveClient retrieveClient = null;
+  // Created along with the first query service.
+  private ExecutorService queryExecutor = null;
 
   ProxyServer() {
     this(Executors.newCachedThreadPool(), Executors.newSingleThreadScheduledExecutor());
@@ -52,6 +87,10 @@ final class ProxyServer {
     connection.setPort(listenPort);
 
     device.setDimseRQHandler(serviceRegistry);
+    device.setAssociationHandler(
+        new ProxyAssociationHandler(
+            peerLimiter,
+            TransferSyntaxPreferences.parse(ConfigKey.TRANSFER_SYNTAX_PREFERENCES.getString())));
     device.addConnection(connection);
     device.addApplicationEntity(applicationEntity);
     device.setScheduledExecutor(scheduledExecutorService);
@@ -78,13 +117,202 @@ final class ProxyServer {
             ALL_ALLOWED_TRANSFER_SYNTAXES));
   }
 
-  void setDicomUploader(DicomUploader dicomUploader) {
+  /**
+   * Enables C-STORE, passing received data to the given uploader.
+   *
+   * @throws IOException if the spool or the dedupe index cannot be opened
+   */
+  void setDicomUploader(DicomUploader dicomUploader) throws IOException {
     checkNotNull(dicomUploader);
     checkState(this.dicomUploader == null, "Attempted to setDicomUploader twice.");
     this.dicomUploader = dicomUploader;
 
-    serviceRegistry.addDicomService(
-        new ProxyStoreSCPReceiver(new String[] {ALL_ALLOWED_SOP_CLASSES}, dicomUploader));
+    Spool spool;
+    SharedSpool sharedSpool = null;
+    if (ConfigKey.SPOOL_SHARED.getBoolean()) {
+      sharedSpool = createSharedSpool();
+      // The shared spool also needs to know about failed uploads, to let other nodes retry them.
+      dicomUploader.addUploadListener(sharedSpool);
+      spool = manage(sharedSpool);
+    } else {
+      spool = createSpool(dicomUploader);
+    }
+
+    UploadedInstanceIndex uploadedInstanceIndex = null;
+    int dedupeWindowSeconds = ConfigKey.DEDUPE_WINDOW_SECONDS.getInt();
+    if (dedupeWindowSeconds > 0) {
+      uploadedInstanceIndex =
+          UploadedInstanceIndex.open(
+              new File(ConfigKey.DEDUPE_INDEX_FILE.getString()),
+              ConfigKey.DEDUPE_INDEX_CAPACITY.getInt(),
+              Duration.ofSeconds(dedupeWindowSeconds),
+              Clock.systemUTC());
+      dicomUploader.addUploadListener(uploadedInstanceIndex);
+    }
+
+    MetadataSidecar metadataSidecar =
+        new MetadataSidecar(
+            new File(ConfigKey.TEMP_FOLDER.getString(), METADATA_FOLDER),
+            MetadataSidecar.parseTags(ConfigKey.SPOOL_METADATA_TAGS.getString()));
+    dicomUploader.addUploadListener(metadataSidecar);
+
+    TagMorpher tagMorpher = null;
+    String tagMorphingRules = ConfigKey.TAG_MORPHING_RULES.getString();
+    if (tagMorphingRules != null) {
+      tagMorpher = TagMorpher.load(new File(tagMorphingRules));
+    }
+
+    DicomService storeService =
+        new ProxyStoreSCPReceiver(
+            new String[] {ALL_ALLOWED_SOP_CLASSES},
+            spool,
+            SpoolCodec.forName(ConfigKey.SPOOL_CODEC.getString()),
+            dicomUploader,
+            uploadedInstanceIndex,
+            metadataSidecar,
+            tagMorpher);
+    int storeConcurrency = ConfigKey.STORE_CONCURRENCY.getInt();
+    if (storeConcurrency > 0) {
+      // Calling AE titles take turns, so that each device gets its share of the receive threads.
+      storeService =
+          new BoundedDicomService(storeService, storeConcurrency, Association::getCallingAET);
+    }
+    // Instances are held back for their peer's rate before they wait for their turn, so that they
+    // don't hold up other peers.
+    serviceRegistry.addDicomService(peerLimiter.throttle(storeService));
+
+    ImmutableMap<String, HostAndPort> storageCommitmentPeers =
+        StorageCommitmentService.parsePeers(ConfigKey.STORAGE_COMMITMENT_PEERS.getString());
+    if (!storageCommitmentPeers.isEmpty()) {
+      addStorageCommitmentService(storageCommitmentPeers, uploadedInstanceIndex);
+    }
+
+    for (SpoolBatch batch : spool.recoverBatches()) {
+      Logging.info("Resuming upload of %s", batch);
+      dicomUploader.upload(metadataSidecar.attachTo(batch));
+    }
+    if (sharedSpool != null) {
+      sharedSpool.startClaiming(
+          batch -> dicomUploader.upload(metadataSidecar.attachTo(batch)),
+          Duration.ofSeconds(ConfigKey.SPOOL_SCAN_SECONDS.getInt()));
+    }
+  }
+
+  private void addStorageCommitmentService(
+      ImmutableMap<String, HostAndPort> peers,
+      @Nullable UploadedInstanceIndex uploadedInstanceIndex) {
+    StorageCommitmentTracker tracker =
+        new StorageCommitmentTracker(
+            uploadedInstanceIndex == null
+                ? sopInstanceUid -> false
+                : uploadedInstanceIndex::wasUploaded,
+            STORAGE_COMMITMENT_RECENT_OUTCOMES,
+            Duration.ofSeconds(ConfigKey.STORAGE_COMMITMENT_TIMEOUT_SECONDS.getInt()),
+            Ticker.systemTicker());
+    dicomUploader.addUploadListener(tracker);
+
+    // Results are reported on associations which the proxy opens.
+    applicationEntity.setAssociationInitiator(true);
+    StorageCommitmentService service =
+        new StorageCommitmentService(
+            tracker,
+            applicationEntity,
+            peers,
+            Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                    .setNameFormat("storage-commitment")
+                    .setDaemon(true)
+                    .build()));
+    service.start(Duration.ofSeconds(ConfigKey.STORAGE_COMMITMENT_REPORT_SECONDS.getInt()));
+    serviceRegistry.addDicomService(service);
+  }
+
+  private static SharedSpool createSharedSpool() {
+    File tempFolder = new File(ConfigKey.TEMP_FOLDER.getString());
+    String nodeId = ConfigKey.SPOOL_NODE_ID.getString();
+    if (nodeId.isEmpty()) {
+      nodeId = SharedSpool.defaultNodeId();
+    }
+    Logging.info("Sharing spool folder %s as node %s", tempFolder, nodeId);
+    // Batches held by this node beyond what it can upload at once are left for other nodes.
+    return new SharedSpool(
+        new FileSpool(tempFolder, createSpoolDurability()),
+        tempFolder,
+        nodeId,
+        Duration.ofSeconds(ConfigKey.SPOOL_LEASE_SECONDS.getInt()),
+        2 * ConfigKey.UPLOAD_PARALLELISM.getInt(),
+        Clock.systemUTC());
+  }
+
+  /** Creates the spool, and has it notified of uploads by the given uploader. */
+  private static Spool createSpool(DicomUploader dicomUploader) throws IOException {
+    File tempFolder = new File(ConfigKey.TEMP_FOLDER.getString());
+    SpoolDurability durability = createSpoolDurability();
+    Spool diskSpool;
+    if (ConfigKey.SPOOL_FORMAT.getString().equals(Configuration.SPOOL_FORMAT_SEGMENT_LOG)) {
+      diskSpool =
+          SegmentLogSpool.open(
+              tempFolder, ConfigKey.SPOOL_SEGMENT_SIZE_MB.getInt() * 1024L * 1024L, durability);
+    } else {
+      // Segment logs reclaim the space of uploaded batches themselves.
+      diskSpool = manage(new FileSpool(tempFolder, durability));
+    }
+
+    long memoryBudget = ConfigKey.SPOOL_MEMORY_BUDGET_MB.getInt() * 1024L * 1024L;
+    if (memoryBudget <= 0) {
+      dicomUploader.addUploadListener(diskSpool::release);
+      return diskSpool;
+    }
+    if (durability.isEnabled()) {
+      // Instances in memory would be acknowledged without being durable.
+      Logging.info("Spool durability is enabled; not keeping instances in memory.");
+      dicomUploader.addUploadListener(diskSpool::release);
+      return diskSpool;
+    }
+    HybridSpool hybridSpool =
+        new HybridSpool(
+            diskSpool,
+            new DirectBufferPool(HybridSpool.BUFFER_SIZE, memoryBudget),
+            ConfigKey.SPOOL_MEMORY_THRESHOLD_KB.getInt() * 1024L);
+    // The hybrid spool also needs to know about failed uploads, to move their instances to disk.
+    dicomUploader.addUploadListener(hybridSpool);
+    return hybridSpool;
+  }
+
+  /**
+   * Keeps the batch folders of a spool in the temp folder within the spool quota, deleting those
+   * which have been uploaded once they expire or space runs short.
+   */
+  private static SpoolManager manage(Spool spool) {
+    int deletesPerSecond = ConfigKey.SPOOL_CLEANUP_DELETES_PER_SECOND.getInt();
+    SpoolManager spoolManager =
+        new SpoolManager(
+            spool,
+            new File(ConfigKey.TEMP_FOLDER.getString()),
+            ConfigKey.SPOOL_QUOTA_MB.getLong() * 1024L * 1024L,
+            Duration.ofHours(ConfigKey.SPOOL_RETENTION_HOURS.getInt()),
+            new TokenBucket(deletesPerSecond, deletesPerSecond, Ticker.systemTicker()),
+            Clock.systemUTC(),
+            Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                    .setNameFormat("spool-cleanup")
+                    .setDaemon(true)
+                    .setPriority(Thread.MIN_PRIORITY)
+                    .build()));
+    spoolManager.start(Duration.ofSeconds(ConfigKey.SPOOL_CLEANUP_SECONDS.getInt()));
+    return spoolManager;
+  }
+
+  private static SpoolDurability createSpoolDurability() {
+    switch (ConfigKey.SPOOL_DURABILITY.getString()) {
+      case Configuration.SPOOL_DURABILITY_INSTANCE:
+        return SpoolDurability.perInstance();
+      case Configuration.SPOOL_DURABILITY_GROUP:
+        return SpoolDurability.groupCommit(
+            Duration.ofMillis(ConfigKey.SPOOL_GROUP_COMMIT_MILLIS.getInt()));
+      default:
+        return SpoolDurability.none();
+    }
   }
 
   void setWorklistClient(WorklistClient worklistClient) {
@@ -92,7 +320,95 @@ final class ProxyServer {
     checkState(this.worklistClient == null, "Attempted to setWorklistClient twice.");
     this.worklistClient = worklistClient;
 
-    serviceRegistry.addDicomService(new ProxyWorklistService(worklistClient));
+    serviceRegistry.addDicomService(
+        new ProxyWorklistService(
+            worklistClient,
+            getQueryExecutor(),
+            WorklistMatchLimits.parse(ConfigKey.WORKLIST_MAX_MATCHES.getString())));
+  }
+
+  /** Enables Study Root C-FIND, passing queries to the given client. */
+  void setStudyQueryClient(StudyQueryClient studyQueryClient) {
+    checkNotNull(studyQueryClient);
+    checkState(this.studyQueryClient == null, "Attempted to setStudyQueryClient twice.");
+    this.studyQueryClient = studyQueryClient;
+
+    serviceRegistry.addDicomService(
+        new ProxyStudyQueryService(studyQueryClient, getQueryExecutor()));
+  }
+
+  /**
+   * Enables Study Root C-GET and C-MOVE, passing retrievals to the given client.
+   *
+   * @throws IllegalArgumentException if the C-MOVE destinations aren't valid
+   */
+  void setRetrieveClient(RetrieveClient retrieveClient) {
+    checkNotNull(retrieveClient);
+    checkState(this.retrieveClient == null, "Attempted to setRetrieveClient twice.");
+    this.retrieveClient = retrieveClient;
+
+    ImmutableMap<String, HostAndPort> moveDestinations =
+        StorageCommitmentService.parsePeers(ConfigKey.MOVE_DESTINATIONS.getString());
+    if (!moveDestinations.isEmpty()) {
+      // C-MOVE stores instances on associations which the proxy opens.
+      applicationEntity.setAssociationInitiator(true);
+    }
+    // C-GET requestors take the SCP role of the storage SOP classes they propose.
+    applicationEntity.addTransferCapability(
+        new TransferCapability(
+            null /* commonName */,
+            ALL_ALLOWED_SOP_CLASSES,
+            Role.SCU,
+            ALL_ALLOWED_TRANSFER_SYNTAXES));
+
+    // Retrievals get their own threads, as they take long, and would hold up queries.
+    ExecutorService retrieveExecutor =
+        Executors.newFixedThreadPool(
+            ConfigKey.RETRIEVE_THREADS.getInt(),
+            new ThreadFactoryBuilder().setNameFormat("dimse-retrieve-%d").setDaemon(true).build());
+    serviceRegistry.addDicomService(
+        new ProxyRetrieveService(retrieveClient, retrieveExecutor, moveDestinations));
+  }
+
+  private ExecutorService getQueryExecutor() {
+    if (queryExecutor == null) {
+      // Queries get their own threads, so that they're answered promptly while instances are
+      // being received.
+      queryExecutor =
+          Executors.newFixedThreadPool(
+              ConfigKey.QUERY_THREADS.getInt(),
+              new ThreadFactoryBuilder().setNameFormat("dimse-query-%d").setDaemon(true).build());
+    }
+    return queryExecutor;
+  }
+
+  /**
+   * Enables MPPS, forwarding procedure steps to the workitems of the worklist client, which must be
+   * set first.
+   *
+   * @throws IOException if the MPPS queue cannot be opened
+   */
+  void setWorkitemClient(WorkitemClient workitemClient) throws IOException {
+    checkNotNull(workitemClient);
+    checkState(this.workitemClient == null, "Attempted to setWorkitemClient twice.");
+    checkState(worklistClient != null, "setWorklistClient must be called first.");
+    this.workitemClient = workitemClient;
+
+    MppsQueue queue =
+        MppsQueue.open(new File(ConfigKey.TEMP_FOLDER.getString(), MPPS_FOLDER));
+    MppsForwarder forwarder =
+        new MppsForwarder(
+            queue,
+            worklistClient,
+            workitemClient,
+            Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("mpps-forwarder").setDaemon(true).build()),
+            MPPS_MIN_RETRY_DELAY,
+            MPPS_MAX_RETRY_DELAY,
+            Ticker.systemTicker());
+    // Forwards the steps recovered from the queue.
+    forwarder.wake();
+    serviceRegistry.addDicomService(new MppsService(queue, forwarder));
   }
 
   /**
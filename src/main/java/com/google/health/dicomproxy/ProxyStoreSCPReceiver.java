@@ -5,10 +5,14 @@
 // file, you can obtain one at http://mozilla.org/MPL/2.0/.
 package com.google.health.dicomproxy;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.CountingOutputStream;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.PDVInputStream;
@@ -18,36 +22,58 @@ import org.dcm4che3.net.service.BasicCStoreSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.util.UIDUtils;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.UUID;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import javax.annotation.Nullable;
 
-import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * DICOM C-STORE receiver which stores to a temp folder and passes off to a {@link DicomUploader}.
+ * DICOM C-STORE receiver which stores to a {@link Spool} and passes off to a {@link DicomUploader}.
+ *
+ * <p>If tracing is enabled, each association is traced from its first C-STORE, with a span per
+ * instance, and its batch carries the association's span on to the uploader.
  */
 final class ProxyStoreSCPReceiver extends BasicCStoreSCP {
   private static final String ASSOCIATION_UUID_PROPERTY = "association-uuid";
+  private static final String ASSOCIATION_SPAN_PROPERTY = "association-span";
 
+  private final Spool spool;
+  private final SpoolCodec spoolCodec;
   private final DicomUploader dicomUploader;
-  private final File tempFolder;
+  @Nullable private final UploadedInstanceIndex uploadedInstanceIndex;
+  @Nullable private final MetadataSidecar metadataSidecar;
+  @Nullable private final TagMorpher tagMorpher;
 
-  ProxyStoreSCPReceiver(String[] sopClasses, DicomUploader uploader) {
+  /**
+   * @param spoolCodec compresses each instance as it's written to the spool
+   * @param uploadedInstanceIndex if non-null, instances found in this index are acknowledged
+   *     without being uploaded again.
+   * @param metadataSidecar if non-null, the size and checksum of each instance, and any header
+   *     attributes extracted from it as it's received, are recorded in this sidecar.
+   * @param tagMorpher if non-null, the attributes of each instance are changed by these rules as
+   *     it's received, and the changed instance is stored and uploaded.
+   */
+  ProxyStoreSCPReceiver(
+      String[] sopClasses,
+      Spool spool,
+      SpoolCodec spoolCodec,
+      DicomUploader uploader,
+      @Nullable UploadedInstanceIndex uploadedInstanceIndex,
+      @Nullable MetadataSidecar metadataSidecar,
+      @Nullable TagMorpher tagMorpher) {
     super(sopClasses);
-    this.dicomUploader = uploader;
-
-    String tempFolderPath = Configuration.ConfigKey.TEMP_FOLDER.getString();
-    tempFolder = new File(tempFolderPath);
-    checkArgument(
-        !tempFolder.exists() || tempFolder.isDirectory(),
-        "Temp Folder %s already exists, but is not a directory.",
-        tempFolderPath);
-
-    if (!tempFolder.isDirectory()) {
-      checkArgument(tempFolder.mkdirs(), "Unable to create temp folder %s.", tempFolderPath);
-    }
+    this.spool = checkNotNull(spool);
+    this.spoolCodec = checkNotNull(spoolCodec);
+    this.dicomUploader = checkNotNull(uploader);
+    this.uploadedInstanceIndex = uploadedInstanceIndex;
+    this.metadataSidecar = metadataSidecar;
+    this.tagMorpher = tagMorpher;
   }
 
   @Override
@@ -60,6 +86,45 @@ final class ProxyStoreSCPReceiver extends BasicCStoreSCP {
       throws IOException {
     String sopClass = request.getString(Tag.AffectedSOPClassUID);
     String sopInstance = request.getString(Tag.AffectedSOPInstanceUID);
+    Span span =
+        getAssociationSpan(association)
+            .startChild("dimse.c-store", Span.KIND_SERVER)
+            .setAttribute("dicom.sop_instance_uid", String.valueOf(sopInstance))
+            .setAttribute("dicom.sop_class_uid", String.valueOf(sopClass))
+            .setAttribute("dicom.transfer_syntax", presentationContext.getTransferSyntax());
+    FlightEvents.CStoreReceive event = new FlightEvents.CStoreReceive();
+    event.begin();
+    try (Span.Scope scope = span.makeCurrent()) {
+      SpooledInstance spooledInstance =
+          storeInstance(
+              association, presentationContext, sopClass, sopInstance, dataStream, response);
+      event.end();
+      if (event.shouldCommit()) {
+        event.callingAeTitle = association.getCallingAET();
+        event.sopClassUid = sopClass;
+        event.sopInstanceUid = sopInstance;
+        event.transferSyntax = presentationContext.getTransferSyntax();
+        event.bytes = spooledInstance == null ? 0 : spooledInstance.getLength();
+        event.commit();
+      }
+    } catch (IOException | RuntimeException e) {
+      span.setError(e);
+      throw e;
+    } finally {
+      span.end();
+    }
+  }
+
+  /** Stores an instance, returning it, or null if it was skipped as a duplicate. */
+  @Nullable
+  private SpooledInstance storeInstance(
+      Association association,
+      PresentationContext presentationContext,
+      String sopClass,
+      String sopInstance,
+      PDVInputStream dataStream,
+      Attributes response)
+      throws IOException {
     if (!UIDUtils.isValid(sopInstance)) {
       throw new DicomServiceException(
           Status.ProcessingFailure,
@@ -69,27 +134,79 @@ final class ProxyStoreSCPReceiver extends BasicCStoreSCP {
     String transferSyntax = presentationContext.getTransferSyntax();
     String remoteAeTitle = association.getCallingAET();
 
-    File parentFile = getAssociationTempPath(association);
+    String batchId = getAssociationBatchId(association);
+    SpooledInstance spooledInstance;
+    try (Spool.PendingInstance pendingInstance = spool.newInstance(batchId, sopInstance)) {
+      HashCode contentHash = null;
+      Attributes header = null;
+      // Checksum and count the instance as it's written, before any compression in the spool, so
+      // that it can be verified when it's uploaded.
+      CRC32C checksum = new CRC32C();
+      CountingOutputStream countingOut =
+          new CountingOutputStream(
+              new CheckedOutputStream(
+                  spoolCodec.encode(pendingInstance.getOutputStream()), checksum));
+      try (DicomOutputStream out = new DicomOutputStream(countingOut, UID.ExplicitVRLittleEndian)) {
+        out.writeFileMetaInformation(
+            association.createFileMetaInformation(
+                /* iuid=*/ sopInstance, /* cuid=*/ sopClass, /* tsuid=*/ transferSyntax));
 
-    File tmpFile = new File(parentFile, sopInstance + ".dcm.tmp");
-    try (DicomOutputStream out = new DicomOutputStream(tmpFile)) {
-      out.writeFileMetaInformation(
-          association.createFileMetaInformation(
-              /* iuid=*/ sopInstance, /* cuid=*/ sopClass, /* tsuid=*/ transferSyntax));
+        // Hash the dataset as it is copied, rather than re-reading it afterwards. The File Meta
+        // Information is left out, as it doesn't describe the instance itself.
+        HashingOutputStream hashingOut =
+            uploadedInstanceIndex == null
+                ? null
+                : new HashingOutputStream(UploadedInstanceIndex.CONTENT_HASH, out);
+        OutputStream datasetOut = hashingOut == null ? out : hashingOut;
+        if (tagMorpher != null) {
+          header = tagMorpher.morph(dataStream, transferSyntax, datasetOut);
+        } else {
+          if (metadataSidecar != null && metadataSidecar.getTags().length > 0) {
+            header = readHeader(dataStream, datasetOut, transferSyntax);
+          }
+          dataStream.copyTo(datasetOut);
+        }
+        if (hashingOut != null) {
+          contentHash = hashingOut.hash();
+        }
+      }
+
+      if (contentHash != null && uploadedInstanceIndex.isDuplicate(sopInstance, contentHash)) {
+        // Closing the pending instance without committing it discards it.
+        response.setInt(Tag.Status, VR.US, Status.Success);
+        Logging.info(
+            "Received %s from %s, which was already uploaded; skipping upload.",
+            sopInstance, remoteAeTitle);
+        return null;
+      }
 
-      dataStream.copyTo(out);
+      Span commitSpan = Tracing.startSpan("spool.commit");
+      try {
+        spooledInstance = pendingInstance.commit();
+      } finally {
+        commitSpan.end();
+      }
+      Tracing.current().setAttribute("dicom.bytes", spooledInstance.getLength());
+      if (contentHash != null) {
+        uploadedInstanceIndex.recordReceived(sopInstance, contentHash);
+      }
+      if (metadataSidecar != null) {
+        recordMetadata(
+            batchId,
+            InstanceMetadata.extract(
+                sopInstance,
+                countingOut.getCount(),
+                (int) checksum.getValue(),
+                header,
+                metadataSidecar.getTags()));
+      }
+    } catch (DicomServiceException e) {
+      // For example, the spool is full.
+      throw e;
     } catch (IOException e) {
       throw new DicomServiceException(Status.ProcessingFailure, e);
     }
 
-    File permanentFile = new File(parentFile, sopInstance + ".dcm");
-    // TODO: make sure this works on Windows.
-    if (!tmpFile.renameTo(permanentFile)) {
-      throw new DicomServiceException(
-          Status.ProcessingFailure,
-          String.format("Unable to rename %s to %s.", tmpFile, permanentFile));
-    }
-
     response.setInt(Tag.Status, VR.US, Status.Success);
     Logging.info(
         "Received %s from %s with SOP %s in TS %s; stored as %s",
@@ -97,29 +214,65 @@ final class ProxyStoreSCPReceiver extends BasicCStoreSCP {
         remoteAeTitle,
         UID.nameOf(sopClass),
         UID.nameOf(transferSyntax),
-        permanentFile);
+        spooledInstance);
+    return spooledInstance;
+  }
+
+  /**
+   * Reads the dataset's attributes up to its pixel data, copying everything read to {@code out}.
+   * The rest of the dataset is left in {@code in}, to be copied without being parsed. Returns null
+   * if the dataset couldn't be parsed; the bytes read so far have still been copied.
+   */
+  @Nullable
+  private static Attributes readHeader(InputStream in, OutputStream out, String transferSyntax) {
+    try {
+      // The stream isn't closed, as that would close the association's data stream.
+      @SuppressWarnings("resource")
+      DicomInputStream dicomIn = new DicomInputStream(new TeeInputStream(in, out), transferSyntax);
+      return dicomIn.readDataset(-1, Tag.PixelData);
+    } catch (IOException | RuntimeException e) {
+      Logging.error(e, "Unable to extract metadata; the instance is stored without it.");
+      return null;
+    }
+  }
+
+  /** Records an instance's metadata, which is only an index, so errors don't fail the C-STORE. */
+  private void recordMetadata(String batchId, InstanceMetadata metadata) {
+    try {
+      metadataSidecar.append(batchId, metadata);
+    } catch (IOException e) {
+      Logging.error(e, "Unable to record metadata of %s", metadata.getSopInstanceUid());
+    }
   }
 
   /**
-   * If not already set, generates a UUID for the specified association and creates a temp folder
-   * based on that UUID. Associations have a generic property map that may be used to store
-   * arbitrary data, for purposes such as this.
-   *
-   * @throws DicomServiceException if the temporary folder cannot be created.
+   * If not already set, generates a UUID for the specified association, which identifies the spool
+   * batch its instances are stored in. Associations have a generic property map that may be used to
+   * store arbitrary data, for purposes such as this.
    */
-  private File getAssociationTempPath(Association association) throws DicomServiceException {
+  private static String getAssociationBatchId(Association association) {
     String associationUuid = (String) association.getProperty(ASSOCIATION_UUID_PROPERTY);
     if (associationUuid == null) {
       associationUuid = UUID.randomUUID().toString();
       association.setProperty(ASSOCIATION_UUID_PROPERTY, associationUuid);
-      if (!new File(tempFolder, associationUuid).mkdirs()) {
-        throw new DicomServiceException(
-            Status.ProcessingFailure,
-            String.format("Unable to create temp folder %s/%s", tempFolder, associationUuid));
-      }
     }
+    return associationUuid;
+  }
 
-    return new File(tempFolder, associationUuid);
+  /**
+   * Returns the span tracing the specified association, starting it if this is its first instance.
+   * Root spans start traces, so that the whole association is sampled or not.
+   */
+  private static Span getAssociationSpan(Association association) {
+    Span span = (Span) association.getProperty(ASSOCIATION_SPAN_PROPERTY);
+    if (span == null) {
+      span =
+          Tracing.startSpan("dicom.association", Span.KIND_SERVER, null)
+              .setAttribute("dicom.calling_ae_title", association.getCallingAET())
+              .setAttribute("dicom.called_ae_title", association.getCalledAET());
+      association.setProperty(ASSOCIATION_SPAN_PROPERTY, span);
+    }
+    return span;
   }
 
   @Override
@@ -128,18 +281,77 @@ final class ProxyStoreSCPReceiver extends BasicCStoreSCP {
     // generated A-ABORT, an exception during store(), etc.) the exception is stored in the
     // Association instance, and may be detected during onClose (which is always called regardless
     // of success or failure).
+    if (metadataSidecar != null && association.containsProperty(ASSOCIATION_UUID_PROPERTY)) {
+      metadataSidecar.closeBatch(getAssociationBatchId(association));
+    }
+    Span span = (Span) association.getProperty(ASSOCIATION_SPAN_PROPERTY);
+    if (span == null) {
+      span = Span.NOOP;
+    }
     if (association.getException() != null) {
+      span.setError(association.getException());
       Logging.error(association.getException(), "Association failed with exception.");
+      if (association.containsProperty(ASSOCIATION_UUID_PROPERTY)) {
+        spool.abandonBatch(getAssociationBatchId(association));
+      }
     } else {
       Logging.info("Association finished cleanly.");
       if (association.containsProperty(ASSOCIATION_UUID_PROPERTY)) {
         try {
-          File tempPath = getAssociationTempPath(association);
-          dicomUploader.uploadDirectory(tempPath);
-        } catch (DicomServiceException e) {
-          Logging.error(e, "Error getting temp folder for association.");
+          SpoolBatch batch = spool.completeBatch(getAssociationBatchId(association));
+          if (!batch.getInstances().isEmpty()) {
+            span.setAttribute("dicom.instances", batch.getInstances().size());
+            dicomUploader.upload(
+                (metadataSidecar == null ? batch : metadataSidecar.attachTo(batch))
+                    .withSpan(span));
+          }
+        } catch (IOException e) {
+          span.setError(e);
+          Logging.error(e, "Error completing spool batch for association.");
         }
       }
     }
+    span.end();
+  }
+
+  /** Stream which copies everything read from it to an output stream. */
+  private static final class TeeInputStream extends FilterInputStream {
+    private final OutputStream out;
+
+    TeeInputStream(InputStream in, OutputStream out) {
+      super(in);
+      this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        out.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        out.write(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes still need to be copied.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
   }
 }
@@ -0,0 +1,76 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCFindSCP;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.QueryTask;
+
+/**
+ * DICOM Study Root Query/Retrieve C-FIND listener which proxies to DICOMweb QIDO-RS, so that
+ * viewers and modalities can look up studies, such as priors, which were uploaded.
+ *
+ * <p>As with {@link ProxyWorklistService}, queries are answered on the query executor, and results
+ * are passed on as they're parsed from the upstream response, by a {@link StreamingQueryTask}.
+ */
+final class ProxyStudyQueryService extends BasicCFindSCP {
+  private final StudyQueryClient studyQueryClient;
+  private final Executor queryExecutor;
+
+  ProxyStudyQueryService(StudyQueryClient studyQueryClient, Executor queryExecutor) {
+    super(new String[] {UID.StudyRootQueryRetrieveInformationModelFIND});
+    this.studyQueryClient = checkNotNull(studyQueryClient);
+    this.queryExecutor = checkNotNull(queryExecutor);
+  }
+
+  @Override
+  public void onDimseRQ(
+      Association as, PresentationContext pc, Dimse dimse, Attributes rq, Attributes keys)
+      throws IOException {
+    if (dimse != Dimse.C_FIND_RQ) {
+      throw new DicomServiceException(Status.UnrecognizedOperation);
+    }
+    QueryTask queryTask = calculateMatches(as, pc, rq, keys);
+    // Listen for C-CANCEL while the query waits for a thread, too.
+    as.addCancelRQHandler(rq.getInt(Tag.MessageID, -1), queryTask);
+    queryExecutor.execute(queryTask);
+  }
+
+  @Override
+  protected QueryTask calculateMatches(
+      Association as, PresentationContext pc, Attributes requestMetadata, Attributes keys) {
+    Logging.info("Received study query:\n%s", keys.toString(1000, 1000));
+    String level = keys.getString(Tag.QueryRetrieveLevel);
+    return new StreamingQueryTask(
+        as,
+        pc,
+        requestMetadata,
+        keys,
+        (queryKeys, limit, cancellation, handler) ->
+            studyQueryClient.search(
+                queryKeys,
+                limit,
+                cancellation,
+                match -> {
+                  // Each response identifier repeats the level of the query.
+                  match.setString(Tag.QueryRetrieveLevel, VR.CS, level);
+                  handler.onResult(match);
+                }),
+        /* maxMatches= */ 0);
+  }
+}
@@ -6,60 +6,74 @@
 package com.google.health.dicomproxy;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.BasicCFindSCP;
-import org.dcm4che3.net.service.BasicQueryTask;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.QueryTask;
 
-import java.util.ArrayDeque;
-import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.Queue;
+import java.io.IOException;
+import java.util.concurrent.Executor;
 
-/** DICOM Modality Worklist C-FIND listener which proxies to DICOMweb UPS-RS SearchForWorkitems. */
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * DICOM Modality Worklist C-FIND listener which proxies to DICOMweb UPS-RS SearchForWorkitems.
+ *
+ * <p>Queries are answered on their own executor, rather than on the thread reading the association,
+ * so that the upstream query and the results it returns don't compete with instances being
+ * received.
+ *
+ * <p>Results are passed on to the modality as they're parsed from the upstream response, by a
+ * {@link StreamingQueryTask}. A C-CANCEL aborts the upstream request, even if it's still being
+ * read, and frees the query's thread; a query canceled while it waits for a thread isn't sent
+ * upstream at all.
+ *
+ * <p>The number of matches returned to each calling AE title may be limited. The limit is passed
+ * upstream, asking for one match more, so that the proxy can tell whether matches were left out; if
+ * so, the upstream request is aborted and the final response is a warning.
+ */
 final class ProxyWorklistService extends BasicCFindSCP {
 
-  private WorklistClient worklistClient;
+  private final WorklistClient worklistClient;
+  private final Executor queryExecutor;
+  private final WorklistMatchLimits matchLimits;
 
-  ProxyWorklistService(WorklistClient worklistClient) {
+  ProxyWorklistService(
+      WorklistClient worklistClient, Executor queryExecutor, WorklistMatchLimits matchLimits) {
     super(new String[] {UID.ModalityWorklistInformationModelFIND});
-    this.worklistClient = worklistClient;
+    this.worklistClient = checkNotNull(worklistClient);
+    this.queryExecutor = checkNotNull(queryExecutor);
+    this.matchLimits = checkNotNull(matchLimits);
   }
 
   @Override
-  protected QueryTask calculateMatches(
-      Association as, PresentationContext pc, Attributes requestMetadata, Attributes keys)
-      throws DicomServiceException {
-    Logging.info("Received query:\n%s", keys.toString(1000,1000));
-    return new PatientQueryTask(as, pc, requestMetadata, keys, worklistClient.listWorkitems(keys));
-  }
-
-  private static class PatientQueryTask extends BasicQueryTask {
-    private final Queue<Attributes> resultQueue;
-
-    public PatientQueryTask(
-        Association as, PresentationContext pc, Attributes requestMetadata, Attributes keys,
-        List<Attributes> results) {
-      super(as, pc, requestMetadata, keys);
-
-      resultQueue = new ArrayDeque<>(results);
-    }
-
-    @Override
-    protected Attributes nextMatch() throws DicomServiceException {
-      if (!hasMoreMatches()) {
-        throw new NoSuchElementException();
-      }
-
-      return resultQueue.poll();
+  public void onDimseRQ(
+      Association as, PresentationContext pc, Dimse dimse, Attributes rq, Attributes keys)
+      throws IOException {
+    if (dimse != Dimse.C_FIND_RQ) {
+      throw new DicomServiceException(Status.UnrecognizedOperation);
     }
+    QueryTask queryTask = calculateMatches(as, pc, rq, keys);
+    // Listen for C-CANCEL while the query waits for a thread, too.
+    as.addCancelRQHandler(rq.getInt(Tag.MessageID, -1), queryTask);
+    queryExecutor.execute(queryTask);
+  }
 
-    @Override
-    protected boolean hasMoreMatches() throws DicomServiceException {
-      return !resultQueue.isEmpty();
-    }
+  @Override
+  protected QueryTask calculateMatches(
+      Association as, PresentationContext pc, Attributes requestMetadata, Attributes keys) {
+    Logging.info("Received query:\n%s", keys.toString(1000,1000));
+    return new StreamingQueryTask(
+        as,
+        pc,
+        requestMetadata,
+        keys,
+        worklistClient::searchWorkitems,
+        matchLimits.getLimit(as.getCallingAET()));
   }
 }
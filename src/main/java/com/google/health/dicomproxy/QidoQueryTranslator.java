@@ -0,0 +1,135 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.TagUtils;
+
+/**
+ * Converts from a Study Root C-FIND identifier to a QIDO-RS resource and query-parameters.
+ *
+ * <p>As with {@link WorklistQueryTranslator}, fields to match on are specified as
+ * "tagnumber=parameter", and fields requested to be returned as "includefield=tagnumber". The
+ * Query/Retrieve Level picks the resource searched: studies, series or instances. At the series and
+ * instance levels, the UIDs of the study and series the search is limited to are part of the
+ * resource path, rather than parameters, when they're single values; otherwise the search is made
+ * across all studies or series.
+ *
+ * <p>For details on the query-parameter format, see <a
+ * href="http://dicom.nema.org/medical/dicom/2019a/output/chtml/part18/sect_6.7.html">the DICOM
+ * Standard</a>.
+ */
+final class QidoQueryTranslator {
+
+  static final String STUDY = "STUDY";
+  static final String SERIES = "SERIES";
+  static final String IMAGE = "IMAGE";
+
+  private static final String STUDIES_PATH = "studies";
+  private static final String SERIES_PATH = "series";
+  private static final String INSTANCES_PATH = "instances";
+
+  /** Attributes of the identifier which aren't matched on or returned. */
+  private static final ImmutableSet<Integer> NOT_QUERIED =
+      ImmutableSet.of(Tag.QueryRetrieveLevel, Tag.SpecificCharacterSet);
+
+  private QidoQueryTranslator() {}
+
+  /**
+   * Returns the Query/Retrieve Level of an identifier.
+   *
+   * @throws IllegalArgumentException if the level is missing, or isn't one of the Study Root levels
+   */
+  static String getLevel(Attributes keys) {
+    String level = keys.getString(Tag.QueryRetrieveLevel);
+    if (!STUDY.equals(level) && !SERIES.equals(level) && !IMAGE.equals(level)) {
+      throw new IllegalArgumentException("Unsupported Query/Retrieve Level: " + level);
+    }
+    return level;
+  }
+
+  /**
+   * Returns the path of the resource to search, relative to the root of the QIDO-RS service.
+   *
+   * @throws IllegalArgumentException if the Query/Retrieve Level isn't valid
+   */
+  static String buildResourcePath(Attributes keys) {
+    String level = getLevel(keys);
+    if (level.equals(STUDY)) {
+      return STUDIES_PATH;
+    }
+    String studyInstanceUid = getSingleUid(keys, Tag.StudyInstanceUID);
+    String studyPath = studyInstanceUid == null ? "" : STUDIES_PATH + "/" + studyInstanceUid + "/";
+    if (level.equals(SERIES)) {
+      return studyPath + SERIES_PATH;
+    }
+    String seriesInstanceUid = getSingleUid(keys, Tag.SeriesInstanceUID);
+    if (studyInstanceUid != null && seriesInstanceUid != null) {
+      return studyPath + SERIES_PATH + "/" + seriesInstanceUid + "/" + INSTANCES_PATH;
+    }
+    return studyPath + INSTANCES_PATH;
+  }
+
+  /**
+   * Returns the query-parameters for an identifier, leaving out the UIDs which are part of the
+   * resource path.
+   *
+   * @throws IllegalArgumentException if the Query/Retrieve Level isn't valid
+   */
+  static ImmutableSetMultimap<String, String> buildQueryParameters(Attributes keys) {
+    String resourcePath = buildResourcePath(keys);
+    ImmutableSetMultimap.Builder<String, String> result = ImmutableSetMultimap.builder();
+    for (int tag : keys.tags()) {
+      if (NOT_QUERIED.contains(tag) || isInPath(keys, tag, resourcePath)) {
+        continue;
+      }
+      String tagStr = TagUtils.toHexString(tag);
+      VR vr = keys.getVR(tag);
+      String value;
+      if (vr == VR.SQ) {
+        // Sequences are returned whole; their items aren't matched on.
+        value = null;
+      } else if (vr == VR.UI) {
+        // Lists of UIDs are matched as a whole, separated by commas.
+        String[] uids = keys.getStrings(tag);
+        value = uids == null ? null : Joiner.on(',').join(uids);
+      } else {
+        value = keys.getString(tag);
+      }
+
+      if (value == null || value.isBlank()) {
+        result.put(WorklistQueryTranslator.INCLUDEFIELD, tagStr);
+      } else {
+        result.put(tagStr, value);
+      }
+    }
+    return result.build();
+  }
+
+  private static boolean isInPath(Attributes keys, int tag, String resourcePath) {
+    if (tag != Tag.StudyInstanceUID && tag != Tag.SeriesInstanceUID) {
+      return false;
+    }
+    String uid = getSingleUid(keys, tag);
+    return uid != null && resourcePath.contains("/" + uid + "/");
+  }
+
+  /** Returns the value of a UID key if it's a single UID, or null if it's a list, or universal. */
+  @Nullable
+  private static String getSingleUid(Attributes keys, int tag) {
+    String[] uids = keys.getStrings(tag);
+    if (uids == null || uids.length != 1 || uids[0] == null || uids[0].isBlank()) {
+      return null;
+    }
+    return uids[0];
+  }
+}
@@ -0,0 +1,210 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.base.Joiner;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.health.dicomproxy.Configuration.ConfigKey;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Performs QIDO-RS searches for studies, series and instances.
+ *
+ * <p>Results are cached for a while, so that repeated lookups, such as a viewer checking for the
+ * same prior studies, aren't sent upstream each time. Only searches which complete are cached,
+ * keyed by their URL; the cache is bounded by the total number of results it holds. A search with
+ * no results is cached too, so a study uploaded since may not be found until its entry expires.
+ */
+final class QidoRsClient implements StudyQueryClient {
+
+  private static final String XML_RESPONSE_CONTENT_TYPE =
+      "multipart/related; type=\"application/dicom+xml\"";
+  private static final String LIMIT = "limit";
+
+  private final HttpRequestFactory requestFactory;
+  private final CancelableConnectionFactory connectionFactory;
+  private final String serviceUri;
+  private final long cacheMaxResults;
+  // Results by search URL, or null if caching is disabled.
+  @Nullable private final Cache<String, ImmutableList<Attributes>> cache;
+
+  QidoRsClient() {
+    this(new CancelableConnectionFactory());
+  }
+
+  private QidoRsClient(CancelableConnectionFactory connectionFactory) {
+    this(
+        new NetHttpTransport.Builder()
+            .setConnectionFactory(connectionFactory)
+            .build()
+            .createRequestFactory(
+                DestinationRateLimiter.forUri(ConfigKey.QIDO_URI.getString())
+                    .wrap(Credentials.getServiceAccountCredentials())),
+        connectionFactory,
+        ConfigKey.QIDO_URI.getString(),
+        Duration.ofSeconds(ConfigKey.QIDO_CACHE_SECONDS.getInt()),
+        ConfigKey.QIDO_CACHE_MAX_RESULTS.getLong(),
+        Ticker.systemTicker());
+  }
+
+  /**
+   * @param connectionFactory opens the connections of the request factory's transport, if it's a
+   *     {@link NetHttpTransport}, so that a canceled search is aborted before its response arrives
+   * @param serviceUri root of the QIDO-RS service, under which the studies resource is found
+   * @param cacheTtl how long results are reused; zero disables caching
+   * @param cacheMaxResults total number of results the cache may hold
+   */
+  QidoRsClient(
+      HttpRequestFactory requestFactory,
+      CancelableConnectionFactory connectionFactory,
+      String serviceUri,
+      Duration cacheTtl,
+      long cacheMaxResults,
+      Ticker ticker) {
+    this.requestFactory = checkNotNull(requestFactory);
+    this.connectionFactory = checkNotNull(connectionFactory);
+    this.serviceUri = serviceUri.endsWith("/") ? serviceUri : serviceUri + "/";
+    this.cacheMaxResults = cacheMaxResults;
+    if (cacheTtl.isZero() || cacheMaxResults <= 0) {
+      cache = null;
+    } else {
+      cache =
+          CacheBuilder.newBuilder()
+              .maximumWeight(cacheMaxResults)
+              // Empty results take space too.
+              .weigher((String url, ImmutableList<Attributes> results) -> results.size() + 1)
+              .expireAfterWrite(cacheTtl.toMillis(), TimeUnit.MILLISECONDS)
+              .ticker(ticker)
+              .build();
+    }
+  }
+
+  @Override
+  public void search(
+      Attributes keys,
+      int limit,
+      Cancellation cancellation,
+      WorklistClient.ResultHandler handler)
+      throws DicomServiceException {
+    GenericUrl searchUrl;
+    try {
+      searchUrl = new GenericUrl(serviceUri + QidoQueryTranslator.buildResourcePath(keys));
+      ImmutableSetMultimap<String, String> parameters =
+          QidoQueryTranslator.buildQueryParameters(keys);
+      parameters.asMap().forEach((k, v) -> searchUrl.set(k, Joiner.on(',').join(v)));
+    } catch (IllegalArgumentException e) {
+      throw new DicomServiceException(Status.IdentifierDoesNotMatchSOPClass, e.getMessage());
+    }
+    if (limit > 0) {
+      searchUrl.set(LIMIT, limit);
+    }
+    String cacheKey = searchUrl.build();
+
+    ImmutableList<Attributes> cached = cache == null ? null : cache.getIfPresent(cacheKey);
+    if (cached != null) {
+      Logging.info("Answering query for <%s> from cache", cacheKey);
+      replay(cached, cancellation, handler);
+      return;
+    }
+
+    List<Attributes> results = cache == null ? null : new ArrayList<>();
+    try {
+      query(
+          searchUrl,
+          cancellation,
+          result -> {
+            if (results != null && results.size() < cacheMaxResults) {
+              // The handler may change the result it's given.
+              results.add(new Attributes(result));
+            }
+            handler.onResult(result);
+          });
+    } catch (IOException e) {
+      if (cancellation.isCanceled()) {
+        // The response was disconnected mid-read.
+        return;
+      }
+      // Including errors from the handler, such as a failure to pass results on.
+      Logging.error(e, "Error performing QIDO-RS query");
+      throw new DicomServiceException(Status.ProcessingFailure, "Error performing QIDO-RS query");
+    }
+    // Canceled or truncated searches are missing results.
+    if (results != null && !cancellation.isCanceled() && results.size() < cacheMaxResults) {
+      cache.put(cacheKey, ImmutableList.copyOf(results));
+    }
+  }
+
+  private static void replay(
+      ImmutableList<Attributes> results,
+      Cancellation cancellation,
+      WorklistClient.ResultHandler handler)
+      throws DicomServiceException {
+    try {
+      for (Attributes result : results) {
+        if (cancellation.isCanceled()) {
+          return;
+        }
+        handler.onResult(new Attributes(result));
+      }
+    } catch (IOException e) {
+      Logging.error(e, "Error passing on cached QIDO-RS results");
+      throw new DicomServiceException(
+          Status.ProcessingFailure, "Error passing on cached QIDO-RS results");
+    }
+  }
+
+  /** Performs a search, passing each result to the handler as it's parsed. */
+  private void query(
+      GenericUrl searchUrl, Cancellation cancellation, WorklistClient.ResultHandler handler)
+      throws IOException {
+    Logging.info("Performing query with URL <%s>", searchUrl);
+    HttpRequest getRequest = requestFactory.buildGetRequest(searchUrl);
+    getRequest.getHeaders().setAccept(XML_RESPONSE_CONTENT_TYPE);
+    HttpResponse response = connectionFactory.execute(getRequest, "qido-rs.search", cancellation);
+
+    // Disconnecting unblocks the parser, which is reading the response, so that it stops at once.
+    cancellation.setAbortAction(() -> disconnect(response));
+    try {
+      if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NO_CONTENT) {
+        // No results.
+        return;
+      }
+      UpsWorklistResponseParser.parseMultipartXml(
+          response.getContentType(), response.getContent(), cancellation, handler);
+    } finally {
+      cancellation.setAbortAction(null);
+      disconnect(response);
+    }
+  }
+
+  private static void disconnect(HttpResponse response) {
+    try {
+      response.disconnect();
+    } catch (IOException e) {
+      Logging.error(e, "Error disconnecting QIDO-RS query");
+    }
+  }
+}
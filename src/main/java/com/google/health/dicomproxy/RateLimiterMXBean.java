@@ -0,0 +1,36 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+/**
+ * JMX metrics for the rate limiting of requests to an upstream destination. Limits which aren't
+ * configured are reported as a rate of zero.
+ *
+ * <p>This has to be public for JMX to expose it.
+ */
+public interface RateLimiterMXBean {
+  /** Host the limits apply to. */
+  String getDestination();
+
+  double getRequestsPerSecond();
+
+  /** Requests which may be sent right away; negative if requests are queued up waiting. */
+  double getAvailableRequests();
+
+  double getBytesPerSecond();
+
+  /** Bytes which may be sent right away; negative if uploads are waiting to send more. */
+  double getAvailableBytes();
+
+  /** Total time requests have spent waiting for the limits, in milliseconds. */
+  long getThrottledMillis();
+
+  /** Number of times the destination responded with 429 or 503. */
+  long getThrottledResponseCount();
+
+  /** Time until requests may be sent again, after the destination asked to retry later. */
+  long getRetryAfterRemainingMillis();
+}
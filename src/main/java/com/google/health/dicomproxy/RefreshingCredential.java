@@ -0,0 +1,171 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
+
+/**
+ * OAuth credential whose access token is refreshed on a background thread, ahead of its expiry, so
+ * that requests never wait for a token round trip.
+ *
+ * <p>The first token is fetched as soon as the credential is started; only requests made before it
+ * arrives have to wait. If a refresh fails, the current token keeps being used while the refresh is
+ * retried with backoff.
+ */
+final class RefreshingCredential
+    implements HttpRequestInitializer, HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler {
+  /** Tokens are refreshed this long before they expire, or halfway through short lifetimes. */
+  private static final Duration REFRESH_MARGIN = Duration.ofMinutes(5);
+  /** Lifetime assumed for tokens which don't say when they expire. */
+  private static final Duration DEFAULT_LIFETIME = Duration.ofHours(1);
+  private static final Duration MIN_RETRY_DELAY = Duration.ofSeconds(1);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(1);
+  /** How long requests wait for the first token before failing. */
+  private static final Duration FIRST_TOKEN_TIMEOUT = Duration.ofMinutes(1);
+
+  private final Credential credential;
+  private final ScheduledExecutorService executor;
+  private final CompletableFuture<Void> firstToken = new CompletableFuture<>();
+  @Nullable private volatile String accessToken;
+
+  // Only accessed on the executor thread.
+  private Duration retryDelay = MIN_RETRY_DELAY;
+  @Nullable private ScheduledFuture<?> nextRefresh;
+
+  /**
+   * @param credential credential used to fetch tokens, which is only ever refreshed by this
+   * @param executor single-threaded executor on which refreshes are run
+   */
+  RefreshingCredential(Credential credential, ScheduledExecutorService executor) {
+    this.credential = checkNotNull(credential);
+    this.executor = checkNotNull(executor);
+  }
+
+  /** Starts fetching the first token in the background. */
+  void start() {
+    executor.execute(this::refresh);
+  }
+
+  @Override
+  public void initialize(HttpRequest request) {
+    request.setInterceptor(this);
+    request.setUnsuccessfulResponseHandler(this);
+  }
+
+  @Override
+  public void intercept(HttpRequest request) throws IOException {
+    request.getHeaders().setAuthorization(authorization(getAccessToken()));
+  }
+
+  /**
+   * Refreshes the token if the upstream rejected it, for example because it was revoked. This is
+   * the only time a request waits for a refresh.
+   */
+  @Override
+  public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+      throws IOException {
+    if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_UNAUTHORIZED || !supportsRetry) {
+      return false;
+    }
+    String rejected = request.getHeaders().getAuthorization();
+    Span span = Tracing.startSpan("auth.refresh");
+    try {
+      executor
+          .submit(
+              () -> {
+                // Concurrent requests rejected for the same token only refresh it once.
+                if (authorization(accessToken).equals(rejected)) {
+                  refresh();
+                }
+              })
+          .get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted refreshing access token");
+    } catch (ExecutionException e) {
+      span.setError(e.getCause());
+      throw new IOException("Error refreshing access token", e.getCause());
+    } finally {
+      span.end();
+    }
+    return !authorization(accessToken).equals(rejected);
+  }
+
+  private String getAccessToken() throws IOException {
+    String token = accessToken;
+    if (token != null) {
+      return token;
+    }
+
+    Span span = Tracing.startSpan("auth.token-wait");
+    try {
+      firstToken.get(FIRST_TOKEN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for access token");
+    } catch (ExecutionException | TimeoutException e) {
+      span.setError(e);
+      throw new IOException("No access token is available", e);
+    } finally {
+      span.end();
+    }
+    return accessToken;
+  }
+
+  private static String authorization(@Nullable String token) {
+    return "Bearer " + token;
+  }
+
+  /** Fetches a new token and schedules the next refresh. Runs on the executor. */
+  private void refresh() {
+    if (nextRefresh != null) {
+      nextRefresh.cancel(false);
+    }
+
+    Duration delay;
+    try {
+      if (!credential.refreshToken() || credential.getAccessToken() == null) {
+        throw new IOException("No access token was returned");
+      }
+      accessToken = credential.getAccessToken();
+      firstToken.complete(null);
+      retryDelay = MIN_RETRY_DELAY;
+
+      Long expiresInSeconds = credential.getExpiresInSeconds();
+      Duration lifetime =
+          expiresInSeconds == null ? DEFAULT_LIFETIME : Duration.ofSeconds(expiresInSeconds);
+      Duration margin = lifetime.dividedBy(2);
+      delay = lifetime.minus(margin.compareTo(REFRESH_MARGIN) < 0 ? margin : REFRESH_MARGIN);
+    } catch (IOException | RuntimeException e) {
+      Logging.error(e, "Error refreshing access token; retrying in %s", retryDelay);
+      delay = retryDelay;
+      retryDelay = retryDelay.multipliedBy(2);
+      if (retryDelay.compareTo(MAX_RETRY_DELAY) > 0) {
+        retryDelay = MAX_RETRY_DELAY;
+      }
+    }
+
+    nextRefresh = executor.schedule(this::refresh, delay.toMillis(), TimeUnit.MILLISECONDS);
+  }
+}
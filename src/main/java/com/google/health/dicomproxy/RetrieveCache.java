@@ -0,0 +1,296 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Size-bounded cache, on disk, of retrieved DICOMweb responses, so that retrieving the same studies
+ * again, such as a patient's priors, doesn't go over the WAN.
+ *
+ * <p>Each response is kept in a file named after the hash of its key, with its content type on the
+ * first line. Responses are written to a temporary file as they're read, and only added once
+ * they've been read completely; a response larger than the whole cache isn't kept. The least
+ * recently used responses are deleted to make room. Use is recorded in the files' modification
+ * times, so that the order survives restarts.
+ */
+final class RetrieveCache {
+  private static final String ENTRY_SUFFIX = ".response";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int MAX_CONTENT_TYPE_LENGTH = 1024;
+
+  private final File folder;
+  private final long maxBytes;
+
+  // Sizes of the cached files, by name, in access order.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  private RetrieveCache(File folder, long maxBytes) {
+    this.folder = folder;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Opens the cache kept in the given folder, creating it if necessary. Responses which were being
+   * written when the proxy stopped are deleted.
+   *
+   * @param maxBytes total size of the responses the cache may hold
+   */
+  static RetrieveCache open(File folder, long maxBytes) throws IOException {
+    checkArgument(maxBytes > 0, "Invalid retrieve cache size: %s", maxBytes);
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("Unable to create retrieve cache folder " + folder);
+    }
+    RetrieveCache cache = new RetrieveCache(folder, maxBytes);
+    File[] files = folder.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to list retrieve cache folder " + folder);
+    }
+    // Oldest first, so that the most recently used are the last to be evicted.
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    synchronized (cache) {
+      for (File file : files) {
+        if (file.getName().endsWith(ENTRY_SUFFIX)) {
+          cache.entries.put(file.getName(), file.length());
+          cache.totalBytes += file.length();
+        } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+          Files.deleteIfExists(file.toPath());
+        }
+      }
+      cache.evict();
+    }
+    Logging.info(
+        "Opened retrieve cache %s with %s responses (%s bytes)",
+        folder, cache.entries.size(), cache.totalBytes);
+    return cache;
+  }
+
+  /** A cached response. The caller must close its content. */
+  static final class Response {
+    private final String contentType;
+    private final InputStream content;
+
+    private Response(String contentType, InputStream content) {
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    String getContentType() {
+      return contentType;
+    }
+
+    InputStream getContent() {
+      return content;
+    }
+  }
+
+  /** Returns the response cached with the given key, or null if there is none. */
+  @Nullable
+  Response get(String key) {
+    String name = fileName(key);
+    synchronized (this) {
+      if (entries.get(name) == null) {
+        return null;
+      }
+    }
+    File file = new File(folder, name);
+    InputStream input = null;
+    try {
+      input = new BufferedInputStream(new FileInputStream(file));
+      String contentType = readContentType(input);
+      if (!file.setLastModified(System.currentTimeMillis())) {
+        Logging.error("Unable to record use of cached response %s", file);
+      }
+      return new Response(contentType, input);
+    } catch (IOException e) {
+      if (!(e instanceof FileNotFoundException)) {
+        // A response which can't be read is of no use.
+        Logging.error(e, "Unable to read cached response %s", file);
+      }
+      closeQuietly(input);
+      synchronized (this) {
+        Long size = entries.remove(name);
+        if (size != null) {
+          totalBytes -= size;
+        }
+      }
+      deleteQuietly(file);
+      return null;
+    }
+  }
+
+  /**
+   * Returns a stream to which a response may be written as it's read. The response is only added
+   * once it's {@link Writer#commit committed}.
+   */
+  Writer newWriter(String key, String contentType) {
+    return new Writer(fileName(key), contentType);
+  }
+
+  /**
+   * Stream to which a response is written. It never fails: if the response can't be written, or
+   * it's too large to be kept, writes are ignored from then on and the response isn't added.
+   */
+  final class Writer extends OutputStream {
+    private final String name;
+    private final File tempFile;
+    @Nullable private OutputStream output;
+    private long written;
+
+    private Writer(String name, String contentType) {
+      this.name = name;
+      this.tempFile = new File(folder, name + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+      try {
+        output = new BufferedOutputStream(new FileOutputStream(tempFile));
+        byte[] header = (contentType + "\n").getBytes(UTF_8);
+        output.write(header);
+        written = header.length;
+      } catch (IOException e) {
+        Logging.error(e, "Unable to cache response in %s", tempFile);
+        discard();
+      }
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (output == null) {
+        return;
+      }
+      written += len;
+      if (written > maxBytes) {
+        Logging.info("Response is larger than the retrieve cache; not caching it");
+        discard();
+        return;
+      }
+      try {
+        output.write(b, off, len);
+      } catch (IOException e) {
+        Logging.error(e, "Unable to cache response in %s", tempFile);
+        discard();
+      }
+    }
+
+    /** Adds the response written so far to the cache, replacing any with the same key. */
+    void commit() {
+      if (output == null) {
+        return;
+      }
+      File file = new File(folder, name);
+      try {
+        output.close();
+        output = null;
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        Logging.error(e, "Unable to cache response in %s", file);
+        discard();
+        return;
+      }
+      synchronized (RetrieveCache.this) {
+        Long replaced = entries.put(name, written);
+        totalBytes += written - (replaced == null ? 0 : replaced);
+        evict();
+      }
+    }
+
+    /** Discards the response, unless it was committed. */
+    @Override
+    public void close() {
+      discard();
+    }
+
+    private void discard() {
+      closeQuietly(output);
+      output = null;
+      deleteQuietly(tempFile);
+    }
+  }
+
+  /** Deletes the least recently used responses until the cache is within its size. */
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      it.remove();
+      totalBytes -= eldest.getValue();
+      // Responses still being read remain readable until they're closed.
+      deleteQuietly(new File(folder, eldest.getKey()));
+    }
+  }
+
+  private static String fileName(String key) {
+    return Hashing.sha256().hashString(checkNotNull(key), UTF_8) + ENTRY_SUFFIX;
+  }
+
+  private static String readContentType(InputStream input) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    for (int b = input.read(); b != '\n'; b = input.read()) {
+      if (b == -1 || line.size() == MAX_CONTENT_TYPE_LENGTH) {
+        throw new EOFException("Missing content type");
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), UTF_8);
+  }
+
+  private static void closeQuietly(@Nullable OutputStream output) {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.close();
+    } catch (IOException e) {
+      Logging.error(e, "Unable to close cached response");
+    }
+  }
+
+  private static void closeQuietly(@Nullable InputStream input) {
+    if (input == null) {
+      return;
+    }
+    try {
+      input.close();
+    } catch (IOException e) {
+      Logging.error(e, "Unable to close cached response");
+    }
+  }
+
+  private static void deleteQuietly(File file) {
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      Logging.error(e, "Unable to delete cached response %s", file);
+    }
+  }
+}
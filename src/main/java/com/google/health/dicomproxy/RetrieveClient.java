@@ -0,0 +1,38 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/** Interface to decouple the Study Root C-GET and C-MOVE SCP from the DICOMweb WADO-RS client. */
+public interface RetrieveClient {
+  /** Callback for each retrieved instance. */
+  interface InstanceHandler {
+    /**
+     * Handles an instance as it's read from the response. The instance is given as a DICOM file,
+     * which needn't be read completely.
+     *
+     * @throws IOException to abort the retrieval
+     */
+    void onInstance(InputStream instance) throws IOException;
+  }
+
+  /**
+   * Retrieves the studies, series or instances given by the Query/Retrieve Level and unique keys of
+   * the identifier, passing each instance to the handler as soon as its part of the response
+   * arrives. Studies, series and instances which aren't found are skipped. If the retrieval is
+   * canceled, the upstream request is aborted, and this returns without error.
+   *
+   * @param keys a Study Root C-GET or C-MOVE identifier
+   * @throws DicomServiceException if the keys aren't valid, or the retrieval failed, or the handler
+   *     did
+   */
+  void retrieve(Attributes keys, Cancellation cancellation, InstanceHandler handler)
+      throws DicomServiceException;
+}
@@ -0,0 +1,74 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * Parsing of the HTTP Retry-After header, which servers send with 429 (Too Many Requests) and 503
+ * (Service Unavailable) responses.
+ *
+ * <p>See <a href="https://tools.ietf.org/html/rfc7231#section-7.1.3">RFC 7231, Section 7.1.3</a>.
+ */
+final class RetryAfter {
+  static final String HEADER = "Retry-After";
+
+  static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+  /** How long to wait when a throttled response doesn't say. */
+  static final Duration DEFAULT_DELAY = Duration.ofSeconds(5);
+
+  /** Returns true if the status code asks the client to slow down. */
+  static boolean isThrottled(int statusCode) {
+    return statusCode == STATUS_TOO_MANY_REQUESTS
+        || statusCode == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE;
+  }
+
+  /** Returns how long the response asks the client to wait, if it says. */
+  static Optional<Duration> fromResponse(HttpResponse response, Clock clock) {
+    return parse(response.getHeaders().getFirstHeaderStringValue(HEADER), clock);
+  }
+
+  /**
+   * Parses a Retry-After value, which is either a number of seconds or an HTTP-date. Returns empty
+   * if the value is missing or malformed; dates in the past are treated as no delay.
+   */
+  static Optional<Duration> parse(@Nullable String value, Clock clock) {
+    if (value == null || value.isBlank()) {
+      return Optional.empty();
+    }
+    value = value.strip();
+
+    if (value.chars().allMatch(Character::isDigit)) {
+      try {
+        return Optional.of(Duration.ofSeconds(Long.parseLong(value)));
+      } catch (NumberFormatException e) {
+        // Too large to be meaningful.
+        return Optional.empty();
+      }
+    }
+
+    try {
+      ZonedDateTime retryAt = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+      Duration delay = Duration.between(clock.instant(), retryAt.toInstant());
+      return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+    } catch (DateTimeParseException e) {
+      Logging.error("Ignoring malformed %s header: %s", HEADER, value);
+      return Optional.empty();
+    }
+  }
+
+  /** Prevent instantiation. */
+  private RetryAfter() {}
+}
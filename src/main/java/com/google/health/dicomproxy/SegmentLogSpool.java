@@ -0,0 +1,769 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Spool which appends instances to large, preallocated segment files rather than creating a file
+ * per instance. This turns the many small-file creations and renames of {@link FileSpool} into
+ * sequential writes, which matters for high volumes of small instances and on network filesystems.
+ *
+ * <p>Each segment {@code segment-N.seg} has an append-only index {@code segment-N.idx}, recording
+ * where each committed instance lives and which batches have been completed or released. The
+ * indexes are replayed at startup to recover batches which were not yet uploaded.
+ *
+ * <p>A segment is used by at most one writer at a time, so concurrent associations write to
+ * different segments. Once full, a segment is sealed; it is deleted when all of its instances have
+ * been released, and compacted (its remaining instances copied to another segment) once most of it
+ * has been released.
+ *
+ * <p>With a durable {@link SpoolDurability}, a commit syncs the segment's data and index together,
+ * so a group commit covers every instance appended to a segment since the previous one.
+ */
+final class SegmentLogSpool implements Spool {
+  private static final Pattern SEGMENT_INDEX_PATTERN = Pattern.compile("segment-(\\d+)\\.idx");
+
+  // Index record types.
+  private static final byte RECORD_COMMIT = 1;
+  private static final byte RECORD_COMPLETE = 2;
+  private static final byte RECORD_RELEASE = 3;
+  private static final byte RECORD_DISCARD = 4;
+
+  /** Sealed segments with less than this fraction of their data still live are compacted. */
+  private static final double COMPACTION_THRESHOLD = 0.25;
+
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final File folder;
+  private final long segmentSize;
+  private final SpoolDurability durability;
+
+  /** Guards all of the mutable state below, including that of segments and instances. */
+  private final Object lock = new Object();
+
+  private final Map<Long, Segment> segments = new HashMap<>();
+  /** Unsealed segments which no writer is currently using. */
+  private final Deque<Segment> idleSegments = new ArrayDeque<>();
+  /** Batches which have not been released yet, keyed by batch ID. */
+  private final Map<String, Batch> batches = new HashMap<>();
+  private long nextSegmentId = 0;
+
+  private SegmentLogSpool(File folder, long segmentSize, SpoolDurability durability) {
+    this.folder = folder;
+    this.segmentSize = segmentSize;
+    this.durability = durability;
+  }
+
+  /**
+   * Opens the spool in the given folder, replaying the indexes of any existing segments.
+   *
+   * @param folder directory holding the segment files
+   * @param segmentSize size in bytes that each segment is preallocated to
+   * @param durability when committed instances are synced to disk
+   */
+  static SegmentLogSpool open(File folder, long segmentSize, SpoolDurability durability)
+      throws IOException {
+    checkArgument(segmentSize > 0, "Segment size must be positive: %s", segmentSize);
+    checkNotNull(durability);
+    checkArgument(
+        !folder.exists() || folder.isDirectory(),
+        "Temp Folder %s already exists, but is not a directory.",
+        folder);
+    if (!folder.isDirectory()) {
+      checkArgument(folder.mkdirs(), "Unable to create temp folder %s.", folder);
+    }
+
+    SegmentLogSpool spool = new SegmentLogSpool(folder, segmentSize, durability);
+    spool.replayIndexes();
+    return spool;
+  }
+
+  @Override
+  public PendingInstance newInstance(String batchId, String sopInstanceUid) throws IOException {
+    return new PendingSegmentInstance(acquireSegment(), batchId, sopInstanceUid);
+  }
+
+  @Override
+  public SpoolBatch completeBatch(String batchId) throws IOException {
+    Set<Segment> touched;
+    SpoolBatch spoolBatch;
+    synchronized (lock) {
+      Batch batch = batches.get(batchId);
+      if (batch == null) {
+        return new SpoolBatch(batchId, ImmutableList.of());
+      }
+      batch.complete = true;
+      touched = batch.segments();
+      for (Segment segment : touched) {
+        segment.writeRecord(RECORD_COMPLETE, batchId);
+      }
+      spoolBatch = batch.toSpoolBatch();
+    }
+    // Otherwise the batch's acknowledged instances wouldn't be recovered after a power failure.
+    durability.sync(touched);
+    return spoolBatch;
+  }
+
+  @Override
+  public void release(SpoolBatch spoolBatch) {
+    List<Segment> toCompact = new ArrayList<>();
+    synchronized (lock) {
+      Batch batch = batches.remove(spoolBatch.getId());
+      if (batch == null) {
+        return;
+      }
+
+      Set<Segment> touched = batch.segments();
+      for (SegmentInstance instance : batch.instances.values()) {
+        instance.segment.removeLive(instance);
+      }
+      for (Segment segment : touched) {
+        try {
+          segment.writeRecord(RECORD_RELEASE, batch.id);
+        } catch (IOException e) {
+          Logging.error(e, "Error recording release of %s in %s", batch.id, segment);
+        }
+        if (!maybeDelete(segment) && segment.needsCompaction()) {
+          segment.compacting = true;
+          toCompact.add(segment);
+        }
+      }
+    }
+
+    for (Segment segment : toCompact) {
+      try {
+        compact(segment);
+      } catch (IOException e) {
+        Logging.error(e, "Error compacting %s", segment);
+      }
+    }
+  }
+
+  @Override
+  public ImmutableList<SpoolBatch> recoverBatches() {
+    synchronized (lock) {
+      return batches.values().stream()
+          .filter(batch -> batch.complete)
+          .map(Batch::toSpoolBatch)
+          .collect(ImmutableList.toImmutableList());
+    }
+  }
+
+  @VisibleForTesting
+  int getSegmentCount() {
+    synchronized (lock) {
+      return segments.size();
+    }
+  }
+
+  /** Returns an idle segment for writing, creating a new one if there is none. */
+  private Segment acquireSegment() throws IOException {
+    long id;
+    synchronized (lock) {
+      Segment segment = idleSegments.pollFirst();
+      if (segment != null) {
+        return segment;
+      }
+      id = nextSegmentId++;
+    }
+
+    File dataFile = new File(folder, String.format("segment-%012d.seg", id));
+    File indexFile = new File(folder, String.format("segment-%012d.idx", id));
+    // Preallocating the file avoids updating its size on every append.
+    try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+      raf.setLength(segmentSize);
+    }
+    Segment segment = new Segment(id, dataFile, indexFile, /* writePosition= */ 0);
+    synchronized (lock) {
+      segments.put(id, segment);
+    }
+    if (durability.isEnabled()) {
+      try {
+        durability.sync(ImmutableList.of(SpoolDurability.directory(folder)));
+      } catch (IOException e) {
+        returnSegment(segment);
+        throw e;
+      }
+    }
+    return segment;
+  }
+
+  /** Returns a segment to the idle pool after writing, sealing it if it's full. */
+  private void returnSegment(Segment segment) {
+    synchronized (lock) {
+      if (segment.writePosition >= segmentSize) {
+        segment.sealed = true;
+        maybeDelete(segment);
+      } else {
+        // Reusing the most recently used segment keeps writes sequential.
+        idleSegments.addFirst(segment);
+      }
+    }
+  }
+
+  /** Deletes the segment if it's sealed and nothing in it is still needed. */
+  private boolean maybeDelete(Segment segment) {
+    if (!segment.sealed
+        || segment.compacting
+        || segment.liveInstances > 0
+        || segment.readers > 0) {
+      return false;
+    }
+
+    segments.remove(segment.id);
+    try {
+      segment.close();
+    } catch (IOException e) {
+      Logging.error(e, "Error closing %s", segment);
+    }
+    if (!segment.indexFile.delete() || !segment.dataFile.delete()) {
+      Logging.error("Unable to delete %s", segment);
+    }
+    return true;
+  }
+
+  /** Copies the live instances of a mostly-released segment into other segments. */
+  private void compact(Segment source) throws IOException {
+    List<SegmentInstance> toMove;
+    synchronized (lock) {
+      toMove = new ArrayList<>();
+      for (Batch batch : batches.values()) {
+        for (SegmentInstance instance : batch.instances.values()) {
+          if (instance.segment == source) {
+            toMove.add(instance);
+          }
+        }
+      }
+    }
+    Logging.info("Compacting %s; moving %s instances", source, toMove.size());
+
+    try {
+      List<SegmentInstance> moved = new ArrayList<>();
+      Set<Segment> targets = new HashSet<>();
+      for (SegmentInstance instance : toMove) {
+        Segment target = moveInstance(instance, source);
+        if (target != null) {
+          moved.add(instance);
+          targets.add(target);
+        }
+      }
+
+      // The copies must be durable before the originals are discarded. Until then, replaying the
+      // indexes finds both copies, and keeps one of them.
+      durability.sync(targets);
+      synchronized (lock) {
+        for (SegmentInstance instance : moved) {
+          source.writeRecord(RECORD_DISCARD, instance.batchId, instance.sopInstanceUid);
+        }
+      }
+    } finally {
+      synchronized (lock) {
+        source.compacting = false;
+        maybeDelete(source);
+      }
+    }
+  }
+
+  /**
+   * Copies an instance into another segment, returning that segment, or null if the instance's
+   * batch was released in the meantime.
+   */
+  @Nullable
+  private Segment moveInstance(SegmentInstance instance, Segment source) throws IOException {
+    Segment target = acquireSegment();
+    try {
+      long offset = target.writePosition;
+      target.channel.position(offset);
+      long copied = 0;
+      while (copied < instance.length) {
+        copied +=
+            source.channel.transferTo(
+                instance.offset + copied, instance.length - copied, target.channel);
+      }
+
+      synchronized (lock) {
+        Batch batch = batches.get(instance.batchId);
+        // The batch may have been released while the copy was in progress.
+        if (batch != null && batch.instances.get(instance.sopInstanceUid) == instance) {
+          target.writeCommit(instance.batchId, instance.sopInstanceUid, offset, instance.length);
+          if (batch.complete) {
+            target.writeRecord(RECORD_COMPLETE, instance.batchId);
+          }
+          source.removeLive(instance);
+          instance.segment = target;
+          instance.offset = offset;
+          target.addLive(instance);
+          target.writePosition = offset + instance.length;
+          return target;
+        }
+      }
+      return null;
+    } finally {
+      returnSegment(target);
+    }
+  }
+
+  /** Rebuilds the in-memory state from the segment indexes found on disk. */
+  private void replayIndexes() throws IOException {
+    File[] indexFiles = folder.listFiles();
+    if (indexFiles == null) {
+      throw new IOException("Unable to list " + folder);
+    }
+
+    // Segments must be replayed in order, so that later records take precedence.
+    Map<Long, File> indexesById = new TreeMap<>();
+    for (File indexFile : indexFiles) {
+      Matcher matcher = SEGMENT_INDEX_PATTERN.matcher(indexFile.getName());
+      if (matcher.matches()) {
+        indexesById.put(Long.parseLong(matcher.group(1)), indexFile);
+      }
+    }
+
+    Set<String> completedBatchIds = new HashSet<>();
+    for (Map.Entry<Long, File> entry : indexesById.entrySet()) {
+      long id = entry.getKey();
+      File indexFile = entry.getValue();
+      File dataFile = new File(folder, indexFile.getName().replace(".idx", ".seg"));
+      nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+      // Live instances of this segment, keyed by batch ID and then SOP Instance UID.
+      Map<String, Map<String, long[]>> live = new LinkedHashMap<>();
+      replayIndex(indexFile, live, completedBatchIds);
+
+      if (live.isEmpty() || !dataFile.isFile()) {
+        if (!live.isEmpty()) {
+          Logging.error("Segment data %s is missing; dropping its instances.", dataFile);
+        }
+        if ((indexFile.exists() && !indexFile.delete())
+            || (dataFile.exists() && !dataFile.delete())) {
+          Logging.error("Unable to delete segment %s", dataFile);
+        }
+        continue;
+      }
+
+      long writePosition = 0;
+      for (Map<String, long[]> instances : live.values()) {
+        for (long[] location : instances.values()) {
+          writePosition = Math.max(writePosition, location[0] + location[1]);
+        }
+      }
+      // Recovered segments are never written to again.
+      Segment segment = new Segment(id, dataFile, indexFile, writePosition);
+      segment.sealed = true;
+      segments.put(id, segment);
+
+      for (Map.Entry<String, Map<String, long[]>> batchEntry : live.entrySet()) {
+        Batch batch = batches.computeIfAbsent(batchEntry.getKey(), Batch::new);
+        for (Map.Entry<String, long[]> instanceEntry : batchEntry.getValue().entrySet()) {
+          long[] location = instanceEntry.getValue();
+          SegmentInstance instance =
+              new SegmentInstance(
+                  batch.id, instanceEntry.getKey(), segment, location[0], location[1]);
+          SegmentInstance previous = batch.instances.put(instance.sopInstanceUid, instance);
+          if (previous != null) {
+            // Left behind by an interrupted compaction; both copies are identical.
+            previous.segment.removeLive(previous);
+          }
+          segment.addLive(instance);
+        }
+      }
+    }
+
+    for (Batch batch : batches.values()) {
+      batch.complete = completedBatchIds.contains(batch.id);
+      if (!batch.complete) {
+        Logging.info(
+            "Spool contains incomplete batch %s with %s instances; it will not be uploaded.",
+            batch.id, batch.instances.size());
+      }
+    }
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      maybeDelete(segment);
+    }
+  }
+
+  private static void replayIndex(
+      File indexFile, Map<String, Map<String, long[]>> live, Set<String> completedBatchIds)
+      throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+      while (true) {
+        int type = in.read();
+        if (type == -1) {
+          break;
+        }
+        String batchId = in.readUTF();
+        switch (type) {
+          case RECORD_COMMIT:
+            String sopInstanceUid = in.readUTF();
+            long offset = in.readLong();
+            long length = in.readLong();
+            live.computeIfAbsent(batchId, unused -> new LinkedHashMap<>())
+                .put(sopInstanceUid, new long[] {offset, length});
+            break;
+          case RECORD_COMPLETE:
+            completedBatchIds.add(batchId);
+            break;
+          case RECORD_RELEASE:
+            live.remove(batchId);
+            break;
+          case RECORD_DISCARD:
+            String discardedUid = in.readUTF();
+            Map<String, long[]> instances = live.get(batchId);
+            if (instances != null) {
+              instances.remove(discardedUid);
+            }
+            break;
+          default:
+            throw new IOException(
+                String.format("Unknown record type %s in %s", type, indexFile));
+        }
+      }
+    } catch (EOFException e) {
+      // The last record was only partially written before the proxy stopped; it was never
+      // acknowledged, so can be ignored.
+      Logging.info("Ignoring truncated record at the end of %s", indexFile);
+    }
+  }
+
+  /** A segment data file and its index. */
+  private final class Segment implements SpoolDurability.Syncable {
+    final long id;
+    final File dataFile;
+    final File indexFile;
+    final FileChannel channel;
+    final FileOutputStream indexOut;
+    final DataOutputStream index;
+
+    // Guarded by lock, except writePosition, which is owned by the segment's current writer.
+    long writePosition;
+    boolean sealed = false;
+    boolean compacting = false;
+    int liveInstances = 0;
+    long liveBytes = 0;
+    int readers = 0;
+
+    Segment(long id, File dataFile, File indexFile, long writePosition) throws IOException {
+      this.id = id;
+      this.dataFile = dataFile;
+      this.indexFile = indexFile;
+      this.writePosition = writePosition;
+      this.channel =
+          FileChannel.open(dataFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.indexOut = new FileOutputStream(indexFile, /* append= */ true);
+      this.index = new DataOutputStream(new BufferedOutputStream(indexOut));
+    }
+
+    /** Syncs the data and index; records are flushed to the index as soon as they're written. */
+    @Override
+    public void sync() throws IOException {
+      try {
+        channel.force(false);
+        indexOut.getChannel().force(false);
+      } catch (ClosedChannelException e) {
+        // The segment was deleted, so nothing in it is needed any more.
+      }
+    }
+
+    void writeCommit(String batchId, String sopInstanceUid, long offset, long length)
+        throws IOException {
+      index.writeByte(RECORD_COMMIT);
+      index.writeUTF(batchId);
+      index.writeUTF(sopInstanceUid);
+      index.writeLong(offset);
+      index.writeLong(length);
+      index.flush();
+    }
+
+    void writeRecord(byte type, String... fields) throws IOException {
+      index.writeByte(type);
+      for (String field : fields) {
+        index.writeUTF(field);
+      }
+      index.flush();
+    }
+
+    void addLive(SegmentInstance instance) {
+      liveInstances++;
+      liveBytes += instance.length;
+    }
+
+    void removeLive(SegmentInstance instance) {
+      liveInstances--;
+      liveBytes -= instance.length;
+    }
+
+    boolean needsCompaction() {
+      return sealed
+          && !compacting
+          && liveInstances > 0
+          && liveBytes < writePosition * COMPACTION_THRESHOLD;
+    }
+
+    void close() throws IOException {
+      try {
+        index.close();
+      } finally {
+        channel.close();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return dataFile.toString();
+    }
+  }
+
+  /** Committed instances of a batch. */
+  private static final class Batch {
+    final String id;
+    /** Instances keyed by SOP Instance UID; an instance which is resent replaces the original. */
+    final Map<String, SegmentInstance> instances = new LinkedHashMap<>();
+
+    boolean complete = false;
+
+    Batch(String id) {
+      this.id = id;
+    }
+
+    Set<Segment> segments() {
+      Set<Segment> segments = new HashSet<>();
+      for (SegmentInstance instance : instances.values()) {
+        segments.add(instance.segment);
+      }
+      return segments;
+    }
+
+    SpoolBatch toSpoolBatch() {
+      return new SpoolBatch(id, ImmutableList.copyOf(instances.values()));
+    }
+  }
+
+  /** An instance being appended to a segment. */
+  private final class PendingSegmentInstance implements PendingInstance {
+    private final Segment segment;
+    private final String batchId;
+    private final String sopInstanceUid;
+    private final long offset;
+    private final ChannelOutputStream channelOut;
+    private final OutputStream out;
+    private boolean finished = false;
+
+    PendingSegmentInstance(Segment segment, String batchId, String sopInstanceUid) {
+      this.segment = segment;
+      this.batchId = batchId;
+      this.sopInstanceUid = sopInstanceUid;
+      this.offset = segment.writePosition;
+      this.channelOut = new ChannelOutputStream(segment.channel, offset);
+      this.out = new BufferedOutputStream(channelOut, WRITE_BUFFER_SIZE);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return out;
+    }
+
+    @Override
+    public SpooledInstance commit() throws IOException {
+      out.flush();
+      long length = channelOut.position - offset;
+      SegmentInstance instance;
+      Set<Segment> toSync = new HashSet<>();
+      toSync.add(segment);
+      synchronized (lock) {
+        Batch batch = batches.computeIfAbsent(batchId, Batch::new);
+        SegmentInstance previous = batch.instances.get(sopInstanceUid);
+        if (previous != null) {
+          previous.segment.writeRecord(RECORD_DISCARD, batchId, sopInstanceUid);
+        }
+        segment.writeCommit(batchId, sopInstanceUid, offset, length);
+
+        instance = new SegmentInstance(batchId, sopInstanceUid, segment, offset, length);
+        batch.instances.put(sopInstanceUid, instance);
+        segment.addLive(instance);
+        segment.writePosition = offset + length;
+        if (previous != null) {
+          toSync.add(previous.segment);
+          previous.segment.removeLive(previous);
+          if (previous.segment != segment) {
+            maybeDelete(previous.segment);
+          }
+        }
+      }
+      // Other writers may append to the segment while this one waits for its sync.
+      finish();
+      durability.sync(toSync);
+      return instance;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // Without a commit, the segment's write position is unchanged; the data written so far will
+      // simply be overwritten.
+      finish();
+    }
+
+    private void finish() {
+      if (!finished) {
+        finished = true;
+        returnSegment(segment);
+      }
+    }
+  }
+
+  /** A committed instance. Its location changes if its segment is compacted. */
+  private final class SegmentInstance implements SpooledInstance {
+    final String batchId;
+    final String sopInstanceUid;
+    final long length;
+    // Guarded by lock.
+    Segment segment;
+    long offset;
+
+    SegmentInstance(
+        String batchId, String sopInstanceUid, Segment segment, long offset, long length) {
+      this.batchId = batchId;
+      this.sopInstanceUid = sopInstanceUid;
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public String getSopInstanceUid() {
+      return sopInstanceUid;
+    }
+
+    @Override
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public InputStream openStream() {
+      synchronized (lock) {
+        // Keeps the segment from being deleted, even if the instance is moved elsewhere.
+        segment.readers++;
+        return new SegmentInputStream(segment, offset, length);
+      }
+    }
+
+    @Override
+    public String toString() {
+      synchronized (lock) {
+        return String.format("%s@%s+%s", segment, offset, length);
+      }
+    }
+  }
+
+  /** Reads a range of a segment. */
+  private final class SegmentInputStream extends InputStream {
+    private final Segment segment;
+    private final long end;
+    private long position;
+    private boolean closed = false;
+
+    SegmentInputStream(Segment segment, long offset, long length) {
+      this.segment = segment;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+      int read = segment.channel.read(buffer, position);
+      if (read == -1) {
+        throw new EOFException("Unexpected end of segment " + segment);
+      }
+      position += read;
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public void close() {
+      synchronized (lock) {
+        if (!closed) {
+          closed = true;
+          segment.readers--;
+          maybeDelete(segment);
+        }
+      }
+    }
+  }
+
+  /** Writes sequentially to a channel, starting at a given position. */
+  private static final class ChannelOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private long position;
+
+    ChannelOutputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+  }
+}
@@ -0,0 +1,394 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Spool whose folder is shared by several proxy nodes, any of which may upload a batch received by
+ * another. This lets uploads scale with the number of nodes, and lets the backlog of a node which
+ * stops be finished by the others.
+ *
+ * <p>Each batch folder may contain the following marker files, alongside its instances:
+ *
+ * <ul>
+ *   <li>{@code batch.lease}: the batch is claimed by the node named in the file, from when it
+ *       receives the first instance. It's created exclusively, so only one node can claim a batch,
+ *       and its modification time is renewed by heartbeats. Once it hasn't been renewed for the
+ *       lease timeout, another node may take the batch over.
+ *   <li>{@code batch.ready}: the batch is complete, and may be uploaded by whichever node claims
+ *       it. A batch which isn't ready is only taken over once its lease expires, which means the
+ *       node receiving it died mid-association; the instances it committed are then uploaded.
+ *   <li>{@code batch.uploaded}: the batch has been uploaded, and is never claimed again.
+ * </ul>
+ *
+ * <p>Taking over an expired lease races with a late heartbeat from its holder, so a batch may very
+ * occasionally be uploaded twice. Storing the same instance twice over STOW-RS is harmless. Node
+ * clocks must agree to within a small fraction of the lease timeout.
+ *
+ * <p>A batch whose association fails is never completed, so the node which received it keeps its
+ * lease until it stops; the batch is then taken over like any other.
+ */
+final class SharedSpool implements Spool, UploadListener, Closeable {
+  private static final String LEASE_FILE = "batch.lease";
+  private static final String READY_FILE = "batch.ready";
+  private static final String UPLOADED_FILE = FileSpool.UPLOADED_FILE;
+
+  private final FileSpool fileSpool;
+  private final File folder;
+  private final String nodeId;
+  private final Duration leaseTimeout;
+  private final int maxClaimedBatches;
+  private final Clock clock;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("shared-spool").setDaemon(true).build());
+
+  /** Lease file contents, by batch ID, of the leases this node holds and keeps renewing. */
+  private final Map<String, String> heldLeases = new ConcurrentHashMap<>();
+  /** Batches this node is receiving, whose leases it holds until they're complete. */
+  private final Set<String> receivingBatches = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param fileSpool spool which stores the instances, in the shared folder
+   * @param folder the shared folder
+   * @param nodeId uniquely identifies this node among those sharing the folder
+   * @param leaseTimeout how long a lease lasts without being renewed
+   * @param maxClaimedBatches number of batches this node may hold at once, beyond which it leaves
+   *     batches for other nodes to claim
+   * @param clock source of time for leases
+   */
+  SharedSpool(
+      FileSpool fileSpool,
+      File folder,
+      String nodeId,
+      Duration leaseTimeout,
+      int maxClaimedBatches,
+      Clock clock) {
+    checkArgument(
+        !leaseTimeout.isNegative() && !leaseTimeout.isZero(),
+        "Lease timeout must be positive: %s",
+        leaseTimeout);
+    this.fileSpool = checkNotNull(fileSpool);
+    this.folder = checkNotNull(folder);
+    this.nodeId = checkNotNull(nodeId);
+    this.leaseTimeout = leaseTimeout;
+    this.maxClaimedBatches = maxClaimedBatches;
+    this.clock = checkNotNull(clock);
+  }
+
+  /** Returns an identifier for this process, which is unique among processes on the network. */
+  static String defaultNodeId() {
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      host = "unknown-host";
+    }
+    return host + "-" + ProcessHandle.current().pid();
+  }
+
+  /**
+   * Starts renewing the leases this node holds, and periodically claiming batches which are ready
+   * and not held by any other node.
+   *
+   * @param uploader receives each batch claimed by the scan
+   */
+  void startClaiming(Consumer<SpoolBatch> uploader, Duration scanInterval) {
+    long heartbeatMillis = Math.max(1, leaseTimeout.toMillis() / 3);
+    @SuppressWarnings("unused")
+    Future<?> unusedRenewals =
+        executor.scheduleAtFixedRate(
+            this::renewLeases, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    @SuppressWarnings("unused")
+    Future<?> unusedScans =
+        executor.scheduleWithFixedDelay(
+            () -> {
+              try {
+                for (SpoolBatch batch : claimBatches()) {
+                  Logging.info("Claimed %s from the shared spool", batch);
+                  uploader.accept(batch);
+                }
+              } catch (RuntimeException e) {
+                // Later scans would be cancelled by an exception.
+                Logging.error(e, "Error claiming batches from the shared spool");
+              }
+            },
+            scanInterval.toMillis(),
+            scanInterval.toMillis(),
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Claims the batch when its first instance is received, so that other nodes can tell whether this
+   * node is still receiving it.
+   */
+  @Override
+  public PendingInstance newInstance(String batchId, String sopInstanceUid) throws IOException {
+    if (!receivingBatches.contains(batchId)) {
+      File batchFolder = new File(folder, batchId);
+      if (!batchFolder.isDirectory() && !batchFolder.mkdirs()) {
+        throw new IOException(String.format("Unable to create batch folder %s", batchFolder));
+      }
+      if (!tryClaim(batchId)) {
+        throw new IOException(String.format("Batch %s was claimed by another node", batchId));
+      }
+      receivingBatches.add(batchId);
+    }
+    return fileSpool.newInstance(batchId, sopInstanceUid);
+  }
+
+  /** Completes the batch, which remains claimed by this node for it to upload. */
+  @Override
+  public SpoolBatch completeBatch(String batchId) throws IOException {
+    boolean receiving = receivingBatches.remove(batchId);
+    if (!new File(folder, batchId).isDirectory()) {
+      // No instances were ever written for this batch.
+      return fileSpool.completeBatch(batchId);
+    }
+    // The batch must be claimed before it's marked as ready, so that no other node claims it in
+    // between.
+    if (receiving ? !holdsLease(batchId) : !tryClaim(batchId)) {
+      heldLeases.remove(batchId);
+      throw new IOException(String.format("Batch %s was claimed by another node", batchId));
+    }
+    SpoolBatch batch = fileSpool.completeBatch(batchId);
+    if (batch.getInstances().isEmpty()) {
+      releaseLease(batchId);
+    } else {
+      createMarker(batchId, READY_FILE);
+    }
+    return batch;
+  }
+
+  @Override
+  public void release(SpoolBatch batch) {
+    try {
+      createMarker(batch.getId(), UPLOADED_FILE);
+    } catch (IOException e) {
+      // The batch may be uploaded again once the lease expires, which is harmless.
+      Logging.error(e, "Unable to mark %s as uploaded", batch);
+    }
+    releaseLease(batch.getId());
+    fileSpool.release(batch);
+  }
+
+  @Override
+  public void abandonBatch(String batchId) {
+    fileSpool.abandonBatch(batchId);
+  }
+
+  @Override
+  public void onUploadSucceeded(SpoolBatch batch) {
+    release(batch);
+  }
+
+  /**
+   * Stops renewing the lease on a batch which failed to upload. Once the lease expires, any node
+   * may claim the batch and try again.
+   */
+  @Override
+  public void onUploadFailed(SpoolBatch batch) {
+    heldLeases.remove(batch.getId());
+  }
+
+  /** Claims the ready batches left behind by this node or others, on startup. */
+  @Override
+  public ImmutableList<SpoolBatch> recoverBatches() {
+    return claimBatches();
+  }
+
+  /**
+   * Claims batches which are ready to upload, and batches whose receiving node died, up to this
+   * node's limit. Batches this node is still receiving don't count towards it.
+   */
+  @VisibleForTesting
+  ImmutableList<SpoolBatch> claimBatches() {
+    File[] batchFolders = folder.listFiles(File::isDirectory);
+    if (batchFolders == null) {
+      Logging.error("Unable to list shared spool folder %s", folder);
+      return ImmutableList.of();
+    }
+
+    ImmutableList.Builder<SpoolBatch> claimed = ImmutableList.builder();
+    for (File batchFolder : batchFolders) {
+      if (heldLeases.size() - receivingBatches.size() >= maxClaimedBatches) {
+        break;
+      }
+      String batchId = batchFolder.getName();
+      if (heldLeases.containsKey(batchId) || new File(batchFolder, UPLOADED_FILE).exists()) {
+        continue;
+      }
+      try {
+        if (!new File(batchFolder, READY_FILE).exists() && !hasExpiredLease(batchId)) {
+          // Still being received, or not yet claimed by the node receiving it.
+          continue;
+        }
+      } catch (IOException e) {
+        Logging.error(e, "Unable to check lease on batch %s", batchId);
+        continue;
+      }
+      try {
+        if (tryClaim(batchId)) {
+          claimed.add(fileSpool.readBatch(batchId));
+        }
+      } catch (IOException e) {
+        Logging.error(e, "Unable to claim batch %s", batchId);
+      }
+    }
+    return claimed.build();
+  }
+
+  /** Takes the lease on a batch, if no other node holds an unexpired lease on it. */
+  private boolean tryClaim(String batchId) throws IOException {
+    Path lease = getLeaseFile(batchId);
+    String contents = nodeId + "\n" + UUID.randomUUID() + "\n";
+    try {
+      Files.write(lease, contents.getBytes(UTF_8), StandardOpenOption.CREATE_NEW);
+    } catch (FileAlreadyExistsException e) {
+      if (!breakExpiredLease(lease)) {
+        return false;
+      }
+      try {
+        Files.write(lease, contents.getBytes(UTF_8), StandardOpenOption.CREATE_NEW);
+      } catch (FileAlreadyExistsException raced) {
+        // Another node broke the lease too, and claimed the batch first.
+        return false;
+      }
+    }
+    // Leases are timed by this node's clock, rather than the filesystem's.
+    Files.setLastModifiedTime(lease, FileTime.from(clock.instant()));
+    heldLeases.put(batchId, contents);
+    return true;
+  }
+
+  /** Returns true if the batch has a lease, which hasn't been renewed for the lease timeout. */
+  private boolean hasExpiredLease(String batchId) throws IOException {
+    try {
+      Instant renewed = Files.getLastModifiedTime(getLeaseFile(batchId)).toInstant();
+      return !renewed.plus(leaseTimeout).isAfter(clock.instant());
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  /** Returns true if this node still holds the lease on the batch. */
+  private boolean holdsLease(String batchId) throws IOException {
+    String contents = heldLeases.get(batchId);
+    try {
+      return contents != null
+          && new String(Files.readAllBytes(getLeaseFile(batchId)), UTF_8).equals(contents);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  /** Removes the lease, if it has expired. Only one of the nodes trying this at once succeeds. */
+  private boolean breakExpiredLease(Path lease) throws IOException {
+    try {
+      Instant renewed = Files.getLastModifiedTime(lease).toInstant();
+      if (renewed.plus(leaseTimeout).isAfter(clock.instant())) {
+        return false;
+      }
+      // Renaming is atomic, so only one node can move the lease out of the way.
+      Path broken = lease.resolveSibling(LEASE_FILE + "." + nodeId + ".expired");
+      Files.move(lease, broken);
+      Logging.info(
+          "Took over expired lease %s: %s",
+          lease, new String(Files.readAllBytes(broken), UTF_8).trim());
+      Files.delete(broken);
+      return true;
+    } catch (NoSuchFileException e) {
+      // The lease was released, or broken by another node; try to claim the batch regardless.
+      return true;
+    }
+  }
+
+  /** Renews the leases this node holds, dropping any which have been taken over by other nodes. */
+  @VisibleForTesting
+  void renewLeases() {
+    FileTime now = FileTime.from(clock.instant());
+    for (Map.Entry<String, String> held : heldLeases.entrySet()) {
+      Path lease = getLeaseFile(held.getKey());
+      try {
+        if (!new String(Files.readAllBytes(lease), UTF_8).equals(held.getValue())) {
+          throw new NoSuchFileException(lease.toString());
+        }
+        Files.setLastModifiedTime(lease, now);
+      } catch (NoSuchFileException e) {
+        Logging.error("Lost lease on batch %s to another node", held.getKey());
+        heldLeases.remove(held.getKey());
+      } catch (IOException | RuntimeException e) {
+        // Later renewals would be cancelled by a RuntimeException.
+        Logging.error(e, "Unable to renew lease on batch %s", held.getKey());
+      }
+    }
+  }
+
+  private void releaseLease(String batchId) {
+    String contents = heldLeases.remove(batchId);
+    if (contents == null) {
+      return;
+    }
+    Path lease = getLeaseFile(batchId);
+    try {
+      if (new String(Files.readAllBytes(lease), UTF_8).equals(contents)) {
+        Files.delete(lease);
+      }
+    } catch (NoSuchFileException e) {
+      // Already taken over and released by another node.
+    } catch (IOException e) {
+      Logging.error(e, "Unable to release lease %s", lease);
+    }
+  }
+
+  private void createMarker(String batchId, String name) throws IOException {
+    try {
+      Files.createFile(new File(new File(folder, batchId), name).toPath());
+    } catch (FileAlreadyExistsException e) {
+      // Already marked.
+    }
+  }
+
+  private Path getLeaseFile(String batchId) {
+    return new File(new File(folder, batchId), LEASE_FILE).toPath();
+  }
+
+  /** Stops renewing leases, which other nodes may take over once they expire. */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A timed operation within a trace, such as the receipt or upload of an instance. Spans are started
+ * by a {@link Tracer}, and exported when they end, if their trace was sampled.
+ *
+ * <p>Spans of traces which weren't sampled still have IDs, so that they're propagated upstream, but
+ * record nothing. Spans may be ended, and have attributes set, from any thread.
+ */
+final class Span {
+  /** Kinds of span, as numbered by OpenTelemetry. */
+  static final int KIND_INTERNAL = 1;
+
+  static final int KIND_SERVER = 2;
+  static final int KIND_CLIENT = 3;
+
+  /** Span which records nothing, used while tracing is disabled. */
+  static final Span NOOP = new Span(null, "", KIND_INTERNAL, "", "", null, false, 0);
+
+  /** Makes a span the current one of its thread, until it's closed. */
+  interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  @Nullable private final Tracer tracer;
+  private final String name;
+  private final int kind;
+  private final String traceId;
+  private final String spanId;
+  @Nullable private final String parentSpanId;
+  private final boolean sampled;
+  private final long startEpochNanos;
+
+  // Guarded by this.
+  private final Map<String, Object> attributes = new LinkedHashMap<>();
+  @Nullable private String errorMessage;
+  private boolean error;
+  private long endEpochNanos;
+
+  Span(
+      @Nullable Tracer tracer,
+      String name,
+      int kind,
+      String traceId,
+      String spanId,
+      @Nullable String parentSpanId,
+      boolean sampled,
+      long startEpochNanos) {
+    this.tracer = tracer;
+    this.name = checkNotNull(name);
+    this.kind = kind;
+    this.traceId = checkNotNull(traceId);
+    this.spanId = checkNotNull(spanId);
+    this.parentSpanId = parentSpanId;
+    this.sampled = sampled;
+    this.startEpochNanos = startEpochNanos;
+  }
+
+  /** Starts a span of the same trace, within this one. */
+  Span startChild(String name) {
+    return startChild(name, KIND_INTERNAL);
+  }
+
+  /** Starts a span of the given kind, of the same trace, within this one. */
+  Span startChild(String name, int kind) {
+    return tracer == null ? NOOP : tracer.startSpan(name, kind, this);
+  }
+
+  /** Sets a string attribute, such as a UID. */
+  Span setAttribute(String key, String value) {
+    if (isRecording()) {
+      synchronized (this) {
+        attributes.put(key, checkNotNull(value));
+      }
+    }
+    return this;
+  }
+
+  /** Sets a numeric attribute, such as a size in bytes. */
+  Span setAttribute(String key, long value) {
+    if (isRecording()) {
+      synchronized (this) {
+        attributes.put(key, value);
+      }
+    }
+    return this;
+  }
+
+  /** Marks the operation as failed. */
+  Span setError(String message) {
+    if (isRecording()) {
+      synchronized (this) {
+        error = true;
+        errorMessage = message;
+      }
+    }
+    return this;
+  }
+
+  /** Marks the operation as failed by the given exception. */
+  Span setError(Throwable t) {
+    return setError(String.valueOf(t));
+  }
+
+  /** Ends the span, exporting it if its trace was sampled. Only the first call has an effect. */
+  void end() {
+    if (!isRecording()) {
+      return;
+    }
+    synchronized (this) {
+      if (endEpochNanos != 0) {
+        return;
+      }
+      endEpochNanos = Math.max(tracer.nowEpochNanos(), startEpochNanos);
+    }
+    tracer.export(this);
+  }
+
+  /** Makes this the current span of the calling thread, until the scope is closed. */
+  Scope makeCurrent() {
+    return Tracing.makeCurrent(this);
+  }
+
+  /**
+   * Returns the W3C Trace Context {@code traceparent} header identifying this span, or null if
+   * tracing is disabled.
+   */
+  @Nullable
+  String getTraceparent() {
+    if (tracer == null) {
+      return null;
+    }
+    return String.format("00-%s-%s-%s", traceId, spanId, sampled ? "01" : "00");
+  }
+
+  boolean isRecording() {
+    return tracer != null && sampled;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getKind() {
+    return kind;
+  }
+
+  String getTraceId() {
+    return traceId;
+  }
+
+  String getSpanId() {
+    return spanId;
+  }
+
+  @Nullable
+  String getParentSpanId() {
+    return parentSpanId;
+  }
+
+  boolean isSampled() {
+    return sampled;
+  }
+
+  long getStartEpochNanos() {
+    return startEpochNanos;
+  }
+
+  synchronized long getEndEpochNanos() {
+    return endEpochNanos;
+  }
+
+  synchronized ImmutableMap<String, Object> getAttributes() {
+    return ImmutableMap.copyOf(attributes);
+  }
+
+  synchronized boolean isError() {
+    return error;
+  }
+
+  @Nullable
+  synchronized String getErrorMessage() {
+    return errorMessage;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("span %s (%s/%s)", name, traceId, spanId);
+  }
+}
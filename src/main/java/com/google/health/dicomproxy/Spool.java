@@ -0,0 +1,56 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.common.collect.ImmutableList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Local storage for received instances until they have been uploaded.
+ *
+ * <p>Instances are grouped into batches (currently one per association), which are handed to a
+ * {@link DicomUploader} once complete.
+ */
+interface Spool {
+  /**
+   * Starts writing a new instance. The instance only becomes part of its batch once {@link
+   * PendingInstance#commit} has been called.
+   *
+   * @param batchId identifies the batch the instance belongs to
+   * @param sopInstanceUid the SOP Instance UID of the instance
+   */
+  PendingInstance newInstance(String batchId, String sopInstanceUid) throws IOException;
+
+  /** Marks the batch as complete, returning all of the instances committed to it. */
+  SpoolBatch completeBatch(String batchId) throws IOException;
+
+  /** Called once a batch has been uploaded; the spool may then reclaim its storage. */
+  void release(SpoolBatch batch);
+
+  /**
+   * Called instead of {@link #completeBatch} for a batch which won't be completed, such as that of
+   * a failed association. Its instances won't be uploaded; the spool may free what it holds for
+   * them.
+   */
+  default void abandonBatch(String batchId) {}
+
+  /**
+   * Returns batches which were completed, but not released, before the proxy was last stopped. This
+   * should be called once, at startup.
+   */
+  ImmutableList<SpoolBatch> recoverBatches() throws IOException;
+
+  /** An instance being written to the spool. Closing it without committing discards it. */
+  interface PendingInstance extends Closeable {
+    /** Returns the stream to write the instance to, in DICOM Part 10 file format. */
+    OutputStream getOutputStream();
+
+    /** Adds the completely-written instance to its batch. */
+    SpooledInstance commit() throws IOException;
+  }
+}
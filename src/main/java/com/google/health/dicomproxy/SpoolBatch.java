@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import javax.annotation.Nullable;
+
+/** A group of spooled instances which are uploaded together. */
+final class SpoolBatch {
+  private final String id;
+  private final ImmutableList<SpooledInstance> instances;
+  private final ImmutableMap<String, InstanceMetadata> metadata;
+  private final Span span;
+
+  SpoolBatch(String id, ImmutableList<SpooledInstance> instances) {
+    this(id, instances, ImmutableMap.of(), Span.NOOP);
+  }
+
+  private SpoolBatch(
+      String id,
+      ImmutableList<SpooledInstance> instances,
+      ImmutableMap<String, InstanceMetadata> metadata,
+      Span span) {
+    this.id = checkNotNull(id);
+    this.instances = checkNotNull(instances);
+    this.metadata = checkNotNull(metadata);
+    this.span = checkNotNull(span);
+  }
+
+  /** Returns a copy of this batch, with the given metadata of its instances by SOP Instance UID. */
+  SpoolBatch withMetadata(ImmutableMap<String, InstanceMetadata> metadata) {
+    return new SpoolBatch(id, instances, metadata, span);
+  }
+
+  /** Returns a copy of this batch, whose upload is traced within the given span. */
+  SpoolBatch withSpan(Span span) {
+    return new SpoolBatch(id, instances, metadata, span);
+  }
+
+  String getId() {
+    return id;
+  }
+
+  ImmutableList<SpooledInstance> getInstances() {
+    return instances;
+  }
+
+  /**
+   * Returns the span of the association the batch was received on, or {@link Span#NOOP} if it's
+   * untraced, for example because it was left in the spool by an earlier run.
+   */
+  Span getSpan() {
+    return span;
+  }
+
+  /** Returns the metadata recorded for an instance when it was received, if known. */
+  @Nullable
+  InstanceMetadata getMetadata(String sopInstanceUid) {
+    return metadata.get(sopInstanceUid);
+  }
+
+  ImmutableList<String> getSopInstanceUids() {
+    return instances.stream()
+        .map(SpooledInstance::getSopInstanceUid)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("batch %s (%s instances)", id, instances.size());
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Compression of instances in the spool, so that disk-bound hosts write and read fewer bytes, and
+ * the same disk holds a longer backlog.
+ *
+ * <p>Instances are compressed as LZ4 frames of independent 64 KB blocks, one block at a time as
+ * they're received, and decompressed the same way as they're uploaded, so that neither takes an
+ * extra pass over the data or a temporary file.
+ *
+ * <p>Compressed instances are recognized by the LZ4 frame's magic number when they're read. The
+ * proxy writes a zeroed preamble at the start of every instance it stores uncompressed, so the two
+ * can't be confused, and the codec may be changed while the spool holds batches written with the
+ * other one.
+ */
+final class SpoolCodec {
+  /** Stores instances as received. */
+  static final SpoolCodec NONE = new SpoolCodec(false);
+  /** Compresses instances with LZ4. */
+  static final SpoolCodec LZ4 = new SpoolCodec(true);
+
+  /** Magic number at the start of every LZ4 frame, in little-endian byte order. */
+  private static final byte[] LZ4_FRAME_MAGIC = {0x04, 0x22, 0x4d, 0x18};
+
+  private final boolean compress;
+
+  private SpoolCodec(boolean compress) {
+    this.compress = compress;
+  }
+
+  /** Returns the codec named by a value of {@code ConfigKey.SPOOL_CODEC}. */
+  static SpoolCodec forName(String name) {
+    return name.equals(Configuration.SPOOL_CODEC_LZ4) ? LZ4 : NONE;
+  }
+
+  /**
+   * Returns a stream which writes an instance to {@code out}, compressing it if this codec does.
+   * Closing it finishes the instance and closes {@code out}.
+   */
+  OutputStream encode(OutputStream out) throws IOException {
+    if (!compress) {
+      return out;
+    }
+    return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+  }
+
+  /**
+   * Returns a stream which reads an instance from {@code in}, decompressing it if it was written
+   * compressed, whichever codec is configured now.
+   */
+  static InputStream decode(InputStream in) throws IOException {
+    PushbackInputStream pushbackIn = new PushbackInputStream(in, LZ4_FRAME_MAGIC.length);
+    byte[] magic = new byte[LZ4_FRAME_MAGIC.length];
+    int read = ByteStreams.read(pushbackIn, magic, 0, magic.length);
+    pushbackIn.unread(magic, 0, read);
+    if (read == magic.length && Arrays.equals(magic, LZ4_FRAME_MAGIC)) {
+      return new LZ4FrameInputStream(pushbackIn);
+    }
+    return pushbackIn;
+  }
+
+  @Override
+  public String toString() {
+    return compress ? Configuration.SPOOL_CODEC_LZ4 : Configuration.SPOOL_CODEC_NONE;
+  }
+}
@@ -0,0 +1,187 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy for forcing spooled data to stable storage before an instance is acknowledged.
+ *
+ * <p>A spool calls {@link #sync} once an instance has been written, and the C-STORE response is
+ * only sent once it returns. Depending on the policy, the data is then not synced at all, synced
+ * immediately, or synced together with the data of any other instances committed within the same
+ * group commit interval.
+ */
+abstract class SpoolDurability implements Closeable {
+  /** Something which can be forced to stable storage, such as an open file. */
+  interface Syncable {
+    void sync() throws IOException;
+  }
+
+  /** Returns a policy which never syncs; acknowledged instances may be lost on power failure. */
+  static SpoolDurability none() {
+    return new SpoolDurability() {
+      @Override
+      boolean isEnabled() {
+        return false;
+      }
+
+      @Override
+      void sync(Collection<? extends Syncable> syncables) {}
+    };
+  }
+
+  /** Returns a policy which syncs each instance as soon as it's committed. */
+  static SpoolDurability perInstance() {
+    return new SpoolDurability() {
+      @Override
+      boolean isEnabled() {
+        return true;
+      }
+
+      @Override
+      void sync(Collection<? extends Syncable> syncables) throws IOException {
+        for (Syncable syncable : syncables) {
+          syncable.sync();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a policy which syncs on a background thread once per interval, covering every instance
+   * committed since the previous sync. Callers block until the sync covering their instance has
+   * completed, so a single fsync of a file is shared by all of the associations writing to it.
+   */
+  static SpoolDurability groupCommit(Duration interval) {
+    checkArgument(
+        !interval.isNegative() && !interval.isZero(),
+        "Group commit interval must be positive: %s",
+        interval);
+    return new GroupCommit(interval);
+  }
+
+  /** Returns false if {@link #sync} never does anything, so callers needn't prepare for it. */
+  abstract boolean isEnabled();
+
+  /** Forces the given syncables to stable storage, as required by this policy. */
+  abstract void sync(Collection<? extends Syncable> syncables) throws IOException;
+
+  @Override
+  public void close() {}
+
+  /** Returns a syncable for a directory, which makes creating and renaming its entries durable. */
+  static Syncable directory(File directory) {
+    return () -> {
+      // Windows doesn't allow directories to be opened, and NTFS journals their entries itself.
+      if (File.separatorChar == '\\') {
+        return;
+      }
+      try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+        channel.force(true);
+      }
+    };
+  }
+
+  /** Syncs pending syncables periodically, waking up every caller whose syncable was included. */
+  private static final class GroupCommit extends SpoolDurability {
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("spool-group-commit").setDaemon(true).build());
+
+    /** Guards pending and group. */
+    private final Object lock = new Object();
+    /** Syncables added since the last sync; each is synced once, however often it was added. */
+    private Set<Syncable> pending = new LinkedHashSet<>();
+    /** Completed when the pending syncables have been synced. */
+    private CompletableFuture<Void> group = new CompletableFuture<>();
+
+    GroupCommit(Duration interval) {
+      long intervalMillis = interval.toMillis();
+      @SuppressWarnings("unused")
+      Future<?> unused =
+          executor.scheduleWithFixedDelay(
+              this::syncPending, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    boolean isEnabled() {
+      return true;
+    }
+
+    @Override
+    void sync(Collection<? extends Syncable> syncables) throws IOException {
+      if (syncables.isEmpty()) {
+        // Nothing would complete the group if nothing else is pending.
+        return;
+      }
+      CompletableFuture<Void> waitFor;
+      synchronized (lock) {
+        pending.addAll(syncables);
+        waitFor = group;
+      }
+
+      try {
+        waitFor.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for group commit");
+      } catch (ExecutionException e) {
+        throw new IOException("Group commit failed", e.getCause());
+      }
+    }
+
+    private void syncPending() {
+      ImmutableList<Syncable> toSync;
+      CompletableFuture<Void> completed;
+      synchronized (lock) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        toSync = ImmutableList.copyOf(pending);
+        completed = group;
+        pending = new LinkedHashSet<>();
+        group = new CompletableFuture<>();
+      }
+
+      try {
+        for (Syncable syncable : toSync) {
+          syncable.sync();
+        }
+        completed.complete(null);
+      } catch (IOException | RuntimeException e) {
+        Logging.error(e, "Error syncing spool");
+        completed.completeExceptionally(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      // Let any callers still waiting be released by a final sync.
+      executor.shutdown();
+      syncPending();
+    }
+  }
+}
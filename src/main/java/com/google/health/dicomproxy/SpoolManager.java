@@ -0,0 +1,288 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Spool which limits the disk space used by a {@link FileSpool}, and reclaims the space of batches
+ * which have been uploaded.
+ *
+ * <p>Uploaded batches are kept for a retention period, so that they can be sent again without being
+ * received again, and are deleted once it has passed. When the spool grows beyond nine tenths of
+ * its quota, uploaded batches are deleted early, in the order they were uploaded. Batches which
+ * haven't been uploaded are never deleted; once they fill the quota by themselves, new instances
+ * are refused with an Out of Resources status until uploads catch up.
+ *
+ * <p>The spool folder is scanned periodically on a background thread, and also as soon as space
+ * runs short. Files are deleted at a limited rate, so that cleanup doesn't compete with receiving
+ * and uploading for disk I/O.
+ */
+final class SpoolManager implements Spool {
+  private final Spool spool;
+  private final File folder;
+  private final long quotaBytes;
+  private final long evictionThresholdBytes;
+  private final Duration retention;
+  private final TokenBucket deleteRate;
+  private final Clock clock;
+  private final ScheduledExecutorService executor;
+
+  /** Size of the batches found by the last scan, less what it deleted. */
+  private final AtomicLong scannedBytes = new AtomicLong();
+  /** Size of the instances committed since the last scan started. */
+  private final AtomicLong committedBytes = new AtomicLong();
+  private final AtomicBoolean scanRequested = new AtomicBoolean();
+
+  /**
+   * @param spool spool which stores batches as folders of {@code folder}
+   * @param quotaBytes disk space the batches may take up; zero means unlimited
+   * @param retention how long uploaded batches are kept
+   * @param deleteRate limits the rate at which files are deleted
+   * @param executor single-threaded executor on which the folder is scanned
+   */
+  SpoolManager(
+      Spool spool,
+      File folder,
+      long quotaBytes,
+      Duration retention,
+      TokenBucket deleteRate,
+      Clock clock,
+      ScheduledExecutorService executor) {
+    checkArgument(quotaBytes >= 0, "Quota must not be negative: %s", quotaBytes);
+    checkArgument(!retention.isNegative(), "Retention must not be negative: %s", retention);
+    this.spool = checkNotNull(spool);
+    this.folder = checkNotNull(folder);
+    this.quotaBytes = quotaBytes;
+    this.evictionThresholdBytes = quotaBytes / 10 * 9;
+    this.retention = retention;
+    this.deleteRate = checkNotNull(deleteRate);
+    this.clock = checkNotNull(clock);
+    this.executor = checkNotNull(executor);
+  }
+
+  /** Scans the spool folder now, to find its size, and then at the given interval. */
+  void start(Duration scanInterval) {
+    @SuppressWarnings("unused")
+    Future<?> unused =
+        executor.scheduleWithFixedDelay(
+            this::scan, 0, scanInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts writing a new instance, unless the spool is full.
+   *
+   * @throws DicomServiceException with an Out of Resources status, if the spool is full
+   */
+  @Override
+  public PendingInstance newInstance(String batchId, String sopInstanceUid) throws IOException {
+    if (quotaBytes > 0 && getUsedBytes() >= quotaBytes) {
+      requestScan();
+      throw new DicomServiceException(
+          Status.OutOfResources,
+          String.format("Spool is full: %s bytes of %s used", getUsedBytes(), quotaBytes));
+    }
+    PendingInstance pending = spool.newInstance(batchId, sopInstanceUid);
+    return new PendingInstance() {
+      @Override
+      public OutputStream getOutputStream() {
+        return pending.getOutputStream();
+      }
+
+      @Override
+      public SpooledInstance commit() throws IOException {
+        SpooledInstance instance = pending.commit();
+        long used = scannedBytes.get() + committedBytes.addAndGet(instance.getLength());
+        if (quotaBytes > 0 && used > evictionThresholdBytes) {
+          requestScan();
+        }
+        return instance;
+      }
+
+      @Override
+      public void close() throws IOException {
+        pending.close();
+      }
+    };
+  }
+
+  @Override
+  public SpoolBatch completeBatch(String batchId) throws IOException {
+    return spool.completeBatch(batchId);
+  }
+
+  @Override
+  public void release(SpoolBatch batch) {
+    spool.release(batch);
+  }
+
+  @Override
+  public void abandonBatch(String batchId) {
+    spool.abandonBatch(batchId);
+  }
+
+  @Override
+  public ImmutableList<SpoolBatch> recoverBatches() throws IOException {
+    return spool.recoverBatches();
+  }
+
+  /** Returns the disk space used by batches, as of the last scan and the commits since. */
+  long getUsedBytes() {
+    return scannedBytes.get() + committedBytes.get();
+  }
+
+  private void requestScan() {
+    if (scanRequested.compareAndSet(false, true)) {
+      executor.execute(this::scan);
+    }
+  }
+
+  /**
+   * Finds the size of every batch, deleting the uploaded batches which have expired, and then as
+   * many of the others as needed, in the order they were uploaded, to bring the spool under the
+   * eviction threshold.
+   */
+  @VisibleForTesting
+  void scan() {
+    scanRequested.set(false);
+    // Instances committed from now on may or may not be counted by the scan. Counting them twice
+    // until the next scan errs on the side of refusing instances.
+    committedBytes.set(0);
+    try {
+      File[] batchFolders = folder.listFiles(SpoolManager::isBatchFolder);
+      if (batchFolders == null) {
+        Logging.error("Unable to list spool folder %s", folder);
+        return;
+      }
+
+      long totalBytes = 0;
+      List<UploadedBatch> uploaded = new ArrayList<>();
+      long expiry = clock.millis() - retention.toMillis();
+      for (File batchFolder : batchFolders) {
+        long bytes = sizeOf(batchFolder);
+        File marker = new File(batchFolder, FileSpool.UPLOADED_FILE);
+        long uploadedMillis = marker.lastModified();
+        if (uploadedMillis == 0) {
+          // Not uploaded yet, or the marker couldn't be read.
+          totalBytes += bytes;
+        } else if (uploadedMillis < expiry) {
+          if (!delete(batchFolder, "expired")) {
+            totalBytes += bytes;
+          }
+        } else {
+          totalBytes += bytes;
+          uploaded.add(new UploadedBatch(batchFolder, bytes, uploadedMillis));
+        }
+      }
+
+      if (quotaBytes > 0 && totalBytes > evictionThresholdBytes) {
+        uploaded.sort(Comparator.comparingLong(batch -> batch.uploadedMillis));
+        for (UploadedBatch batch : uploaded) {
+          if (totalBytes <= evictionThresholdBytes) {
+            break;
+          }
+          if (delete(batch.folder, "evicted")) {
+            totalBytes -= batch.bytes;
+          }
+        }
+        if (totalBytes > evictionThresholdBytes) {
+          Logging.error(
+              "Spool holds %s bytes of batches waiting to be uploaded, of a %s byte quota",
+              totalBytes, quotaBytes);
+        }
+      }
+      scannedBytes.set(totalBytes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      Logging.error(e, "Error scanning spool folder %s", folder);
+    }
+  }
+
+  /**
+   * Returns whether a folder holds a batch, rather than some other data kept in the temp folder.
+   * Batches are named by UUID.
+   */
+  private static boolean isBatchFolder(File file) {
+    if (!file.isDirectory()) {
+      return false;
+    }
+    try {
+      return UUID.fromString(file.getName()).toString().equals(file.getName());
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static long sizeOf(File batchFolder) {
+    File[] files = batchFolder.listFiles();
+    long bytes = 0;
+    if (files != null) {
+      for (File file : files) {
+        bytes += file.length();
+      }
+    }
+    return bytes;
+  }
+
+  /** Deletes a batch folder, pacing deletes by the delete rate. Returns whether it succeeded. */
+  private boolean delete(File batchFolder, String reason) throws InterruptedException {
+    File[] files = batchFolder.listFiles();
+    if (files == null) {
+      return false;
+    }
+    // The marker goes last, so that a partly-deleted batch is never mistaken for an unsent one.
+    File marker = new File(batchFolder, FileSpool.UPLOADED_FILE);
+    for (File file : files) {
+      if (!file.equals(marker)) {
+        deleteRate.acquire(1);
+        if (!file.delete() && file.exists()) {
+          Logging.error("Unable to delete %s", file);
+          return false;
+        }
+      }
+    }
+    deleteRate.acquire(1);
+    if (!marker.delete() || !batchFolder.delete()) {
+      Logging.error("Unable to delete %s", batchFolder);
+      return false;
+    }
+    Logging.info("Deleted %s batch %s from the spool", reason, batchFolder.getName());
+    return true;
+  }
+
+  private static final class UploadedBatch {
+    final File folder;
+    final long bytes;
+    final long uploadedMillis;
+
+    UploadedBatch(File folder, long bytes, long uploadedMillis) {
+      this.folder = folder;
+      this.bytes = bytes;
+      this.uploadedMillis = uploadedMillis;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An instance held in a {@link Spool}, in DICOM Part 10 file format, possibly compressed by a
+ * {@link SpoolCodec}.
+ */
+interface SpooledInstance {
+  String getSopInstanceUid();
+
+  /** Returns the size of the instance in the spool, in bytes, after any compression. */
+  long getLength();
+
+  /** Opens a stream for reading the instance as stored; see {@link SpoolCodec#decode}. */
+  InputStream openStream() throws IOException;
+}
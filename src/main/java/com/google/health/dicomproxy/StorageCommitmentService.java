@@ -0,0 +1,336 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.net.HostAndPort;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Storage Commitment Push Model SCP, which commits to instances once they've been uploaded.
+ *
+ * <p>Commitment requests (N-ACTION) are acknowledged at once, and tracked by a {@link
+ * StorageCommitmentTracker} until the upstream service has confirmed all of their instances. The
+ * results are then sent back to the modality as N-EVENT-REPORTs on a new association, as modalities
+ * rarely keep theirs open that long. Reports are sent periodically, in batches: all reports ready
+ * for a modality are sent over one association, which is kept open for the next batch as long as
+ * there are more reports for it.
+ */
+final class StorageCommitmentService extends AbstractDicomService {
+  /** Action and event types of the Storage Commitment Push Model. */
+  private static final int REQUEST_STORAGE_COMMITMENT = 1;
+
+  private static final int ALL_COMMITTED = 1;
+  private static final int SOME_FAILED = 2;
+
+  /** Number of batches in which a report is attempted before it's given up. */
+  private static final int MAX_REPORT_ATTEMPTS = 10;
+
+  private final StorageCommitmentTracker tracker;
+  private final ApplicationEntity applicationEntity;
+  private final ImmutableMap<String, HostAndPort> peers;
+  private final ScheduledExecutorService executor;
+
+  // Only used on the executor.
+  // Open associations, by the AE title of the modality; kept while there are reports for it.
+  private final Map<String, Association> associations = new HashMap<>();
+  // Reports which couldn't be sent yet, and how often they've been attempted.
+  private final Map<StorageCommitmentTracker.Commitment, Integer> unsent = new LinkedHashMap<>();
+
+  /**
+   * @param applicationEntity application entity from which reports are sent
+   * @param peers addresses of the modalities which may request storage commitment, by AE title
+   * @param executor executor on which reports are sent
+   */
+  StorageCommitmentService(
+      StorageCommitmentTracker tracker,
+      ApplicationEntity applicationEntity,
+      ImmutableMap<String, HostAndPort> peers,
+      ScheduledExecutorService executor) {
+    super(UID.StorageCommitmentPushModelSOPClass);
+    this.tracker = checkNotNull(tracker);
+    this.applicationEntity = checkNotNull(applicationEntity);
+    this.peers = checkNotNull(peers);
+    this.executor = checkNotNull(executor);
+  }
+
+  /**
+   * Parses the addresses of modalities, given as {@code <ae-title>=<host>:<port>} entries separated
+   * by commas.
+   *
+   * @throws IllegalArgumentException if the addresses aren't valid
+   */
+  static ImmutableMap<String, HostAndPort> parsePeers(String peers) {
+    ImmutableMap.Builder<String, HostAndPort> parsed = ImmutableMap.builder();
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(peers)) {
+      List<String> parts = Splitter.on('=').trimResults().splitToList(entry);
+      if (parts.size() != 2 || parts.get(0).isEmpty()) {
+        throw new IllegalArgumentException(
+            String.format("Expected <ae-title>=<host>:<port>: '%s'", entry));
+      }
+      HostAndPort address = HostAndPort.fromString(parts.get(1));
+      if (!address.hasPort()) {
+        throw new IllegalArgumentException(String.format("No port given for %s", parts.get(0)));
+      }
+      parsed.put(parts.get(0), address);
+    }
+    return parsed.build();
+  }
+
+  /** Starts sending reports, in batches, at the given interval. */
+  void start(Duration interval) {
+    @SuppressWarnings("unused")
+    Future<?> unused =
+        executor.scheduleWithFixedDelay(
+            this::sendReports, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  protected void onDimseRQ(
+      Association as, PresentationContext pc, Dimse dimse, Attributes rq, Attributes actionInfo)
+      throws IOException {
+    if (dimse != Dimse.N_ACTION_RQ) {
+      throw new DicomServiceException(Status.UnrecognizedOperation);
+    }
+    if (rq.getInt(Tag.ActionTypeID, 0) != REQUEST_STORAGE_COMMITMENT) {
+      throw new DicomServiceException(Status.NoSuchActionType)
+          .setErrorComment("Unsupported Action Type ID");
+    }
+    if (!peers.containsKey(as.getCallingAET())) {
+      // The results couldn't be sent back.
+      throw new DicomServiceException(Status.ProcessingFailure)
+          .setErrorComment("No address is configured for " + as.getCallingAET());
+    }
+    String transactionUid = actionInfo == null ? null : actionInfo.getString(Tag.TransactionUID);
+    Sequence referencedSops =
+        actionInfo == null ? null : actionInfo.getSequence(Tag.ReferencedSOPSequence);
+    if (transactionUid == null || referencedSops == null) {
+      throw new DicomServiceException(Status.MissingAttribute)
+          .setErrorComment("Missing Transaction UID or Referenced SOP Sequence");
+    }
+
+    // Instances referred to more than once are only committed once.
+    Map<String, String> sopClassesByInstance = new LinkedHashMap<>();
+    for (Attributes referencedSop : referencedSops) {
+      String sopInstanceUid = referencedSop.getString(Tag.ReferencedSOPInstanceUID);
+      String sopClassUid = referencedSop.getString(Tag.ReferencedSOPClassUID);
+      if (sopInstanceUid == null || sopClassUid == null) {
+        throw new DicomServiceException(Status.MissingAttribute)
+            .setErrorComment("Missing Referenced SOP Instance or Class UID");
+      }
+      sopClassesByInstance.put(sopInstanceUid, sopClassUid);
+    }
+
+    tracker.request(
+        as.getCallingAET(),
+        as.getCalledAET(),
+        transactionUid,
+        ImmutableMap.copyOf(sopClassesByInstance));
+    Logging.info(
+        "Storage commitment %s requested by %s for %s instances",
+        transactionUid, as.getCallingAET(), sopClassesByInstance.size());
+    as.writeDimseRSP(pc, Commands.mkNActionRSP(rq, Status.Success), null);
+  }
+
+  /** Sends the reports which are ready, grouped by modality. */
+  private void sendReports() {
+    for (StorageCommitmentTracker.Commitment commitment : tracker.takeReady()) {
+      unsent.put(commitment, 0);
+    }
+    ListMultimap<String, StorageCommitmentTracker.Commitment> byRequestor =
+        LinkedListMultimap.create();
+    for (StorageCommitmentTracker.Commitment commitment : unsent.keySet()) {
+      byRequestor.put(commitment.getRequestorAet(), commitment);
+    }
+
+    for (String requestorAet : byRequestor.keySet()) {
+      List<StorageCommitmentTracker.Commitment> commitments = byRequestor.get(requestorAet);
+      HostAndPort address = peers.get(requestorAet);
+      if (address == null) {
+        Logging.error(
+            "No address is configured for %s; can't report storage commitments %s",
+            requestorAet, commitments);
+        commitments.forEach(unsent::remove);
+        continue;
+      }
+      try {
+        Association as =
+            associationFor(requestorAet, commitments.get(0).getLocalAet(), address);
+        for (StorageCommitmentTracker.Commitment commitment : commitments) {
+          sendReport(as, commitment);
+          unsent.remove(commitment);
+        }
+      } catch (IOException
+          | InterruptedException
+          | IncompatibleConnectionException
+          | GeneralSecurityException
+          | RuntimeException e) {
+        // Later reports would be cancelled by a RuntimeException escaping the task.
+        Logging.error(e, "Unable to report storage commitments to %s", requestorAet);
+        closeAssociation(requestorAet, /* abort= */ true);
+        if (e instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+    giveUpOnFailedReports();
+
+    // Associations which weren't needed for this batch are closed, rather than kept idle.
+    Set<String> idle = new HashSet<>(associations.keySet());
+    idle.removeAll(byRequestor.keySet());
+    for (String requestorAet : idle) {
+      closeAssociation(requestorAet, /* abort= */ false);
+    }
+  }
+
+  private void giveUpOnFailedReports() {
+    for (Iterator<Map.Entry<StorageCommitmentTracker.Commitment, Integer>> it =
+            unsent.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<StorageCommitmentTracker.Commitment, Integer> entry = it.next();
+      int attempts = entry.getValue() + 1;
+      if (attempts >= MAX_REPORT_ATTEMPTS) {
+        Logging.error("Giving up on reporting storage commitment %s", entry.getKey());
+        it.remove();
+      } else {
+        entry.setValue(attempts);
+      }
+    }
+  }
+
+  /** Returns an open association with the modality, reusing the previous one if possible. */
+  private Association associationFor(String requestorAet, String localAet, HostAndPort address)
+      throws IOException, InterruptedException, IncompatibleConnectionException,
+          GeneralSecurityException {
+    Association as = associations.get(requestorAet);
+    if (as != null && as.isReadyForDataTransfer()) {
+      return as;
+    }
+    AAssociateRQ rq = new AAssociateRQ();
+    rq.setCallingAET(localAet);
+    rq.setCalledAET(requestorAet);
+    rq.addPresentationContext(
+        new PresentationContext(
+            1, UID.StorageCommitmentPushModelSOPClass, UID.ImplicitVRLittleEndian));
+    // The proxy initiates the association, but remains the SCP of Storage Commitment.
+    rq.addRoleSelection(
+        new RoleSelection(
+            UID.StorageCommitmentPushModelSOPClass, /* scu= */ false, /* scp= */ true));
+    as =
+        applicationEntity.connect(
+            new Connection(null, address.getHost(), address.getPort()), rq);
+    associations.put(requestorAet, as);
+    return as;
+  }
+
+  private static void sendReport(Association as, StorageCommitmentTracker.Commitment commitment)
+      throws IOException, InterruptedException {
+    int eventTypeId = commitment.getFailed().isEmpty() ? ALL_COMMITTED : SOME_FAILED;
+    DimseRSP rsp =
+        as.neventReport(
+            UID.StorageCommitmentPushModelSOPClass,
+            UID.StorageCommitmentPushModelSOPInstance,
+            eventTypeId,
+            eventInformation(commitment),
+            UID.ImplicitVRLittleEndian);
+    rsp.next();
+    int status = rsp.getCommand().getInt(Tag.Status, -1);
+    if (status != Status.Success) {
+      throw new IOException(
+          String.format("Report of %s was answered with status %04X", commitment, status));
+    }
+    Logging.info(
+        "Reported storage commitment %s: %s committed, %s failed",
+        commitment.getTransactionUid(),
+        commitment.getCommitted().size(),
+        commitment.getFailed().size());
+  }
+
+  private static Attributes eventInformation(StorageCommitmentTracker.Commitment commitment) {
+    ImmutableMap<String, String> committed = commitment.getCommitted();
+    ImmutableMap<String, String> failed = commitment.getFailed();
+    Attributes eventInfo = new Attributes(3);
+    eventInfo.setString(Tag.TransactionUID, VR.UI, commitment.getTransactionUid());
+    if (!committed.isEmpty()) {
+      Sequence committedSops = eventInfo.newSequence(Tag.ReferencedSOPSequence, committed.size());
+      for (Map.Entry<String, String> instance : committed.entrySet()) {
+        committedSops.add(referencedSop(instance.getKey(), instance.getValue(), null));
+      }
+    }
+    if (!failed.isEmpty()) {
+      Sequence failedSops = eventInfo.newSequence(Tag.FailedSOPSequence, failed.size());
+      for (Map.Entry<String, String> instance : failed.entrySet()) {
+        failedSops.add(
+            referencedSop(instance.getKey(), instance.getValue(), Status.ProcessingFailure));
+      }
+    }
+    return eventInfo;
+  }
+
+  private static Attributes referencedSop(
+      String sopInstanceUid, String sopClassUid, @Nullable Integer failureReason) {
+    Attributes referencedSop = new Attributes(3);
+    referencedSop.setString(Tag.ReferencedSOPClassUID, VR.UI, sopClassUid);
+    referencedSop.setString(Tag.ReferencedSOPInstanceUID, VR.UI, sopInstanceUid);
+    if (failureReason != null) {
+      referencedSop.setInt(Tag.FailureReason, VR.US, failureReason);
+    }
+    return referencedSop;
+  }
+
+  private void closeAssociation(String requestorAet, boolean abort) {
+    Association as = associations.remove(requestorAet);
+    if (as == null) {
+      return;
+    }
+    if (abort) {
+      as.abort();
+      return;
+    }
+    try {
+      as.release();
+    } catch (IOException e) {
+      Logging.error(e, "Unable to release association with %s", requestorAet);
+    }
+  }
+}
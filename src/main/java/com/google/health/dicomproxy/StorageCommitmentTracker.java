@@ -0,0 +1,244 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Tracks storage commitment requests until every instance they refer to has been uploaded, or has
+ * failed to upload.
+ *
+ * <p>An instance is committed once the upstream service has confirmed it. Instances are often
+ * uploaded before their commitment is requested, so the outcomes of recent uploads are remembered,
+ * and instances which the proxy acknowledged as duplicates are looked up in the dedupe index.
+ * Commitments which aren't complete within the timeout report their remaining instances as failed,
+ * so that the modality sends them again.
+ */
+final class StorageCommitmentTracker implements UploadListener {
+  private final Predicate<String> alreadyUploaded;
+  private final int recentOutcomesCapacity;
+  private final long timeoutNanos;
+  private final Ticker ticker;
+
+  // All guarded by this.
+  // Outcomes of recent uploads, by SOP Instance UID; true if the upload succeeded.
+  private final LinkedHashMap<String, Boolean> recentOutcomes;
+  // Incomplete commitments, oldest first, and the instances they're waiting for.
+  private final Set<Commitment> pending = new LinkedHashSet<>();
+  private final ListMultimap<String, Commitment> waitingByInstance = ArrayListMultimap.create();
+  private final List<Commitment> complete = new ArrayList<>();
+
+  /**
+   * @param alreadyUploaded tells whether an instance is known to have been uploaded before, such as
+   *     by the dedupe index
+   * @param recentOutcomesCapacity number of recent upload outcomes to remember
+   * @param timeout how long a commitment may wait for its instances to be uploaded
+   */
+  StorageCommitmentTracker(
+      Predicate<String> alreadyUploaded,
+      int recentOutcomesCapacity,
+      Duration timeout,
+      Ticker ticker) {
+    checkArgument(recentOutcomesCapacity > 0, "recentOutcomesCapacity must be positive");
+    this.alreadyUploaded = checkNotNull(alreadyUploaded);
+    this.recentOutcomesCapacity = recentOutcomesCapacity;
+    this.timeoutNanos = timeout.toNanos();
+    this.ticker = checkNotNull(ticker);
+    this.recentOutcomes =
+        new LinkedHashMap<String, Boolean>() {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > StorageCommitmentTracker.this.recentOutcomesCapacity;
+          }
+        };
+  }
+
+  /**
+   * Starts tracking a commitment request.
+   *
+   * @param requestorAet AE title of the modality which requested the commitment
+   * @param localAet AE title the modality addressed the request to
+   * @param sopClassesByInstance SOP Class UIDs of the instances to commit, by SOP Instance UID
+   */
+  synchronized void request(
+      String requestorAet,
+      String localAet,
+      String transactionUid,
+      ImmutableMap<String, String> sopClassesByInstance) {
+    Commitment commitment =
+        new Commitment(
+            requestorAet,
+            localAet,
+            transactionUid,
+            sopClassesByInstance,
+            ticker.read() + timeoutNanos);
+    for (String sopInstanceUid : sopClassesByInstance.keySet()) {
+      Boolean outcome = recentOutcomes.get(sopInstanceUid);
+      if (outcome == null && alreadyUploaded.test(sopInstanceUid)) {
+        outcome = true;
+      }
+      if (outcome != null) {
+        commitment.resolve(sopInstanceUid, outcome);
+      } else {
+        waitingByInstance.put(sopInstanceUid, commitment);
+      }
+    }
+    if (commitment.isComplete()) {
+      complete.add(commitment);
+    } else {
+      pending.add(commitment);
+    }
+  }
+
+  @Override
+  public synchronized void onUploadSucceeded(SpoolBatch batch) {
+    resolve(batch, true);
+  }
+
+  @Override
+  public synchronized void onUploadFailed(SpoolBatch batch) {
+    resolve(batch, false);
+  }
+
+  /**
+   * Returns the commitments which are ready to be reported: those whose instances have all been
+   * resolved, and those which have timed out, with their remaining instances failed.
+   */
+  synchronized ImmutableList<Commitment> takeReady() {
+    long now = ticker.read();
+    for (Iterator<Commitment> it = pending.iterator(); it.hasNext(); ) {
+      Commitment commitment = it.next();
+      if (now - commitment.deadlineNanos < 0) {
+        // Later commitments have later deadlines.
+        break;
+      }
+      it.remove();
+      for (String sopInstanceUid : commitment.getUnresolved()) {
+        waitingByInstance.remove(sopInstanceUid, commitment);
+        commitment.resolve(sopInstanceUid, false);
+      }
+      Logging.info("Storage commitment %s timed out", commitment);
+      complete.add(commitment);
+    }
+    ImmutableList<Commitment> ready = ImmutableList.copyOf(complete);
+    complete.clear();
+    return ready;
+  }
+
+  /** Returns the number of commitments which are still waiting for uploads. */
+  synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  private void resolve(SpoolBatch batch, boolean succeeded) {
+    for (String sopInstanceUid : batch.getSopInstanceUids()) {
+      recentOutcomes.put(sopInstanceUid, succeeded);
+      for (Commitment commitment : waitingByInstance.removeAll(sopInstanceUid)) {
+        commitment.resolve(sopInstanceUid, succeeded);
+        if (commitment.isComplete() && pending.remove(commitment)) {
+          complete.add(commitment);
+        }
+      }
+    }
+  }
+
+  /** A storage commitment request, and which of its instances have been committed so far. */
+  static final class Commitment {
+    private final String requestorAet;
+    private final String localAet;
+    private final String transactionUid;
+    private final ImmutableMap<String, String> sopClassesByInstance;
+    private final long deadlineNanos;
+    // Outcomes by SOP Instance UID; guarded by the tracker.
+    private final Map<String, Boolean> outcomes = new LinkedHashMap<>();
+
+    private Commitment(
+        String requestorAet,
+        String localAet,
+        String transactionUid,
+        ImmutableMap<String, String> sopClassesByInstance,
+        long deadlineNanos) {
+      this.requestorAet = checkNotNull(requestorAet);
+      this.localAet = checkNotNull(localAet);
+      this.transactionUid = checkNotNull(transactionUid);
+      this.sopClassesByInstance = checkNotNull(sopClassesByInstance);
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    String getRequestorAet() {
+      return requestorAet;
+    }
+
+    String getLocalAet() {
+      return localAet;
+    }
+
+    String getTransactionUid() {
+      return transactionUid;
+    }
+
+    /** Returns the SOP Class UIDs of the committed instances, by SOP Instance UID. */
+    ImmutableMap<String, String> getCommitted() {
+      return filter(true);
+    }
+
+    /** Returns the SOP Class UIDs of the instances which couldn't be committed. */
+    ImmutableMap<String, String> getFailed() {
+      return filter(false);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s from %s (%s of %s instances resolved)",
+          transactionUid, requestorAet, outcomes.size(), sopClassesByInstance.size());
+    }
+
+    private void resolve(String sopInstanceUid, boolean committed) {
+      outcomes.putIfAbsent(sopInstanceUid, committed);
+    }
+
+    private boolean isComplete() {
+      return outcomes.size() == sopClassesByInstance.size();
+    }
+
+    private ImmutableList<String> getUnresolved() {
+      ImmutableList.Builder<String> unresolved = ImmutableList.builder();
+      for (String sopInstanceUid : sopClassesByInstance.keySet()) {
+        if (!outcomes.containsKey(sopInstanceUid)) {
+          unresolved.add(sopInstanceUid);
+        }
+      }
+      return unresolved.build();
+    }
+
+    private ImmutableMap<String, String> filter(boolean committed) {
+      ImmutableMap.Builder<String, String> filtered = ImmutableMap.builder();
+      for (Map.Entry<String, String> entry : sopClassesByInstance.entrySet()) {
+        if (Boolean.valueOf(committed).equals(outcomes.get(entry.getKey()))) {
+          filtered.put(entry.getKey(), entry.getValue());
+        }
+      }
+      return filtered.build();
+    }
+  }
+}
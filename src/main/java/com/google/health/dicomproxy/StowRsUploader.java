@@ -14,27 +14,41 @@ import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Ticker;
 import com.google.health.dicomproxy.Configuration.ConfigKey;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.dcm4che3.util.StreamUtils;
 
 /**
  * Uploader of DICOM data via STOW-RS.
  *
- * <p>TODO: Add better error handling, retry with backoff, cleanups, multiple simultaneous uploads,
- * etc.
+ * <p>Batches are queued, and uploaded concurrently up to a limit which adapts to the capacity of
+ * the upstream service (see {@link AimdConcurrencyLimit}). Batches which the upstream throttles are
+ * retried once the delay it asks for with Retry-After has passed; until then, no other uploads are
+ * started either. Batches whose upload times out or fails with a server error are retried the same
+ * way, after a delay which doubles with each retry, up to {@link #MAX_ERROR_RETRIES} times.
+ *
+ * <p>Each batch's time in the queue, its upload request and the streaming of each of its instances
+ * are traced within the batch's span, and the request identifies its span upstream.
  */
 final class StowRsUploader implements DicomUploader {
 
@@ -42,50 +56,187 @@ final class StowRsUploader implements DicomUploader {
   private static final String REQUEST_PART_CONTENT_TYPE = "application/dicom";
   private static final String RESPONSE_CONTENT_TYPE = "application/dicom+xml";
 
+  /** Latencies are normalized per this many bytes, so that large batches aren't seen as slow. */
+  private static final long LATENCY_UNIT_BYTES = 1024 * 1024;
+
+  /** Delay before the first retry of a batch which timed out or failed with a server error. */
+  private static final Duration MIN_ERROR_RETRY_DELAY = Duration.ofSeconds(5);
+  /** Batches which time out or fail with a server error more often than this are failed. */
+  private static final int MAX_ERROR_RETRIES = 5;
+
   private final ExecutorService uploadExecutor;
+  private final ScheduledExecutorService retryExecutor;
   private final HttpRequestFactory requestFactory;
+  private final AimdConcurrencyLimit concurrencyLimit;
+  private final Ticker ticker;
+  private final Clock clock;
+  private final List<UploadListener> uploadListeners = new CopyOnWriteArrayList<>();
+
+  /** Guards the mutable state below. */
+  private final Object lock = new Object();
+
+  /** Batches waiting to be uploaded, in order. */
+  private final Deque<SpoolBatch> queue = new ArrayDeque<>();
+  /** Spans of the time queued batches have waited so far. */
+  private final Map<SpoolBatch, Span> queueSpans = new IdentityHashMap<>();
+  /** Number of times each batch has been retried after a timeout or server error so far. */
+  private final Map<SpoolBatch, Integer> errorRetries = new IdentityHashMap<>();
+  private int inFlight = 0;
+  /** Ticker value before which no uploads are started, if pausedForRetry is set. */
+  private long retryAtNanos;
+  private boolean pausedForRetry = false;
 
   StowRsUploader() {
     this(
         Executors.newFixedThreadPool(/* nThreads=*/ ConfigKey.UPLOAD_PARALLELISM.getInt()),
-        new NetHttpTransport().createRequestFactory(Credentials.getServiceAccountCredentials()));
+        Executors.newSingleThreadScheduledExecutor(),
+        new NetHttpTransport()
+            .createRequestFactory(
+                DestinationRateLimiter.forUri(ConfigKey.UPLOAD_URI.getString())
+                    .wrap(Credentials.getServiceAccountCredentials())),
+        new AimdConcurrencyLimit(
+            ConfigKey.UPLOAD_MIN_PARALLELISM.getInt(),
+            ConfigKey.UPLOAD_PARALLELISM.getInt(),
+            Ticker.systemTicker()),
+        Ticker.systemTicker(),
+        Clock.systemUTC());
   }
 
-  StowRsUploader(ExecutorService uploadExecutor, HttpRequestFactory requestFactory) {
+  StowRsUploader(
+      ExecutorService uploadExecutor,
+      ScheduledExecutorService retryExecutor,
+      HttpRequestFactory requestFactory,
+      AimdConcurrencyLimit concurrencyLimit,
+      Ticker ticker,
+      Clock clock) {
     this.uploadExecutor = checkNotNull(uploadExecutor);
+    this.retryExecutor = checkNotNull(retryExecutor);
     this.requestFactory = checkNotNull(requestFactory);
+    this.concurrencyLimit = checkNotNull(concurrencyLimit);
+    this.ticker = checkNotNull(ticker);
+    this.clock = checkNotNull(clock);
   }
 
   @Override
-  public void uploadDirectory(File toUpload) {
-    // TODO: rename folder (or otherwise flag) before beginning uploads, so we can track what was
-    // completely stored vs. what was aborted.
+  public void upload(SpoolBatch toUpload) {
     Logging.info("Preparing to upload %s", toUpload);
+    synchronized (lock) {
+      queue.addLast(toUpload);
+      queueSpans.put(toUpload, toUpload.getSpan().startChild("upload.queue"));
+    }
+    dispatch();
+  }
+
+  /** Starts uploading queued batches, as far as the concurrency limit allows. */
+  private void dispatch() {
+    synchronized (lock) {
+      if (pausedForRetry && ticker.read() - retryAtNanos < 0) {
+        // A dispatch is scheduled for when the pause ends.
+        return;
+      }
+      pausedForRetry = false;
+
+      while (!queue.isEmpty() && inFlight < concurrencyLimit.getLimit()) {
+        SpoolBatch batch = queue.pollFirst();
+        Span queueSpan = queueSpans.remove(batch);
+        if (queueSpan != null) {
+          queueSpan.end();
+        }
+        inFlight++;
+        // ErrorProne requires Futures to be assigned to a variable; we don't care about the result
+        // here.
+        @SuppressWarnings("unused")
+        Future<?> unused = uploadExecutor.submit(() -> performUpload(batch));
+      }
+    }
+  }
+
+  /** Puts a throttled batch back at the head of the queue, pausing uploads for the delay. */
+  private void retryAfter(SpoolBatch batch, Duration delay) {
+    synchronized (lock) {
+      queue.addFirst(batch);
+      queueSpans.put(
+          batch,
+          batch
+              .getSpan()
+              .startChild("upload.queue")
+              .setAttribute("upload.retry_delay_ms", delay.toMillis()));
+      long retryAt = ticker.read() + delay.toNanos();
+      if (!pausedForRetry || retryAt - retryAtNanos > 0) {
+        retryAtNanos = retryAt;
+      }
+      pausedForRetry = true;
+    }
 
-    // ErrorProne requires Futures to be assigned to a variable; we don't care about the result
-    // here.
     @SuppressWarnings("unused")
-    Future<?> unused = uploadExecutor.submit(() -> performUpload(toUpload));
+    Future<?> unused =
+        retryExecutor.schedule(this::dispatch, delay.toNanos(), TimeUnit.NANOSECONDS);
   }
 
-  private void performUpload(File toUpload) {
-    try {
+  /**
+   * Retries a batch which timed out or failed with a server error, which may be transient, after a
+   * delay which doubles with each retry. Fails the batch once it has been retried too often.
+   */
+  private void retryAfterError(SpoolBatch batch) {
+    int retries;
+    synchronized (lock) {
+      retries = errorRetries.merge(batch, 1, Integer::sum);
+    }
+    if (retries > MAX_ERROR_RETRIES) {
+      Logging.error("Giving up on %s after %s retries", batch, MAX_ERROR_RETRIES);
+      notifyListeners(batch, false);
+      return;
+    }
+    Duration delay = MIN_ERROR_RETRY_DELAY.multipliedBy(1L << (retries - 1));
+    Logging.info("Retrying upload of %s in %s ms", batch, delay.toMillis());
+    retryAfter(batch, delay);
+  }
+
+  @Override
+  public void addUploadListener(UploadListener listener) {
+    uploadListeners.add(checkNotNull(listener));
+  }
+
+  private void performUpload(SpoolBatch toUpload) {
+    long startNanos = ticker.read();
+    FlightEvents.StowRsRequest event = new FlightEvents.StowRsRequest();
+    event.begin();
+    try (Span.Scope scope = toUpload.getSpan().makeCurrent()) {
       GenericUrl uploadUrl = new GenericUrl(ConfigKey.UPLOAD_URI.getString());
-      HttpRequest postRequest =
-          requestFactory.buildPostRequest(uploadUrl, new StowRsContent(toUpload));
+      StowRsContent content = new StowRsContent(toUpload);
+      HttpRequest postRequest = requestFactory.buildPostRequest(uploadUrl, content);
       postRequest.getHeaders().setAccept(RESPONSE_CONTENT_TYPE);
       // Increase client-side read-timeout to 10 minutes (default is 20s).
       postRequest.setReadTimeout(600_000);
+      // Error statuses are handled in processResponse.
+      postRequest.setThrowExceptionOnExecuteError(false);
 
-      HttpResponse response = postRequest.execute();
-      processResponse(toUpload, response);
+      HttpResponse response = Tracing.execute(postRequest, "stow-rs.upload");
+      event.statusCode = response.getStatusCode();
+      processResponse(toUpload, response, startNanos);
+    } catch (SocketTimeoutException e) {
+      concurrencyLimit.onOverload(startNanos);
+      Logging.error(e, "Timed out uploading %s", toUpload);
+      retryAfterError(toUpload);
     } catch (Throwable e) {
-      // TODO: add more robust error handling, e.g. retries.
       Logging.error(e, "Error performing upload of %s", toUpload);
+      notifyListeners(toUpload, false);
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.batchId = toUpload.getId();
+        event.instances = toUpload.getInstances().size();
+        event.bytes = toUpload.getInstances().stream().mapToLong(SpooledInstance::getLength).sum();
+        event.commit();
+      }
+      synchronized (lock) {
+        inFlight--;
+      }
+      dispatch();
     }
   }
 
-  private void processResponse(File parentFolder, HttpResponse response) {
+  private void processResponse(SpoolBatch batch, HttpResponse response, long startNanos) {
     String responseText = null;
     try {
       responseText = response.parseAsString();
@@ -93,39 +244,71 @@ final class StowRsUploader implements DicomUploader {
       Logging.error(e, "Error extracting response body");
     }
 
-    if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_OK) {
+    if (RetryAfter.isThrottled(response.getStatusCode())) {
+      concurrencyLimit.onOverload(startNanos);
+      Duration delay = RetryAfter.fromResponse(response, clock).orElse(RetryAfter.DEFAULT_DELAY);
+      Logging.info(
+          "Upload of %s was throttled with status %s; retrying in %s ms",
+          batch, response.getStatusCode(), delay.toMillis());
+      retryAfter(batch, delay);
+    } else if (response.getStatusCode() >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR) {
       Logging.error(
           "Error uploading %s - received status %s: %s",
-          parentFolder, response.getStatusCode(), responseText);
+          batch, response.getStatusCode(), responseText);
+      retryAfterError(batch);
+    } else if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_OK) {
+      Logging.error(
+          "Error uploading %s - received status %s: %s",
+          batch, response.getStatusCode(), responseText);
+      notifyListeners(batch, false);
     } else {
-      Logging.info("Successfully uploaded %s:\n%s", parentFolder, responseText);
+      long latencyNanos = ticker.read() - startNanos;
+      long bytes = batch.getInstances().stream().mapToLong(SpooledInstance::getLength).sum();
+      concurrencyLimit.onSuccess(
+          startNanos, latencyNanos / Math.max(1, bytes / LATENCY_UNIT_BYTES));
+      Logging.info("Successfully uploaded %s:\n%s", batch, responseText);
       // TODO: Parse result as XML-DICOM and verify no upload issues occurred.
-      // TODO: Clean up temp folder after successful upload.
+      notifyListeners(batch, true);
+    }
+  }
+
+  private void notifyListeners(SpoolBatch batch, boolean succeeded) {
+    synchronized (lock) {
+      errorRetries.remove(batch);
+    }
+    for (UploadListener listener : uploadListeners) {
+      try {
+        if (succeeded) {
+          listener.onUploadSucceeded(batch);
+        } else {
+          listener.onUploadFailed(batch);
+        }
+      } catch (RuntimeException e) {
+        Logging.error(e, "Error notifying upload listener for %s", batch);
+      }
     }
   }
 
   /** Content provider for uploads. */
   private static final class StowRsContent implements HttpContent {
 
-    private final List<File> files;
+    private final SpoolBatch batch;
+    private final List<SpooledInstance> instances;
 
     /** Multipart boundary. This intentionally is different per-request. */
     private final String boundary = UUID.randomUUID().toString();
 
-    StowRsContent(File parentFolder) {
-      File[] fileArr =
-          checkNotNull(
-              parentFolder.listFiles(),
-              "Parent folder for upload does not exist: %s",
-              parentFolder);
-      // Filter out any subdirectories which might have gotten in there through mysterious means.
-      files = Arrays.stream(fileArr).filter(File::isFile).collect(ImmutableList.toImmutableList());
+    StowRsContent(SpoolBatch batch) {
+      this.batch = batch;
+      instances = batch.getInstances();
     }
 
     /**
      * {@inheritDoc}
      *
-     * <p>Writes the files as an HTTP multipart stream.
+     * <p>Writes the files as an HTTP multipart stream. Instances whose size and checksum were
+     * recorded when they were received are verified as they're streamed; if one doesn't match, the
+     * upload fails rather than sending corrupt data.
      *
      * <p>See <a href="https://www.w3.org/Protocols/rfc1341/7_2_Multipart.html">RFC-1341, Section
      * 7.2</a> for details on the multipart format.
@@ -135,17 +318,37 @@ final class StowRsUploader implements DicomUploader {
       // DataOutput provides convenience methods for writing entire byte arrays.
       DataOutputStream dataOut = new DataOutputStream(out);
 
-      for (int i = 0; i < files.size(); i++) {
-        File f = files.get(i);
+      for (int i = 0; i < instances.size(); i++) {
+        SpooledInstance instance = instances.get(i);
 
-        Logging.info("Uploading file %s of %s: %s", i + 1, files.size(), f);
+        Logging.info("Uploading instance %s of %s: %s", i + 1, instances.size(), instance);
+        FlightEvents.MultipartPartWrite event = new FlightEvents.MultipartPartWrite();
+        event.begin();
+        // The content is written while the request executes, within its span.
+        Span span =
+            Tracing.startSpan("stow-rs.instance")
+                .setAttribute("dicom.sop_instance_uid", instance.getSopInstanceUid())
+                .setAttribute("dicom.bytes", instance.getLength());
         // Boundary before a new part is just '--boundary'.
         dataOut.writeBytes("\r\n--" + boundary + "\r\n");
         dataOut.writeBytes("Content-Type: " + REQUEST_PART_CONTENT_TYPE + "\r\n");
         dataOut.writeBytes("\r\n");
 
-        try (FileInputStream fis = new FileInputStream(f)) {
-          StreamUtils.copy(fis, dataOut);
+        InstanceMetadata metadata = batch.getMetadata(instance.getSopInstanceUid());
+        try (InputStream decoded = SpoolCodec.decode(instance.openStream());
+            InputStream in = metadata == null ? decoded : metadata.verifying(decoded)) {
+          StreamUtils.copy(in, dataOut);
+        } catch (IOException | RuntimeException e) {
+          span.setError(e);
+          throw e;
+        } finally {
+          span.end();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+          event.sopInstanceUid = instance.getSopInstanceUid();
+          event.bytes = instance.getLength();
+          event.commit();
         }
       }
 
@@ -0,0 +1,133 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicQueryTask;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * C-FIND task which performs an upstream query, passing each result on to the peer as it's parsed.
+ *
+ * <p>A C-CANCEL aborts the upstream query, even if it's still being read. The number of matches may
+ * be limited; the query asks upstream for one match more, so that the task can tell whether matches
+ * were left out, and if so, the upstream query is aborted and the final response is a warning.
+ */
+final class StreamingQueryTask extends BasicQueryTask {
+
+  /**
+   * Status of the final response to a query whose matches were cut short by its limit. It's a
+   * warning (class Bxxx in PS3.7 Annex C), so the peer shows the matches it received.
+   */
+  static final int STATUS_MATCHES_TRUNCATED = 0xB000;
+
+  /** An upstream query, such as {@link WorklistClient#searchWorkitems}. */
+  interface Search {
+    /**
+     * Performs the query, passing each result to the handler as soon as it's parsed.
+     *
+     * @param limit maximum number of results to ask upstream for, or zero for no limit
+     * @throws DicomServiceException if the query failed, or the handler did
+     */
+    void search(
+        Attributes keys,
+        int limit,
+        Cancellation cancellation,
+        WorklistClient.ResultHandler handler)
+        throws DicomServiceException;
+  }
+
+  private final Search search;
+  // Zero if unlimited.
+  private final int maxMatches;
+  private final Cancellation cancellation = new Cancellation();
+
+  // Only accessed by the thread running the query.
+  private int matches = 0;
+  private boolean truncated = false;
+
+  StreamingQueryTask(
+      Association as,
+      PresentationContext pc,
+      Attributes rq,
+      Attributes keys,
+      Search search,
+      int maxMatches) {
+    super(as, pc, rq, keys);
+    this.search = checkNotNull(search);
+    this.maxMatches = maxMatches;
+  }
+
+  @Override
+  public void run() {
+    int msgId = rq.getInt(Tag.MessageID, -1);
+    try {
+      try {
+        int limit = maxMatches > 0 ? maxMatches + 1 : 0;
+        search.search(keys, limit, cancellation, this::writeMatch);
+        as.writeDimseRSP(pc, mkFinalRSP());
+      } catch (DicomServiceException e) {
+        Logging.error(e, "Query from %s failed", as.getCallingAET());
+        as.writeDimseRSP(
+            pc, e.mkRSP(Dimse.C_FIND_RQ.commandFieldOfRSP(), msgId), e.getDataset());
+      } catch (RuntimeException e) {
+        // For example, the upstream response couldn't be parsed. The peer still needs a final
+        // response, or it waits until it times out.
+        Logging.error(e, "Query from %s failed", as.getCallingAET());
+        DicomServiceException failure = new DicomServiceException(Status.ProcessingFailure, e);
+        as.writeDimseRSP(pc, failure.mkRSP(Dimse.C_FIND_RQ.commandFieldOfRSP(), msgId));
+      } finally {
+        as.removeCancelRQHandler(msgId);
+      }
+    } catch (IOException e) {
+      Logging.error(e, "Failed to send C-FIND response to %s", as.getCallingAET());
+    }
+  }
+
+  @Override
+  public void onCancelRQ(Association as) {
+    super.onCancelRQ(as);
+    Logging.info(
+        "Query %s from %s was canceled", rq.getInt(Tag.MessageID, -1), as.getCallingAET());
+    cancellation.cancel();
+  }
+
+  private Attributes mkFinalRSP() {
+    if (truncated) {
+      Logging.info(
+          "Returned the first %s matches to the query from %s", matches, as.getCallingAET());
+      Attributes rsp = Commands.mkCFindRSP(rq, STATUS_MATCHES_TRUNCATED);
+      rsp.setString(
+          Tag.ErrorComment, VR.LO, "Only the first " + matches + " matches were returned");
+      return rsp;
+    }
+    return Commands.mkCFindRSP(rq, cancellation.isCanceled() ? Status.Cancel : Status.Success);
+  }
+
+  private void writeMatch(Attributes match) throws IOException {
+    if (maxMatches > 0 && matches == maxMatches) {
+      // A match beyond the limit; there may be more, so the rest of the response is skipped.
+      truncated = true;
+      cancellation.cancel();
+      return;
+    }
+    Attributes adjusted = adjust(match);
+    if (adjusted != null) {
+      as.writeDimseRSP(pc, Commands.mkCFindRSP(rq, Status.Pending), adjusted);
+      matches++;
+    }
+  }
+}
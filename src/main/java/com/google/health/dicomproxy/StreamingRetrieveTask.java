@@ -0,0 +1,281 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.InputStreamDataWriter;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.RetrieveTask;
+
+/**
+ * C-GET or C-MOVE task which performs an upstream retrieval, storing each instance at the
+ * destination as soon as it's read.
+ *
+ * <p>Instances are passed through in the transfer syntax they were retrieved in, if the destination
+ * accepts it. Otherwise, uncompressed instances are re-encoded in an uncompressed transfer syntax
+ * the destination accepts, and other instances fail. The number of instances isn't known up front,
+ * so responses report the completed, failed and warning sub-operations, but not the remaining ones.
+ * A C-CANCEL aborts the upstream retrieval, even if it's still being read.
+ */
+final class StreamingRetrieveTask implements RetrieveTask {
+
+  /** Transfer syntaxes which may be decoded and re-encoded without a codec. */
+  static final ImmutableSet<String> UNCOMPRESSED_TRANSFER_SYNTAXES =
+      ImmutableSet.of(
+          UID.ExplicitVRLittleEndian,
+          UID.ImplicitVRLittleEndian,
+          UID.DeflatedExplicitVRLittleEndian,
+          UID.ExplicitVRBigEndianRetired);
+
+  /** Transfer syntaxes in which uncompressed instances are re-encoded, most preferred first. */
+  static final ImmutableList<String> REENCODED_TRANSFER_SYNTAXES =
+      ImmutableList.of(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian);
+
+  /** Where instances are stored. */
+  interface Destination {
+    /**
+     * Returns an association on which instances of the given SOP class may be stored, preferably in
+     * the given transfer syntax.
+     */
+    Association associationFor(String sopClassUid, String transferSyntax)
+        throws IOException, InterruptedException;
+
+    /** Releases the associations opened for this destination, if any. */
+    default void close() {}
+  }
+
+  private final Association as;
+  private final PresentationContext pc;
+  private final Dimse dimse;
+  private final Attributes rq;
+  private final Attributes keys;
+  private final RetrieveClient retrieveClient;
+  private final Destination destination;
+  private final Cancellation cancellation = new Cancellation();
+
+  // Only accessed by the thread running the retrieval.
+  private int completed = 0;
+  private int warnings = 0;
+  private final List<String> failed = new ArrayList<>();
+
+  StreamingRetrieveTask(
+      Association as,
+      PresentationContext pc,
+      Dimse dimse,
+      Attributes rq,
+      Attributes keys,
+      RetrieveClient retrieveClient,
+      Destination destination) {
+    checkArgument(
+        dimse == Dimse.C_GET_RQ || dimse == Dimse.C_MOVE_RQ, "Not a retrieval: %s", dimse);
+    this.as = checkNotNull(as);
+    this.pc = checkNotNull(pc);
+    this.dimse = dimse;
+    this.rq = checkNotNull(rq);
+    this.keys = checkNotNull(keys);
+    this.retrieveClient = checkNotNull(retrieveClient);
+    this.destination = checkNotNull(destination);
+  }
+
+  /**
+   * Returns the transfer syntax in which an instance retrieved in the given one is stored, out of
+   * those the destination accepts, or null if there is none.
+   */
+  @Nullable
+  static String selectTransferSyntax(Set<String> accepted, String transferSyntax) {
+    if (accepted.contains(transferSyntax)) {
+      return transferSyntax;
+    }
+    if (UNCOMPRESSED_TRANSFER_SYNTAXES.contains(transferSyntax)) {
+      for (String reencoded : REENCODED_TRANSFER_SYNTAXES) {
+        if (accepted.contains(reencoded)) {
+          return reencoded;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void run() {
+    int msgId = rq.getInt(Tag.MessageID, -1);
+    try {
+      try {
+        retrieveClient.retrieve(keys, cancellation, this::store);
+        Logging.info(
+            "Retrieval %s from %s: %s completed, %s warnings, %s failed",
+            msgId, as.getCallingAET(), completed, warnings, failed.size());
+        as.writeDimseRSP(pc, mkRSP(finalStatus()), failedInstances());
+      } catch (DicomServiceException e) {
+        writeFailedRSP(e, msgId);
+      } catch (RuntimeException e) {
+        // For example, the upstream response couldn't be parsed. The peer still needs a final
+        // response, or it waits until it times out.
+        writeFailedRSP(new DicomServiceException(Status.ProcessingFailure, e), msgId);
+      } finally {
+        as.removeCancelRQHandler(msgId);
+        destination.close();
+      }
+    } catch (IOException e) {
+      Logging.error(
+          e,
+          "Failed to send %s response to %s",
+          dimse == Dimse.C_GET_RQ ? "C-GET" : "C-MOVE",
+          as.getCallingAET());
+    }
+  }
+
+  /** Ends a retrieval which failed, with the counts of the sub-operations performed so far. */
+  private void writeFailedRSP(DicomServiceException e, int msgId) throws IOException {
+    Logging.error(e, "Retrieval from %s failed", as.getCallingAET());
+    Attributes rsp = e.mkRSP(dimse.commandFieldOfRSP(), msgId);
+    addCounts(rsp);
+    as.writeDimseRSP(pc, rsp, failedInstances());
+  }
+
+  @Override
+  public void onCancelRQ(Association as) {
+    Logging.info(
+        "Retrieval %s from %s was canceled", rq.getInt(Tag.MessageID, -1), as.getCallingAET());
+    cancellation.cancel();
+  }
+
+  /** Stores one retrieved instance at the destination, as a sub-operation. */
+  private void store(InputStream instance) throws IOException {
+    if (cancellation.isCanceled()) {
+      throw new InterruptedIOException("Retrieval was canceled");
+    }
+    DicomInputStream dis = new DicomInputStream(instance);
+    Attributes fmi = dis.readFileMetaInformation();
+    String sopClassUid = fmi == null ? null : fmi.getString(Tag.MediaStorageSOPClassUID);
+    String sopInstanceUid = fmi == null ? null : fmi.getString(Tag.MediaStorageSOPInstanceUID);
+    String transferSyntax = fmi == null ? null : fmi.getString(Tag.TransferSyntaxUID);
+    if (sopClassUid == null || sopInstanceUid == null || transferSyntax == null) {
+      throw new IOException("Retrieved instance has no File Meta Information");
+    }
+
+    Association storeAs;
+    try {
+      storeAs = destination.associationFor(sopClassUid, transferSyntax);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while connecting to the destination");
+    }
+    String storeTransferSyntax =
+        selectTransferSyntax(storeAs.getTransferSyntaxesFor(sopClassUid), transferSyntax);
+    if (storeTransferSyntax == null) {
+      Logging.error(
+          "%s doesn't accept %s in %s or another usable transfer syntax",
+          storeAs.getRemoteAET(), sopInstanceUid, transferSyntax);
+      failed.add(sopInstanceUid);
+      writePendingRSP();
+      return;
+    }
+
+    // A deflated dataset is already being inflated by the DicomInputStream, so rather than being
+    // passed through, it's read and deflated again as it's sent.
+    DataWriter data =
+        storeTransferSyntax.equals(transferSyntax)
+                && !transferSyntax.equals(UID.DeflatedExplicitVRLittleEndian)
+            ? new InputStreamDataWriter(dis)
+            : new DataWriterAdapter(dis.readDataset(-1, -1));
+    int priority = rq.getInt(Tag.Priority, 0);
+    int status;
+    try {
+      DimseRSP rsp =
+          dimse == Dimse.C_GET_RQ
+              ? storeAs.cstore(sopClassUid, sopInstanceUid, priority, data, storeTransferSyntax)
+              : storeAs.cstore(
+                  sopClassUid,
+                  sopInstanceUid,
+                  priority,
+                  as.getCallingAET(),
+                  rq.getInt(Tag.MessageID, -1),
+                  data,
+                  storeTransferSyntax);
+      rsp.next();
+      status = rsp.getCommand().getInt(Tag.Status, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while storing " + sopInstanceUid);
+    }
+    if (status == Status.Success) {
+      completed++;
+    } else if ((status & 0xF000) == 0xB000) {
+      // Warnings are class Bxxx in PS3.7 Annex C.
+      warnings++;
+    } else {
+      Logging.error(
+          "%s failed to store %s with status %04X", storeAs.getRemoteAET(), sopInstanceUid, status);
+      failed.add(sopInstanceUid);
+    }
+    writePendingRSP();
+  }
+
+  private void writePendingRSP() throws IOException {
+    as.writeDimseRSP(pc, mkRSP(Status.Pending));
+  }
+
+  private int finalStatus() {
+    if (cancellation.isCanceled()) {
+      return Status.Cancel;
+    }
+    if (failed.isEmpty() && warnings == 0) {
+      return Status.Success;
+    }
+    if (completed == 0 && warnings == 0) {
+      return Status.UnableToPerformSubOperations;
+    }
+    return Status.OneOrMoreFailures;
+  }
+
+  private Attributes mkRSP(int status) {
+    Attributes rsp =
+        dimse == Dimse.C_GET_RQ ? Commands.mkCGetRSP(rq, status) : Commands.mkCMoveRSP(rq, status);
+    addCounts(rsp);
+    return rsp;
+  }
+
+  private void addCounts(Attributes rsp) {
+    rsp.setInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+    rsp.setInt(Tag.NumberOfFailedSuboperations, VR.US, failed.size());
+    rsp.setInt(Tag.NumberOfWarningSuboperations, VR.US, warnings);
+  }
+
+  @Nullable
+  private Attributes failedInstances() {
+    if (failed.isEmpty()) {
+      return null;
+    }
+    Attributes identifier = new Attributes(1);
+    identifier.setString(Tag.FailedSOPInstanceUIDList, VR.UI, failed.toArray(new String[0]));
+    return identifier;
+  }
+}
@@ -0,0 +1,26 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/** Interface to decouple the Study Root C-FIND SCP from the DICOMweb QIDO-RS client. */
+public interface StudyQueryClient {
+  /**
+   * Searches for studies, series or instances, as given by the Query/Retrieve Level of the keys,
+   * passing each result to the handler as soon as it's parsed. If the query is canceled, the
+   * upstream request is aborted, and this returns without error.
+   *
+   * @param keys a Study Root C-FIND identifier
+   * @param limit Maximum number of results the upstream service should return, or zero for no
+   *     limit.
+   * @throws DicomServiceException if the keys aren't valid, or the query failed, or the handler did
+   */
+  void search(
+      Attributes keys, int limit, Cancellation cancellation, WorklistClient.ResultHandler handler)
+      throws DicomServiceException;
+}
@@ -0,0 +1,215 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+
+/**
+ * Rule-driven changes to the attributes of received instances, such as removing or replacing
+ * patient identifiers before they're uploaded to a research destination.
+ *
+ * <p>Datasets are morphed as they're streamed: the attributes before the pixel data are parsed,
+ * changed and written out again, and everything from the pixel data onwards is copied untouched, so
+ * instances are never held in memory. Attributes after the pixel data aren't changed.
+ *
+ * <p>Rules are read from a text file, one per line, and applied in order. Blank lines and lines
+ * starting with {@code #} are ignored. Attributes are named by their keywords.
+ *
+ * <ul>
+ *   <li>{@code remove <keyword>}: removes the attribute.
+ *   <li>{@code empty <keyword>}: removes the attribute's value, if present, but keeps the
+ *       attribute.
+ *   <li>{@code set <keyword> <value>}: sets the attribute to the rest of the line.
+ *   <li>{@code hash <keyword>}: replaces the attribute's value, if present, with the first 16 hex
+ *       digits of its salted SHA-256 hash, so that values remain consistent across instances.
+ *   <li>{@code salt <secret>}: sets the salt used by the {@code hash} rules which follow it.
+ *   <li>{@code remove-private}: removes all private attributes.
+ * </ul>
+ *
+ * <p>UIDs can't be changed, as the spool and the upload rely on them.
+ */
+final class TagMorpher {
+  /** A change to the attributes of a dataset. */
+  interface Rule {
+    void apply(Attributes dataset);
+  }
+
+  private final ImmutableList<Rule> rules;
+
+  TagMorpher(ImmutableList<Rule> rules) {
+    this.rules = checkNotNull(rules);
+  }
+
+  /** Reads rules from a file. */
+  static TagMorpher load(File rulesFile) throws IOException {
+    try {
+      return parse(Files.readAllLines(rulesFile.toPath(), UTF_8));
+    } catch (IllegalArgumentException e) {
+      throw new IOException(String.format("Invalid rules in %s: %s", rulesFile, e.getMessage()));
+    }
+  }
+
+  /**
+   * Parses rules, one per line.
+   *
+   * @throws IllegalArgumentException if any line isn't a valid rule
+   */
+  static TagMorpher parse(List<String> lines) {
+    ImmutableList.Builder<Rule> rules = ImmutableList.builder();
+    String salt = "";
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).strip();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] words = line.split("\\s+", 3);
+      String action = words[0];
+      try {
+        switch (action) {
+          case "remove-private":
+            checkWordCount(words, 1);
+            rules.add(Attributes::removePrivateAttributes);
+            break;
+          case "salt":
+            checkWordCount(words, 2);
+            salt = words[1];
+            break;
+          case "remove":
+            checkWordCount(words, 2);
+            rules.add(remove(tagForKeyword(words[1])));
+            break;
+          case "empty":
+            checkWordCount(words, 2);
+            rules.add(empty(tagForKeyword(words[1])));
+            break;
+          case "set":
+            checkWordCount(words, 3);
+            rules.add(set(tagForKeyword(words[1]), words[2]));
+            break;
+          case "hash":
+            checkWordCount(words, 2);
+            rules.add(hash(tagForKeyword(words[1]), salt));
+            break;
+          default:
+            throw new IllegalArgumentException(String.format("Unknown action '%s'", action));
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            String.format("line %s: %s", i + 1, e.getMessage()), e);
+      }
+    }
+    return new TagMorpher(rules.build());
+  }
+
+  static Rule remove(int tag) {
+    return dataset -> dataset.remove(tag);
+  }
+
+  static Rule empty(int tag) {
+    return dataset -> {
+      if (dataset.contains(tag)) {
+        dataset.setNull(tag, vrOf(dataset, tag));
+      }
+    };
+  }
+
+  static Rule set(int tag, String value) {
+    return dataset -> dataset.setString(tag, vrOf(dataset, tag), value);
+  }
+
+  static Rule hash(int tag, String salt) {
+    return dataset -> {
+      String value = dataset.getString(tag);
+      if (value != null) {
+        String hash = Hashing.sha256().hashString(salt + value, UTF_8).toString();
+        dataset.setString(tag, vrOf(dataset, tag), hash.substring(0, 16));
+      }
+    };
+  }
+
+  /** Applies the rules to a dataset, in order. */
+  void apply(Attributes dataset) {
+    for (Rule rule : rules) {
+      rule.apply(dataset);
+    }
+  }
+
+  /**
+   * Copies a dataset from {@code in} to {@code out}, morphing its attributes on the way. Returns
+   * the morphed attributes which precede the pixel data. The pixel data, and any attributes after
+   * it, such as digital signatures or trailing padding, are copied untouched, whether or not the
+   * dataset has pixel data.
+   *
+   * @param transferSyntax transfer syntax the dataset is encoded in
+   */
+  Attributes morph(InputStream in, String transferSyntax, OutputStream out) throws IOException {
+    // Neither stream is closed, as they belong to the caller.
+    @SuppressWarnings("resource")
+    DicomInputStream dicomIn = new DicomInputStream(in, transferSyntax);
+    Attributes header = dicomIn.readDataset(-1, Tag.PixelData);
+    apply(header);
+
+    // Deflated datasets are inflated by the input stream; deflating them again is left to the
+    // caller's stream.
+    @SuppressWarnings("resource")
+    DicomOutputStream dicomOut =
+        new DicomOutputStream(
+            out,
+            transferSyntax.equals(UID.DeflatedExplicitVRLittleEndian)
+                ? UID.ExplicitVRLittleEndian
+                : transferSyntax);
+    dicomOut.writeDataset(null, header);
+    if (Integer.compareUnsigned(dicomIn.tag(), Tag.PixelData) >= 0) {
+      // Reading stopped at the first attribute from the pixel data on, which may be another one if
+      // there is no pixel data. Its header has already been read, but its value hasn't.
+      dicomOut.writeHeader(dicomIn.tag(), dicomIn.vr(), dicomIn.length());
+      ByteStreams.copy(dicomIn, dicomOut);
+    }
+    dicomOut.flush();
+    return header;
+  }
+
+  private static int tagForKeyword(String keyword) {
+    int tag = ElementDictionary.tagForKeyword(keyword, null);
+    if (tag == -1) {
+      throw new IllegalArgumentException(String.format("Unknown attribute keyword '%s'", keyword));
+    }
+    if (ElementDictionary.vrOf(tag, null) == VR.UI) {
+      throw new IllegalArgumentException(String.format("UIDs can't be changed: '%s'", keyword));
+    }
+    return tag;
+  }
+
+  private static VR vrOf(Attributes dataset, int tag) {
+    VR vr = dataset.getVR(tag);
+    return vr != null ? vr : ElementDictionary.vrOf(tag, null);
+  }
+
+  private static void checkWordCount(String[] words, int count) {
+    if (words.length != count) {
+      throw new IllegalArgumentException(
+          String.format("'%s' takes %s argument(s)", words[0], count - 1));
+    }
+  }
+}
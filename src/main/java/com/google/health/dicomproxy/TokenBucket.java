@@ -0,0 +1,85 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens accumulate at a fixed rate, up to a capacity which bounds the
+ * size of bursts.
+ *
+ * <p>Callers may take more tokens than are available, or than the capacity; the bucket then goes
+ * into debt, and the caller waits until the debt would have been paid off. Later callers queue up
+ * behind it, so requests are paced evenly rather than sent in bursts.
+ */
+final class TokenBucket {
+  private final double ratePerSecond;
+  private final double capacity;
+  private final Ticker ticker;
+
+  // Guarded by this.
+  private double tokens;
+  private long lastRefillNanos;
+
+  /**
+   * @param ratePerSecond tokens added per second
+   * @param capacity maximum number of tokens the bucket holds; it starts out full
+   * @param ticker source of time
+   */
+  TokenBucket(double ratePerSecond, double capacity, Ticker ticker) {
+    checkArgument(ratePerSecond > 0, "Rate must be positive: %s", ratePerSecond);
+    checkArgument(capacity > 0, "Capacity must be positive: %s", capacity);
+    this.ratePerSecond = ratePerSecond;
+    this.capacity = capacity;
+    this.ticker = ticker;
+    this.tokens = capacity;
+    this.lastRefillNanos = ticker.read();
+  }
+
+  double getRatePerSecond() {
+    return ratePerSecond;
+  }
+
+  /** Takes the given number of tokens, sleeping until they're available. */
+  void acquire(long count) throws InterruptedException {
+    long waitNanos = reserve(count);
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /** Takes the given number of tokens, returning how long the caller must wait to use them. */
+  synchronized long reserve(long count) {
+    checkArgument(count >= 0, "Negative token count: %s", count);
+    long now = ticker.read();
+    refill(now);
+    tokens -= count;
+    if (tokens >= 0) {
+      return 0;
+    }
+    return (long) Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+  }
+
+  /** Returns the number of tokens currently available, which is negative while in debt. */
+  synchronized double getAvailableTokens() {
+    refill(ticker.read());
+    return tokens;
+  }
+
+  private void refill(long now) {
+    long elapsedNanos = now - lastRefillNanos;
+    if (elapsedNanos > 0) {
+      tokens =
+          Math.min(
+              capacity,
+              tokens + elapsedNanos * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+      lastRefillNanos = now;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ticker;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Starts {@link Span}s, and passes those which end to an exporter.
+ *
+ * <p>Whether a trace is sampled is decided when its root span starts, and inherited by every span
+ * within it, so that traces are recorded either whole or not at all.
+ */
+final class Tracer {
+  private final Consumer<Span> exporter;
+  private final double sampleRatio;
+  private final Ticker ticker;
+  private final Supplier<Random> random;
+  // Offset from the ticker's nanoseconds to those of the epoch, so that durations are monotonic.
+  private final long epochOffsetNanos;
+
+  /**
+   * @param exporter receives each sampled span as it ends; it must not block
+   * @param sampleRatio fraction, from 0 to 1, of traces which are sampled
+   */
+  Tracer(Consumer<Span> exporter, double sampleRatio) {
+    this(exporter, sampleRatio, Ticker.systemTicker(), ThreadLocalRandom::current);
+  }
+
+  Tracer(Consumer<Span> exporter, double sampleRatio, Ticker ticker, Supplier<Random> random) {
+    checkArgument(sampleRatio >= 0 && sampleRatio <= 1, "Invalid sample ratio: %s", sampleRatio);
+    this.exporter = checkNotNull(exporter);
+    this.sampleRatio = sampleRatio;
+    this.ticker = checkNotNull(ticker);
+    this.random = checkNotNull(random);
+    this.epochOffsetNanos = System.currentTimeMillis() * 1_000_000 - ticker.read();
+  }
+
+  /** Starts a root span, beginning a new trace. */
+  Span startTrace(String name, int kind) {
+    boolean sampled = sampleRatio >= 1 || random.get().nextDouble() < sampleRatio;
+    return new Span(this, name, kind, newId(16), newId(8), null, sampled, nowEpochNanos());
+  }
+
+  /** Starts a span within the given one, or a root span if there's none. */
+  Span startSpan(String name, int kind, @Nullable Span parent) {
+    if (parent == null || parent == Span.NOOP) {
+      return startTrace(name, kind);
+    }
+    return new Span(
+        this,
+        name,
+        kind,
+        parent.getTraceId(),
+        newId(8),
+        parent.getSpanId(),
+        parent.isSampled(),
+        nowEpochNanos());
+  }
+
+  long nowEpochNanos() {
+    return ticker.read() + epochOffsetNanos;
+  }
+
+  void export(Span span) {
+    try {
+      exporter.accept(span);
+    } catch (RuntimeException e) {
+      Logging.error(e, "Unable to export %s", span);
+    }
+  }
+
+  /** Returns a random, non-zero ID of the given length in bytes, as lowercase hex. */
+  private String newId(int bytes) {
+    Random r = random.get();
+    StringBuilder id = new StringBuilder(bytes * 2);
+    boolean zero = true;
+    for (int i = 0; i < bytes; i++) {
+      int b = r.nextInt(256);
+      zero &= b == 0;
+      id.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    if (zero) {
+      // All-zero IDs are invalid in trace context.
+      id.setCharAt(id.length() - 1, '1');
+    }
+    return id.toString();
+  }
+}
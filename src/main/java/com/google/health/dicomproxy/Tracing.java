@@ -0,0 +1,101 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Process-wide tracing, which does nothing until started. Spans started without an explicit parent
+ * are children of the calling thread's current span, if any.
+ */
+final class Tracing {
+  /** Header which carries the current span to upstream services. */
+  static final String TRACEPARENT_HEADER = "traceparent";
+
+  @Nullable private static volatile Tracer tracer;
+  private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+
+  /** Starts exporting sampled spans to the given tracer. */
+  static void start(Tracer newTracer) {
+    tracer = newTracer;
+  }
+
+  /** Stops tracing; spans started afterwards record nothing. */
+  static void stop() {
+    tracer = null;
+  }
+
+  /** Starts a span within the current one, or a root span if there's none. */
+  static Span startSpan(String name) {
+    return startSpan(name, Span.KIND_INTERNAL, currentSpan.get());
+  }
+
+  /** Starts a span within the given one, or a root span if it's null. */
+  static Span startSpan(String name, int kind, @Nullable Span parent) {
+    Tracer t = tracer;
+    if (t == null) {
+      return Span.NOOP;
+    }
+    return t.startSpan(name, kind, parent);
+  }
+
+  /** Returns the calling thread's current span, or {@link Span#NOOP} if there's none. */
+  static Span current() {
+    Span span = currentSpan.get();
+    return span == null ? Span.NOOP : span;
+  }
+
+  static Span.Scope makeCurrent(Span span) {
+    Span previous = currentSpan.get();
+    currentSpan.set(span);
+    return () -> {
+      if (previous == null) {
+        currentSpan.remove();
+      } else {
+        currentSpan.set(previous);
+      }
+    };
+  }
+
+  /**
+   * Executes an HTTP request within a client span, which the request identifies upstream with a
+   * {@code traceparent} header, and which records the response status.
+   */
+  static HttpResponse execute(HttpRequest request, String name) throws IOException {
+    Span span = startSpan(name, Span.KIND_CLIENT, currentSpan.get());
+    String traceparent = span.getTraceparent();
+    if (traceparent != null) {
+      request.getHeaders().set(TRACEPARENT_HEADER, traceparent);
+    }
+    span.setAttribute("http.method", request.getRequestMethod());
+    span.setAttribute("http.url", request.getUrl().build());
+    try (Span.Scope scope = span.makeCurrent()) {
+      HttpResponse response = request.execute();
+      span.setAttribute("http.status_code", response.getStatusCode());
+      if (!HttpStatusCodes.isSuccess(response.getStatusCode())) {
+        span.setError("HTTP status " + response.getStatusCode());
+      }
+      return response;
+    } catch (HttpResponseException e) {
+      span.setAttribute("http.status_code", e.getStatusCode());
+      span.setError("HTTP status " + e.getStatusCode());
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      span.setError(e);
+      throw e;
+    } finally {
+      span.end();
+    }
+  }
+
+  /** Prevent instantiation. */
+  private Tracing() {}
+}
@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Preferred transfer syntaxes, by SOP class, used to choose between those proposed by a peer.
+ *
+ * <p>dcm4che accepts the first transfer syntax a peer proposes which the proxy supports, and peers
+ * often propose uncompressed syntaxes first. Proposed transfer syntaxes are therefore reordered
+ * before the association is negotiated: preferred syntaxes come first, in order of preference,
+ * followed by the rest in the order the peer proposed them. Accepting compressed instances where
+ * the peer offers them shrinks what's written to the spool and uploaded.
+ *
+ * <p>Preferences are given as {@code <sop-class>=<transfer-syntax>,...} entries separated by
+ * semicolons, where {@code *} stands for SOP classes without an entry of their own. SOP classes and
+ * transfer syntaxes may be given by UID or by dcm4che keyword, as in {@code
+ * *=JPEGLSLossless,JPEG2000LosslessOnly,DeflatedExplicitVRLittleEndian}.
+ */
+final class TransferSyntaxPreferences {
+  private static final String ALL_SOP_CLASSES = "*";
+
+  private final ImmutableMap<String, ImmutableList<String>> preferencesBySopClass;
+
+  TransferSyntaxPreferences(ImmutableMap<String, ImmutableList<String>> preferencesBySopClass) {
+    this.preferencesBySopClass = checkNotNull(preferencesBySopClass);
+  }
+
+  /**
+   * Parses preferences from their configured form; an empty string has no preferences.
+   *
+   * @throws IllegalArgumentException if the preferences aren't valid
+   */
+  static TransferSyntaxPreferences parse(String preferences) {
+    ImmutableMap.Builder<String, ImmutableList<String>> preferencesBySopClass =
+        ImmutableMap.builder();
+    for (String entry : Splitter.on(';').trimResults().omitEmptyStrings().split(preferences)) {
+      List<String> parts = Splitter.on('=').trimResults().splitToList(entry);
+      if (parts.size() != 2 || parts.get(0).isEmpty()) {
+        throw new IllegalArgumentException(
+            String.format("Expected <sop-class>=<transfer-syntax>,...: '%s'", entry));
+      }
+      String sopClass =
+          parts.get(0).equals(ALL_SOP_CLASSES) ? ALL_SOP_CLASSES : toUid(parts.get(0));
+      ImmutableList.Builder<String> transferSyntaxes = ImmutableList.builder();
+      for (String transferSyntax :
+          Splitter.on(',').trimResults().omitEmptyStrings().split(parts.get(1))) {
+        transferSyntaxes.add(toUid(transferSyntax));
+      }
+      preferencesBySopClass.put(sopClass, transferSyntaxes.build());
+    }
+    return new TransferSyntaxPreferences(preferencesBySopClass.build());
+  }
+
+  /** Returns the preferred transfer syntaxes for a SOP class, most preferred first. */
+  ImmutableList<String> getPreferences(String sopClass) {
+    ImmutableList<String> preferences = preferencesBySopClass.get(sopClass);
+    if (preferences == null) {
+      preferences = preferencesBySopClass.getOrDefault(ALL_SOP_CLASSES, ImmutableList.of());
+    }
+    return preferences;
+  }
+
+  /** Reorders the transfer syntaxes proposed by an association request by preference. */
+  void apply(AAssociateRQ rq) {
+    if (preferencesBySopClass.isEmpty()) {
+      return;
+    }
+    // Presentation contexts can't be changed, so all of them are replaced, keeping their order.
+    List<PresentationContext> proposed = new ArrayList<>(rq.getPresentationContexts());
+    for (PresentationContext pc : proposed) {
+      rq.removePresentationContext(pc);
+    }
+    for (PresentationContext pc : proposed) {
+      rq.addPresentationContext(
+          new PresentationContext(
+              pc.getPCID(),
+              pc.getAbstractSyntax(),
+              order(pc.getAbstractSyntax(), pc.getTransferSyntaxes())));
+    }
+  }
+
+  /** Orders proposed transfer syntaxes: preferred ones first, then the rest as proposed. */
+  String[] order(String sopClass, String[] proposed) {
+    Set<String> ordered = new LinkedHashSet<>();
+    List<String> proposedList = Arrays.asList(proposed);
+    for (String preferred : getPreferences(sopClass)) {
+      if (proposedList.contains(preferred)) {
+        ordered.add(preferred);
+      }
+    }
+    ordered.addAll(proposedList);
+    return ordered.toArray(new String[0]);
+  }
+
+  private static String toUid(String uidOrKeyword) {
+    if (CharMatcher.anyOf("0123456789.").matchesAllOf(uidOrKeyword)) {
+      return uidOrKeyword;
+    }
+    // Throws IllegalArgumentException for unknown keywords.
+    return UID.forName(uidOrKeyword);
+  }
+}
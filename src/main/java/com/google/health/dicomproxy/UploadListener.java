@@ -0,0 +1,15 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+/** Receives notifications from a {@link DicomUploader} once data has reached the destination. */
+interface UploadListener {
+  /** Called after all instances in the batch have been successfully uploaded. */
+  void onUploadSucceeded(SpoolBatch batch);
+
+  /** Called if the upload of a batch failed, and won't be retried by the uploader. */
+  default void onUploadFailed(SpoolBatch batch) {}
+}
@@ -0,0 +1,245 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * Persistent index of recently uploaded SOP Instances, used to suppress re-uploads of instances
+ * which a modality sends more than once.
+ *
+ * <p>The index is a fixed-size open-addressing hash table in a memory-mapped file, so it survives
+ * restarts and lives outside of the Java heap. Each slot holds a 64-bit fingerprint of the SOP
+ * Instance UID, a 128-bit hash of the received dataset and a timestamp. The UID fingerprint only
+ * locates candidates; an instance is a duplicate only if its content hash also matches. Slots older
+ * than the dedupe window are reused, so the table never needs to grow.
+ */
+final class UploadedInstanceIndex implements Closeable, UploadListener {
+  /** Hash function used for the content of received datasets. */
+  static final HashFunction CONTENT_HASH = Hashing.murmur3_128();
+
+  private static final HashFunction UID_HASH = Hashing.murmur3_128();
+
+  private static final int MAGIC = 0x44444931; // "DDI1"
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_SIZE = 32;
+  /** Maximum number of slots inspected for a single UID before evicting the oldest one. */
+  private static final int MAX_PROBES = 32;
+
+  // Offsets of the fields within a slot.
+  private static final int FINGERPRINT_OFFSET = 0;
+  private static final int CONTENT_HASH_OFFSET = 8;
+  private static final int TIMESTAMP_OFFSET = 24;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final long windowMillis;
+  private final Clock clock;
+
+  private UploadedInstanceIndex(
+      FileChannel channel, MappedByteBuffer buffer, int capacity, Duration window, Clock clock) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.windowMillis = window.toMillis();
+    this.clock = clock;
+  }
+
+  /**
+   * Opens the index stored in the given file, creating it if necessary. An existing file with a
+   * different capacity is discarded.
+   *
+   * @param file backing file for the index
+   * @param capacity number of slots in the table
+   * @param window how long an uploaded instance is remembered for
+   * @param clock source of timestamps
+   */
+  static UploadedInstanceIndex open(File file, int capacity, Duration window, Clock clock)
+      throws IOException {
+    checkArgument(
+        capacity > 0 && capacity <= (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE,
+        "Invalid dedupe index capacity: %s",
+        capacity);
+    checkNotNull(window);
+    checkNotNull(clock);
+
+    long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    FileChannel channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      boolean reuse = false;
+      if (channel.size() == size) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        reuse = header.getInt(0) == MAGIC && header.getInt(4) == capacity;
+      }
+      if (!reuse) {
+        Logging.info("Initializing dedupe index %s with %s slots", file, capacity);
+        channel.truncate(0);
+      }
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, capacity);
+      return new UploadedInstanceIndex(channel, buffer, capacity, window, clock);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns true if an instance with the same SOP Instance UID and content was uploaded within the
+   * dedupe window.
+   */
+  synchronized boolean isDuplicate(String sopInstanceUid, HashCode contentHash) {
+    int slot = findSlot(fingerprint(sopInstanceUid));
+    if (slot < 0) {
+      return false;
+    }
+
+    long timestamp = buffer.getLong(slot + TIMESTAMP_OFFSET);
+    return timestamp > 0
+        && !isExpired(timestamp)
+        && contentHashMatches(slot, contentHash.asBytes());
+  }
+
+  /**
+   * Returns true if an instance with the given SOP Instance UID was uploaded within the dedupe
+   * window, whatever its content.
+   */
+  synchronized boolean wasUploaded(String sopInstanceUid) {
+    int slot = findSlot(fingerprint(sopInstanceUid));
+    if (slot < 0) {
+      return false;
+    }
+    long timestamp = buffer.getLong(slot + TIMESTAMP_OFFSET);
+    return timestamp > 0 && !isExpired(timestamp);
+  }
+
+  /**
+   * Records that an instance has been received and is awaiting upload. It will not be considered a
+   * duplicate until {@link #onUploadSucceeded} reports it as uploaded.
+   */
+  synchronized void recordReceived(String sopInstanceUid, HashCode contentHash) {
+    long fingerprint = fingerprint(sopInstanceUid);
+    int slot = findSlot(fingerprint);
+    if (slot < 0) {
+      slot = findFreeSlot(fingerprint);
+    }
+
+    ByteBuffer hash = ByteBuffer.wrap(contentHash.asBytes());
+    buffer.putLong(slot + FINGERPRINT_OFFSET, fingerprint);
+    buffer.putLong(slot + CONTENT_HASH_OFFSET, hash.getLong(0));
+    buffer.putLong(slot + CONTENT_HASH_OFFSET + 8, hash.getLong(8));
+    // Negative timestamps mark instances which have not been uploaded yet.
+    buffer.putLong(slot + TIMESTAMP_OFFSET, -clock.millis());
+  }
+
+  /** Marks the instances as uploaded, starting their dedupe window. */
+  @Override
+  public synchronized void onUploadSucceeded(SpoolBatch batch) {
+    long now = clock.millis();
+    for (String sopInstanceUid : batch.getSopInstanceUids()) {
+      int slot = findSlot(fingerprint(sopInstanceUid));
+      // Instances which have already been evicted simply aren't remembered.
+      if (slot >= 0 && buffer.getLong(slot + TIMESTAMP_OFFSET) < 0) {
+        buffer.putLong(slot + TIMESTAMP_OFFSET, now);
+      }
+    }
+  }
+
+  /** Flushes the index to disk and releases the backing file. */
+  @Override
+  public synchronized void close() throws IOException {
+    buffer.force();
+    channel.close();
+  }
+
+  /** Returns the offset of the slot holding the given fingerprint, or -1 if it isn't present. */
+  private int findSlot(long fingerprint) {
+    int home = homeSlot(fingerprint);
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = slotOffset((home + probe) % capacity);
+      long slotFingerprint = buffer.getLong(slot + FINGERPRINT_OFFSET);
+      if (slotFingerprint == fingerprint) {
+        return slot;
+      }
+      if (slotFingerprint == 0) {
+        // Slots are never cleared, so an empty slot ends the probe sequence.
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the offset of a slot which may be overwritten: the first empty or expired slot in the
+   * probe sequence, or else the oldest one.
+   */
+  private int findFreeSlot(long fingerprint) {
+    int home = homeSlot(fingerprint);
+    int oldestSlot = -1;
+    long oldestAge = Long.MIN_VALUE;
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = slotOffset((home + probe) % capacity);
+      long timestamp = buffer.getLong(slot + TIMESTAMP_OFFSET);
+      if (buffer.getLong(slot + FINGERPRINT_OFFSET) == 0 || isExpired(timestamp)) {
+        return slot;
+      }
+      long age = clock.millis() - Math.abs(timestamp);
+      if (age > oldestAge) {
+        oldestAge = age;
+        oldestSlot = slot;
+      }
+    }
+    return oldestSlot;
+  }
+
+  private boolean isExpired(long timestamp) {
+    return clock.millis() - Math.abs(timestamp) > windowMillis;
+  }
+
+  private boolean contentHashMatches(int slot, byte[] contentHash) {
+    ByteBuffer hash = ByteBuffer.wrap(contentHash);
+    return buffer.getLong(slot + CONTENT_HASH_OFFSET) == hash.getLong(0)
+        && buffer.getLong(slot + CONTENT_HASH_OFFSET + 8) == hash.getLong(8);
+  }
+
+  private int homeSlot(long fingerprint) {
+    return (int) Math.floorMod(fingerprint, (long) capacity);
+  }
+
+  private static int slotOffset(int slotIndex) {
+    return HEADER_SIZE + slotIndex * SLOT_SIZE;
+  }
+
+  private static long fingerprint(String sopInstanceUid) {
+    long fingerprint = UID_HASH.hashString(sopInstanceUid, StandardCharsets.US_ASCII).asLong();
+    // Zero marks an empty slot.
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+}
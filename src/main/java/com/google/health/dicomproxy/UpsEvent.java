@@ -0,0 +1,138 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A UPS event, as sent on a {@link UpsEventChannel}.
+ *
+ * <p>Each event is a DICOM JSON object holding the Affected SOP Instance UID and Event Type ID of
+ * the N-EVENT-REPORT it stands for, along with its event information; see <a
+ * href="http://dicom.nema.org/medical/dicom/2019a/output/chtml/part04/sect_CC.2.4.html">PS3.4
+ * Section CC.2.4</a>. Only the attributes needed to keep a worklist up to date are parsed.
+ */
+final class UpsEvent {
+
+  /** Event Type ID of a change in a workitem's Procedure Step State, including its creation. */
+  static final int STATE_REPORT = 1;
+  static final int CANCEL_REQUESTED = 2;
+  static final int PROGRESS_REPORT = 3;
+  /** Event Type ID of a change in the status of the service itself, such as a restart. */
+  static final int SCP_STATUS_CHANGE = 4;
+  static final int ASSIGNED = 5;
+
+  private static final String AFFECTED_SOP_INSTANCE_UID = "00001000";
+  private static final String EVENT_TYPE_ID = "00001002";
+  private static final String PROCEDURE_STEP_STATE = "00741000";
+  private static final ImmutableSet<String> PARSED_TAGS =
+      ImmutableSet.of(AFFECTED_SOP_INSTANCE_UID, EVENT_TYPE_ID, PROCEDURE_STEP_STATE);
+  private static final String VALUE = "Value";
+
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+  private final String workitemUid;
+  private final int eventTypeId;
+  @Nullable private final String procedureStepState;
+
+  UpsEvent(String workitemUid, int eventTypeId, @Nullable String procedureStepState) {
+    this.workitemUid = checkNotNull(workitemUid);
+    this.eventTypeId = eventTypeId;
+    this.procedureStepState = procedureStepState;
+  }
+
+  /**
+   * Parses an event message. Services may send the event on its own, or as the only item of an
+   * array.
+   *
+   * @throws IOException if the message isn't valid JSON, or doesn't identify its workitem and type
+   */
+  static UpsEvent parse(String message) throws IOException {
+    Map<String, String> values = new HashMap<>();
+    JsonParser parser = JSON_FACTORY.createJsonParser(message);
+    try {
+      for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+        if (token == JsonToken.FIELD_NAME && PARSED_TAGS.contains(parser.getCurrentName())) {
+          String tag = parser.getCurrentName();
+          String value = readFirstValue(parser);
+          if (value != null) {
+            values.putIfAbsent(tag, value);
+          }
+        }
+      }
+    } finally {
+      parser.close();
+    }
+
+    String workitemUid = values.get(AFFECTED_SOP_INSTANCE_UID);
+    String eventTypeId = values.get(EVENT_TYPE_ID);
+    if (workitemUid == null || eventTypeId == null) {
+      throw new IOException("Event is missing its Affected SOP Instance UID or Event Type ID");
+    }
+    try {
+      return new UpsEvent(
+          workitemUid, Integer.parseInt(eventTypeId), values.get(PROCEDURE_STEP_STATE));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid Event Type ID " + eventTypeId, e);
+    }
+  }
+
+  /**
+   * Reads the attribute following its tag, such as {@code {"vr": "UI", "Value": ["1.2.3"]}},
+   * returning its first value, or null if it has none.
+   */
+  @Nullable
+  private static String readFirstValue(JsonParser parser) throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
+    }
+    String value = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      boolean isValue = VALUE.equals(parser.getCurrentName());
+      JsonToken token = parser.nextToken();
+      if (!isValue || token != JsonToken.START_ARRAY) {
+        parser.skipChildren();
+        continue;
+      }
+      for (token = parser.nextToken();
+          token != null && token != JsonToken.END_ARRAY;
+          token = parser.nextToken()) {
+        if (value == null
+            && (token == JsonToken.VALUE_STRING || token == JsonToken.VALUE_NUMBER_INT)) {
+          value = parser.getText();
+        }
+        parser.skipChildren();
+      }
+    }
+    return value;
+  }
+
+  /** Returns the SOP Instance UID of the workitem the event concerns. */
+  String getWorkitemUid() {
+    return workitemUid;
+  }
+
+  int getEventTypeId() {
+    return eventTypeId;
+  }
+
+  /** Returns the workitem's new Procedure Step State, if the event reports one. */
+  @Nullable
+  String getProcedureStepState() {
+    return procedureStepState;
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/**
+ * WebSocket on which a UPS-RS service sends the events of a subscription, as described in <a
+ * href="http://dicom.nema.org/medical/dicom/2019a/output/chtml/part18/sect_6.9.html">PS3.18 Section
+ * 6.9</a>.
+ *
+ * <p>Each event is a text message, passed to the listener once its last fragment arrives. Messages
+ * are requested one at a time, so the listener receives them in order.
+ */
+final class UpsEventChannel implements WebSocket.Listener {
+
+  /** Receives the events of a channel. */
+  interface Listener {
+    /** Called with each event message, one call at a time. */
+    void onEvent(String message);
+
+    /** Called once, when the channel is closed by either side, fails, or is aborted. */
+    void onClosed(@Nullable Throwable error);
+  }
+
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+  private static final String AUTHORIZATION = "Authorization";
+
+  private static final HttpClient HTTP_CLIENT =
+      HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+
+  private final URI uri;
+  private final Listener listener;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final AtomicBoolean awaitingPong = new AtomicBoolean();
+
+  // Only accessed by the WebSocket's callbacks, which are never run concurrently.
+  private final StringBuilder message = new StringBuilder();
+
+  // Set once the channel is open.
+  private volatile WebSocket webSocket;
+
+  private UpsEventChannel(URI uri, Listener listener) {
+    this.uri = checkNotNull(uri);
+    this.listener = checkNotNull(listener);
+  }
+
+  /**
+   * Opens a channel, waiting until it's connected.
+   *
+   * @param uri WebSocket URI of the channel
+   * @param authorization value of the Authorization header of the opening handshake, if any
+   * @throws IOException if the channel couldn't be opened
+   */
+  static UpsEventChannel open(URI uri, @Nullable String authorization, Listener listener)
+      throws IOException {
+    UpsEventChannel channel = new UpsEventChannel(uri, listener);
+    WebSocket.Builder builder = HTTP_CLIENT.newWebSocketBuilder().connectTimeout(CONNECT_TIMEOUT);
+    if (authorization != null) {
+      builder.header(AUTHORIZATION, authorization);
+    }
+    try {
+      channel.webSocket =
+          builder
+              .buildAsync(uri, channel)
+              .get(2 * CONNECT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while opening event channel " + uri);
+    } catch (ExecutionException | TimeoutException e) {
+      throw new IOException("Unable to open event channel " + uri, e);
+    }
+    Logging.info("Opened event channel %s", uri);
+    return channel;
+  }
+
+  /**
+   * Checks that the channel is still open, pinging the service; called periodically, to notice a
+   * channel which was dropped without being closed. If the previous ping wasn't answered, the
+   * channel is aborted.
+   *
+   * @return true if the channel is open
+   */
+  boolean checkAlive() {
+    if (closed.get()) {
+      return false;
+    }
+    if (awaitingPong.getAndSet(true)) {
+      Logging.error("Event channel %s didn't answer a ping; aborting it", uri);
+      abort();
+      return false;
+    }
+    webSocket.sendPing(ByteBuffer.allocate(0));
+    return true;
+  }
+
+  /** Closes the channel, letting the service know. */
+  void close() {
+    webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+  }
+
+  /** Closes the channel at once, without letting the service know. */
+  void abort() {
+    webSocket.abort();
+    notifyClosed(null);
+  }
+
+  @Override
+  public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+    message.append(data);
+    if (last) {
+      String event = message.toString();
+      message.setLength(0);
+      listener.onEvent(event);
+    }
+    webSocket.request(1);
+    return null;
+  }
+
+  @Override
+  public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+    // Events are always sent as text.
+    webSocket.request(1);
+    return null;
+  }
+
+  @Override
+  public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer data) {
+    awaitingPong.set(false);
+    webSocket.request(1);
+    return null;
+  }
+
+  @Override
+  public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+    Logging.info("Event channel %s was closed: %d %s", uri, statusCode, reason);
+    notifyClosed(null);
+    return null;
+  }
+
+  @Override
+  public void onError(WebSocket webSocket, Throwable error) {
+    Logging.error(error, "Error on event channel %s", uri);
+    notifyClosed(error);
+  }
+
+  private void notifyClosed(@Nullable Throwable error) {
+    if (closed.compareAndSet(false, true)) {
+      listener.onClosed(error);
+    }
+  }
+}
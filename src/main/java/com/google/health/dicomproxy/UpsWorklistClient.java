@@ -7,7 +7,11 @@ package com.google.health.dicomproxy;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
@@ -17,31 +21,83 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.health.dicomproxy.Configuration.ConfigKey;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXWriter;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.DicomServiceException;
+import org.xml.sax.SAXException;
 
-/** Performs UPS-RS SearchForWorkitems queries. */
-class UpsWorklistClient implements WorklistClient {
+/**
+ * Performs UPS-RS SearchForWorkitems queries, RetrieveWorkitem, ChangeWorkitemState and
+ * UpdateWorkitem requests, and subscribes to workitem events.
+ */
+class UpsWorklistClient implements WorklistClient, WorkitemClient {
 
   private static final String XML_RESPONSE_CONTENT_TYPE =
       "multipart/related; type=\"application/dicom+xml\"";
+  private static final String XML_REQUEST_CONTENT_TYPE = "application/dicom+xml";
+  private static final int STATUS_REQUEST_TIMEOUT = 408;
+  private static final int STATUS_GONE = 410;
+  private static final String LIMIT = "limit";
+  private static final String OFFSET = "offset";
+  private static final String INCLUDEFIELD_ALL = "all";
+  /** Number of workitems asked for by each query when listing every workitem. */
+  private static final int LIST_PAGE_SIZE = 1000;
+  private static final String WORKITEMS_PATH = "/workitems";
+  /** Well-known SOP Instance UID which subscribes to the events of every workitem. */
+  private static final String GLOBAL_SUBSCRIPTION_UID = "1.2.840.10008.5.1.4.34.5";
+  private static final String DELETION_LOCK = "deletionlock";
+  private static final String CONTENT_LOCATION = "Content-Location";
   // Expected content-type for a JSON response; not currently used.
   // private static final String JSON_RESPONSE_CONTENT_TYPE = "application/dicom+json";
 
   private final HttpRequestFactory requestFactory;
+  private final CancelableConnectionFactory connectionFactory;
 
   UpsWorklistClient() {
-    this(new NetHttpTransport().createRequestFactory(Credentials.getServiceAccountCredentials()));
+    this(new CancelableConnectionFactory());
+  }
+
+  private UpsWorklistClient(CancelableConnectionFactory connectionFactory) {
+    this(
+        new NetHttpTransport.Builder()
+            .setConnectionFactory(connectionFactory)
+            .build()
+            .createRequestFactory(
+                DestinationRateLimiter.forUri(ConfigKey.WORKLIST_URI.getString())
+                    .wrap(Credentials.getServiceAccountCredentials())),
+        connectionFactory);
   }
 
   UpsWorklistClient(HttpRequestFactory requestFactory) {
+    this(requestFactory, new CancelableConnectionFactory());
+  }
+
+  /**
+   * @param connectionFactory opens the connections of the request factory's transport, if it's a
+   *     {@link NetHttpTransport}, so that a canceled query is aborted before its response arrives
+   */
+  UpsWorklistClient(
+      HttpRequestFactory requestFactory, CancelableConnectionFactory connectionFactory) {
     this.requestFactory = checkNotNull(requestFactory);
+    this.connectionFactory = checkNotNull(connectionFactory);
   }
 
   @Override
-  public ImmutableList<Attributes> listWorkitems(Attributes queryParams)
+  public void searchWorkitems(
+      Attributes queryParams, int limit, Cancellation cancellation, ResultHandler handler)
       throws DicomServiceException {
     ImmutableSetMultimap<String, String> translatedParameters;
     try {
@@ -51,25 +107,71 @@ class UpsWorklistClient implements WorklistClient {
           e,
           "Error building query parameters:\n%s",
           queryParams.toString(/* limit */ 1000, /* maxWidth=*/ 1000));
-      return ImmutableList.of();
+      return;
+    }
+    if (cancellation.isCanceled()) {
+      return;
     }
 
-    HttpResponse response;
+    GenericUrl queryUrl = new GenericUrl(ConfigKey.WORKLIST_URI.getString());
+    translatedParameters.asMap().forEach((k, v) -> queryUrl.set(k, Joiner.on(',').join(v)));
+    if (limit > 0) {
+      queryUrl.set(LIMIT, limit);
+    }
     try {
-      GenericUrl queryUrl = new GenericUrl(ConfigKey.WORKLIST_URI.getString());
-      translatedParameters.asMap().forEach((k, v) -> queryUrl.set(k, Joiner.on(',').join(v)));
-      Logging.info("Performing query with URL <%s>", queryUrl);
+      query(queryUrl, cancellation, handler);
+    } catch (IOException e) {
+      if (cancellation.isCanceled()) {
+        // The response was disconnected mid-read.
+        return;
+      }
+      // Including errors from the handler, such as a failure to pass results on.
+      Logging.error(e, "Error performing UPS-RS query");
+      throw new DicomServiceException(Status.ProcessingFailure, "Error performing UPS-RS query");
+    }
+  }
 
-      HttpRequest getRequest = requestFactory.buildGetRequest(queryUrl);
-      // Tell the server we want to get back XML results and not JSON.
-      getRequest.getHeaders().setAccept(XML_RESPONSE_CONTENT_TYPE);
+  @Override
+  public void listAllWorkitems(ResultHandler handler) throws IOException {
+    for (int offset = 0; ; offset += LIST_PAGE_SIZE) {
+      GenericUrl pageUrl = new GenericUrl(ConfigKey.WORKLIST_URI.getString());
+      pageUrl.set(WorklistQueryTranslator.INCLUDEFIELD, INCLUDEFIELD_ALL);
+      pageUrl.set(OFFSET, offset);
+      pageUrl.set(LIMIT, LIST_PAGE_SIZE);
+      AtomicInteger results = new AtomicInteger();
+      query(
+          pageUrl,
+          new Cancellation(),
+          workitem -> {
+            results.incrementAndGet();
+            handler.onResult(workitem);
+          });
+      // A service which ignores the limit returns every workitem at once.
+      if (results.get() != LIST_PAGE_SIZE) {
+        return;
+      }
+    }
+  }
 
-      response = getRequest.execute();
+  /** Performs a query, passing each result to the handler as it's parsed. */
+  private void query(GenericUrl queryUrl, Cancellation cancellation, ResultHandler handler)
+      throws IOException {
+    Logging.info("Performing query with URL <%s>", queryUrl);
+    FlightEvents.UpsRsQuery event = new FlightEvents.UpsRsQuery();
+    event.begin();
+    HttpRequest getRequest = requestFactory.buildGetRequest(queryUrl);
+    // Tell the server we want to get back XML results and not JSON.
+    getRequest.getHeaders().setAccept(XML_RESPONSE_CONTENT_TYPE);
+    HttpResponse response = connectionFactory.execute(getRequest, "ups-rs.query", cancellation);
+    event.statusCode = response.getStatusCode();
 
+    // Disconnecting unblocks the parser, which is reading the response, so that it stops at once.
+    cancellation.setAbortAction(() -> disconnect(response));
+    try {
       if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_NO_CONTENT) {
         // 204 means we don't need to know or care about the actual response body, since there are
         // no (more?) results.
-        return ImmutableList.of();
+        return;
       }
 
       if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_OK) {
@@ -78,11 +180,180 @@ class UpsWorklistClient implements WorklistClient {
             response.getStatusCode(), response.parseAsString());
       }
 
-      return UpsWorklistResponseParser.parseUpsResponseToMwl(
-          response.getContentType(), response.getContent());
+      UpsWorklistResponseParser.parseUpsResponseToMwl(
+          response.getContentType(), response.getContent(), cancellation, handler);
+    } finally {
+      cancellation.setAbortAction(null);
+      disconnect(response);
+      event.end();
+      if (event.shouldCommit()) {
+        event.url = queryUrl.build();
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  @Nullable
+  public Attributes retrieveWorkitem(String workitemUid) throws IOException {
+    HttpRequest getRequest =
+        requestFactory.buildGetRequest(new GenericUrl(getWorkitemUrl(workitemUid)));
+    getRequest.getHeaders().setAccept(XML_RESPONSE_CONTENT_TYPE);
+    // Error statuses are handled below.
+    getRequest.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = Tracing.execute(getRequest, "ups-rs.retrieve");
+    try {
+      int statusCode = response.getStatusCode();
+      if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_FOUND || statusCode == STATUS_GONE) {
+        return null;
+      }
+      if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
+        throw new IOException(
+            String.format(
+                "Error retrieving workitem %s - received status %s: %s",
+                workitemUid, statusCode, response.parseAsString()));
+      }
+      ImmutableList<Attributes> workitems =
+          UpsWorklistResponseParser.parseUpsResponseToMwl(
+              response.getContentType(), response.getContent());
+      return workitems.isEmpty() ? null : workitems.get(0);
+    } finally {
+      disconnect(response);
+    }
+  }
+
+  @Override
+  public UpsEventChannel openEventChannel(String aeTitle, UpsEventChannel.Listener listener)
+      throws IOException {
+    GenericUrl subscribeUrl =
+        new GenericUrl(getWorkitemUrl(GLOBAL_SUBSCRIPTION_UID) + "/subscribers/" + aeTitle);
+    subscribeUrl.set(DELETION_LOCK, false);
+    Logging.info("Subscribing to worklist events as %s", aeTitle);
+    HttpHeaders headers =
+        execute(
+            requestFactory.buildPostRequest(subscribeUrl, new EmptyContent()),
+            "subscribing to worklist events");
+
+    // The service may say where the channel is; otherwise it's at the standard location.
+    String channelUrl = headers.getFirstHeaderStringValue(CONTENT_LOCATION);
+    if (channelUrl == null) {
+      channelUrl = getServiceUrl() + "/subscribers/" + aeTitle;
+    }
+    return UpsEventChannel.open(
+        URI.create(toWebSocketUrl(channelUrl)), getAuthorization(subscribeUrl), listener);
+  }
+
+  /** Returns the URL of the service the worklist belongs to, that is, without "/workitems". */
+  private static String getServiceUrl() {
+    String worklistUri = ConfigKey.WORKLIST_URI.getString();
+    if (worklistUri.endsWith("/")) {
+      worklistUri = worklistUri.substring(0, worklistUri.length() - 1);
+    }
+    return worklistUri.endsWith(WORKITEMS_PATH)
+        ? worklistUri.substring(0, worklistUri.length() - WORKITEMS_PATH.length())
+        : worklistUri;
+  }
+
+  private static String toWebSocketUrl(String url) {
+    if (url.startsWith("https:")) {
+      return "wss:" + url.substring("https:".length());
+    }
+    if (url.startsWith("http:")) {
+      return "ws:" + url.substring("http:".length());
+    }
+    return url;
+  }
+
+  /**
+   * Returns the Authorization header which requests to the service are sent with, for opening an
+   * event channel, which isn't made through the request factory.
+   */
+  @Nullable
+  private String getAuthorization(GenericUrl url) throws IOException {
+    HttpRequest request = requestFactory.buildGetRequest(url);
+    if (request.getInterceptor() != null) {
+      request.getInterceptor().intercept(request);
+    }
+    return request.getHeaders().getAuthorization();
+  }
+
+  private static void disconnect(HttpResponse response) {
+    try {
+      response.disconnect();
     } catch (IOException e) {
-      Logging.error(e, "Error performing UPS-RS query");
-      throw new DicomServiceException(Status.ProcessingFailure, "Error performing UPS-RS query");
+      Logging.error(e, "Error disconnecting UPS-RS query");
+    }
+  }
+
+  @Override
+  public void changeWorkitemState(String workitemUid, String state, String transactionUid)
+      throws IOException {
+    Attributes stateChange = new Attributes();
+    stateChange.setString(Tag.TransactionUID, VR.UI, transactionUid);
+    stateChange.setString(Tag.ProcedureStepState, VR.CS, state);
+
+    GenericUrl stateUrl = new GenericUrl(getWorkitemUrl(workitemUid) + "/state");
+    Logging.info("Changing state of workitem %s to %s", workitemUid, state);
+    execute(
+        requestFactory.buildPutRequest(stateUrl, toXmlContent(stateChange)),
+        "changing state of workitem " + workitemUid);
+  }
+
+  @Override
+  public void updateWorkitem(String workitemUid, String transactionUid, Attributes changes)
+      throws IOException {
+    // The Transaction UID is the query string itself, rather than a named parameter.
+    GenericUrl updateUrl = new GenericUrl(getWorkitemUrl(workitemUid) + "?" + transactionUid);
+    Logging.info("Updating workitem %s", workitemUid);
+    execute(
+        requestFactory.buildPostRequest(updateUrl, toXmlContent(changes)),
+        "updating workitem " + workitemUid);
+  }
+
+  private static String getWorkitemUrl(String workitemUid) {
+    String worklistUri = ConfigKey.WORKLIST_URI.getString();
+    return (worklistUri.endsWith("/") ? worklistUri : worklistUri + "/") + workitemUid;
+  }
+
+  /**
+   * Executes a workitem request, returning the headers of its response. Throttling, timeouts and
+   * server errors may be retried; other errors mean that the service refused the request.
+   */
+  private static HttpHeaders execute(HttpRequest request, String description)
+      throws IOException {
+    // Error statuses are handled below.
+    request.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = Tracing.execute(request, "ups-rs." + request.getRequestMethod());
+    try {
+      int statusCode = response.getStatusCode();
+      if (HttpStatusCodes.isSuccess(statusCode)) {
+        return response.getHeaders();
+      }
+      String message =
+          String.format(
+              "Error %s - received status %s: %s",
+              description, statusCode, response.parseAsString());
+      if (RetryAfter.isThrottled(statusCode)
+          || statusCode == STATUS_REQUEST_TIMEOUT
+          || statusCode >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR) {
+        throw new IOException(message);
+      }
+      throw new RejectedException(message);
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private static HttpContent toXmlContent(Attributes attributes) throws IOException {
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    try {
+      TransformerHandler handler =
+          ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+      handler.setResult(new StreamResult(xml));
+      new SAXWriter(handler).write(attributes);
+    } catch (TransformerConfigurationException | SAXException e) {
+      throw new IOException("Unable to encode request as DICOM XML", e);
     }
+    return new ByteArrayContent(XML_REQUEST_CONTENT_TYPE, xml.toByteArray());
   }
 }
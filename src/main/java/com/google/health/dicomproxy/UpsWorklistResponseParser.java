@@ -23,6 +23,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -50,6 +51,49 @@ final class UpsWorklistResponseParser {
    */
   static final ImmutableList<Attributes> parseUpsResponseToMwl(
       String contentType, InputStream input) throws IOException {
+    ImmutableList.Builder<Attributes> resultBuilder = ImmutableList.builder();
+    parseUpsResponseToMwl(contentType, input, new Cancellation(), resultBuilder::add);
+    return resultBuilder.build();
+  }
+
+  /**
+   * Extracts and parses a worklist-query response, passing each work-item to the handler as soon as
+   * it's parsed. Parsing stops, without error, once the query is canceled, including when the input
+   * is closed because of it.
+   *
+   * @param contentType specifies the Content-Type of the HTTP response to be parsed
+   * @param input input stream to consume data from
+   */
+  static void parseUpsResponseToMwl(
+      String contentType,
+      InputStream input,
+      Cancellation cancellation,
+      WorklistClient.ResultHandler handler)
+      throws IOException {
+    parseMultipartXml(
+        contentType,
+        input,
+        cancellation,
+        parsed -> {
+          convertUpsResponseToMwl(parsed);
+          handler.onResult(parsed);
+        });
+  }
+
+  /**
+   * Extracts and parses a DICOMweb response of DICOM XML parts, such as a QIDO-RS response, passing
+   * each part to the handler as soon as it's parsed. Parsing stops, without error, once the query
+   * is canceled, including when the input is closed because of it.
+   *
+   * @param contentType specifies the Content-Type of the HTTP response to be parsed
+   * @param input input stream to consume data from
+   */
+  static void parseMultipartXml(
+      String contentType,
+      InputStream input,
+      Cancellation cancellation,
+      WorklistClient.ResultHandler handler)
+      throws IOException {
     MediaType mediaType = MediaType.parse(contentType);
     checkArgument(
         "multipart/related".equals(mediaType.type() + "/" + mediaType.subtype()),
@@ -59,34 +103,45 @@ final class UpsWorklistResponseParser {
     String boundary = Iterables.getOnlyElement(mediaType.parameters().get("boundary"));
     checkArgument(!Strings.isNullOrEmpty(boundary));
 
-    // Wrap in a buffered stream so we can peek ahead to see if the response is empty.
-    BufferedInputStream bufferedWrapper = new BufferedInputStream(input);
-    bufferedWrapper.mark(1);
-    if (bufferedWrapper.read() == -1) {
-      return ImmutableList.of();
-    }
-    bufferedWrapper.reset();
-
-
-    ImmutableList.Builder<Attributes> resultBuilder = ImmutableList.builder();
-    new MultipartParser(boundary)
-        .parse(
-            bufferedWrapper,
-            (unusedPartNumber, partStream) -> {
-              try {
-                Attributes parsed = parseXmlPart(partStream);
-                convertUpsResponseToMwl(parsed);
-                resultBuilder.add(parsed);
-              } catch (Exception e) {
-                Logging.error(e, "Error parsing response");
-                throw new RuntimeException("Failed to parse", e);
-              }
-            });
+    try {
+      // Wrap in a buffered stream so we can peek ahead to see if the response is empty.
+      BufferedInputStream bufferedWrapper = new BufferedInputStream(input);
+      bufferedWrapper.mark(1);
+      if (bufferedWrapper.read() == -1) {
+        return;
+      }
+      bufferedWrapper.reset();
 
-    return resultBuilder.build();
+      new MultipartParser(boundary)
+          .parse(
+              bufferedWrapper,
+              (unusedPartNumber, partStream) -> {
+                if (cancellation.isCanceled()) {
+                  throw new InterruptedIOException("Query was canceled");
+                }
+                Attributes parsed;
+                try {
+                  parsed = parseXmlPart(partStream);
+                } catch (Exception e) {
+                  if (cancellation.isCanceled()) {
+                    // The input was closed mid-part.
+                    throw new InterruptedIOException("Query was canceled");
+                  }
+                  Logging.error(e, "Error parsing response");
+                  throw new RuntimeException("Failed to parse", e);
+                }
+                handler.onResult(parsed);
+              });
+    } catch (IOException e) {
+      if (!cancellation.isCanceled()) {
+        throw e;
+      }
+    }
   }
 
   private static Attributes parseXmlPart(InputStream inputStream) throws Exception {
+    FlightEvents.XmlPartParse event = new FlightEvents.XmlPartParse();
+    event.begin();
     String fullStr =
         CharStreams.toString(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
     List<String> lines = Splitter.on("\r\n").splitToList(fullStr);
@@ -130,6 +185,12 @@ final class UpsWorklistResponseParser {
         new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8)),
         new ContentHandlerAdapter(attributes));
 
+    event.end();
+    if (event.shouldCommit()) {
+      event.characters = fullStr.length();
+      event.attributes = attributes.size();
+      event.commit();
+    }
     return attributes;
   }
 
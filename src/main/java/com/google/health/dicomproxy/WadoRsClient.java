@@ -0,0 +1,309 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.MediaType;
+import com.google.health.dicomproxy.Configuration.ConfigKey;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.mime.MultipartParser;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Retrieves studies, series and instances with WADO-RS, as multipart responses of DICOM files.
+ *
+ * <p>Instances are passed on as their parts are read, so a study is never held in memory. Instances
+ * are asked for in the transfer syntax they were stored in, so that they aren't transcoded
+ * upstream. Complete responses may be kept in a {@link RetrieveCache}, keyed by their URL, so that
+ * the same study, series or instance retrieved again is read from disk instead.
+ */
+final class WadoRsClient implements RetrieveClient {
+
+  private static final String DICOM_RESPONSE_CONTENT_TYPE =
+      "multipart/related; type=\"application/dicom\"; transfer-syntax=*";
+  private static final MediaType DICOM_PART_TYPE = MediaType.create("application", "dicom");
+
+  /** Subfolder of the temp folder in which responses are cached. */
+  private static final String CACHE_FOLDER = "retrieve-cache";
+
+  private static final String STUDIES_PATH = "studies";
+  private static final String SERIES_PATH = "series";
+  private static final String INSTANCES_PATH = "instances";
+
+  private final HttpRequestFactory requestFactory;
+  private final String serviceUri;
+  @Nullable private final RetrieveCache cache;
+
+  /** @throws IOException if the cache folder can't be created */
+  WadoRsClient() throws IOException {
+    this(
+        new NetHttpTransport()
+            .createRequestFactory(
+                DestinationRateLimiter.forUri(ConfigKey.WADO_URI.getString())
+                    .wrap(Credentials.getServiceAccountCredentials())),
+        ConfigKey.WADO_URI.getString(),
+        openCache());
+  }
+
+  /**
+   * @param serviceUri root of the WADO-RS service, under which the studies resource is found
+   * @param cache cache of responses, or null to always retrieve them
+   */
+  WadoRsClient(
+      HttpRequestFactory requestFactory, String serviceUri, @Nullable RetrieveCache cache) {
+    this.requestFactory = checkNotNull(requestFactory);
+    this.serviceUri = serviceUri.endsWith("/") ? serviceUri : serviceUri + "/";
+    this.cache = cache;
+  }
+
+  @Nullable
+  private static RetrieveCache openCache() throws IOException {
+    long maxBytes = ConfigKey.RETRIEVE_CACHE_MB.getInt() * 1024L * 1024L;
+    if (maxBytes <= 0) {
+      return null;
+    }
+    return RetrieveCache.open(
+        new File(ConfigKey.TEMP_FOLDER.getString(), CACHE_FOLDER), maxBytes);
+  }
+
+  /**
+   * Returns the paths of the resources to retrieve, relative to the root of the WADO-RS service.
+   * Each UID listed at the Query/Retrieve Level is a separate resource; the UIDs of the levels
+   * above must be single values, as in a Study Root retrieval.
+   *
+   * @throws IllegalArgumentException if the Query/Retrieve Level or the unique keys aren't valid
+   */
+  static ImmutableList<String> buildResourcePaths(Attributes keys) {
+    String level = QidoQueryTranslator.getLevel(keys);
+    int uniqueKey;
+    String prefix;
+    if (level.equals(QidoQueryTranslator.STUDY)) {
+      uniqueKey = Tag.StudyInstanceUID;
+      prefix = STUDIES_PATH + "/";
+    } else {
+      String studyPath = STUDIES_PATH + "/" + getSingleUid(keys, Tag.StudyInstanceUID);
+      if (level.equals(QidoQueryTranslator.SERIES)) {
+        uniqueKey = Tag.SeriesInstanceUID;
+        prefix = studyPath + "/" + SERIES_PATH + "/";
+      } else {
+        uniqueKey = Tag.SOPInstanceUID;
+        String seriesUid = getSingleUid(keys, Tag.SeriesInstanceUID);
+        prefix = studyPath + "/" + SERIES_PATH + "/" + seriesUid + "/" + INSTANCES_PATH + "/";
+      }
+    }
+    String[] uids = keys.getStrings(uniqueKey);
+    checkArgument(uids != null && uids.length > 0, "Missing unique key %08X", uniqueKey);
+    ImmutableList.Builder<String> paths = ImmutableList.builder();
+    for (String uid : uids) {
+      checkArgument(!Strings.isNullOrEmpty(uid), "Empty unique key %08X", uniqueKey);
+      paths.add(prefix + uid);
+    }
+    return paths.build();
+  }
+
+  private static String getSingleUid(Attributes keys, int tag) {
+    String[] uids = keys.getStrings(tag);
+    checkArgument(
+        uids != null && uids.length == 1 && !Strings.isNullOrEmpty(uids[0]),
+        "Expected a single UID in %08X",
+        tag);
+    return uids[0];
+  }
+
+  @Override
+  public void retrieve(Attributes keys, Cancellation cancellation, InstanceHandler handler)
+      throws DicomServiceException {
+    ImmutableList<String> paths;
+    try {
+      paths = buildResourcePaths(keys);
+    } catch (IllegalArgumentException e) {
+      throw new DicomServiceException(Status.IdentifierDoesNotMatchSOPClass, e.getMessage());
+    }
+    try {
+      for (String path : paths) {
+        if (cancellation.isCanceled()) {
+          return;
+        }
+        retrieveResource(serviceUri + path, cancellation, handler);
+      }
+    } catch (IOException e) {
+      if (cancellation.isCanceled()) {
+        // The response was disconnected mid-read.
+        return;
+      }
+      // Including errors from the handler, such as a failure to pass instances on.
+      Logging.error(e, "Error performing WADO-RS retrieval");
+      throw new DicomServiceException(
+          Status.UnableToPerformSubOperations, "Error performing WADO-RS retrieval");
+    }
+  }
+
+  private void retrieveResource(
+      String resourceUrl, Cancellation cancellation, InstanceHandler handler) throws IOException {
+    RetrieveCache.Response cached = cache == null ? null : cache.get(resourceUrl);
+    if (cached != null) {
+      Logging.info("Retrieving <%s> from cache", resourceUrl);
+      try (InputStream content = cached.getContent()) {
+        parseMultipart(cached.getContentType(), content, cancellation, handler);
+      }
+      return;
+    }
+
+    Logging.info("Retrieving <%s>", resourceUrl);
+    HttpRequest getRequest = requestFactory.buildGetRequest(new GenericUrl(resourceUrl));
+    getRequest.getHeaders().setAccept(DICOM_RESPONSE_CONTENT_TYPE);
+    // Error statuses are handled below.
+    getRequest.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = getRequest.execute();
+
+    // Disconnecting unblocks the parser, which is reading the response, so that it stops at once.
+    cancellation.setAbortAction(() -> disconnect(response));
+    try {
+      int statusCode = response.getStatusCode();
+      if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_FOUND
+          || statusCode == HttpStatusCodes.STATUS_CODE_NO_CONTENT) {
+        Logging.info("Nothing found at <%s>", resourceUrl);
+        return;
+      }
+      if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
+        throw new IOException(
+            String.format(
+                "Error retrieving <%s> - received status %s: %s",
+                resourceUrl, statusCode, response.getStatusMessage()));
+      }
+      if (cache == null) {
+        parseMultipart(response.getContentType(), response.getContent(), cancellation, handler);
+        return;
+      }
+      try (RetrieveCache.Writer writer =
+          cache.newWriter(resourceUrl, response.getContentType())) {
+        parseMultipart(
+            response.getContentType(),
+            new CopyingInputStream(response.getContent(), writer),
+            cancellation,
+            handler);
+        if (!cancellation.isCanceled()) {
+          writer.commit();
+        }
+      }
+    } finally {
+      cancellation.setAbortAction(null);
+      disconnect(response);
+    }
+  }
+
+  /** Parses a multipart response of DICOM files, passing each to the handler. */
+  private static void parseMultipart(
+      String contentType, InputStream input, Cancellation cancellation, InstanceHandler handler)
+      throws IOException {
+    MediaType mediaType = MediaType.parse(contentType);
+    if (!"multipart/related".equals(mediaType.type() + "/" + mediaType.subtype())) {
+      throw new IOException("Unsupported media-type " + contentType);
+    }
+    String boundary = Iterables.getOnlyElement(mediaType.parameters().get("boundary"), null);
+    if (Strings.isNullOrEmpty(boundary)) {
+      throw new IOException("Missing boundary in " + contentType);
+    }
+
+    new MultipartParser(boundary)
+        .parse(
+            input,
+            (partNumber, partStream) -> {
+              if (cancellation.isCanceled()) {
+                throw new InterruptedIOException("Retrieval was canceled");
+              }
+              String partType = getContentType(partStream.readHeaderParams());
+              if (partType == null || !MediaType.parse(partType).is(DICOM_PART_TYPE)) {
+                throw new IOException(
+                    "Cannot handle Content-Type '" + partType + "' of part " + partNumber);
+              }
+              handler.onInstance(partStream);
+              // The rest of the part is read, so that the whole response may be cached.
+              ByteStreams.exhaust(partStream);
+            });
+  }
+
+  @Nullable
+  private static String getContentType(Map<String, List<String>> headers) {
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (header.getKey().equalsIgnoreCase("content-type") && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  private static void disconnect(HttpResponse response) {
+    try {
+      response.disconnect();
+    } catch (IOException e) {
+      Logging.error(e, "Error disconnecting WADO-RS retrieval");
+    }
+  }
+
+  /** Copies what's read from a response to a cache entry. */
+  private static final class CopyingInputStream extends FilterInputStream {
+    private final RetrieveCache.Writer writer;
+
+    CopyingInputStream(InputStream in, RetrieveCache.Writer writer) {
+      super(in);
+      this.writer = writer;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        writer.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        writer.write(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes are read, so that they're copied too.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import java.io.IOException;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+
+/**
+ * Interface to decouple the MPPS SCP and the worklist cache from the DICOMweb UPS-RS workitem
+ * client.
+ */
+public interface WorkitemClient {
+  /**
+   * Performs a RetrieveWorkitem request, returning the workitem converted to MWL form, as with
+   * {@link WorklistClient#searchWorkitems}, or null if it doesn't exist.
+   *
+   * @throws IOException if the request failed
+   */
+  @Nullable
+  Attributes retrieveWorkitem(String workitemUid) throws IOException;
+
+  /**
+   * Performs SearchForWorkitems queries for every workitem, with all of their attributes, passing
+   * each one to the handler converted to MWL form.
+   *
+   * @throws IOException if a query failed, or the handler did
+   */
+  void listAllWorkitems(WorklistClient.ResultHandler handler) throws IOException;
+
+  /**
+   * Performs a Subscribe request for the events of every workitem, and opens the event channel on
+   * which they're sent.
+   *
+   * @param aeTitle the AE title the subscription is made for
+   * @throws IOException if the subscription was refused, or the channel couldn't be opened
+   */
+  UpsEventChannel openEventChannel(String aeTitle, UpsEventChannel.Listener listener)
+      throws IOException;
+
+  /**
+   * Performs a ChangeWorkitemState request.
+   *
+   * @param state the new Procedure Step State, such as "IN PROGRESS"
+   * @param transactionUid the Transaction UID with which the workitem is (or is being) claimed
+   * @throws RejectedException if the service refused the change
+   * @throws IOException if the request failed, and may be retried
+   */
+  void changeWorkitemState(String workitemUid, String state, String transactionUid)
+      throws IOException;
+
+  /**
+   * Performs an UpdateWorkitem request.
+   *
+   * @param transactionUid the Transaction UID with which the workitem was claimed
+   * @param changes the attributes to set on the workitem
+   * @throws RejectedException if the service refused the change
+   * @throws IOException if the request failed, and may be retried
+   */
+  void updateWorkitem(String workitemUid, String transactionUid, Attributes changes)
+      throws IOException;
+
+  /** Thrown when the service refuses a change, which retrying won't help with. */
+  final class RejectedException extends IOException {
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+}
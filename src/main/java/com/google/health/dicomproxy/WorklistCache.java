@@ -0,0 +1,246 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+
+/**
+ * Worklist kept up to date by the events of a UPS-RS subscription, which answers queries without
+ * querying the upstream service.
+ *
+ * <p>Every workitem is fetched once the cache has subscribed. From then on, each event names a
+ * workitem which was created or changed, and only that workitem is fetched again. Workitems which
+ * are completed or canceled are dropped, as the service may delete them too. Events are applied one
+ * at a time on the cache's executor, after any fetch of every workitem which was started before
+ * them.
+ *
+ * <p>If the event channel is closed, or stops answering pings, the cache falls back to fetching
+ * every workitem periodically, while it tries to subscribe again. Until the first fetch succeeds,
+ * queries are passed through to the upstream service.
+ */
+final class WorklistCache implements WorklistClient {
+
+  private static final String COMPLETED = "COMPLETED";
+  private static final String CANCELED = "CANCELED";
+
+  private final WorklistClient upstream;
+  private final WorkitemClient workitemClient;
+  private final String aeTitle;
+  private final ScheduledExecutorService executor;
+  private final Duration resyncInterval;
+
+  // Workitems by SOP Instance UID, or null until first fetched. Replaced by each resync, and
+  // changed in place by events, on the executor; read by queries.
+  @Nullable private volatile ConcurrentHashMap<String, Attributes> workitems;
+
+  // Only accessed on the executor.
+  @Nullable private UpsEventChannel channel;
+  @Nullable private ChannelListener channelListener;
+  private boolean resyncNeeded = false;
+
+  /**
+   * @param upstream client which queries are passed through to until the cache is filled
+   * @param workitemClient client which workitems and their events are fetched with
+   * @param aeTitle AE title the subscription is made for
+   * @param executor single-threaded executor on which the cache is kept up to date
+   * @param resyncInterval interval at which the event channel is checked, and at which every
+   *     workitem is fetched while the channel is closed
+   */
+  WorklistCache(
+      WorklistClient upstream,
+      WorkitemClient workitemClient,
+      String aeTitle,
+      ScheduledExecutorService executor,
+      Duration resyncInterval) {
+    this.upstream = checkNotNull(upstream);
+    this.workitemClient = checkNotNull(workitemClient);
+    this.aeTitle = checkNotNull(aeTitle);
+    this.executor = checkNotNull(executor);
+    this.resyncInterval = checkNotNull(resyncInterval);
+  }
+
+  /** Subscribes and fills the cache in the background. */
+  void start() {
+    @SuppressWarnings("unused")
+    Future<?> unused =
+        executor.scheduleWithFixedDelay(
+            this::refresh, 0, resyncInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void searchWorkitems(
+      Attributes queryParams, int limit, Cancellation cancellation, ResultHandler handler)
+      throws DicomServiceException {
+    ConcurrentHashMap<String, Attributes> current = workitems;
+    if (current == null) {
+      upstream.searchWorkitems(queryParams, limit, cancellation, handler);
+      return;
+    }
+
+    // The character set isn't a matching key, and cached workitems may not have one.
+    Attributes keys = new Attributes(queryParams);
+    keys.remove(Tag.SpecificCharacterSet);
+    int matches = 0;
+    for (Attributes workitem : current.values()) {
+      if (cancellation.isCanceled()) {
+        return;
+      }
+      if (!workitem.matches(keys, /* ignorePNCase= */ true, /* matchNoValue= */ false)) {
+        continue;
+      }
+      try {
+        // Cached workitems are never changed, only replaced.
+        handler.onResult(new Attributes(workitem));
+      } catch (IOException e) {
+        Logging.error(e, "Error passing on cached worklist matches");
+        throw new DicomServiceException(
+            Status.ProcessingFailure, "Error passing on cached worklist matches");
+      }
+      if (++matches == limit) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Checks the event channel, and if it isn't open, subscribes again and fetches every workitem.
+   */
+  private void refresh() {
+    try {
+      if (channel != null && !channel.checkAlive()) {
+        channel = null;
+        channelListener = null;
+      }
+      if (channel != null && !resyncNeeded) {
+        // Events keep the cache up to date.
+        return;
+      }
+      if (channel == null) {
+        subscribe();
+      }
+      resync();
+    } catch (RuntimeException e) {
+      // Later refreshes would be cancelled by an exception.
+      Logging.error(e, "Error refreshing worklist cache");
+    }
+  }
+
+  private void subscribe() {
+    ChannelListener listener = new ChannelListener();
+    try {
+      channel = workitemClient.openEventChannel(aeTitle, listener);
+      channelListener = listener;
+    } catch (IOException e) {
+      Logging.error(
+          e,
+          "Error subscribing to worklist events; fetching the worklist every %s seconds",
+          resyncInterval.getSeconds());
+    }
+  }
+
+  /** Replaces the cached workitems with every workitem from the upstream service. */
+  private void resync() {
+    ConcurrentHashMap<String, Attributes> fetched = new ConcurrentHashMap<>();
+    try {
+      workitemClient.listAllWorkitems(
+          workitem -> {
+            String workitemUid = workitem.getString(Tag.SOPInstanceUID);
+            if (workitemUid != null && !isFinal(workitem.getString(Tag.ProcedureStepState))) {
+              fetched.put(workitemUid, workitem);
+            }
+          });
+    } catch (IOException e) {
+      Logging.error(
+          e,
+          "Error fetching worklist; %s",
+          workitems == null ? "passing queries through" : "keeping the cached worklist");
+      resyncNeeded = true;
+      return;
+    }
+    workitems = fetched;
+    resyncNeeded = false;
+    Logging.info("Fetched %d workitems into the worklist cache", fetched.size());
+  }
+
+  private void apply(String message) {
+    UpsEvent event;
+    try {
+      event = UpsEvent.parse(message);
+    } catch (IOException e) {
+      Logging.error(e, "Ignoring malformed worklist event:\n%s", message);
+      return;
+    }
+    if (event.getEventTypeId() == UpsEvent.SCP_STATUS_CHANGE) {
+      // The service may have restarted, and lost events.
+      Logging.info("Worklist service status changed; fetching the worklist");
+      resync();
+      return;
+    }
+
+    ConcurrentHashMap<String, Attributes> current = workitems;
+    if (current == null) {
+      // The next resync fetches the workitem along with the others.
+      return;
+    }
+    String workitemUid = event.getWorkitemUid();
+    if (isFinal(event.getProcedureStepState())) {
+      current.remove(workitemUid);
+      return;
+    }
+    Attributes workitem;
+    try {
+      workitem = workitemClient.retrieveWorkitem(workitemUid);
+    } catch (IOException e) {
+      Logging.error(e, "Error fetching workitem %s; the worklist will be fetched", workitemUid);
+      resyncNeeded = true;
+      return;
+    }
+    if (workitem == null || isFinal(workitem.getString(Tag.ProcedureStepState))) {
+      current.remove(workitemUid);
+    } else {
+      current.put(workitemUid, workitem);
+    }
+  }
+
+  private static boolean isFinal(@Nullable String procedureStepState) {
+    return COMPLETED.equals(procedureStepState) || CANCELED.equals(procedureStepState);
+  }
+
+  /** Passes the events of one channel to the executor. */
+  private final class ChannelListener implements UpsEventChannel.Listener {
+    @Override
+    public void onEvent(String message) {
+      executor.execute(() -> apply(message));
+    }
+
+    @Override
+    public void onClosed(@Nullable Throwable error) {
+      executor.execute(
+          () -> {
+            // A channel replaced by a newer one is ignored.
+            if (channelListener == this) {
+              Logging.info(
+                  "Worklist event channel closed; fetching the worklist every %s seconds",
+                  resyncInterval.getSeconds());
+              channel = null;
+              channelListener = null;
+            }
+          });
+    }
+  }
+}
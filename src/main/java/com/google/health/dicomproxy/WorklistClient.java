@@ -6,6 +6,7 @@
 package com.google.health.dicomproxy;
 
 import com.google.common.collect.ImmutableList;
+import java.io.IOException;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.net.service.DicomServiceException;
 
@@ -16,5 +17,28 @@ public interface WorklistClient {
    *
    * @param queryParams Specifies keys to match on and/or include in the search results.
    */
-  ImmutableList<Attributes> listWorkitems(Attributes queryParams) throws DicomServiceException;
+  default ImmutableList<Attributes> listWorkitems(Attributes queryParams)
+      throws DicomServiceException {
+    ImmutableList.Builder<Attributes> results = ImmutableList.builder();
+    searchWorkitems(queryParams, /* limit= */ 0, new Cancellation(), results::add);
+    return results.build();
+  }
+
+  /**
+   * Performs a SearchForWorkitems query, passing each result to the handler as soon as it's parsed.
+   * If the query is canceled, the upstream request is aborted, and this returns without error.
+   *
+   * @param queryParams Specifies keys to match on and/or include in the search results.
+   * @param limit Maximum number of results the upstream service should return, or zero for no
+   *     limit.
+   * @throws DicomServiceException if the query failed, or the handler did
+   */
+  void searchWorkitems(
+      Attributes queryParams, int limit, Cancellation cancellation, ResultHandler handler)
+      throws DicomServiceException;
+
+  /** Receives the results of a query as they're parsed. */
+  interface ResultHandler {
+    void onResult(Attributes result) throws IOException;
+  }
 }
@@ -0,0 +1,67 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+
+/**
+ * Maximum number of worklist matches returned to each calling AE title.
+ *
+ * <p>Limits are given as {@code <ae-title>=<count>} entries separated by commas, where {@code *}
+ * stands for AE titles without an entry of their own, as in {@code *=500,CT1=200}. AE titles
+ * without a limit, and a limit of zero, are unlimited.
+ */
+final class WorklistMatchLimits {
+  private static final String ALL_AE_TITLES = "*";
+
+  private final ImmutableMap<String, Integer> limitsByAeTitle;
+
+  WorklistMatchLimits(ImmutableMap<String, Integer> limitsByAeTitle) {
+    this.limitsByAeTitle = checkNotNull(limitsByAeTitle);
+  }
+
+  /**
+   * Parses limits from their configured form; an empty string has no limits.
+   *
+   * @throws IllegalArgumentException if the limits aren't valid
+   */
+  static WorklistMatchLimits parse(String limits) {
+    ImmutableMap.Builder<String, Integer> limitsByAeTitle = ImmutableMap.builder();
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(limits)) {
+      List<String> parts = Splitter.on('=').trimResults().splitToList(entry);
+      if (parts.size() != 2 || parts.get(0).isEmpty()) {
+        throw new IllegalArgumentException(
+            String.format("Expected <ae-title>=<count>: '%s'", entry));
+      }
+      int limit;
+      try {
+        limit = Integer.parseInt(parts.get(1));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+            String.format("Invalid limit for %s: '%s'", parts.get(0), parts.get(1)), e);
+      }
+      if (limit < 0) {
+        throw new IllegalArgumentException(
+            String.format("Limit for %s must not be negative", parts.get(0)));
+      }
+      limitsByAeTitle.put(parts.get(0), limit);
+    }
+    return new WorklistMatchLimits(limitsByAeTitle.build());
+  }
+
+  /** Returns the maximum number of matches for a calling AE title, or zero if unlimited. */
+  int getLimit(String callingAeTitle) {
+    Integer limit = limitsByAeTitle.get(callingAeTitle);
+    if (limit == null) {
+      limit = limitsByAeTitle.getOrDefault(ALL_AE_TITLES, 0);
+    }
+    return limit;
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link AimdConcurrencyLimit}. */
+@RunWith(JUnit4.class)
+public final class AimdConcurrencyLimitTest {
+  private static final long LATENCY = 1_000_000;
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void successes_increaseLimitAdditively() {
+    AimdConcurrencyLimit limit = new AimdConcurrencyLimit(1, 10, ticker);
+
+    // Each success raises the limit by 1 / limit, so about one per round of `limit` successes.
+    succeed(limit, 1);
+    assertThat(limit.getLimit()).isEqualTo(2);
+    succeed(limit, 3);
+    assertThat(limit.getLimit()).isEqualTo(3);
+  }
+
+  @Test
+  public void limit_staysWithinMaximum() {
+    AimdConcurrencyLimit limit = new AimdConcurrencyLimit(1, 3, ticker);
+
+    succeed(limit, 50);
+
+    assertThat(limit.getLimit()).isEqualTo(3);
+  }
+
+  @Test
+  public void overload_halvesLimitOnce() {
+    AimdConcurrencyLimit limit = new AimdConcurrencyLimit(1, 16, ticker);
+    succeed(limit, 80);
+    assertThat(limit.getLimit()).isEqualTo(12);
+    long startNanos = ticker.read();
+    ticker.advance(LATENCY);
+
+    // Several requests in flight at the same time are throttled, but only count once.
+    limit.onOverload(startNanos);
+    limit.onOverload(startNanos);
+    limit.onOverload(startNanos);
+
+    assertThat(limit.getLimit()).isEqualTo(6);
+  }
+
+  @Test
+  public void overload_doesNotGoBelowMinimum() {
+    AimdConcurrencyLimit limit = new AimdConcurrencyLimit(2, 16, ticker);
+
+    for (int i = 0; i < 5; i++) {
+      ticker.advance(LATENCY);
+      limit.onOverload(ticker.read());
+    }
+
+    assertThat(limit.getLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void risingLatency_decreasesLimit() {
+    AimdConcurrencyLimit limit = new AimdConcurrencyLimit(1, 100, ticker);
+    // The first window of latencies sets the baseline.
+    succeed(limit, 100);
+    int before = limit.getLimit();
+
+    for (int i = 0; i < 100; i++) {
+      ticker.advance(LATENCY);
+      limit.onSuccess(ticker.read(), 10 * LATENCY);
+    }
+
+    assertThat(limit.getLimit()).isLessThan(before);
+  }
+
+  private void succeed(AimdConcurrencyLimit limit, int count) {
+    for (int i = 0; i < count; i++) {
+      ticker.advance(LATENCY);
+      limit.onSuccess(ticker.read(), LATENCY);
+    }
+  }
+}
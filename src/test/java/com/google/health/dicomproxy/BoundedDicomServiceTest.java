@@ -0,0 +1,143 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.DicomService;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link BoundedDicomService}. */
+@RunWith(JUnit4.class)
+public final class BoundedDicomServiceTest {
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final BlockingService blockingService = new BlockingService();
+
+  @After
+  public void tearDown() {
+    blockingService.release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void requestsBeyondLimit_wait() throws Exception {
+    BoundedDicomService service = new BoundedDicomService(blockingService, 2);
+
+    for (int i = 0; i < 3; i++) {
+      executor.submit(() -> handle(service));
+    }
+    assertThat(blockingService.started.await(5, SECONDS)).isTrue();
+    Thread.sleep(100);
+
+    assertThat(blockingService.inProgress.get()).isEqualTo(2);
+    assertThat(service.getAvailablePermits()).isEqualTo(0);
+  }
+
+  @Test
+  public void waitingRequest_runsOnceAnotherCompletes() throws Exception {
+    BoundedDicomService service = new BoundedDicomService(blockingService, 2);
+    for (int i = 0; i < 3; i++) {
+      executor.submit(() -> handle(service));
+    }
+    assertThat(blockingService.started.await(5, SECONDS)).isTrue();
+
+    blockingService.release.countDown();
+    executor.shutdown();
+
+    assertThat(executor.awaitTermination(5, SECONDS)).isTrue();
+    assertThat(blockingService.handled.get()).isEqualTo(3);
+    assertThat(service.getAvailablePermits()).isEqualTo(2);
+  }
+
+  @Test
+  public void failedRequest_releasesPermit() throws Exception {
+    BoundedDicomService service = new BoundedDicomService(new FailingService(), 1);
+
+    Future<?> result = executor.submit(() -> handle(service));
+
+    try {
+      result.get(5, SECONDS);
+      fail("Expected IOException");
+    } catch (ExecutionException e) {
+      assertThat(e).hasCauseThat().isInstanceOf(IOException.class);
+    }
+    assertThat(service.getAvailablePermits()).isEqualTo(1);
+  }
+
+  private static Void handle(DicomService service) throws IOException {
+    service.onDimseRQ(
+        /* as= */ null, /* pc= */ null, Dimse.C_STORE_RQ, new Attributes(), /* data= */ null);
+    return null;
+  }
+
+  /** Holds every request until released, counting those in progress. */
+  private static final class BlockingService implements DicomService {
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger inProgress = new AtomicInteger();
+    final AtomicInteger handled = new AtomicInteger();
+
+    @Override
+    public String[] getSOPClasses() {
+      return new String[] {"*"};
+    }
+
+    @Override
+    public void onDimseRQ(
+        Association as, PresentationContext pc, Dimse dimse, Attributes cmd, PDVInputStream data)
+        throws IOException {
+      inProgress.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } finally {
+        inProgress.decrementAndGet();
+      }
+      handled.incrementAndGet();
+    }
+
+    @Override
+    public void onClose(Association as) {}
+  }
+
+  /** Fails every request. */
+  private static final class FailingService implements DicomService {
+    @Override
+    public String[] getSOPClasses() {
+      return new String[] {"*"};
+    }
+
+    @Override
+    public void onDimseRQ(
+        Association as, PresentationContext pc, Dimse dimse, Attributes cmd, PDVInputStream data)
+        throws IOException {
+      throw new IOException("Failed");
+    }
+
+    @Override
+    public void onClose(Association as) {}
+  }
+}
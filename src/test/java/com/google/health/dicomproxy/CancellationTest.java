@@ -0,0 +1,50 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link Cancellation}. */
+@RunWith(JUnit4.class)
+public final class CancellationTest {
+  private final Cancellation cancellation = new Cancellation();
+  private final AtomicInteger aborts = new AtomicInteger();
+
+  @Test
+  public void cancel_runsAbortActionOnce() {
+    cancellation.setAbortAction(aborts::incrementAndGet);
+
+    cancellation.cancel();
+    cancellation.cancel();
+
+    assertThat(cancellation.isCanceled()).isTrue();
+    assertThat(aborts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void abortActionSetAfterCancel_runsAtOnce() {
+    cancellation.cancel();
+
+    cancellation.setAbortAction(aborts::incrementAndGet);
+
+    assertThat(aborts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void clearedAbortAction_isNotRun() {
+    cancellation.setAbortAction(aborts::incrementAndGet);
+    cancellation.setAbortAction(null);
+
+    cancellation.cancel();
+
+    assertThat(aborts.get()).isEqualTo(0);
+  }
+}
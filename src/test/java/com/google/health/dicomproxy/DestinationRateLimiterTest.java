@@ -0,0 +1,162 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DestinationRateLimiter}. */
+@RunWith(JUnit4.class)
+public final class DestinationRateLimiterTest {
+  private static final String URL = "https://dicomweb.example.com/studies";
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final Clock clock = Clock.fixed(Instant.parse("2020-06-01T12:00:00Z"), ZoneOffset.UTC);
+  /** Sleeping moves the fake time on, rather than blocking. */
+  private final DestinationRateLimiter.Sleeper sleeper = ticker::advance;
+
+  /** Responses to send, in turn; once they run out, requests succeed. */
+  private final Deque<MockLowLevelHttpResponse> responses = new ArrayDeque<>();
+  /** Time each request was sent at, after it was held back by the limiter. */
+  private final List<Duration> sentAt = new ArrayList<>();
+  private final MockHttpTransport transport =
+      new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+          return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+              // The content is paced as it's written, so it has to be written before the request
+              // counts as sent.
+              getContentAsString();
+              sentAt.add(Duration.ofNanos(ticker.read()));
+              MockLowLevelHttpResponse response = responses.poll();
+              return response != null
+                  ? response
+                  : new MockLowLevelHttpResponse().setStatusCode(HttpStatusCodes.STATUS_CODE_OK);
+            }
+          };
+        }
+      };
+
+  @Test
+  public void throttledResponse_holdsOffRequestsUntilRetryAfter() throws Exception {
+    DestinationRateLimiter limiter = limiter(null, null);
+    responses.add(
+        new MockLowLevelHttpResponse()
+            .setStatusCode(RetryAfter.STATUS_TOO_MANY_REQUESTS)
+            .addHeader(RetryAfter.HEADER, "30"));
+
+    send(limiter, "");
+    assertThat(limiter.getThrottledResponseCount()).isEqualTo(1);
+    assertThat(limiter.getRetryAfterRemainingMillis()).isEqualTo(30_000);
+    send(limiter, "");
+
+    assertThat(sentAt).containsExactly(Duration.ZERO, Duration.ofSeconds(30)).inOrder();
+    assertThat(limiter.getThrottledMillis()).isEqualTo(30_000);
+  }
+
+  @Test
+  public void throttledResponse_withRetryAfterDate_holdsOffUntilThen() throws Exception {
+    DestinationRateLimiter limiter = limiter(null, null);
+    responses.add(
+        new MockLowLevelHttpResponse()
+            .setStatusCode(HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE)
+            .addHeader(RetryAfter.HEADER, "Mon, 01 Jun 2020 12:02:00 GMT"));
+
+    send(limiter, "");
+    send(limiter, "");
+
+    assertThat(sentAt).containsExactly(Duration.ZERO, Duration.ofMinutes(2)).inOrder();
+  }
+
+  @Test
+  public void throttledResponse_withoutRetryAfter_holdsOffForDefaultDelay() throws Exception {
+    DestinationRateLimiter limiter = limiter(null, null);
+    responses.add(
+        new MockLowLevelHttpResponse()
+            .setStatusCode(HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE));
+
+    send(limiter, "");
+    send(limiter, "");
+
+    assertThat(sentAt).containsExactly(Duration.ZERO, RetryAfter.DEFAULT_DELAY).inOrder();
+  }
+
+  @Test
+  public void retryAfter_shorterDelay_doesNotCutHoldOffShort() {
+    DestinationRateLimiter limiter = limiter(null, null);
+
+    limiter.retryAfter(Duration.ofMinutes(1));
+    limiter.retryAfter(Duration.ofSeconds(10));
+
+    assertThat(limiter.getRetryAfterRemainingMillis()).isEqualTo(60_000);
+  }
+
+  @Test
+  public void requests_arePacedAtRequestRate() throws Exception {
+    DestinationRateLimiter limiter = limiter(new TokenBucket(2, 1, ticker), null);
+
+    send(limiter, "");
+    send(limiter, "");
+    send(limiter, "");
+
+    assertThat(sentAt)
+        .containsExactly(Duration.ZERO, Duration.ofMillis(500), Duration.ofSeconds(1))
+        .inOrder();
+  }
+
+  @Test
+  public void content_isWrittenNoFasterThanByteRate() throws Exception {
+    DestinationRateLimiter limiter = limiter(null, new TokenBucket(1000, 1000, ticker));
+
+    // The first second's worth goes out in a burst, and the rest is paced.
+    send(limiter, Strings.repeat("a", 3000));
+    send(limiter, Strings.repeat("b", 1000));
+
+    assertThat(sentAt).containsExactly(Duration.ofSeconds(2), Duration.ofSeconds(3)).inOrder();
+    assertThat(limiter.getThrottledMillis()).isEqualTo(3000);
+  }
+
+  private DestinationRateLimiter limiter(
+      @Nullable TokenBucket requests, @Nullable TokenBucket bytes) {
+    return new DestinationRateLimiter(
+        "dicomweb.example.com", requests, bytes, ticker, clock, sleeper);
+  }
+
+  private void send(DestinationRateLimiter limiter, String content) throws IOException {
+    HttpRequest request =
+        transport
+            .createRequestFactory(limiter.wrap(r -> {}))
+            .buildPostRequest(
+                new GenericUrl(URL), ByteArrayContent.fromString("application/dicom", content));
+    request.setThrowExceptionOnExecuteError(false);
+    request.execute().disconnect();
+  }
+}
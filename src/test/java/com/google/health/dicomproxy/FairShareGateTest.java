@@ -0,0 +1,104 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link FairShareGate}. */
+@RunWith(JUnit4.class)
+public final class FairShareGateTest {
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void acquire_withinLimit_doesNotWait() throws Exception {
+    FairShareGate gate = new FairShareGate(2);
+
+    gate.acquire("CT1");
+    gate.acquire("CT1");
+
+    assertThat(gate.getAvailable()).isEqualTo(0);
+    gate.release();
+    assertThat(gate.getAvailable()).isEqualTo(1);
+  }
+
+  @Test
+  public void waitingPeers_takeTurns() throws Exception {
+    FairShareGate gate = new FairShareGate(1);
+    gate.acquire("busy");
+    // The busy peer queues up three tasks before the quiet one queues its only task.
+    for (int i = 0; i < 3; i++) {
+      startWaiting(gate, "busy");
+    }
+    startWaiting(gate, "quiet");
+
+    for (int i = 1; i <= 4; i++) {
+      gate.release();
+      awaitAdmitted(i);
+    }
+
+    assertThat(admitted).containsExactly("busy", "quiet", "busy", "busy").inOrder();
+  }
+
+  @Test
+  public void interruptedWaiter_givesUpItsPlace() throws Exception {
+    FairShareGate gate = new FairShareGate(1);
+    gate.acquire("CT1");
+    Thread waiter =
+        new Thread(
+            () -> {
+              try {
+                gate.acquire("CT2");
+                admitted.add("CT2");
+              } catch (InterruptedException expected) {
+              }
+            });
+    waiter.start();
+    Thread.sleep(100);
+
+    waiter.interrupt();
+    waiter.join(SECONDS.toMillis(5));
+    gate.release();
+
+    assertThat(admitted).isEmpty();
+    assertThat(gate.getAvailable()).isEqualTo(1);
+  }
+
+  /** Starts a task for the peer, which waits to be admitted. */
+  private void startWaiting(FairShareGate gate, String peer) throws InterruptedException {
+    executor.submit(
+        () -> {
+          gate.acquire(peer);
+          admitted.add(peer);
+          return null;
+        });
+    // Waiting tasks can't be observed, so give each one time to queue up in turn.
+    Thread.sleep(50);
+  }
+
+  private void awaitAdmitted(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + SECONDS.toNanos(5);
+    while (admitted.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+}
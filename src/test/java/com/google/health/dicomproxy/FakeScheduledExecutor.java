@@ -0,0 +1,143 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor whose scheduled tasks run on the time of a {@link FakeTicker}, once it's advanced past
+ * them. Tasks which aren't delayed run straight away, on the calling thread.
+ */
+final class FakeScheduledExecutor extends AbstractExecutorService
+    implements ScheduledExecutorService {
+  private final FakeTicker ticker;
+  /** Guarded by this. */
+  private final List<ScheduledTask<?>> scheduled = new ArrayList<>();
+
+  FakeScheduledExecutor(FakeTicker ticker) {
+    this.ticker = checkNotNull(ticker);
+  }
+
+  /** Advances the ticker, running each task which falls due, in order. */
+  void advance(Duration duration) {
+    long until = ticker.read() + duration.toNanos();
+    while (true) {
+      ScheduledTask<?> next;
+      synchronized (this) {
+        next = null;
+        for (ScheduledTask<?> task : scheduled) {
+          if (task.dueNanos <= until && (next == null || task.dueNanos < next.dueNanos)) {
+            next = task;
+          }
+        }
+        if (next == null) {
+          break;
+        }
+        scheduled.remove(next);
+      }
+      ticker.advance(Math.max(0, next.dueNanos - ticker.read()));
+      next.run();
+    }
+    ticker.advance(until - ticker.read());
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    command.run();
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return schedule(
+        () -> {
+          command.run();
+          return null;
+        },
+        delay,
+        unit);
+  }
+
+  @Override
+  public synchronized <V> ScheduledFuture<V> schedule(
+      Callable<V> callable, long delay, TimeUnit unit) {
+    ScheduledTask<V> task = new ScheduledTask<>(callable, ticker.read() + unit.toNanos(delay));
+    scheduled.add(task);
+    return task;
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(
+      Runnable command, long initialDelay, long period, TimeUnit unit) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(
+      Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void shutdown() {}
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return new ArrayList<>();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return false;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return false;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) {
+    return false;
+  }
+
+  private final class ScheduledTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+    final long dueNanos;
+
+    ScheduledTask(Callable<V> callable, long dueNanos) {
+      super(callable);
+      this.dueNanos = dueNanos;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      synchronized (FakeScheduledExecutor.this) {
+        scheduled.remove(this);
+      }
+      return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueNanos - ticker.read(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+}
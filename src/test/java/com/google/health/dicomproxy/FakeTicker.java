@@ -0,0 +1,28 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Ticker which only moves when told to. It may be read on other threads than it's moved on. */
+final class FakeTicker extends Ticker {
+  private final AtomicLong nanos = new AtomicLong();
+
+  void advance(long deltaNanos) {
+    nanos.addAndGet(deltaNanos);
+  }
+
+  void advance(Duration duration) {
+    advance(duration.toNanos());
+  }
+
+  @Override
+  public long read() {
+    return nanos.get();
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Stand-in for the event channels of a UPS-RS service: a minimal WebSocket server on the loopback
+ * interface, which sends events when told to, and answers pings.
+ */
+final class FakeUpsEventServer implements Closeable {
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private static final int OPCODE_CONTINUATION = 0x0;
+  private static final int OPCODE_TEXT = 0x1;
+  private static final int OPCODE_CLOSE = 0x8;
+  private static final int OPCODE_PING = 0x9;
+  private static final int OPCODE_PONG = 0xA;
+  private static final int FIN = 0x80;
+
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final BlockingQueue<Connection> connections = new LinkedBlockingQueue<>();
+
+  FakeUpsEventServer() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    executor.execute(this::acceptConnections);
+  }
+
+  /** Returns the URI of the event channel of the given AE title. */
+  URI getChannelUri(String aeTitle) {
+    return URI.create(
+        String.format(
+            "ws://%s:%d/subscribers/%s",
+            serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort(), aeTitle));
+  }
+
+  /** Waits for the next channel to be opened. */
+  Connection nextConnection() throws Exception {
+    Connection connection = connections.poll(5, SECONDS);
+    if (connection == null) {
+      throw new AssertionError("No event channel was opened");
+    }
+    return connection;
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    executor.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        Connection connection = new Connection(socket);
+        connection.handshake();
+        executor.execute(connection::readFrames);
+        connections.add(connection);
+      } catch (IOException e) {
+        // The server was closed, or a client went away mid-handshake.
+      }
+    }
+  }
+
+  /** An open event channel. */
+  static final class Connection {
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final Map<String, String> headers = new HashMap<>();
+    private volatile boolean answerPings = true;
+
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.input = new DataInputStream(socket.getInputStream());
+      this.output = socket.getOutputStream();
+    }
+
+    /** Returns a header of the opening handshake, or null. */
+    String getHeader(String name) {
+      return headers.get(name.toLowerCase());
+    }
+
+    /** Stops answering pings, as if the channel had been dropped silently. */
+    void stopAnsweringPings() {
+      answerPings = false;
+    }
+
+    void sendEvent(String message) throws IOException {
+      writeFrame(FIN | OPCODE_TEXT, message.getBytes(UTF_8));
+    }
+
+    /** Sends an event split across two frames. */
+    void sendFragmentedEvent(String first, String rest) throws IOException {
+      writeFrame(OPCODE_TEXT, first.getBytes(UTF_8));
+      writeFrame(FIN | OPCODE_CONTINUATION, rest.getBytes(UTF_8));
+    }
+
+    /** Closes the channel normally. */
+    void close() throws IOException {
+      writeFrame(FIN | OPCODE_CLOSE, new byte[] {0x03, (byte) 0xE8});
+    }
+
+    private void handshake() throws IOException {
+      // The handshake is ASCII; reading it byte by byte leaves the frames after it unread.
+      String line;
+      while (!(line = readLine()).isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          headers.put(
+              line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+      }
+      String accept;
+      try {
+        accept =
+            Base64.getEncoder()
+                .encodeToString(
+                    MessageDigest.getInstance("SHA-1")
+                        .digest((getHeader("Sec-WebSocket-Key") + WEBSOCKET_GUID).getBytes(UTF_8)));
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException(e);
+      }
+      synchronized (output) {
+        output.write(
+            ("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: "
+                    + accept
+                    + "\r\n\r\n")
+                .getBytes(UTF_8));
+        output.flush();
+      }
+    }
+
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder();
+      for (int b = input.read(); b != '\n'; b = input.read()) {
+        if (b == -1) {
+          throw new IOException("Handshake was cut short");
+        }
+        if (b != '\r') {
+          line.append((char) b);
+        }
+      }
+      return line.toString();
+    }
+
+    /** Reads the client's frames, which are always masked, answering pings and closes. */
+    private void readFrames() {
+      try {
+        while (true) {
+          int opcode = input.readUnsignedByte() & 0x0F;
+          int length = input.readUnsignedByte() & 0x7F;
+          if (length == 126) {
+            length = input.readUnsignedShort();
+          } else if (length == 127) {
+            length = (int) input.readLong();
+          }
+          byte[] mask = new byte[4];
+          input.readFully(mask);
+          byte[] payload = new byte[length];
+          input.readFully(payload);
+          for (int i = 0; i < length; i++) {
+            payload[i] ^= mask[i % 4];
+          }
+          if (opcode == OPCODE_PING && answerPings) {
+            writeFrame(FIN | OPCODE_PONG, payload);
+          } else if (opcode == OPCODE_CLOSE) {
+            writeFrame(FIN | OPCODE_CLOSE, payload);
+            socket.close();
+            return;
+          }
+        }
+      } catch (IOException e) {
+        // The channel was closed or aborted.
+      }
+    }
+
+    private void writeFrame(int firstByte, byte[] payload) throws IOException {
+      synchronized (output) {
+        output.write(firstByte);
+        if (payload.length < 126) {
+          output.write(payload.length);
+        } else {
+          output.write(126);
+          output.write(payload.length >> 8);
+          output.write(payload.length & 0xFF);
+        }
+        output.write(payload);
+        output.flush();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link FileSpool}. */
+@RunWith(JUnit4.class)
+public final class FileSpoolTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File folder;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = tempFolder.newFolder("spool");
+  }
+
+  @Test
+  public void perInstanceDurability_syncsInstanceWhoseStreamWasClosed() throws Exception {
+    FileSpool spool = new FileSpool(folder, SpoolDurability.perInstance());
+
+    SpooledInstance instance = write(spool, "batch", "1.2.3.1", "durable instance");
+
+    assertThat(read(instance)).isEqualTo("durable instance");
+    assertThat(spool.completeBatch("batch").getSopInstanceUids()).containsExactly("1.2.3.1");
+  }
+
+  @Test
+  public void groupCommitDurability_syncsInstanceWhoseStreamWasClosed() throws Exception {
+    try (SpoolDurability durability = SpoolDurability.groupCommit(Duration.ofMillis(1))) {
+      FileSpool spool = new FileSpool(folder, durability);
+
+      SpooledInstance instance = write(spool, "batch", "1.2.3.1", "durable instance");
+
+      assertThat(read(instance)).isEqualTo("durable instance");
+    }
+  }
+
+  @Test
+  public void uncommittedInstance_isDiscarded() throws Exception {
+    FileSpool spool = new FileSpool(folder, SpoolDurability.perInstance());
+
+    try (Spool.PendingInstance pending = spool.newInstance("batch", "1.2.3.1")) {
+      try (OutputStream out = pending.getOutputStream()) {
+        out.write("abandoned".getBytes(UTF_8));
+      }
+    }
+
+    assertThat(new File(folder, "batch").list()).isEmpty();
+  }
+
+  @Test
+  public void completedBatch_isRecoveredAfterRestart() throws Exception {
+    FileSpool spool = new FileSpool(folder, SpoolDurability.perInstance());
+    write(spool, "batch", "1.2.3.1", "instance 1");
+    write(spool, "batch", "1.2.3.2", "instance 2");
+    spool.completeBatch("batch");
+
+    ImmutableList<SpoolBatch> recovered =
+        new FileSpool(folder, SpoolDurability.perInstance()).recoverBatches();
+
+    assertThat(recovered).hasSize(1);
+    assertThat(recovered.get(0).getId()).isEqualTo("batch");
+    assertThat(recovered.get(0).getSopInstanceUids()).containsExactly("1.2.3.1", "1.2.3.2");
+  }
+
+  @Test
+  public void uploadedBatch_isNotRecovered() throws Exception {
+    FileSpool spool = new FileSpool(folder, SpoolDurability.none());
+    write(spool, "batch", "1.2.3.1", "instance 1");
+    spool.release(spool.completeBatch("batch"));
+
+    assertThat(new FileSpool(folder, SpoolDurability.none()).recoverBatches()).isEmpty();
+  }
+
+  @Test
+  public void incompleteBatch_isNotRecovered() throws Exception {
+    FileSpool spool = new FileSpool(folder, SpoolDurability.none());
+    write(spool, "batch", "1.2.3.1", "instance 1");
+
+    assertThat(new FileSpool(folder, SpoolDurability.none()).recoverBatches()).isEmpty();
+  }
+
+  /** Writes an instance the way the receiver does, closing its stream before committing it. */
+  private static SpooledInstance write(
+      Spool spool, String batchId, String sopInstanceUid, String content) throws IOException {
+    try (Spool.PendingInstance pending = spool.newInstance(batchId, sopInstanceUid)) {
+      try (OutputStream out = pending.getOutputStream()) {
+        out.write(content.getBytes(UTF_8));
+      }
+      return pending.commit();
+    }
+  }
+
+  private static String read(SpooledInstance instance) throws IOException {
+    try (InputStream in = instance.openStream()) {
+      return new String(ByteStreams.toByteArray(in), UTF_8);
+    }
+  }
+}
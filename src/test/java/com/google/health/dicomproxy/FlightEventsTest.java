@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests that hot paths emit {@link FlightEvents} while a recording is running. */
+@RunWith(JUnit4.class)
+public final class FlightEventsTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void fileSpoolCommit_recordsWriteAndRename() throws Exception {
+    FileSpool spool = new FileSpool(tempFolder.newFolder("spool"), SpoolDurability.none());
+
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(FlightEvents.SpoolFileWrite.class);
+      recording.enable(FlightEvents.SpoolFileRename.class);
+      recording.start();
+      try (Spool.PendingInstance instance = spool.newInstance("batch", "1.2.3")) {
+        instance.getOutputStream().write("instance".getBytes(UTF_8));
+        instance.commit();
+      }
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    assertThat(events).hasSize(2);
+    RecordedEvent write = events.get(0);
+    assertThat(write.getEventType().getName())
+        .isEqualTo("com.google.health.dicomproxy.SpoolFileWrite");
+    assertThat(write.getLong("bytes")).isEqualTo(8);
+    RecordedEvent rename = events.get(1);
+    assertThat(rename.getEventType().getName())
+        .isEqualTo("com.google.health.dicomproxy.SpoolFileRename");
+    assertThat(rename.getString("destination")).endsWith("1.2.3.dcm");
+  }
+
+  @Test
+  public void withoutRecording_eventsAreNotCommitted() {
+    FlightEvents.XmlPartParse event = new FlightEvents.XmlPartParse();
+    event.begin();
+    event.end();
+
+    assertThat(event.shouldCommit()).isFalse();
+  }
+
+  private List<RecordedEvent> readEvents(Recording recording) throws Exception {
+    File file = tempFolder.newFile("recording.jfr");
+    recording.dump(file.toPath());
+    List<RecordedEvent> events = new ArrayList<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+      if (event.getEventType().getName().startsWith("com.google.health.dicomproxy.")) {
+        events.add(event);
+      }
+    }
+    events.sort((a, b) -> a.getStartTime().compareTo(b.getStartTime()));
+    return events;
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link HybridSpool}. */
+@RunWith(JUnit4.class)
+public final class HybridSpoolTest {
+  private static final int BUFFER_SIZE = 8;
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File diskFolder;
+  private DirectBufferPool bufferPool;
+  private HybridSpool spool;
+
+  @Before
+  public void setUp() throws Exception {
+    diskFolder = tempFolder.newFolder("disk");
+    bufferPool = new DirectBufferPool(BUFFER_SIZE, /* budget= */ 4 * BUFFER_SIZE);
+    spool =
+        new HybridSpool(
+            new FileSpool(diskFolder, SpoolDurability.none()), bufferPool, /* threshold= */ 20);
+  }
+
+  @Test
+  public void smallInstance_isKeptInMemory() throws Exception {
+    write("batch", "1.2.3.1", "small instance");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.1");
+    assertThat(read(batch.getInstances().get(0))).isEqualTo("small instance");
+    assertThat(batch.getInstances().get(0).getLength()).isEqualTo(14);
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(2 * BUFFER_SIZE);
+    assertThat(diskFolder.list()).isEmpty();
+  }
+
+  @Test
+  public void largeInstance_isSpilledToDisk() throws Exception {
+    String large = "large ".repeat(5);
+    write("batch", "1.2.3.1", large);
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(read(batch.getInstances().get(0))).isEqualTo(large);
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(0);
+    assertThat(spilledInstanceFiles()).containsExactly("1.2.3.1.dcm");
+  }
+
+  @Test
+  public void exhaustedBudget_spillsToDisk() throws Exception {
+    write("batch", "1.2.3.1", "sixteen bytes...");
+    // The budget is used up part way through this one.
+    write("batch", "1.2.3.2", "twenty bytes of data");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.1", "1.2.3.2");
+    assertThat(spilledInstanceFiles()).containsExactly("1.2.3.2.dcm");
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(2 * BUFFER_SIZE);
+    for (SpooledInstance instance : batch.getInstances()) {
+      assertThat(read(instance))
+          .isEqualTo(
+              instance.getSopInstanceUid().equals("1.2.3.1")
+                  ? "sixteen bytes..."
+                  : "twenty bytes of data");
+    }
+  }
+
+  @Test
+  public void release_returnsBuffersToPool() throws Exception {
+    write("batch", "1.2.3.1", "small instance");
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    spool.release(batch);
+
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(0);
+  }
+
+  @Test
+  public void failedUpload_movesInstancesInMemoryToDisk() throws Exception {
+    write("batch", "1.2.3.1", "small instance");
+    write("batch", "1.2.3.2", "large ".repeat(5));
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    spool.onUploadFailed(batch);
+
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(0);
+    assertThat(spilledInstanceFiles()).containsExactly("1.2.3.1.dcm", "1.2.3.2.dcm");
+    ImmutableList<SpoolBatch> recovered =
+        new FileSpool(diskFolder, SpoolDurability.none()).recoverBatches();
+    assertThat(recovered).hasSize(1);
+    assertThat(recovered.get(0).getSopInstanceUids()).containsExactly("1.2.3.1", "1.2.3.2");
+    SpooledInstance moved =
+        recovered.get(0).getInstances().stream()
+            .filter(instance -> instance.getSopInstanceUid().equals("1.2.3.1"))
+            .findFirst()
+            .get();
+    assertThat(read(moved)).isEqualTo("small instance");
+  }
+
+  @Test
+  public void abandonedBatch_returnsBuffersToPool() throws Exception {
+    write("batch", "1.2.3.1", "small instance");
+
+    spool.abandonBatch("batch");
+
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(0);
+    assertThat(spool.completeBatch("batch").getInstances()).isEmpty();
+  }
+
+  @Test
+  public void resentInstance_replacesOriginal() throws Exception {
+    write("batch", "1.2.3.1", "original ".repeat(3));
+    write("batch", "1.2.3.1", "resent");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.1");
+    assertThat(read(batch.getInstances().get(0))).isEqualTo("resent");
+  }
+
+  @Test
+  public void streamClosedBeforeCommit_keepsInstanceInMemory() throws Exception {
+    writeAndCloseBeforeCommit("batch", "1.2.3.1", "small instance");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getInstances().get(0).getLength()).isEqualTo(14);
+    assertThat(read(batch.getInstances().get(0))).isEqualTo("small instance");
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(2 * BUFFER_SIZE);
+  }
+
+  @Test
+  public void streamClosedBeforeCommit_keepsSpilledInstance() throws Exception {
+    String large = "large ".repeat(5);
+    writeAndCloseBeforeCommit("batch", "1.2.3.1", large);
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(read(batch.getInstances().get(0))).isEqualTo(large);
+    assertThat(spilledInstanceFiles()).containsExactly("1.2.3.1.dcm");
+  }
+
+  @Test
+  public void uncommittedInstance_returnsBuffersToPool() throws Exception {
+    try (Spool.PendingInstance pending = spool.newInstance("batch", "1.2.3.1")) {
+      pending.getOutputStream().write("abandoned".getBytes(UTF_8));
+      pending.getOutputStream().close();
+    }
+
+    assertThat(bufferPool.getBytesInUse()).isEqualTo(0);
+  }
+
+  private void write(String batchId, String sopInstanceUid, String content) throws Exception {
+    try (Spool.PendingInstance pending = spool.newInstance(batchId, sopInstanceUid)) {
+      // Written in two parts, as the receiver does with the File Meta Information and dataset.
+      byte[] bytes = content.getBytes(UTF_8);
+      pending.getOutputStream().write(bytes, 0, bytes.length / 2);
+      pending.getOutputStream().write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+      pending.commit();
+    }
+  }
+
+  /** Writes an instance the way the receiver does, closing its stream before committing it. */
+  private void writeAndCloseBeforeCommit(String batchId, String sopInstanceUid, String content)
+      throws Exception {
+    try (Spool.PendingInstance pending = spool.newInstance(batchId, sopInstanceUid)) {
+      try (OutputStream out = pending.getOutputStream()) {
+        out.write(content.getBytes(UTF_8));
+      }
+      pending.commit();
+    }
+  }
+
+  /** Returns the names of the instance files in the disk spool's batch. */
+  private List<String> spilledInstanceFiles() {
+    return Arrays.asList(new File(diskFolder, "batch").list((dir, name) -> name.endsWith(".dcm")));
+  }
+
+  private static String read(SpooledInstance instance) throws Exception {
+    try (InputStream in = instance.openStream()) {
+      return new String(ByteStreams.toByteArray(in), UTF_8);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link InstanceMetadata}. */
+@RunWith(JUnit4.class)
+public final class InstanceMetadataTest {
+  private static final byte[] CONTENT = "instance content".getBytes(UTF_8);
+
+  private final InstanceMetadata metadata =
+      new InstanceMetadata("1.2.3.1", CONTENT.length, crc32c(CONTENT), ImmutableMap.of());
+
+  @Test
+  public void verifying_intactInstance_readsContent() throws Exception {
+    InputStream in = metadata.verifying(new ByteArrayInputStream(CONTENT));
+
+    assertThat(ByteStreams.toByteArray(in)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  public void verifying_corruptInstance_fails() {
+    byte[] corrupt = CONTENT.clone();
+    corrupt[3] ^= 1;
+    InputStream in = metadata.verifying(new ByteArrayInputStream(corrupt));
+
+    try {
+      ByteStreams.toByteArray(in);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("1.2.3.1 is corrupt");
+    }
+  }
+
+  @Test
+  public void verifying_truncatedInstance_fails() {
+    byte[] truncated = Arrays.copyOf(CONTENT, CONTENT.length - 1);
+    InputStream in = metadata.verifying(new ByteArrayInputStream(truncated));
+
+    try {
+      ByteStreams.toByteArray(in);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  private static int crc32c(byte[] content) {
+    CRC32C checksum = new CRC32C();
+    checksum.update(content);
+    return (int) checksum.getValue();
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.dcm4che3.data.Tag;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MetadataSidecar}. */
+@RunWith(JUnit4.class)
+public final class MetadataSidecarTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File folder;
+  private MetadataSidecar sidecar;
+
+  @Before
+  public void setUp() throws Exception {
+    folder = tempFolder.newFolder("metadata");
+    sidecar = new MetadataSidecar(folder, new int[] {Tag.StudyInstanceUID, Tag.Modality});
+  }
+
+  @Test
+  public void appendedMetadata_isReadBack() throws Exception {
+    sidecar.append("batch", metadata("1.2.3.1", 100, "1.2.3", "CT"));
+    sidecar.append("batch", metadata("1.2.3.2", 200, "1.2.3", "MR\\PT"));
+
+    ImmutableMap<String, InstanceMetadata> read = sidecar.read("batch");
+
+    assertThat(read.keySet()).containsExactly("1.2.3.1", "1.2.3.2").inOrder();
+    InstanceMetadata second = read.get("1.2.3.2");
+    assertThat(second.getLength()).isEqualTo(200L);
+    assertThat(second.getCrc32c()).isEqualTo(200 * 31);
+    assertThat(second.getString(Tag.StudyInstanceUID)).isEqualTo("1.2.3");
+    assertThat(second.getString(Tag.Modality)).isEqualTo("MR\\PT");
+  }
+
+  @Test
+  public void resentInstance_replacesEarlierRecord() throws Exception {
+    sidecar.append("batch", metadata("1.2.3.1", 100, "1.2.3", "CT"));
+    sidecar.append("batch", metadata("1.2.3.2", 200, "1.2.3", "CT"));
+    sidecar.append("batch", metadata("1.2.3.1", 150, "1.2.3", "CT"));
+
+    ImmutableMap<String, InstanceMetadata> read = sidecar.read("batch");
+
+    assertThat(read.keySet()).containsExactly("1.2.3.2", "1.2.3.1").inOrder();
+    assertThat(read.get("1.2.3.1").getLength()).isEqualTo(150L);
+  }
+
+  @Test
+  public void batches_areKeptSeparately() throws Exception {
+    sidecar.append("batch1", metadata("1.2.3.1", 100, "1.2.3", "CT"));
+    sidecar.append("batch2", metadata("1.2.4.1", 100, "1.2.4", "CT"));
+
+    assertThat(sidecar.read("batch1").keySet()).containsExactly("1.2.3.1");
+    assertThat(sidecar.read("batch2").keySet()).containsExactly("1.2.4.1");
+    assertThat(sidecar.read("unknown")).isEmpty();
+  }
+
+  @Test
+  public void truncatedRecord_isIgnored() throws Exception {
+    sidecar.append("batch", metadata("1.2.3.1", 100, "1.2.3", "CT"));
+    sidecar.append("batch", metadata("1.2.3.2", 200, "1.2.3", "CT"));
+    sidecar.closeBatch("batch");
+    File file = new File(folder, "batch.meta");
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    assertThat(sidecar.read("batch").keySet()).containsExactly("1.2.3.1");
+  }
+
+  @Test
+  public void uploadedBatch_isDeleted() throws Exception {
+    sidecar.append("batch", metadata("1.2.3.1", 100, "1.2.3", "CT"));
+
+    sidecar.onUploadSucceeded(new SpoolBatch("batch", ImmutableList.of()));
+
+    assertThat(new File(folder, "batch.meta").exists()).isFalse();
+    assertThat(sidecar.read("batch")).isEmpty();
+  }
+
+  private static InstanceMetadata metadata(
+      String sopInstanceUid, long length, String studyInstanceUid, String modality) {
+    return new InstanceMetadata(
+        sopInstanceUid,
+        length,
+        /* crc32c= */ (int) length * 31,
+        ImmutableMap.of(Tag.StudyInstanceUID, studyInstanceUid, Tag.Modality, modality));
+  }
+}
@@ -0,0 +1,258 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MppsForwarder}. */
+@RunWith(JUnit4.class)
+public final class MppsForwarderTest {
+  private static final String STEP_UID = "1.2.3.4.5";
+  private static final String WORKITEM_UID = "1.2.3.9";
+  /** Long enough that scheduled retries never run during a test; they're started by wake(). */
+  private static final Duration MIN_RETRY_DELAY = Duration.ofHours(1);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofHours(4);
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final FakeUpstream upstream = new FakeUpstream();
+  private final FakeTicker ticker = new FakeTicker();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private File folder;
+  private MppsQueue queue;
+  private MppsForwarder forwarder;
+
+  @Before
+  public void setUp() throws Exception {
+    folder = tempFolder.newFolder("mpps");
+    queue = MppsQueue.open(folder);
+    forwarder =
+        new MppsForwarder(
+            queue, upstream, upstream, executor, MIN_RETRY_DELAY, MAX_RETRY_DELAY, ticker);
+    upstream.states.put(WORKITEM_UID, "SCHEDULED");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void completedStep_claimsUpdatesAndCompletesWorkitem() throws Exception {
+    createStep("COMPLETED");
+
+    pass();
+
+    assertThat(upstream.requests)
+        .containsExactly("claim IN PROGRESS", "update", "state COMPLETED")
+        .inOrder();
+    assertThat(upstream.states.get(WORKITEM_UID)).isEqualTo("COMPLETED");
+    assertThat(folder.list()).isEmpty();
+  }
+
+  @Test
+  public void changesQueuedBeforePass_areForwardedTogether() throws Exception {
+    createStep("IN PROGRESS");
+    Attributes description = new Attributes();
+    description.setString(Tag.PerformedProcedureStepDescription, VR.LO, "CT HEAD");
+    queue.set(STEP_UID, description);
+    queue.set(STEP_UID, status("DISCONTINUED"));
+
+    pass();
+
+    assertThat(upstream.requests)
+        .containsExactly("claim IN PROGRESS", "update", "state CANCELED")
+        .inOrder();
+  }
+
+  @Test
+  public void unreachableService_isRetriedWithBackoff() throws Exception {
+    createStep("IN PROGRESS");
+    upstream.unreachableRequests = 2;
+
+    pass();
+    assertThat(upstream.attempts).isEqualTo(1);
+
+    // Changes queued while waiting to retry don't start a pass early.
+    ticker.advance(MIN_RETRY_DELAY.minusMinutes(1));
+    pass();
+    assertThat(upstream.attempts).isEqualTo(1);
+
+    ticker.advance(Duration.ofMinutes(1));
+    pass();
+    assertThat(upstream.attempts).isEqualTo(2);
+
+    // The delay doubled after the second failure.
+    ticker.advance(MIN_RETRY_DELAY);
+    pass();
+    assertThat(upstream.attempts).isEqualTo(2);
+
+    ticker.advance(MIN_RETRY_DELAY);
+    pass();
+    assertThat(upstream.requests).containsExactly("claim IN PROGRESS", "update").inOrder();
+    assertThat(queue.getUnforwarded()).isEmpty();
+  }
+
+  @Test
+  public void lostClaimResponse_retryTreatsClaimAsMade() throws Exception {
+    createStep("IN PROGRESS");
+    upstream.loseResponseTo = "claim IN PROGRESS";
+
+    pass();
+    ticker.advance(MIN_RETRY_DELAY);
+    pass();
+
+    assertThat(upstream.requests).containsExactly("claim IN PROGRESS", "update").inOrder();
+    assertThat(queue.getUnforwarded()).isEmpty();
+  }
+
+  @Test
+  public void lostFinalStateResponse_retryTreatsStepAsForwarded() throws Exception {
+    createStep("COMPLETED");
+    upstream.loseResponseTo = "state COMPLETED";
+
+    pass();
+    ticker.advance(MIN_RETRY_DELAY);
+    pass();
+
+    assertThat(upstream.states.get(WORKITEM_UID)).isEqualTo("COMPLETED");
+    // Removed as forwarded, rather than set aside as failed.
+    assertThat(folder.list()).isEmpty();
+  }
+
+  @Test
+  public void refusedChange_setsStepAside() throws Exception {
+    createStep("COMPLETED");
+    upstream.states.put(WORKITEM_UID, "CANCELED");
+
+    pass();
+
+    assertThat(upstream.states.get(WORKITEM_UID)).isEqualTo("CANCELED");
+    assertThat(folder.list()).asList().containsExactly(STEP_UID + ".mpps.failed");
+  }
+
+  private void createStep(String status) throws IOException {
+    queue.create(STEP_UID, status(status));
+    queue.setWorkitem(STEP_UID, WORKITEM_UID);
+  }
+
+  /** Wakes the forwarder, and waits for the pass to finish. */
+  private void pass() throws Exception {
+    forwarder.wake();
+    executor.submit(() -> {}).get();
+  }
+
+  private static Attributes status(String status) {
+    Attributes attributes = new Attributes();
+    attributes.setString(Tag.PerformedProcedureStepStatus, VR.CS, status);
+    return attributes;
+  }
+
+  /**
+   * UPS-RS service which refuses changes to workitems in a final state, and state changes which
+   * wouldn't change the state, and which can be made to fail requests. Only used on the executor.
+   */
+  private static final class FakeUpstream implements WorklistClient, WorkitemClient {
+    final Map<String, String> states = new HashMap<>();
+    /** Requests which were applied. */
+    final List<String> requests = new ArrayList<>();
+    int attempts = 0;
+    int unreachableRequests = 0;
+    /** Request which is applied, but whose response is lost. */
+    String loseResponseTo;
+
+    @Override
+    public void searchWorkitems(
+        Attributes queryParams, int limit, Cancellation cancellation, ResultHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Attributes retrieveWorkitem(String workitemUid) {
+      String state = states.get(workitemUid);
+      if (state == null) {
+        return null;
+      }
+      Attributes workitem = new Attributes();
+      workitem.setString(Tag.SOPInstanceUID, VR.UI, workitemUid);
+      workitem.setString(Tag.ProcedureStepState, VR.CS, state);
+      return workitem;
+    }
+
+    @Override
+    public void listAllWorkitems(ResultHandler handler) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UpsEventChannel openEventChannel(String aeTitle, UpsEventChannel.Listener listener) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void changeWorkitemState(String workitemUid, String state, String transactionUid)
+        throws IOException {
+      String current = states.get(workitemUid);
+      String request = (current.equals("SCHEDULED") ? "claim " : "state ") + state;
+      attempt(request);
+      if (current.equals(state) || isFinal(current)) {
+        throw new WorkitemClient.RejectedException(workitemUid + " is already " + current);
+      }
+      states.put(workitemUid, state);
+      applied(request);
+    }
+
+    @Override
+    public void updateWorkitem(String workitemUid, String transactionUid, Attributes changes)
+        throws IOException {
+      attempt("update");
+      if (isFinal(states.get(workitemUid))) {
+        throw new WorkitemClient.RejectedException(workitemUid + " may no longer be updated");
+      }
+      applied("update");
+    }
+
+    private void attempt(String request) throws IOException {
+      attempts++;
+      if (unreachableRequests > 0) {
+        unreachableRequests--;
+        throw new IOException("Unable to reach service for " + request);
+      }
+    }
+
+    private void applied(String request) throws IOException {
+      requests.add(request);
+      if (request.equals(loseResponseTo)) {
+        loseResponseTo = null;
+        throw new IOException("Lost the response to " + request);
+      }
+    }
+
+    private static boolean isFinal(String state) {
+      return state.equals("COMPLETED") || state.equals("CANCELED");
+    }
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MppsQueue}. */
+@RunWith(JUnit4.class)
+public final class MppsQueueTest {
+  private static final String UID = "1.2.3.4.5";
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File folder;
+  private MppsQueue queue;
+
+  @Before
+  public void setUp() throws Exception {
+    folder = tempFolder.newFolder("mpps");
+    queue = MppsQueue.open(folder);
+  }
+
+  @Test
+  public void changes_areMergedAndRecovered() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+    Attributes changes = status("COMPLETED");
+    changes.setString(Tag.PerformedProcedureStepDescription, VR.LO, "CT HEAD");
+    queue.set(UID, changes);
+    queue.setWorkitem(UID, "1.2.3.9");
+    queue.setClaimed(UID);
+
+    MppsQueue.Step step = MppsQueue.open(folder).getUnforwarded().get(0);
+
+    assertThat(step.getSopInstanceUid()).isEqualTo(UID);
+    assertThat(step.getAttributes().getString(Tag.PerformedProcedureStepStatus))
+        .isEqualTo("COMPLETED");
+    assertThat(step.getAttributes().getString(Tag.PerformedProcedureStepDescription))
+        .isEqualTo("CT HEAD");
+    assertThat(step.getWorkitemUid()).isEqualTo("1.2.3.9");
+    assertThat(step.isClaimed()).isTrue();
+  }
+
+  @Test
+  public void forwardedStep_isForwardedAgainOnlyOnceChanged() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+    queue.setForwarded(queue.getUnforwarded().get(0));
+    assertThat(queue.getUnforwarded()).isEmpty();
+
+    queue.set(UID, status("IN PROGRESS"));
+
+    assertThat(queue.getUnforwarded()).hasSize(1);
+  }
+
+  @Test
+  public void forwardedFinalStep_isRemoved() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+    queue.set(UID, status("DISCONTINUED"));
+
+    queue.setForwarded(queue.getUnforwarded().get(0));
+
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(folder.list()).isEmpty();
+  }
+
+  @Test
+  public void duplicateCreate_fails() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+
+    try {
+      queue.create(UID, status("IN PROGRESS"));
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(Status.DuplicateSOPinstance);
+    }
+  }
+
+  @Test
+  public void setOfUnknownStep_fails() throws Exception {
+    try {
+      queue.set(UID, status("COMPLETED"));
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(Status.NoSuchObjectInstance);
+    }
+  }
+
+  @Test
+  public void setOfFinalStep_fails() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+    queue.set(UID, status("COMPLETED"));
+
+    try {
+      queue.set(UID, status("DISCONTINUED"));
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(MppsQueue.STATUS_NOT_IN_PROGRESS);
+    }
+  }
+
+  @Test
+  public void failedStep_isSetAsideOnceFinal() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+    queue.fail(UID);
+    assertThat(queue.getUnforwarded()).isEmpty();
+
+    queue.set(UID, status("COMPLETED"));
+
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(folder.list()).asList().containsExactly(UID + ".mpps.failed");
+  }
+
+  @Test
+  public void incompleteRecord_isTruncated() throws Exception {
+    queue.create(UID, status("IN PROGRESS"));
+    File file = new File(folder, UID + ".mpps");
+    long length = file.length();
+    queue.set(UID, status("COMPLETED"));
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 1);
+    }
+
+    MppsQueue reopened = MppsQueue.open(folder);
+
+    assertThat(file.length()).isEqualTo(length);
+    assertThat(
+            reopened
+                .getUnforwarded()
+                .get(0)
+                .getAttributes()
+                .getString(Tag.PerformedProcedureStepStatus))
+        .isEqualTo("IN PROGRESS");
+  }
+
+  private static Attributes status(String status) {
+    Attributes attributes = new Attributes();
+    attributes.setString(Tag.PerformedProcedureStepStatus, VR.CS, status);
+    return attributes;
+  }
+}
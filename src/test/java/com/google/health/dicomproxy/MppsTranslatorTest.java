@@ -0,0 +1,123 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link MppsTranslator}. */
+@RunWith(JUnit4.class)
+public final class MppsTranslatorTest {
+  private static final String STUDY_INSTANCE_UID = "1.2.3.4";
+
+  @Test
+  public void workitemQuery_matchesScheduledStep() {
+    Attributes mpps = new Attributes();
+    Attributes scheduledStep = new Attributes();
+    scheduledStep.setString(Tag.StudyInstanceUID, VR.UI, STUDY_INSTANCE_UID);
+    scheduledStep.setString(Tag.AccessionNumber, VR.SH, "A123");
+    mpps.newSequence(Tag.ScheduledStepAttributesSequence, 1).add(scheduledStep);
+
+    Attributes query = MppsTranslator.buildWorkitemQuery(mpps);
+
+    assertThat(query.getString(Tag.StudyInstanceUID)).isEqualTo(STUDY_INSTANCE_UID);
+    assertThat(query.getString(Tag.AccessionNumber)).isEqualTo("A123");
+    assertThat(query.contains(Tag.SOPInstanceUID)).isTrue();
+    assertThat(query.contains(Tag.RequestedProcedureID)).isFalse();
+  }
+
+  @Test
+  public void workitemQuery_unscheduledStep_isNull() {
+    Attributes mpps = new Attributes();
+    mpps.newSequence(Tag.ScheduledStepAttributesSequence, 1).add(new Attributes());
+
+    assertThat(MppsTranslator.buildWorkitemQuery(mpps)).isNull();
+    assertThat(MppsTranslator.buildWorkitemQuery(new Attributes())).isNull();
+  }
+
+  @Test
+  public void procedureStepState() {
+    assertThat(MppsTranslator.toProcedureStepState("IN PROGRESS")).isEqualTo("IN PROGRESS");
+    assertThat(MppsTranslator.toProcedureStepState("COMPLETED")).isEqualTo("COMPLETED");
+    assertThat(MppsTranslator.toProcedureStepState("DISCONTINUED")).isEqualTo("CANCELED");
+    assertThat(MppsTranslator.toProcedureStepState("SCHEDULED")).isNull();
+    assertThat(MppsTranslator.isFinal("IN PROGRESS")).isFalse();
+    assertThat(MppsTranslator.isFinal("DISCONTINUED")).isTrue();
+  }
+
+  @Test
+  public void workitemUpdate_movesPerformedAttributesIntoSequence() {
+    Attributes mpps = new Attributes();
+    mpps.setString(Tag.PerformedProcedureStepStartDate, VR.DA, "20200102");
+    mpps.setString(Tag.PerformedProcedureStepStartTime, VR.TM, "103000");
+    mpps.setString(Tag.PerformedProcedureStepEndDate, VR.DA, "20200102");
+    mpps.setString(Tag.PerformedProcedureStepDescription, VR.LO, "CT HEAD");
+
+    Attributes update = MppsTranslator.buildWorkitemUpdate(mpps);
+
+    Attributes performed =
+        update.getSequence(Tag.UnifiedProcedureStepPerformedProcedureSequence).get(0);
+    assertThat(performed.getString(Tag.PerformedProcedureStepStartDateTime))
+        .isEqualTo("20200102103000");
+    assertThat(performed.getString(Tag.PerformedProcedureStepEndDateTime)).isEqualTo("20200102");
+    assertThat(performed.getString(Tag.PerformedProcedureStepDescription)).isEqualTo("CT HEAD");
+    assertThat(update.contains(Tag.ProcedureStepProgressInformationSequence)).isFalse();
+  }
+
+  @Test
+  public void workitemUpdate_listsPerformedSeriesAsOutput() {
+    Attributes mpps = new Attributes();
+    Attributes scheduledStep = new Attributes();
+    scheduledStep.setString(Tag.StudyInstanceUID, VR.UI, STUDY_INSTANCE_UID);
+    mpps.newSequence(Tag.ScheduledStepAttributesSequence, 1).add(scheduledStep);
+    Attributes series = new Attributes();
+    series.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4.1");
+    series.newSequence(Tag.ReferencedImageSequence, 1).add(referencedSop("1.2.3.4.1.1"));
+    series
+        .newSequence(Tag.ReferencedNonImageCompositeSOPInstanceSequence, 1)
+        .add(referencedSop("1.2.3.4.1.2"));
+    mpps.newSequence(Tag.PerformedSeriesSequence, 1).add(series);
+
+    Attributes performed =
+        MppsTranslator.buildWorkitemUpdate(mpps)
+            .getSequence(Tag.UnifiedProcedureStepPerformedProcedureSequence)
+            .get(0);
+
+    Sequence outputs = performed.getSequence(Tag.OutputInformationSequence);
+    assertThat(outputs).hasSize(1);
+    Attributes output = outputs.get(0);
+    assertThat(output.getString(Tag.StudyInstanceUID)).isEqualTo(STUDY_INSTANCE_UID);
+    assertThat(output.getString(Tag.SeriesInstanceUID)).isEqualTo("1.2.3.4.1");
+    Sequence referencedSops = output.getSequence(Tag.ReferencedSOPSequence);
+    assertThat(referencedSops).hasSize(2);
+    assertThat(referencedSops.get(1).getString(Tag.ReferencedSOPInstanceUID))
+        .isEqualTo("1.2.3.4.1.2");
+  }
+
+  @Test
+  public void transactionUid_isStablePerProcedureStep() {
+    String transactionUid = MppsTranslator.transactionUidFor("1.2.3.5");
+
+    assertThat(transactionUid).startsWith("2.25.");
+    assertThat(transactionUid.length()).isAtMost(64);
+    assertThat(MppsTranslator.transactionUidFor("1.2.3.5")).isEqualTo(transactionUid);
+    assertThat(MppsTranslator.transactionUidFor("1.2.3.6")).isNotEqualTo(transactionUid);
+  }
+
+  private static Attributes referencedSop(String sopInstanceUid) {
+    Attributes referencedSop = new Attributes();
+    referencedSop.setString(Tag.ReferencedSOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.2");
+    referencedSop.setString(Tag.ReferencedSOPInstanceUID, VR.UI, sopInstanceUid);
+    return referencedSop;
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link OtlpFileExporter}. */
+@RunWith(JUnit4.class)
+public final class OtlpFileExporterTest {
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = new File(tempFolder.getRoot(), "traces.jsonl");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void flush_writesSpansAsOneLine() throws Exception {
+    OtlpFileExporter exporter = new OtlpFileExporter(file, 1024 * 1024, executor);
+    Tracer tracer = new Tracer(exporter, 1);
+    Span root = tracer.startTrace("dicom.association", Span.KIND_SERVER);
+    Span child = root.startChild("spool.commit").setAttribute("dicom.bytes", 1234);
+    child.setError("disk full");
+    child.end();
+    root.end();
+
+    exporter.flush();
+
+    List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+    assertThat(lines).hasSize(1);
+    String line = lines.get(0);
+    assertThat(line).startsWith("{\"resourceSpans\":[");
+    assertThat(line).contains("\"stringValue\":\"dicomweb-proxy\"");
+    assertThat(line).contains("\"traceId\":\"" + root.getTraceId() + "\"");
+    assertThat(line).contains("\"parentSpanId\":\"" + root.getSpanId() + "\"");
+    assertThat(line).contains("{\"key\":\"dicom.bytes\",\"value\":{\"intValue\":\"1234\"}}");
+    assertThat(line).contains("\"status\":{\"code\":2,\"message\":\"disk full\"}");
+  }
+
+  @Test
+  public void flush_withoutSpans_writesNothing() throws Exception {
+    OtlpFileExporter exporter = new OtlpFileExporter(file, 1024 * 1024, executor);
+
+    exporter.flush();
+
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void fullFile_isRotated() throws Exception {
+    OtlpFileExporter exporter = new OtlpFileExporter(file, 10, executor);
+    Tracer tracer = new Tracer(exporter, 1);
+    tracer.startTrace("first", Span.KIND_INTERNAL).end();
+    exporter.flush();
+
+    tracer.startTrace("second", Span.KIND_INTERNAL).end();
+    exporter.flush();
+
+    File rotated = new File(file.getPath() + ".1");
+    assertThat(new String(Files.readAllBytes(rotated.toPath()), UTF_8)).contains("\"first\"");
+    assertThat(new String(Files.readAllBytes(file.toPath()), UTF_8)).doesNotContain("\"first\"");
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.net.pdu.AAssociateRJ;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link PeerLimiter}. */
+@RunWith(JUnit4.class)
+public final class PeerLimiterTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  // Time stands still, so that no instances are let through by the passing of time.
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return 0;
+        }
+      };
+
+  @Test
+  public void associationsBeyondAeLimit_areRejected() throws Exception {
+    PeerLimiter limiter = new PeerLimiter(2, 0, 0, 0, ticker);
+    limiter.open("CT1", "10.0.0.1");
+    limiter.open("CT1", "10.0.0.2");
+
+    try {
+      limiter.open("CT1", "10.0.0.3");
+      fail("Expected AAssociateRJ");
+    } catch (AAssociateRJ expected) {
+    }
+    // Other AE titles are unaffected.
+    limiter.open("CT2", "10.0.0.1");
+    assertThat(limiter.getAssociationsForAe("CT1")).isEqualTo(2);
+  }
+
+  @Test
+  public void associationsBeyondAddressLimit_areRejected() throws Exception {
+    PeerLimiter limiter = new PeerLimiter(0, 1, 0, 0, ticker);
+    limiter.open("CT1", "10.0.0.1");
+
+    try {
+      limiter.open("CT2", "10.0.0.1");
+      fail("Expected AAssociateRJ");
+    } catch (AAssociateRJ expected) {
+    }
+    assertThat(limiter.getAssociationsForAe("CT2")).isEqualTo(0);
+  }
+
+  @Test
+  public void closedAssociation_makesRoomForAnother() throws Exception {
+    PeerLimiter limiter = new PeerLimiter(1, 0, 0, 0, ticker);
+    ImmutableList<PeerLimiter.Peer> peers = limiter.open("CT1", "10.0.0.1");
+
+    limiter.close(peers);
+
+    limiter.open("CT1", "10.0.0.1");
+    assertThat(limiter.getAssociationsForAe("CT1")).isEqualTo(1);
+  }
+
+  @Test
+  public void instancesBeyondRate_wait() throws Exception {
+    PeerLimiter limiter = new PeerLimiter(0, 0, 10, 0, ticker);
+    ImmutableList<PeerLimiter.Peer> first = limiter.open("CT1", "10.0.0.1");
+    ImmutableList<PeerLimiter.Peer> second = limiter.open("CT1", "10.0.0.2");
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(limiter.reserveInstance(first)).isEqualTo(0);
+    }
+
+    // The rate is shared by all of the AE's associations.
+    assertThat(limiter.reserveInstance(second)).isEqualTo(SECOND / 10);
+    // Other AE titles have their own rate.
+    assertThat(limiter.reserveInstance(limiter.open("CT2", "10.0.0.1"))).isEqualTo(0);
+  }
+
+  @Test
+  public void instancesByAddress_useSlowerOfBothRates() throws Exception {
+    PeerLimiter limiter = new PeerLimiter(0, 0, 10, 2, ticker);
+    ImmutableList<PeerLimiter.Peer> peers = limiter.open("CT1", "10.0.0.1");
+
+    limiter.reserveInstance(peers);
+    limiter.reserveInstance(peers);
+
+    assertThat(limiter.reserveInstance(peers)).isEqualTo(SECOND / 2);
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableSetMultimap;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class QidoQueryTranslatorTest {
+
+  @Test
+  public void studyLevel_matchesAndIncludesFields() {
+    Attributes keys = keys(QidoQueryTranslator.STUDY);
+    keys.setString(Tag.PatientID, VR.LO, "P1");
+    keys.setString(Tag.StudyDate, VR.DA, "20200101-20200131");
+    keys.setNull(Tag.StudyInstanceUID, VR.UI);
+
+    assertThat(QidoQueryTranslator.buildResourcePath(keys)).isEqualTo("studies");
+    assertThat(QidoQueryTranslator.buildQueryParameters(keys))
+        .containsExactly(
+            "00100020", "P1",
+            "00080020", "20200101-20200131",
+            "includefield", "0020000D");
+  }
+
+  @Test
+  public void seriesLevel_studyUidInPath() {
+    Attributes keys = keys(QidoQueryTranslator.SERIES);
+    keys.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+    keys.setString(Tag.Modality, VR.CS, "CT");
+
+    assertThat(QidoQueryTranslator.buildResourcePath(keys)).isEqualTo("studies/1.2.3/series");
+    assertThat(QidoQueryTranslator.buildQueryParameters(keys)).containsExactly("00080060", "CT");
+  }
+
+  @Test
+  public void imageLevel_studyAndSeriesUidsInPath() {
+    Attributes keys = keys(QidoQueryTranslator.IMAGE);
+    keys.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+    keys.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4");
+    keys.setNull(Tag.SOPInstanceUID, VR.UI);
+
+    assertThat(QidoQueryTranslator.buildResourcePath(keys))
+        .isEqualTo("studies/1.2.3/series/1.2.3.4/instances");
+    assertThat(QidoQueryTranslator.buildQueryParameters(keys))
+        .containsExactly("includefield", "00080018");
+  }
+
+  @Test
+  public void uidList_searchesAcrossStudies() {
+    Attributes keys = keys(QidoQueryTranslator.SERIES);
+    keys.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "1.2.4");
+
+    ImmutableSetMultimap<String, String> parameters =
+        QidoQueryTranslator.buildQueryParameters(keys);
+
+    assertThat(QidoQueryTranslator.buildResourcePath(keys)).isEqualTo("series");
+    assertThat(parameters).containsExactly("0020000D", "1.2.3,1.2.4");
+  }
+
+  @Test
+  public void unsupportedLevel_fails() {
+    try {
+      QidoQueryTranslator.buildResourcePath(keys("PATIENT"));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static Attributes keys(String level) {
+    Attributes keys = new Attributes();
+    keys.setString(Tag.QueryRetrieveLevel, VR.CS, level);
+    keys.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+    return keys;
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class QidoRsClientTest {
+  private static final String FAKE_SERVICE_URL = "https://dicomweb.example.com/dicomWeb";
+  private static final Duration CACHE_TTL = Duration.ofSeconds(60);
+
+  private final List<String> requestedUrls = new ArrayList<>();
+  private final MockHttpTransport mockTransport =
+      new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+          requestedUrls.add(url);
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          response.setStatusCode(HttpStatusCodes.STATUS_CODE_OK);
+          response.setContentType(
+              "multipart/related; type=\"application/dicom+xml\"; boundary=\"BoUndaRy\"");
+          response.setContent(
+              QidoRsClientTest.class.getResourceAsStream("ups_xml_multipart_response_body.txt"));
+          return new MockLowLevelHttpRequest(url).setResponse(response);
+        }
+      };
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void search_requestsResource() throws Exception {
+    QidoRsClient client = createClient(Duration.ZERO);
+
+    assertThat(search(client, studyQuery("P1"))).hasSize(2);
+    assertThat(requestedUrls)
+        .containsExactly(FAKE_SERVICE_URL + "/studies?00100020=P1&limit=10");
+  }
+
+  @Test
+  public void repeatedSearch_answeredFromCache() throws Exception {
+    QidoRsClient client = createClient(CACHE_TTL);
+
+    search(client, studyQuery("P1"));
+    assertThat(search(client, studyQuery("P1"))).hasSize(2);
+
+    assertThat(requestedUrls).hasSize(1);
+  }
+
+  @Test
+  public void differentSearch_notCached() throws Exception {
+    QidoRsClient client = createClient(CACHE_TTL);
+
+    search(client, studyQuery("P1"));
+    search(client, studyQuery("P2"));
+
+    assertThat(requestedUrls).hasSize(2);
+  }
+
+  @Test
+  public void expiredResults_searchedAgain() throws Exception {
+    QidoRsClient client = createClient(CACHE_TTL);
+
+    search(client, studyQuery("P1"));
+    ticker.advance(CACHE_TTL.plusSeconds(1));
+    search(client, studyQuery("P1"));
+
+    assertThat(requestedUrls).hasSize(2);
+  }
+
+  @Test
+  public void canceledSearch_notCached() throws Exception {
+    QidoRsClient client = createClient(CACHE_TTL);
+    Cancellation cancellation = new Cancellation();
+
+    client.search(studyQuery("P1"), 10, cancellation, result -> cancellation.cancel());
+    search(client, studyQuery("P1"));
+
+    assertThat(requestedUrls).hasSize(2);
+  }
+
+  @Test
+  public void canceledBeforeResponseHeaders_returnsAtOnce() throws Exception {
+    // Accepts connections, but never responds.
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(10_000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CancelableConnectionFactory connectionFactory = new CancelableConnectionFactory();
+      QidoRsClient client =
+          new QidoRsClient(
+              new NetHttpTransport.Builder()
+                  .setConnectionFactory(connectionFactory)
+                  .build()
+                  .createRequestFactory(),
+              connectionFactory,
+              String.format(
+                  "http://%s:%d/dicomWeb",
+                  server.getInetAddress().getHostAddress(), server.getLocalPort()),
+              CACHE_TTL,
+              100,
+              ticker);
+      Cancellation cancellation = new Cancellation();
+      Future<?> search =
+          executor.submit(
+              () -> {
+                client.search(studyQuery("P1"), 10, cancellation, result -> {});
+                return null;
+              });
+
+      try (Socket connection = server.accept()) {
+        // Waits for the request to be sent.
+        new BufferedReader(new InputStreamReader(connection.getInputStream(), UTF_8)).readLine();
+        cancellation.cancel();
+
+        // Long before the read timeout.
+        search.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+      server.close();
+    }
+  }
+
+  @Test
+  public void invalidLevel_fails() throws Exception {
+    QidoRsClient client = createClient(CACHE_TTL);
+    Attributes keys = new Attributes();
+    keys.setString(Tag.QueryRetrieveLevel, VR.CS, "PATIENT");
+
+    try {
+      search(client, keys);
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(Status.IdentifierDoesNotMatchSOPClass);
+    }
+    assertThat(requestedUrls).isEmpty();
+  }
+
+  private QidoRsClient createClient(Duration cacheTtl) {
+    return new QidoRsClient(
+        mockTransport.createRequestFactory(),
+        new CancelableConnectionFactory(),
+        FAKE_SERVICE_URL,
+        cacheTtl,
+        100,
+        ticker);
+  }
+
+  private static List<Attributes> search(QidoRsClient client, Attributes keys)
+      throws DicomServiceException {
+    List<Attributes> results = new ArrayList<>();
+    client.search(keys, 10, new Cancellation(), results::add);
+    return results;
+  }
+
+  private static Attributes studyQuery(String patientId) {
+    Attributes keys = new Attributes();
+    keys.setString(Tag.QueryRetrieveLevel, VR.CS, QidoQueryTranslator.STUDY);
+    keys.setString(Tag.PatientID, VR.LO, patientId);
+    return keys;
+  }
+}
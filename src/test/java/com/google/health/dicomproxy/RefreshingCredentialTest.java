@@ -0,0 +1,194 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link RefreshingCredential}. */
+@RunWith(JUnit4.class)
+public final class RefreshingCredentialTest {
+  /** Lifetime of each token; it's refreshed five minutes before it expires. */
+  private static final long LIFETIME_SECONDS = 3600;
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final FakeScheduledExecutor executor = new FakeScheduledExecutor(ticker);
+  private final FakeTokenSource tokenSource = new FakeTokenSource();
+  private final RefreshingCredential credential = new RefreshingCredential(tokenSource, executor);
+  private final ExecutorService callers = Executors.newSingleThreadExecutor();
+
+  /** Authorization header of each request sent. */
+  private final List<String> authorizations = new ArrayList<>();
+  private final MockHttpTransport transport =
+      new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+          return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() {
+              String authorization = getFirstHeaderValue("Authorization");
+              authorizations.add(authorization);
+              return new MockLowLevelHttpResponse()
+                  .setStatusCode(
+                      tokenSource.revoked.contains(authorization)
+                          ? HttpStatusCodes.STATUS_CODE_UNAUTHORIZED
+                          : HttpStatusCodes.STATUS_CODE_OK);
+            }
+          };
+        }
+      };
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  @Test
+  public void token_isRefreshedAheadOfExpiry() throws Exception {
+    tokenSource.add("token-1", "token-2");
+    credential.start();
+    send();
+
+    executor.advance(Duration.ofMinutes(54));
+    send();
+    executor.advance(Duration.ofMinutes(2));
+    send();
+
+    assertThat(tokenSource.refreshes).isEqualTo(2);
+    assertThat(authorizations)
+        .containsExactly("Bearer token-1", "Bearer token-1", "Bearer token-2")
+        .inOrder();
+  }
+
+  @Test
+  public void failedRefresh_keepsTokenAndRetriesWithBackoff() throws Exception {
+    tokenSource.add("token-1");
+    tokenSource.add(new IOException("token service unavailable"));
+    tokenSource.add(new IOException("token service unavailable"));
+    tokenSource.add("token-2");
+    credential.start();
+
+    executor.advance(Duration.ofMinutes(55));
+    assertThat(tokenSource.refreshes).isEqualTo(2);
+    send();
+
+    // Retried after one second, and then after two.
+    executor.advance(Duration.ofSeconds(1));
+    assertThat(tokenSource.refreshes).isEqualTo(3);
+    executor.advance(Duration.ofSeconds(1));
+    assertThat(tokenSource.refreshes).isEqualTo(3);
+    executor.advance(Duration.ofSeconds(1));
+    assertThat(tokenSource.refreshes).isEqualTo(4);
+    send();
+
+    assertThat(authorizations).containsExactly("Bearer token-1", "Bearer token-2").inOrder();
+  }
+
+  @Test
+  public void requestBeforeFirstToken_waitsForIt() throws Exception {
+    tokenSource.add(new IOException("token service unavailable"));
+    tokenSource.add("token-1");
+    credential.start();
+
+    Future<?> request = callers.submit(this::send);
+    // Wait a little, to give the request a chance to go out without a token.
+    Thread.sleep(100);
+    assertThat(request.isDone()).isFalse();
+
+    executor.advance(Duration.ofSeconds(1));
+    request.get(10, TimeUnit.SECONDS);
+
+    assertThat(authorizations).containsExactly("Bearer token-1");
+  }
+
+  @Test
+  public void unauthorizedResponse_refreshesTokenAndRetries() throws Exception {
+    tokenSource.add("token-1", "token-2");
+    credential.start();
+    tokenSource.revoked.add("Bearer token-1");
+
+    send();
+    send();
+
+    assertThat(tokenSource.refreshes).isEqualTo(2);
+    assertThat(authorizations)
+        .containsExactly("Bearer token-1", "Bearer token-2", "Bearer token-2")
+        .inOrder();
+  }
+
+  /** Sends a request authorized by the credential, which must succeed. */
+  private Void send() throws IOException {
+    HttpRequest request =
+        transport
+            .createRequestFactory(credential)
+            .buildGetRequest(new GenericUrl("https://dicomweb.example.com/studies"));
+    assertThat(request.execute().getStatusCode()).isEqualTo(HttpStatusCodes.STATUS_CODE_OK);
+    return null;
+  }
+
+  /** Token service which hands out the given tokens, or fails, in turn. */
+  private static final class FakeTokenSource extends Credential {
+    private final Deque<Object> results = new ArrayDeque<>();
+    /** Authorization headers which the upstream rejects. */
+    final List<String> revoked = new ArrayList<>();
+    volatile int refreshes = 0;
+
+    FakeTokenSource() {
+      // Expiry is reported relative to the credential's clock, so it's fixed to keep lifetimes
+      // exact.
+      super(
+          new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+              .setClock(() -> 0L));
+    }
+
+    synchronized void add(String... tokens) {
+      for (String token : tokens) {
+        results.add(token);
+      }
+    }
+
+    synchronized void add(IOException failure) {
+      results.add(failure);
+    }
+
+    @Override
+    protected synchronized TokenResponse executeRefreshToken() throws IOException {
+      refreshes++;
+      Object result = results.remove();
+      if (result instanceof IOException) {
+        throw (IOException) result;
+      }
+      return new TokenResponse()
+          .setAccessToken((String) result)
+          .setExpiresInSeconds(LIFETIME_SECONDS);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.File;
+import java.io.InputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link RetrieveCache}. */
+@RunWith(JUnit4.class)
+public final class RetrieveCacheTest {
+  private static final String CONTENT_TYPE = "multipart/related; boundary=\"BoUndaRy\"";
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File folder;
+
+  @Before
+  public void setUp() throws Exception {
+    folder = tempFolder.newFolder("cache");
+  }
+
+  @Test
+  public void committedResponse_isReadBack() throws Exception {
+    RetrieveCache cache = RetrieveCache.open(folder, 1000);
+
+    put(cache, "a", "response a");
+
+    assertThat(read(cache, "a")).isEqualTo("response a");
+    assertThat(cache.get("b")).isNull();
+  }
+
+  @Test
+  public void uncommittedResponse_isDiscarded() throws Exception {
+    RetrieveCache cache = RetrieveCache.open(folder, 1000);
+
+    try (RetrieveCache.Writer writer = cache.newWriter("a", CONTENT_TYPE)) {
+      writer.write("partial".getBytes(UTF_8));
+    }
+
+    assertThat(cache.get("a")).isNull();
+    assertThat(folder.list()).isEmpty();
+  }
+
+  @Test
+  public void tooLargeResponse_isNotCached() throws Exception {
+    RetrieveCache cache = RetrieveCache.open(folder, 50);
+
+    put(cache, "a", "a response longer than the whole cache can hold");
+
+    assertThat(cache.get("a")).isNull();
+  }
+
+  @Test
+  public void leastRecentlyUsed_isEvicted() throws Exception {
+    // Room for two responses, with their content types.
+    RetrieveCache cache = RetrieveCache.open(folder, 2 * (CONTENT_TYPE.length() + 11));
+    put(cache, "a", "response a");
+    put(cache, "b", "response b");
+    read(cache, "a");
+
+    put(cache, "c", "response c");
+
+    assertThat(read(cache, "a")).isEqualTo("response a");
+    assertThat(cache.get("b")).isNull();
+    assertThat(read(cache, "c")).isEqualTo("response c");
+  }
+
+  @Test
+  public void reopenedCache_keepsResponses() throws Exception {
+    put(RetrieveCache.open(folder, 1000), "a", "response a");
+
+    RetrieveCache reopened = RetrieveCache.open(folder, 1000);
+
+    assertThat(read(reopened, "a")).isEqualTo("response a");
+  }
+
+  private static void put(RetrieveCache cache, String key, String response) throws Exception {
+    try (RetrieveCache.Writer writer = cache.newWriter(key, CONTENT_TYPE)) {
+      writer.write(response.getBytes(UTF_8));
+      writer.commit();
+    }
+  }
+
+  private static String read(RetrieveCache cache, String key) throws Exception {
+    RetrieveCache.Response response = cache.get(key);
+    assertThat(response).isNotNull();
+    assertThat(response.getContentType()).isEqualTo(CONTENT_TYPE);
+    try (InputStream content = response.getContent()) {
+      return new String(ByteStreams.toByteArray(content), UTF_8);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link RetryAfter}. */
+@RunWith(JUnit4.class)
+public final class RetryAfterTest {
+  private static final Clock CLOCK =
+      Clock.fixed(Instant.parse("2020-03-04T10:00:00Z"), ZoneOffset.UTC);
+
+  @Test
+  public void parse_seconds() {
+    assertThat(RetryAfter.parse("120", CLOCK)).isEqualTo(Optional.of(Duration.ofSeconds(120)));
+  }
+
+  @Test
+  public void parse_httpDate() {
+    assertThat(RetryAfter.parse("Wed, 04 Mar 2020 10:00:30 GMT", CLOCK))
+        .isEqualTo(Optional.of(Duration.ofSeconds(30)));
+  }
+
+  @Test
+  public void parse_pastHttpDate_isNoDelay() {
+    assertThat(RetryAfter.parse("Wed, 04 Mar 2020 09:00:00 GMT", CLOCK))
+        .isEqualTo(Optional.of(Duration.ZERO));
+  }
+
+  @Test
+  public void parse_missingOrMalformed_isEmpty() {
+    assertThat(RetryAfter.parse(null, CLOCK)).isEqualTo(Optional.empty());
+    assertThat(RetryAfter.parse(" ", CLOCK)).isEqualTo(Optional.empty());
+    assertThat(RetryAfter.parse("soon", CLOCK)).isEqualTo(Optional.empty());
+  }
+}
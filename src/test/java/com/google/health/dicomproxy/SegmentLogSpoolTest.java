@@ -0,0 +1,155 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SegmentLogSpool}. */
+@RunWith(JUnit4.class)
+public final class SegmentLogSpoolTest {
+  private static final long SEGMENT_SIZE = 100;
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void committedInstances_areReadable() throws Exception {
+    SegmentLogSpool spool = openSpool();
+    write(spool, "batch", "1.2.3.1", "first");
+    write(spool, "batch", "1.2.3.2", "second");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.1", "1.2.3.2").inOrder();
+    assertThat(read(batch.getInstances().get(0))).isEqualTo("first");
+    assertThat(read(batch.getInstances().get(1))).isEqualTo("second");
+    assertThat(batch.getInstances().get(1).getLength()).isEqualTo(6);
+  }
+
+  @Test
+  public void uncommittedInstance_isDiscarded() throws Exception {
+    SegmentLogSpool spool = openSpool();
+    try (Spool.PendingInstance pending = spool.newInstance("batch", "1.2.3.1")) {
+      pending.getOutputStream().write("discarded".getBytes(UTF_8));
+    }
+    write(spool, "batch", "1.2.3.2", "kept");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.2");
+    assertThat(read(batch.getInstances().get(0))).isEqualTo("kept");
+  }
+
+  @Test
+  public void resentInstance_replacesOriginal() throws Exception {
+    SegmentLogSpool spool = openSpool();
+    write(spool, "batch", "1.2.3.1", "original");
+    write(spool, "batch", "1.2.3.1", "resent");
+
+    SpoolBatch batch = spool.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.1");
+    assertThat(read(batch.getInstances().get(0))).isEqualTo("resent");
+  }
+
+  @Test
+  public void reopen_recoversCompletedUnreleasedBatches() throws Exception {
+    SegmentLogSpool spool = openSpool();
+    write(spool, "uploaded", "1.2.3.1", "uploaded");
+    spool.release(spool.completeBatch("uploaded"));
+    write(spool, "pending", "1.2.3.2", "pending");
+    spool.completeBatch("pending");
+    write(spool, "incomplete", "1.2.3.3", "incomplete");
+
+    SegmentLogSpool reopened = openSpool();
+
+    assertThat(reopened.recoverBatches()).hasSize(1);
+    SpoolBatch recovered = reopened.recoverBatches().get(0);
+    assertThat(recovered.getId()).isEqualTo("pending");
+    assertThat(read(recovered.getInstances().get(0))).isEqualTo("pending");
+  }
+
+  @Test
+  public void releasedFullSegments_areDeleted() throws Exception {
+    SegmentLogSpool spool = SegmentLogSpool.open(
+        tempFolder.getRoot(), /* segmentSize= */ 4, SpoolDurability.none());
+    write(spool, "batch", "1.2.3.1", "fills a segment");
+    write(spool, "batch", "1.2.3.2", "fills another");
+    SpoolBatch batch = spool.completeBatch("batch");
+    assertThat(spool.getSegmentCount()).isEqualTo(2);
+
+    spool.release(batch);
+
+    assertThat(spool.getSegmentCount()).isEqualTo(0);
+    assertThat(tempFolder.getRoot().list()).isEmpty();
+  }
+
+  @Test
+  public void mostlyReleasedSegment_isCompacted() throws Exception {
+    SegmentLogSpool spool = openSpool();
+    SpoolBatch[] batches = new SpoolBatch[10];
+    for (int i = 0; i < 10; i++) {
+      // Ten bytes each, so the ten instances exactly fill the segment.
+      write(spool, "batch" + i, "1.2.3." + i, "instance-" + i);
+      batches[i] = spool.completeBatch("batch" + i);
+    }
+    assertThat(spool.getSegmentCount()).isEqualTo(1);
+
+    for (int i = 0; i < 9; i++) {
+      spool.release(batches[i]);
+    }
+
+    // The remaining instance has been moved to a new segment, and the old one deleted.
+    assertThat(spool.getSegmentCount()).isEqualTo(1);
+    assertThat(read(batches[9].getInstances().get(0))).isEqualTo("instance-9");
+    SegmentLogSpool reopened = openSpool();
+    assertThat(reopened.recoverBatches()).hasSize(1);
+    assertThat(read(reopened.recoverBatches().get(0).getInstances().get(0)))
+        .isEqualTo("instance-9");
+  }
+
+  @Test
+  public void groupCommit_durableInstancesAreRecovered() throws Exception {
+    try (SpoolDurability durability = SpoolDurability.groupCommit(Duration.ofMillis(1))) {
+      SegmentLogSpool spool =
+          SegmentLogSpool.open(tempFolder.getRoot(), SEGMENT_SIZE, durability);
+      write(spool, "batch", "1.2.3.1", "durable");
+      spool.completeBatch("batch");
+    }
+
+    SegmentLogSpool reopened = openSpool();
+    assertThat(reopened.recoverBatches()).hasSize(1);
+    assertThat(read(reopened.recoverBatches().get(0).getInstances().get(0))).isEqualTo("durable");
+  }
+
+  private SegmentLogSpool openSpool() throws IOException {
+    return SegmentLogSpool.open(tempFolder.getRoot(), SEGMENT_SIZE, SpoolDurability.none());
+  }
+
+  private static void write(Spool spool, String batchId, String sopInstanceUid, String content)
+      throws Exception {
+    try (Spool.PendingInstance pending = spool.newInstance(batchId, sopInstanceUid)) {
+      pending.getOutputStream().write(content.getBytes(UTF_8));
+      pending.commit();
+    }
+  }
+
+  private static String read(SpooledInstance instance) throws Exception {
+    try (InputStream in = instance.openStream()) {
+      return new String(ByteStreams.toByteArray(in), UTF_8);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SharedSpool}, with two nodes sharing one folder. */
+@RunWith(JUnit4.class)
+public final class SharedSpoolTest {
+  private static final Duration LEASE_TIMEOUT = Duration.ofSeconds(60);
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final FakeClock clock = new FakeClock();
+  private File folder;
+  private SharedSpool nodeA;
+  private SharedSpool nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = tempFolder.newFolder("spool");
+    nodeA = openNode("node-a", 10);
+    nodeB = openNode("node-b", 10);
+  }
+
+  @Test
+  public void completedBatch_isNotClaimedByOtherNodes() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+
+    SpoolBatch batch = nodeA.completeBatch("batch");
+
+    assertThat(batch.getSopInstanceUids()).containsExactly("1.2.3.1");
+    assertThat(nodeB.claimBatches()).isEmpty();
+  }
+
+  @Test
+  public void incompleteBatch_isNotClaimedWhileItsNodeIsAlive() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    clock.advance(LEASE_TIMEOUT.dividedBy(2));
+    nodeA.renewLeases();
+    clock.advance(LEASE_TIMEOUT.dividedBy(2).plusSeconds(1));
+
+    assertThat(nodeB.claimBatches()).isEmpty();
+    write(nodeA, "batch", "1.2.3.2");
+    assertThat(nodeA.completeBatch("batch").getSopInstanceUids())
+        .containsExactly("1.2.3.1", "1.2.3.2");
+  }
+
+  @Test
+  public void incompleteBatch_ofDeadNode_isClaimedOnceLeaseExpires() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    write(nodeA, "batch", "1.2.3.2");
+    nodeA.close();
+    clock.advance(LEASE_TIMEOUT.minusSeconds(1));
+    assertThat(nodeB.claimBatches()).isEmpty();
+    clock.advance(Duration.ofSeconds(2));
+
+    SpoolBatch claimed = getOnlyClaimedBatch(nodeB);
+
+    assertThat(claimed.getId()).isEqualTo("batch");
+    assertThat(claimed.getSopInstanceUids()).containsExactly("1.2.3.1", "1.2.3.2");
+    nodeB.release(claimed);
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+    assertThat(openNode("node-c", 10).claimBatches()).isEmpty();
+  }
+
+  @Test
+  public void incompleteBatch_takenOverByAnotherNode_cannotBeCompleted() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+    getOnlyClaimedBatch(nodeB);
+
+    try {
+      nodeA.completeBatch("batch");
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void batchesBeingReceived_dontCountTowardsClaimLimit() throws Exception {
+    write(nodeB, "batch1", "1.2.3.1");
+    nodeB.completeBatch("batch1");
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+    SharedSpool limitedNode = openNode("node-c", 1);
+    write(limitedNode, "receiving", "1.2.3.2");
+
+    assertThat(limitedNode.claimBatches()).hasSize(1);
+  }
+
+  @Test
+  public void expiredLease_isTakenOver() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    write(nodeA, "batch", "1.2.3.2");
+    nodeA.completeBatch("batch");
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+
+    SpoolBatch claimed = getOnlyClaimedBatch(nodeB);
+
+    assertThat(claimed.getId()).isEqualTo("batch");
+    assertThat(claimed.getSopInstanceUids()).containsExactly("1.2.3.1", "1.2.3.2");
+    // The batch is now held by node B.
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+    nodeB.renewLeases();
+    assertThat(nodeA.claimBatches()).isEmpty();
+  }
+
+  @Test
+  public void renewedLease_isNotTakenOver() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    nodeA.completeBatch("batch");
+
+    clock.advance(LEASE_TIMEOUT.dividedBy(2));
+    nodeA.renewLeases();
+    clock.advance(LEASE_TIMEOUT.dividedBy(2).plusSeconds(1));
+
+    assertThat(nodeB.claimBatches()).isEmpty();
+  }
+
+  @Test
+  public void uploadedBatch_isNeverClaimed() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    nodeA.release(nodeA.completeBatch("batch"));
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+
+    assertThat(nodeB.claimBatches()).isEmpty();
+  }
+
+  @Test
+  public void failedUpload_isClaimedOnceLeaseExpires() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    SpoolBatch batch = nodeA.completeBatch("batch");
+
+    nodeA.onUploadFailed(batch);
+    clock.advance(LEASE_TIMEOUT.dividedBy(2));
+    nodeA.renewLeases();
+    assertThat(nodeB.claimBatches()).isEmpty();
+    clock.advance(LEASE_TIMEOUT.dividedBy(2).plusSeconds(1));
+
+    assertThat(getOnlyClaimedBatch(nodeB).getId()).isEqualTo("batch");
+  }
+
+  @Test
+  public void restartedNode_recoversItsOwnBatches() throws Exception {
+    write(nodeA, "batch", "1.2.3.1");
+    nodeA.completeBatch("batch");
+    nodeA.close();
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+
+    SharedSpool restarted = openNode("node-a-restarted", 10);
+
+    assertThat(restarted.recoverBatches()).hasSize(1);
+  }
+
+  @Test
+  public void claims_areLimitedPerNode() throws Exception {
+    for (String batchId : new String[] {"batch1", "batch2", "batch3"}) {
+      write(nodeA, batchId, "1.2.3.1");
+      nodeA.completeBatch(batchId);
+    }
+    clock.advance(LEASE_TIMEOUT.plusSeconds(1));
+    SharedSpool limitedNode = openNode("node-c", 2);
+
+    assertThat(limitedNode.claimBatches()).hasSize(2);
+    assertThat(nodeB.claimBatches()).hasSize(1);
+  }
+
+  private SharedSpool openNode(String nodeId, int maxClaimedBatches) {
+    return new SharedSpool(
+        new FileSpool(folder, SpoolDurability.none()),
+        folder,
+        nodeId,
+        LEASE_TIMEOUT,
+        maxClaimedBatches,
+        clock);
+  }
+
+  private static void write(Spool spool, String batchId, String sopInstanceUid)
+      throws IOException {
+    try (Spool.PendingInstance pending = spool.newInstance(batchId, sopInstanceUid)) {
+      pending.getOutputStream().write(sopInstanceUid.getBytes(UTF_8));
+      pending.commit();
+    }
+  }
+
+  private static SpoolBatch getOnlyClaimedBatch(SharedSpool node) {
+    ImmutableList<SpoolBatch> claimed = node.claimBatches();
+    assertThat(claimed).hasSize(1);
+    return claimed.get(0);
+  }
+}
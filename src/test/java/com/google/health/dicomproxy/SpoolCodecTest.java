@@ -0,0 +1,80 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SpoolCodec}. */
+@RunWith(JUnit4.class)
+public final class SpoolCodecTest {
+  /** Starts like an instance written by the proxy, with a zeroed preamble. */
+  private static final byte[] INSTANCE =
+      (Strings.repeat("\0", 128) + "DICM" + Strings.repeat("pixel data ", 20_000)).getBytes(UTF_8);
+
+  @Test
+  public void lz4_compressesAndDecodesInstance() throws IOException {
+    byte[] stored = encode(SpoolCodec.LZ4, INSTANCE);
+
+    assertThat(stored.length).isLessThan(INSTANCE.length / 10);
+    assertThat(decode(stored)).isEqualTo(INSTANCE);
+  }
+
+  @Test
+  public void lz4_decodesIncompressibleInstanceOfManyBlocks() throws IOException {
+    byte[] instance = new byte[200_000];
+    new Random(42).nextBytes(instance);
+
+    assertThat(decode(encode(SpoolCodec.LZ4, instance))).isEqualTo(instance);
+  }
+
+  @Test
+  public void none_storesInstanceAsReceived() throws IOException {
+    byte[] stored = encode(SpoolCodec.NONE, INSTANCE);
+
+    assertThat(stored).isEqualTo(INSTANCE);
+    assertThat(decode(stored)).isEqualTo(INSTANCE);
+  }
+
+  @Test
+  public void decode_passesThroughInstanceShorterThanMagicNumber() throws IOException {
+    byte[] stored = {0x04, 0x22};
+
+    assertThat(decode(stored)).isEqualTo(stored);
+  }
+
+  @Test
+  public void forName() {
+    assertThat(SpoolCodec.forName("lz4")).isSameInstanceAs(SpoolCodec.LZ4);
+    assertThat(SpoolCodec.forName("none")).isSameInstanceAs(SpoolCodec.NONE);
+  }
+
+  private static byte[] encode(SpoolCodec codec, byte[] instance) throws IOException {
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    try (OutputStream out = codec.encode(stored)) {
+      out.write(instance);
+    }
+    return stored.toByteArray();
+  }
+
+  private static byte[] decode(byte[] stored) throws IOException {
+    try (InputStream in = SpoolCodec.decode(new ByteArrayInputStream(stored))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SpoolDurability}. */
+@RunWith(JUnit4.class)
+public final class SpoolDurabilityTest {
+  @Test
+  public void none_neverSyncs() throws Exception {
+    AtomicInteger syncs = new AtomicInteger();
+
+    SpoolDurability.none().sync(ImmutableList.of(syncs::incrementAndGet));
+
+    assertThat(syncs.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void perInstance_syncsImmediately() throws Exception {
+    AtomicInteger syncs = new AtomicInteger();
+
+    SpoolDurability.perInstance().sync(ImmutableList.of(syncs::incrementAndGet));
+
+    assertThat(syncs.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void groupCommit_returnsOnceSynced() throws Exception {
+    AtomicInteger syncs = new AtomicInteger();
+    SpoolDurability.Syncable syncable = syncs::incrementAndGet;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (SpoolDurability durability = SpoolDurability.groupCommit(Duration.ofMillis(5))) {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  durability.sync(ImmutableList.of(syncable));
+                  // The syncable may be shared with other callers, but must have run by now.
+                  assertThat(syncs.get()).isAtLeast(1);
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(syncs.get()).isAtLeast(1);
+    assertThat(syncs.get()).isAtMost(4);
+  }
+
+  @Test(timeout = 10_000)
+  public void groupCommit_withNothingToSync_returnsImmediately() throws Exception {
+    // No sync is due within the test, so waiting for one would time out.
+    try (SpoolDurability durability = SpoolDurability.groupCommit(Duration.ofHours(1))) {
+      durability.sync(ImmutableList.of());
+    }
+  }
+
+  @Test
+  public void groupCommit_propagatesFailures() throws Exception {
+    try (SpoolDurability durability = SpoolDurability.groupCommit(Duration.ofMillis(1))) {
+      durability.sync(
+          ImmutableList.of(
+              () -> {
+                throw new IOException("disk on fire");
+              }));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e.getCause()).hasMessageThat().isEqualTo("disk on fire");
+    }
+  }
+}
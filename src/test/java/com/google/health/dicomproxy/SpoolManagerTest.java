@@ -0,0 +1,173 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link SpoolManager}. */
+@RunWith(JUnit4.class)
+public final class SpoolManagerTest {
+  private static final Duration RETENTION = Duration.ofHours(24);
+  /** Size of each instance written by the tests. */
+  private static final int INSTANCE_BYTES = 40;
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final FakeClock clock = new FakeClock();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private File folder;
+  private FileSpool fileSpool;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = tempFolder.newFolder("spool");
+    fileSpool = new FileSpool(folder, SpoolDurability.none());
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void uploadedBatch_isDeletedOnceRetentionPasses() throws Exception {
+    SpoolManager spoolManager = createSpoolManager(0);
+    String batchId = writeUploadedBatch();
+
+    spoolManager.scan();
+    assertThat(batchFolder(batchId).exists()).isTrue();
+
+    clock.advance(RETENTION.plusMinutes(1));
+    spoolManager.scan();
+    assertThat(batchFolder(batchId).exists()).isFalse();
+  }
+
+  @Test
+  public void unsentBatch_isNeverDeleted() throws Exception {
+    SpoolManager spoolManager = createSpoolManager(INSTANCE_BYTES);
+    String batchId = writeBatch();
+    clock.advance(RETENTION.plusMinutes(1));
+
+    spoolManager.scan();
+
+    assertThat(batchFolder(batchId).exists()).isTrue();
+    assertThat(spoolManager.getUsedBytes()).isEqualTo(INSTANCE_BYTES);
+  }
+
+  @Test
+  public void underPressure_firstUploadedBatchIsEvicted() throws Exception {
+    // The three batches exceed nine tenths of the quota; two of them fit.
+    SpoolManager spoolManager = createSpoolManager(100);
+    String older = writeUploadedBatch();
+    clock.advance(Duration.ofMinutes(1));
+    String newer = writeUploadedBatch();
+    String unsent = writeBatch();
+
+    spoolManager.scan();
+
+    assertThat(batchFolder(older).exists()).isFalse();
+    assertThat(batchFolder(newer).exists()).isTrue();
+    assertThat(batchFolder(unsent).exists()).isTrue();
+    assertThat(spoolManager.getUsedBytes()).isEqualTo(2 * INSTANCE_BYTES);
+  }
+
+  @Test
+  public void fullSpool_refusesInstances() throws Exception {
+    SpoolManager spoolManager = createSpoolManager(2 * INSTANCE_BYTES);
+    writeBatch();
+    writeBatch();
+    spoolManager.scan();
+
+    try {
+      spoolManager.newInstance(UUID.randomUUID().toString(), "1.2.3");
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(Status.OutOfResources);
+    }
+  }
+
+  @Test
+  public void committedInstances_countTowardsQuota() throws Exception {
+    SpoolManager spoolManager = createSpoolManager(1000);
+    spoolManager.scan();
+
+    write(spoolManager, UUID.randomUUID().toString());
+
+    assertThat(spoolManager.getUsedBytes()).isEqualTo(INSTANCE_BYTES);
+  }
+
+  @Test
+  public void otherFolders_areIgnored() throws Exception {
+    SpoolManager spoolManager = createSpoolManager(0);
+    File metadata = tempFolder.newFolder("spool", "metadata");
+    new File(metadata, "sidecar").createNewFile();
+    clock.advance(RETENTION.plusMinutes(1));
+
+    spoolManager.scan();
+
+    assertThat(metadata.list()).asList().containsExactly("sidecar");
+  }
+
+  private SpoolManager createSpoolManager(long quotaBytes) {
+    return new SpoolManager(
+        fileSpool,
+        folder,
+        quotaBytes,
+        RETENTION,
+        new TokenBucket(1000, 1000, Ticker.systemTicker()),
+        clock,
+        executor);
+  }
+
+  /** Writes a batch of one instance, which isn't uploaded. */
+  private String writeBatch() throws IOException {
+    String batchId = UUID.randomUUID().toString();
+    write(fileSpool, batchId);
+    fileSpool.completeBatch(batchId);
+    return batchId;
+  }
+
+  /** Writes a batch of one instance, which is uploaded at the current time. */
+  private String writeUploadedBatch() throws IOException {
+    String batchId = writeBatch();
+    fileSpool.release(fileSpool.readBatch(batchId));
+    // Marked by the system clock; the spool manager goes by the fake one.
+    File marker = new File(batchFolder(batchId), FileSpool.UPLOADED_FILE);
+    assertThat(marker.setLastModified(clock.millis())).isTrue();
+    return batchId;
+  }
+
+  private File batchFolder(String batchId) {
+    return new File(folder, batchId);
+  }
+
+  private static void write(Spool spool, String batchId) throws IOException {
+    try (Spool.PendingInstance pending = spool.newInstance(batchId, "1.2.3")) {
+      pending.getOutputStream().write(Strings.repeat("x", INSTANCE_BYTES).getBytes(UTF_8));
+      pending.commit();
+    }
+  }
+}
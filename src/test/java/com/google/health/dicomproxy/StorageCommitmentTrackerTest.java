@@ -0,0 +1,128 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.InputStream;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link StorageCommitmentTracker}. */
+@RunWith(JUnit4.class)
+public final class StorageCommitmentTrackerTest {
+  private static final Duration TIMEOUT = Duration.ofMinutes(10);
+  private static final String CT = "1.2.840.10008.5.1.4.1.1.2";
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final StorageCommitmentTracker tracker =
+      new StorageCommitmentTracker(uid -> uid.equals("1.2.3.9"), 100, TIMEOUT, ticker);
+
+  @Test
+  public void commitment_isReadyOnceAllInstancesUploaded() {
+    tracker.request("CT1", "PROXY", "1.9", instances("1.2.3.1", "1.2.3.2"));
+
+    tracker.onUploadSucceeded(batchOf("1.2.3.1"));
+    assertThat(tracker.takeReady()).isEmpty();
+    tracker.onUploadSucceeded(batchOf("1.2.3.2"));
+
+    ImmutableList<StorageCommitmentTracker.Commitment> ready = tracker.takeReady();
+    assertThat(ready).hasSize(1);
+    StorageCommitmentTracker.Commitment commitment = ready.get(0);
+    assertThat(commitment.getTransactionUid()).isEqualTo("1.9");
+    assertThat(commitment.getRequestorAet()).isEqualTo("CT1");
+    assertThat(commitment.getLocalAet()).isEqualTo("PROXY");
+    assertThat(commitment.getCommitted().keySet()).containsExactly("1.2.3.1", "1.2.3.2");
+    assertThat(commitment.getFailed()).isEmpty();
+    assertThat(tracker.takeReady()).isEmpty();
+  }
+
+  @Test
+  public void instancesUploadedBeforeRequest_areCommittedAtOnce() {
+    tracker.onUploadSucceeded(batchOf("1.2.3.1"));
+
+    // 1.2.3.9 is known to the dedupe index.
+    tracker.request("CT1", "PROXY", "1.9", instances("1.2.3.1", "1.2.3.9"));
+
+    ImmutableList<StorageCommitmentTracker.Commitment> ready = tracker.takeReady();
+    assertThat(ready).hasSize(1);
+    assertThat(ready.get(0).getCommitted().keySet()).containsExactly("1.2.3.1", "1.2.3.9");
+  }
+
+  @Test
+  public void failedUpload_isReportedAsFailed() {
+    tracker.request("CT1", "PROXY", "1.9", instances("1.2.3.1", "1.2.3.2"));
+
+    tracker.onUploadSucceeded(batchOf("1.2.3.1"));
+    tracker.onUploadFailed(batchOf("1.2.3.2"));
+
+    StorageCommitmentTracker.Commitment commitment = tracker.takeReady().get(0);
+    assertThat(commitment.getCommitted().keySet()).containsExactly("1.2.3.1");
+    assertThat(commitment.getFailed()).containsExactly("1.2.3.2", CT);
+  }
+
+  @Test
+  public void timedOutCommitment_failsRemainingInstances() {
+    tracker.request("CT1", "PROXY", "1.9", instances("1.2.3.1", "1.2.3.2"));
+    tracker.onUploadSucceeded(batchOf("1.2.3.1"));
+
+    ticker.advance(TIMEOUT.toNanos() - 1);
+    assertThat(tracker.takeReady()).isEmpty();
+    ticker.advance(1);
+
+    StorageCommitmentTracker.Commitment commitment = tracker.takeReady().get(0);
+    assertThat(commitment.getCommitted().keySet()).containsExactly("1.2.3.1");
+    assertThat(commitment.getFailed().keySet()).containsExactly("1.2.3.2");
+    assertThat(tracker.getPendingCount()).isEqualTo(0);
+
+    // Late uploads don't affect reported commitments.
+    tracker.onUploadSucceeded(batchOf("1.2.3.2"));
+    assertThat(tracker.takeReady()).isEmpty();
+  }
+
+  @Test
+  public void instanceInSeveralCommitments_resolvesAll() {
+    tracker.request("CT1", "PROXY", "1.9", instances("1.2.3.1"));
+    tracker.request("CT2", "PROXY", "1.10", instances("1.2.3.1"));
+
+    tracker.onUploadSucceeded(batchOf("1.2.3.1"));
+
+    assertThat(tracker.takeReady()).hasSize(2);
+  }
+
+  private static ImmutableMap<String, String> instances(String... sopInstanceUids) {
+    ImmutableMap.Builder<String, String> instances = ImmutableMap.builder();
+    for (String sopInstanceUid : sopInstanceUids) {
+      instances.put(sopInstanceUid, CT);
+    }
+    return instances.build();
+  }
+
+  private static SpoolBatch batchOf(String sopInstanceUid) {
+    SpooledInstance instance =
+        new SpooledInstance() {
+          @Override
+          public String getSopInstanceUid() {
+            return sopInstanceUid;
+          }
+
+          @Override
+          public long getLength() {
+            return 0;
+          }
+
+          @Override
+          public InputStream openStream() {
+            throw new UnsupportedOperationException();
+          }
+        };
+    return new SpoolBatch("batch", ImmutableList.of(instance));
+  }
+}
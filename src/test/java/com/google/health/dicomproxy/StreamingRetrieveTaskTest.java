@@ -0,0 +1,44 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import org.dcm4che3.data.UID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StreamingRetrieveTaskTest {
+  private static final String JPEG_LOSSLESS = "1.2.840.10008.1.2.4.70";
+
+  @Test
+  public void acceptedTransferSyntax_passedThrough() {
+    assertThat(
+            StreamingRetrieveTask.selectTransferSyntax(
+                ImmutableSet.of(UID.ImplicitVRLittleEndian, JPEG_LOSSLESS), JPEG_LOSSLESS))
+        .isEqualTo(JPEG_LOSSLESS);
+  }
+
+  @Test
+  public void uncompressed_reencodedInPreferredTransferSyntax() {
+    assertThat(
+            StreamingRetrieveTask.selectTransferSyntax(
+                ImmutableSet.of(UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian),
+                UID.DeflatedExplicitVRLittleEndian))
+        .isEqualTo(UID.ExplicitVRLittleEndian);
+  }
+
+  @Test
+  public void compressed_notAccepted() {
+    assertThat(
+            StreamingRetrieveTask.selectTransferSyntax(
+                ImmutableSet.of(UID.ImplicitVRLittleEndian), JPEG_LOSSLESS))
+        .isNull();
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TagMorpher}. */
+@RunWith(JUnit4.class)
+public final class TagMorpherTest {
+  private static final ImmutableList<String> RULES =
+      ImmutableList.of(
+          "# De-identify for research.",
+          "remove PatientBirthDate",
+          "empty ReferringPhysicianName",
+          "",
+          "set InstitutionName Research Site",
+          "salt secret",
+          "hash PatientID",
+          "remove-private");
+
+  @Test
+  public void apply_changesAttributes() {
+    Attributes dataset = newDataset();
+
+    TagMorpher.parse(RULES).apply(dataset);
+
+    assertThat(dataset.contains(Tag.PatientBirthDate)).isFalse();
+    assertThat(dataset.contains(Tag.ReferringPhysicianName)).isTrue();
+    assertThat(dataset.getString(Tag.ReferringPhysicianName)).isNull();
+    assertThat(dataset.getString(Tag.InstitutionName)).isEqualTo("Research Site");
+    assertThat(dataset.getString(Tag.PatientID)).hasLength(16);
+    assertThat(dataset.getString(Tag.PatientID)).isNotEqualTo("MRN123");
+    assertThat(dataset.contains(0x00091010)).isFalse();
+    assertThat(dataset.getString(Tag.SOPInstanceUID)).isEqualTo("1.2.3.4");
+  }
+
+  @Test
+  public void hash_isConsistentAcrossInstances() {
+    Attributes first = newDataset();
+    Attributes second = newDataset();
+    TagMorpher morpher = TagMorpher.parse(RULES);
+
+    morpher.apply(first);
+    morpher.apply(second);
+
+    assertThat(first.getString(Tag.PatientID)).isEqualTo(second.getString(Tag.PatientID));
+  }
+
+  @Test
+  public void morph_passesPixelDataThrough() throws Exception {
+    Attributes dataset = newDataset();
+    byte[] pixelData = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+    dataset.setBytes(Tag.PixelData, VR.OW, pixelData);
+    ByteArrayOutputStream in = new ByteArrayOutputStream();
+    try (DicomOutputStream out = new DicomOutputStream(in, UID.ExplicitVRLittleEndian)) {
+      out.writeDataset(null, dataset);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Attributes header =
+        TagMorpher.parse(RULES)
+            .morph(
+                new ByteArrayInputStream(in.toByteArray()), UID.ExplicitVRLittleEndian, out);
+
+    assertThat(header.contains(Tag.PixelData)).isFalse();
+    assertThat(header.getString(Tag.InstitutionName)).isEqualTo("Research Site");
+    Attributes morphed;
+    try (DicomInputStream morphedIn =
+        new DicomInputStream(
+            new ByteArrayInputStream(out.toByteArray()), UID.ExplicitVRLittleEndian)) {
+      morphed = morphedIn.readDataset(-1, -1);
+    }
+    assertThat(morphed.getString(Tag.InstitutionName)).isEqualTo("Research Site");
+    assertThat(morphed.contains(Tag.PatientBirthDate)).isFalse();
+    assertThat(morphed.getBytes(Tag.PixelData)).isEqualTo(pixelData);
+  }
+
+  @Test
+  public void morph_withoutPixelData_keepsAttributesAfterIt() throws Exception {
+    Attributes dataset = newDataset();
+    Attributes signature = new Attributes();
+    signature.setString(Tag.DigitalSignatureUID, VR.UI, "1.2.3.5");
+    dataset.newSequence(Tag.DigitalSignaturesSequence, 1).add(signature);
+    ByteArrayOutputStream in = new ByteArrayOutputStream();
+    try (DicomOutputStream out = new DicomOutputStream(in, UID.ExplicitVRLittleEndian)) {
+      out.writeDataset(null, dataset);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TagMorpher.parse(RULES)
+        .morph(new ByteArrayInputStream(in.toByteArray()), UID.ExplicitVRLittleEndian, out);
+
+    Attributes morphed;
+    try (DicomInputStream morphedIn =
+        new DicomInputStream(
+            new ByteArrayInputStream(out.toByteArray()), UID.ExplicitVRLittleEndian)) {
+      morphed = morphedIn.readDataset(-1, -1);
+    }
+    assertThat(morphed.getString(Tag.InstitutionName)).isEqualTo("Research Site");
+    Attributes morphedSignature = morphed.getNestedDataset(Tag.DigitalSignaturesSequence);
+    assertThat(morphedSignature.getString(Tag.DigitalSignatureUID)).isEqualTo("1.2.3.5");
+  }
+
+  @Test
+  public void parse_invalidRule_failsWithLineNumber() {
+    try {
+      TagMorpher.parse(ImmutableList.of("remove PatientName", "scramble PatientID"));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("line 2");
+    }
+  }
+
+  @Test
+  public void parse_uid_fails() {
+    try {
+      TagMorpher.parse(ImmutableList.of("hash StudyInstanceUID"));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("UIDs can't be changed");
+    }
+  }
+
+  @Test
+  public void parse_unknownKeyword_fails() {
+    try {
+      TagMorpher.parse(ImmutableList.of("remove PatientShoeSize"));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("PatientShoeSize");
+    }
+  }
+
+  private static Attributes newDataset() {
+    Attributes dataset = new Attributes();
+    dataset.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+    dataset.setString(Tag.PatientName, VR.PN, "Doe^Jane");
+    dataset.setString(Tag.PatientID, VR.LO, "MRN123");
+    dataset.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+    dataset.setString(Tag.ReferringPhysicianName, VR.PN, "Smith^John");
+    dataset.setString(Tag.InstitutionName, VR.LO, "General Hospital");
+    dataset.setString(0x00090010, VR.LO, "VENDOR");
+    dataset.setString(0x00091010, VR.LO, "private value");
+    return dataset;
+  }
+}
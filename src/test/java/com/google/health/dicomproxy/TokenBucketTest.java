@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TokenBucket}. */
+@RunWith(JUnit4.class)
+public final class TokenBucketTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void reserve_withinCapacity_doesNotWait() {
+    TokenBucket bucket = new TokenBucket(10, 5, ticker);
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(bucket.reserve(1)).isEqualTo(0);
+    }
+    assertThat(bucket.getAvailableTokens()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void reserve_beyondCapacity_waitsForDebtToBePaid() {
+    TokenBucket bucket = new TokenBucket(10, 5, ticker);
+    bucket.reserve(5);
+
+    // Each further token takes a tenth of a second, and callers queue up behind each other.
+    assertThat(bucket.reserve(1)).isEqualTo(SECOND / 10);
+    assertThat(bucket.reserve(2)).isEqualTo(3 * SECOND / 10);
+    assertThat(bucket.getAvailableTokens()).isEqualTo(-3.0);
+  }
+
+  @Test
+  public void reserve_largerThanCapacity_isAllowed() {
+    TokenBucket bucket = new TokenBucket(100, 10, ticker);
+
+    assertThat(bucket.reserve(210)).isEqualTo(2 * SECOND);
+  }
+
+  @Test
+  public void refill_isCappedAtCapacity() {
+    TokenBucket bucket = new TokenBucket(10, 5, ticker);
+    bucket.reserve(5);
+
+    ticker.advance(SECOND / 5);
+    assertThat(bucket.getAvailableTokens()).isEqualTo(2.0);
+    ticker.advance(10 * SECOND);
+    assertThat(bucket.getAvailableTokens()).isEqualTo(5.0);
+  }
+
+  @Test
+  public void refill_paysOffDebt() {
+    TokenBucket bucket = new TokenBucket(10, 5, ticker);
+    bucket.reserve(8);
+
+    ticker.advance(SECOND / 2);
+
+    assertThat(bucket.getAvailableTokens()).isEqualTo(2.0);
+    assertThat(bucket.reserve(2)).isEqualTo(0);
+  }
+}
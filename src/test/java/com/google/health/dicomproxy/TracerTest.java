@@ -0,0 +1,124 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link Tracer} and the {@link Span}s it starts. */
+@RunWith(JUnit4.class)
+public final class TracerTest {
+  private final List<Span> exported = new ArrayList<>();
+  private final FakeTicker ticker = new FakeTicker();
+  private final Random random = new Random(42);
+
+  @After
+  public void tearDown() {
+    Tracing.stop();
+  }
+
+  @Test
+  public void childSpan_sharesTrace() {
+    Tracer tracer = createTracer(1);
+
+    Span root = tracer.startTrace("association", Span.KIND_SERVER);
+    Span child = root.startChild("instance");
+
+    assertThat(root.getTraceId()).matches("[0-9a-f]{32}");
+    assertThat(root.getSpanId()).matches("[0-9a-f]{16}");
+    assertThat(root.getParentSpanId()).isNull();
+    assertThat(child.getTraceId()).isEqualTo(root.getTraceId());
+    assertThat(child.getParentSpanId()).isEqualTo(root.getSpanId());
+    assertThat(child.getSpanId()).isNotEqualTo(root.getSpanId());
+  }
+
+  @Test
+  public void endedSpan_isExportedOnceWithDuration() {
+    Tracer tracer = createTracer(1);
+    Span span = tracer.startTrace("upload", Span.KIND_CLIENT).setAttribute("bytes", 10);
+    ticker.advance(Duration.ofMillis(5));
+
+    span.end();
+    span.end();
+
+    assertThat(exported).containsExactly(span);
+    assertThat(span.getEndEpochNanos() - span.getStartEpochNanos())
+        .isEqualTo(Duration.ofMillis(5).toNanos());
+    assertThat(span.getAttributes()).containsExactly("bytes", 10L);
+  }
+
+  @Test
+  public void unsampledTrace_isNotExported() {
+    Tracer tracer = createTracer(0);
+
+    Span root = tracer.startTrace("association", Span.KIND_SERVER);
+    Span child = root.startChild("instance").setAttribute("uid", "1.2.3");
+    child.end();
+    root.end();
+
+    assertThat(exported).isEmpty();
+    assertThat(child.isSampled()).isFalse();
+    assertThat(child.getAttributes()).isEmpty();
+  }
+
+  @Test
+  public void sampleRatio_samplesFractionOfTraces() {
+    Tracer tracer = createTracer(0.25);
+
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (tracer.startTrace("association", Span.KIND_SERVER).isSampled()) {
+        sampled++;
+      }
+    }
+
+    assertThat(sampled).isAtLeast(200);
+    assertThat(sampled).isAtMost(300);
+  }
+
+  @Test
+  public void traceparent_identifiesSpan() {
+    Span sampled = createTracer(1).startTrace("upload", Span.KIND_CLIENT);
+    Span unsampled = createTracer(0).startTrace("upload", Span.KIND_CLIENT);
+
+    assertThat(sampled.getTraceparent())
+        .isEqualTo(String.format("00-%s-%s-01", sampled.getTraceId(), sampled.getSpanId()));
+    assertThat(unsampled.getTraceparent()).endsWith("-00");
+    assertThat(Span.NOOP.getTraceparent()).isNull();
+  }
+
+  @Test
+  public void tracingSpans_areChildrenOfCurrentSpan() {
+    Tracing.start(createTracer(1));
+    Span root = Tracing.startSpan("association", Span.KIND_SERVER, null);
+
+    Span child;
+    try (Span.Scope scope = root.makeCurrent()) {
+      child = Tracing.startSpan("spool.commit");
+    }
+
+    assertThat(child.getParentSpanId()).isEqualTo(root.getSpanId());
+    assertThat(Tracing.current()).isSameInstanceAs(Span.NOOP);
+  }
+
+  @Test
+  public void stoppedTracing_startsNoopSpans() {
+    assertThat(Tracing.startSpan("spool.commit")).isSameInstanceAs(Span.NOOP);
+    assertThat(Span.NOOP.startChild("instance")).isSameInstanceAs(Span.NOOP);
+  }
+
+  private Tracer createTracer(double sampleRatio) {
+    return new Tracer(exported::add, sampleRatio, ticker, () -> random);
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link TransferSyntaxPreferences}. */
+@RunWith(JUnit4.class)
+public final class TransferSyntaxPreferencesTest {
+  private static final String CT_IMAGE_STORAGE = "1.2.840.10008.5.1.4.1.1.2";
+  private static final String MR_IMAGE_STORAGE = "1.2.840.10008.5.1.4.1.1.4";
+
+  private static final String IMPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2";
+  private static final String EXPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2.1";
+  private static final String DEFLATED = "1.2.840.10008.1.2.1.99";
+  private static final String JPEG_LS_LOSSLESS = "1.2.840.10008.1.2.4.80";
+  private static final String JPEG_2000_LOSSLESS = "1.2.840.10008.1.2.4.90";
+
+  private final TransferSyntaxPreferences preferences =
+      TransferSyntaxPreferences.parse(
+          String.format(
+              "*=%s,%s,%s; %s=%s",
+              JPEG_LS_LOSSLESS,
+              JPEG_2000_LOSSLESS,
+              DEFLATED,
+              CT_IMAGE_STORAGE,
+              JPEG_2000_LOSSLESS));
+
+  @Test
+  public void order_putsPreferredSyntaxesFirst() {
+    String[] ordered =
+        preferences.order(
+            MR_IMAGE_STORAGE,
+            new String[] {
+              IMPLICIT_VR_LITTLE_ENDIAN, JPEG_2000_LOSSLESS, EXPLICIT_VR_LITTLE_ENDIAN, DEFLATED
+            });
+
+    assertThat(ordered)
+        .asList()
+        .containsExactly(
+            JPEG_2000_LOSSLESS, DEFLATED, IMPLICIT_VR_LITTLE_ENDIAN, EXPLICIT_VR_LITTLE_ENDIAN)
+        .inOrder();
+  }
+
+  @Test
+  public void order_usesSopClassPreferencesOverDefault() {
+    String[] ordered =
+        preferences.order(
+            CT_IMAGE_STORAGE,
+            new String[] {IMPLICIT_VR_LITTLE_ENDIAN, JPEG_LS_LOSSLESS, JPEG_2000_LOSSLESS});
+
+    assertThat(ordered)
+        .asList()
+        .containsExactly(JPEG_2000_LOSSLESS, IMPLICIT_VR_LITTLE_ENDIAN, JPEG_LS_LOSSLESS)
+        .inOrder();
+  }
+
+  @Test
+  public void order_withoutPreferences_keepsProposedOrder() {
+    String[] ordered =
+        TransferSyntaxPreferences.parse("")
+            .order(CT_IMAGE_STORAGE, new String[] {IMPLICIT_VR_LITTLE_ENDIAN, JPEG_LS_LOSSLESS});
+
+    assertThat(ordered)
+        .asList()
+        .containsExactly(IMPLICIT_VR_LITTLE_ENDIAN, JPEG_LS_LOSSLESS)
+        .inOrder();
+  }
+
+  @Test
+  public void parse_keywords() {
+    TransferSyntaxPreferences parsed =
+        TransferSyntaxPreferences.parse("CTImageStorage=JPEGLSLossless");
+
+    assertThat(parsed.getPreferences(CT_IMAGE_STORAGE)).containsExactly(JPEG_LS_LOSSLESS);
+  }
+
+  @Test
+  public void parse_missingSopClass_fails() {
+    try {
+      TransferSyntaxPreferences.parse(JPEG_LS_LOSSLESS);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains(JPEG_LS_LOSSLESS);
+    }
+  }
+}
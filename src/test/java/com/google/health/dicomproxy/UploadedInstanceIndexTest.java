@@ -0,0 +1,146 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.File;
+import java.io.InputStream;
+import java.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link UploadedInstanceIndex}. */
+@RunWith(JUnit4.class)
+public final class UploadedInstanceIndexTest {
+  private static final Duration WINDOW = Duration.ofHours(1);
+  private static final String UID = "1.2.3.4.5";
+  private static final HashCode HASH = UploadedInstanceIndex.CONTENT_HASH.hashInt(1);
+  private static final HashCode OTHER_HASH = UploadedInstanceIndex.CONTENT_HASH.hashInt(2);
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final FakeClock clock = new FakeClock();
+  private File indexFile;
+  private UploadedInstanceIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    indexFile = new File(tempFolder.getRoot(), "index.bin");
+    index = UploadedInstanceIndex.open(indexFile, /* capacity= */ 64, WINDOW, clock);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    index.close();
+  }
+
+  @Test
+  public void receivedButNotUploaded_isNotDuplicate() {
+    index.recordReceived(UID, HASH);
+
+    assertThat(index.isDuplicate(UID, HASH)).isFalse();
+  }
+
+  @Test
+  public void uploaded_sameContent_isDuplicate() {
+    index.recordReceived(UID, HASH);
+    index.onUploadSucceeded(batchOf(UID));
+
+    assertThat(index.isDuplicate(UID, HASH)).isTrue();
+  }
+
+  @Test
+  public void uploaded_differentContent_isNotDuplicate() {
+    index.recordReceived(UID, HASH);
+    index.onUploadSucceeded(batchOf(UID));
+
+    assertThat(index.isDuplicate(UID, OTHER_HASH)).isFalse();
+    assertThat(index.isDuplicate("1.2.3.4.6", HASH)).isFalse();
+  }
+
+  @Test
+  public void wasUploaded_onlyOnceUploaded() {
+    index.recordReceived(UID, HASH);
+    assertThat(index.wasUploaded(UID)).isFalse();
+
+    index.onUploadSucceeded(batchOf(UID));
+
+    assertThat(index.wasUploaded(UID)).isTrue();
+    assertThat(index.wasUploaded("1.2.3.4.6")).isFalse();
+  }
+
+  @Test
+  public void uploaded_outsideWindow_isNotDuplicate() {
+    index.recordReceived(UID, HASH);
+    index.onUploadSucceeded(batchOf(UID));
+    clock.advance(WINDOW.plusSeconds(1));
+
+    assertThat(index.isDuplicate(UID, HASH)).isFalse();
+  }
+
+  @Test
+  public void fullTable_evictsOldestEntries() {
+    for (int i = 0; i < 200; i++) {
+      index.recordReceived("1.2.3." + i, HASH);
+      index.onUploadSucceeded(batchOf("1.2.3." + i));
+      clock.advance(Duration.ofMillis(1));
+    }
+
+    assertThat(index.isDuplicate("1.2.3.199", HASH)).isTrue();
+    assertThat(index.isDuplicate("1.2.3.0", HASH)).isFalse();
+  }
+
+  @Test
+  public void reopened_remembersUploads() throws Exception {
+    index.recordReceived(UID, HASH);
+    index.onUploadSucceeded(batchOf(UID));
+    index.close();
+
+    index = UploadedInstanceIndex.open(indexFile, /* capacity= */ 64, WINDOW, clock);
+
+    assertThat(index.isDuplicate(UID, HASH)).isTrue();
+  }
+
+  @Test
+  public void reopenedWithDifferentCapacity_isReset() throws Exception {
+    index.recordReceived(UID, HASH);
+    index.onUploadSucceeded(batchOf(UID));
+    index.close();
+
+    index = UploadedInstanceIndex.open(indexFile, /* capacity= */ 128, WINDOW, clock);
+
+    assertThat(index.isDuplicate(UID, HASH)).isFalse();
+  }
+
+  private static SpoolBatch batchOf(String sopInstanceUid) {
+    SpooledInstance instance =
+        new SpooledInstance() {
+          @Override
+          public String getSopInstanceUid() {
+            return sopInstanceUid;
+          }
+
+          @Override
+          public long getLength() {
+            return 0;
+          }
+
+          @Override
+          public InputStream openStream() {
+            throw new UnsupportedOperationException();
+          }
+        };
+    return new SpoolBatch("batch", ImmutableList.of(instance));
+  }
+}
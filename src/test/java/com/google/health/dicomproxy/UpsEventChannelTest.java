@@ -0,0 +1,109 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.annotation.Nullable;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class UpsEventChannelTest {
+  private final FakeUpsEventServer server;
+  private final RecordingListener listener = new RecordingListener();
+
+  public UpsEventChannelTest() throws IOException {
+    server = new FakeUpsEventServer();
+  }
+
+  @After
+  public void closeServer() throws IOException {
+    server.close();
+  }
+
+  @Test
+  public void open_sendsAuthorization() throws Exception {
+    UpsEventChannel.open(server.getChannelUri("PROXY"), "Bearer token", listener);
+
+    assertThat(server.nextConnection().getHeader("Authorization")).isEqualTo("Bearer token");
+  }
+
+  @Test
+  public void events_passedOnInOrder() throws Exception {
+    UpsEventChannel.open(server.getChannelUri("PROXY"), null, listener);
+    FakeUpsEventServer.Connection connection = server.nextConnection();
+
+    connection.sendEvent("first");
+    connection.sendFragmentedEvent("sec", "ond");
+    connection.sendEvent("third");
+
+    assertThat(listener.events.poll(5, SECONDS)).isEqualTo("first");
+    assertThat(listener.events.poll(5, SECONDS)).isEqualTo("second");
+    assertThat(listener.events.poll(5, SECONDS)).isEqualTo("third");
+  }
+
+  @Test
+  public void closedByService_notifiesListener() throws Exception {
+    UpsEventChannel channel = UpsEventChannel.open(server.getChannelUri("PROXY"), null, listener);
+
+    server.nextConnection().close();
+
+    assertThat(listener.closed.await(5, SECONDS)).isTrue();
+    assertThat(listener.error).isNull();
+    assertThat(channel.checkAlive()).isFalse();
+  }
+
+  @Test
+  public void unansweredPing_abortsChannel() throws Exception {
+    UpsEventChannel channel = UpsEventChannel.open(server.getChannelUri("PROXY"), null, listener);
+    server.nextConnection().stopAnsweringPings();
+
+    assertThat(channel.checkAlive()).isTrue();
+    Thread.sleep(100);
+    assertThat(channel.checkAlive()).isFalse();
+
+    assertThat(listener.closed.getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void noServer_fails() throws Exception {
+    URI uri = server.getChannelUri("PROXY");
+    server.close();
+
+    try {
+      UpsEventChannel.open(uri, null, listener);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  private static final class RecordingListener implements UpsEventChannel.Listener {
+    final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    final CountDownLatch closed = new CountDownLatch(1);
+    @Nullable volatile Throwable error;
+
+    @Override
+    public void onEvent(String message) {
+      events.add(message);
+    }
+
+    @Override
+    public void onClosed(@Nullable Throwable error) {
+      this.error = error;
+      closed.countDown();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class UpsEventTest {
+
+  @Test
+  public void parse_stateReport() throws Exception {
+    UpsEvent event =
+        UpsEvent.parse(
+            "{\"00001000\": {\"vr\": \"UI\", \"Value\": [\"1.2.3\"]},"
+                + " \"00001002\": {\"vr\": \"US\", \"Value\": [1]},"
+                + " \"00741000\": {\"vr\": \"CS\", \"Value\": [\"IN PROGRESS\"]},"
+                + " \"00741002\": {\"vr\": \"SQ\", \"Value\": [{}]}}");
+
+    assertThat(event.getWorkitemUid()).isEqualTo("1.2.3");
+    assertThat(event.getEventTypeId()).isEqualTo(UpsEvent.STATE_REPORT);
+    assertThat(event.getProcedureStepState()).isEqualTo("IN PROGRESS");
+  }
+
+  @Test
+  public void parse_inArray_withoutState() throws Exception {
+    UpsEvent event =
+        UpsEvent.parse(
+            "[{\"00001000\": {\"vr\": \"UI\", \"Value\": [\"1.2.3\"]},"
+                + " \"00001002\": {\"vr\": \"US\", \"Value\": [4]}}]");
+
+    assertThat(event.getWorkitemUid()).isEqualTo("1.2.3");
+    assertThat(event.getEventTypeId()).isEqualTo(UpsEvent.SCP_STATUS_CHANGE);
+    assertThat(event.getProcedureStepState()).isNull();
+  }
+
+  @Test
+  public void parse_missingWorkitemUid_fails() throws Exception {
+    try {
+      UpsEvent.parse("{\"00001002\": {\"vr\": \"US\", \"Value\": [1]}}");
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+}
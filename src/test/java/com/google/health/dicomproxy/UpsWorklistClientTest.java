@@ -8,6 +8,7 @@ package com.google.health.dicomproxy;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
@@ -21,14 +22,25 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 @RunWith(JUnit4.class)
 public class UpsWorklistClientTest {
   private static final String FAKE_WORKLIST_URL = "https://worklist.example.com/workitems";
+  private static final String WORKLIST_URI_PROPERTY = "com.google.health.dicomproxy.worklist-uri";
 
   // Fakes for HTTP request-handling.
   private final MockLowLevelHttpResponse mockResponse = new MockLowLevelHttpResponse();
@@ -53,7 +65,7 @@ public class UpsWorklistClientTest {
 
   @BeforeClass
   public static void setupFlags() {
-    System.setProperty("com.google.health.dicomproxy.worklist-uri", FAKE_WORKLIST_URL);
+    System.setProperty(WORKLIST_URI_PROPERTY, FAKE_WORKLIST_URL);
   }
 
   @Test
@@ -79,6 +91,59 @@ public class UpsWorklistClientTest {
     assertThat(mockRequest.getUrl()).isEqualTo(FAKE_WORKLIST_URL);
   }
 
+  @Test
+  public void retrieveWorkitem_notFound_returnsNull() throws Exception {
+    mockResponse.setStatusCode(HttpStatusCodes.STATUS_CODE_NOT_FOUND);
+    mockResponse.setContentType("text/plain");
+    mockResponse.setContent("");
+
+    assertThat(client.retrieveWorkitem("1.2.3")).isNull();
+    assertThat(mockRequest.getUrl()).isEqualTo(FAKE_WORKLIST_URL + "/1.2.3");
+  }
+
+  @Test
+  public void searchWorkitems_canceledBeforeResponseHeaders_returnsAtOnce() throws Exception {
+    // Accepts connections, but never responds.
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(10_000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      System.setProperty(
+          WORKLIST_URI_PROPERTY,
+          String.format(
+              "http://%s:%d/workitems",
+              server.getInetAddress().getHostAddress(), server.getLocalPort()));
+      CancelableConnectionFactory connectionFactory = new CancelableConnectionFactory();
+      UpsWorklistClient networkClient =
+          new UpsWorklistClient(
+              new NetHttpTransport.Builder()
+                  .setConnectionFactory(connectionFactory)
+                  .build()
+                  .createRequestFactory(),
+              connectionFactory);
+      Cancellation cancellation = new Cancellation();
+      Future<?> search =
+          executor.submit(
+              () -> {
+                networkClient.searchWorkitems(request, 0, cancellation, workitem -> {});
+                return null;
+              });
+
+      try (Socket connection = server.accept()) {
+        // Waits for the request to be sent.
+        new BufferedReader(new InputStreamReader(connection.getInputStream(), UTF_8)).readLine();
+        cancellation.cancel();
+
+        // Long before the read timeout.
+        search.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+      server.close();
+      System.setProperty(WORKLIST_URI_PROPERTY, FAKE_WORKLIST_URL);
+    }
+  }
+
   private InputStream readTestFile(String filename) throws Exception {
     return getClass().getResourceAsStream(filename);
   }
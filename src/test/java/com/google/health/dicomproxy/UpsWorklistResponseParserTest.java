@@ -10,6 +10,8 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.collect.ImmutableList;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
@@ -24,6 +26,23 @@ import org.junit.runners.JUnit4;
 @RunWith(JUnit4.class)
 public final class UpsWorklistResponseParserTest {
 
+  @Test
+  public void canceledQuery_stopsParsing() throws Exception {
+    Cancellation cancellation = new Cancellation();
+    List<Attributes> results = new ArrayList<>();
+
+    UpsWorklistResponseParser.parseUpsResponseToMwl(
+        "multipart/related; boundary=BoUndaRy",
+        readTestFile("ups_xml_multipart_response_body.txt"),
+        cancellation,
+        result -> {
+          results.add(result);
+          cancellation.cancel();
+        });
+
+    assertThat(results).hasSize(1);
+  }
+
   @Test
   public void parsesXmlWorklist() throws Exception {
     ImmutableList<Attributes> result =
@@ -0,0 +1,166 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.io.ByteStreams;
+import java.util.ArrayList;
+import java.util.List;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class WadoRsClientTest {
+  private static final String FAKE_SERVICE_URL = "https://dicomweb.example.com/dicomWeb";
+  private static final String RESPONSE_CONTENT_TYPE =
+      "multipart/related; type=\"application/dicom\"; boundary=\"BoUndaRy\"";
+  // Parts stand in for DICOM files, which the client passes on without parsing.
+  private static final String RESPONSE_BODY =
+      "--BoUndaRy\r\n"
+          + "Content-Type: application/dicom; transfer-syntax=1.2.840.10008.1.2.1\r\n"
+          + "\r\n"
+          + "instance 1\r\n"
+          + "--BoUndaRy\r\n"
+          + "Content-Type: application/dicom; transfer-syntax=1.2.840.10008.1.2.1\r\n"
+          + "\r\n"
+          + "instance 2\r\n"
+          + "--BoUndaRy--\r\n";
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final List<String> requestedUrls = new ArrayList<>();
+  private int statusCode = HttpStatusCodes.STATUS_CODE_OK;
+  private final MockHttpTransport mockTransport =
+      new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+          requestedUrls.add(url);
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          response.setStatusCode(statusCode);
+          response.setContentType(RESPONSE_CONTENT_TYPE);
+          response.setContent(statusCode == HttpStatusCodes.STATUS_CODE_OK ? RESPONSE_BODY : "");
+          return new MockLowLevelHttpRequest(url).setResponse(response);
+        }
+      };
+
+  @Test
+  public void studyLevel_retrievesEachStudy() {
+    Attributes keys = keys(QidoQueryTranslator.STUDY);
+    keys.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "1.2.4");
+
+    assertThat(WadoRsClient.buildResourcePaths(keys))
+        .containsExactly("studies/1.2.3", "studies/1.2.4")
+        .inOrder();
+  }
+
+  @Test
+  public void imageLevel_retrievesEachInstance() {
+    Attributes keys = keys(QidoQueryTranslator.IMAGE);
+    keys.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+    keys.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4");
+    keys.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4.5", "1.2.3.4.6");
+
+    assertThat(WadoRsClient.buildResourcePaths(keys))
+        .containsExactly(
+            "studies/1.2.3/series/1.2.3.4/instances/1.2.3.4.5",
+            "studies/1.2.3/series/1.2.3.4/instances/1.2.3.4.6")
+        .inOrder();
+  }
+
+  @Test
+  public void seriesLevel_withoutStudy_fails() {
+    Attributes keys = keys(QidoQueryTranslator.SERIES);
+    keys.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4");
+
+    try {
+      WadoRsClient.buildResourcePaths(keys);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void retrieve_passesOnEachInstance() throws Exception {
+    WadoRsClient client =
+        new WadoRsClient(mockTransport.createRequestFactory(), FAKE_SERVICE_URL, null);
+
+    assertThat(retrieve(client, studyKeys("1.2.3"))).containsExactly("instance 1", "instance 2");
+    assertThat(requestedUrls).containsExactly(FAKE_SERVICE_URL + "/studies/1.2.3");
+  }
+
+  @Test
+  public void repeatedRetrieval_readFromCache() throws Exception {
+    RetrieveCache cache = RetrieveCache.open(tempFolder.newFolder("cache"), 1024 * 1024);
+    WadoRsClient client =
+        new WadoRsClient(mockTransport.createRequestFactory(), FAKE_SERVICE_URL, cache);
+
+    retrieve(client, studyKeys("1.2.3"));
+    assertThat(retrieve(client, studyKeys("1.2.3"))).containsExactly("instance 1", "instance 2");
+
+    assertThat(requestedUrls).hasSize(1);
+  }
+
+  @Test
+  public void notFound_retrievesNothing() throws Exception {
+    statusCode = HttpStatusCodes.STATUS_CODE_NOT_FOUND;
+    WadoRsClient client =
+        new WadoRsClient(mockTransport.createRequestFactory(), FAKE_SERVICE_URL, null);
+
+    assertThat(retrieve(client, studyKeys("1.2.3"))).isEmpty();
+  }
+
+  @Test
+  public void serverError_fails() throws Exception {
+    statusCode = HttpStatusCodes.STATUS_CODE_SERVER_ERROR;
+    WadoRsClient client =
+        new WadoRsClient(mockTransport.createRequestFactory(), FAKE_SERVICE_URL, null);
+
+    try {
+      retrieve(client, studyKeys("1.2.3"));
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(Status.UnableToPerformSubOperations);
+    }
+  }
+
+  private static List<String> retrieve(WadoRsClient client, Attributes keys)
+      throws DicomServiceException {
+    List<String> instances = new ArrayList<>();
+    client.retrieve(
+        keys,
+        new Cancellation(),
+        instance -> instances.add(new String(ByteStreams.toByteArray(instance), UTF_8)));
+    return instances;
+  }
+
+  private static Attributes studyKeys(String studyInstanceUid) {
+    Attributes keys = keys(QidoQueryTranslator.STUDY);
+    keys.setString(Tag.StudyInstanceUID, VR.UI, studyInstanceUid);
+    return keys;
+  }
+
+  private static Attributes keys(String level) {
+    Attributes keys = new Attributes();
+    keys.setString(Tag.QueryRetrieveLevel, VR.CS, level);
+    return keys;
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class WorklistCacheTest {
+  private static final String AE_TITLE = "PROXY";
+  private static final Duration LONG_INTERVAL = Duration.ofHours(1);
+
+  private final FakeUpsEventServer server;
+  private final FakeUpstream upstream = new FakeUpstream();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  public WorklistCacheTest() throws IOException {
+    server = new FakeUpsEventServer();
+  }
+
+  @After
+  public void shutDown() throws IOException {
+    executor.shutdownNow();
+    server.close();
+  }
+
+  @Test
+  public void beforeFirstFetch_passesQueriesThrough() throws Exception {
+    upstream.add(workitem("1.1", "A1"));
+    WorklistCache cache = createCache(LONG_INTERVAL);
+
+    assertThat(cache.listWorkitems(new Attributes())).hasSize(1);
+    assertThat(upstream.searches.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void afterFirstFetch_answersQueries() throws Exception {
+    upstream.add(workitem("1.1", "A1"));
+    upstream.add(workitem("1.2", "A2"));
+    WorklistCache cache = startCache(LONG_INTERVAL);
+
+    ImmutableList<Attributes> matches = cache.listWorkitems(accessionNumberQuery("A2"));
+
+    assertThat(matches).hasSize(1);
+    assertThat(matches.get(0).getString(Tag.SOPInstanceUID)).isEqualTo("1.2");
+    assertThat(upstream.searches.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void stateReport_fetchesOnlyThatWorkitem() throws Exception {
+    upstream.add(workitem("1.1", "A1"));
+    WorklistCache cache = startCache(LONG_INTERVAL);
+
+    upstream.add(workitem("1.2", "A2"));
+    server.nextConnection().sendEvent(stateReport("1.2", "SCHEDULED"));
+
+    assertThat(upstream.retrieved.poll(5, SECONDS)).isEqualTo("1.2");
+    drain();
+    assertThat(cache.listWorkitems(accessionNumberQuery("A2"))).hasSize(1);
+    assertThat(upstream.lists.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void completedWorkitem_dropped() throws Exception {
+    upstream.add(workitem("1.1", "A1"));
+    upstream.add(workitem("1.2", "A2"));
+    WorklistCache cache = startCache(LONG_INTERVAL);
+    FakeUpsEventServer.Connection connection = server.nextConnection();
+
+    connection.sendEvent(stateReport("1.1", "COMPLETED"));
+    // Events are applied in order, so once the second is, so is the first.
+    connection.sendEvent(stateReport("1.2", "IN PROGRESS"));
+
+    assertThat(upstream.retrieved.poll(5, SECONDS)).isEqualTo("1.2");
+    drain();
+    assertThat(cache.listWorkitems(accessionNumberQuery("A1"))).isEmpty();
+    assertThat(cache.listWorkitems(accessionNumberQuery("A2"))).hasSize(1);
+  }
+
+  @Test
+  public void channelClosed_resyncsAndSubscribesAgain() throws Exception {
+    upstream.add(workitem("1.1", "A1"));
+    WorklistCache cache = startCache(Duration.ofMillis(100));
+
+    // A change the cache isn't told of.
+    upstream.add(workitem("1.2", "A2"));
+    server.nextConnection().close();
+
+    server.nextConnection();
+    drain();
+    assertThat(upstream.lists.get()).isAtLeast(2);
+    assertThat(cache.listWorkitems(accessionNumberQuery("A2"))).hasSize(1);
+  }
+
+  private WorklistCache createCache(Duration resyncInterval) {
+    return new WorklistCache(upstream, upstream, AE_TITLE, executor, resyncInterval);
+  }
+
+  /** Starts a cache, and waits until it has subscribed and fetched the worklist. */
+  private WorklistCache startCache(Duration resyncInterval) throws Exception {
+    WorklistCache cache = createCache(resyncInterval);
+    cache.start();
+    drain();
+    return cache;
+  }
+
+  /** Waits for the tasks already on the cache's executor. */
+  private void drain() throws Exception {
+    executor.submit(() -> {}).get(5, SECONDS);
+  }
+
+  private static Attributes workitem(String sopInstanceUid, String accessionNumber) {
+    Attributes workitem = new Attributes();
+    workitem.setString(Tag.SOPInstanceUID, VR.UI, sopInstanceUid);
+    workitem.setString(Tag.AccessionNumber, VR.SH, accessionNumber);
+    workitem.setString(Tag.ProcedureStepState, VR.CS, "SCHEDULED");
+    return workitem;
+  }
+
+  private static Attributes accessionNumberQuery(String accessionNumber) {
+    Attributes query = new Attributes();
+    query.setString(Tag.AccessionNumber, VR.SH, accessionNumber);
+    query.setNull(Tag.SOPInstanceUID, VR.UI);
+    return query;
+  }
+
+  private static String stateReport(String workitemUid, String state) {
+    return String.format(
+        "{\"00001000\": {\"vr\": \"UI\", \"Value\": [\"%s\"]},"
+            + " \"00001002\": {\"vr\": \"US\", \"Value\": [%d]},"
+            + " \"00741000\": {\"vr\": \"CS\", \"Value\": [\"%s\"]}}",
+        workitemUid, UpsEvent.STATE_REPORT, state);
+  }
+
+  /** UPS-RS service whose event channel is the fake server. */
+  private final class FakeUpstream implements WorklistClient, WorkitemClient {
+    final Map<String, Attributes> workitems = new ConcurrentHashMap<>();
+    final AtomicInteger searches = new AtomicInteger();
+    final AtomicInteger lists = new AtomicInteger();
+    final BlockingQueue<String> retrieved = new LinkedBlockingQueue<>();
+
+    void add(Attributes workitem) {
+      workitems.put(workitem.getString(Tag.SOPInstanceUID), workitem);
+    }
+
+    @Override
+    public void searchWorkitems(
+        Attributes queryParams, int limit, Cancellation cancellation, ResultHandler handler) {
+      searches.incrementAndGet();
+      try {
+        for (Attributes workitem : workitems.values()) {
+          handler.onResult(new Attributes(workitem));
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public Attributes retrieveWorkitem(String workitemUid) {
+      retrieved.add(workitemUid);
+      Attributes workitem = workitems.get(workitemUid);
+      return workitem == null ? null : new Attributes(workitem);
+    }
+
+    @Override
+    public void listAllWorkitems(ResultHandler handler) throws IOException {
+      lists.incrementAndGet();
+      for (Attributes workitem : workitems.values()) {
+        handler.onResult(new Attributes(workitem));
+      }
+    }
+
+    @Override
+    public UpsEventChannel openEventChannel(String aeTitle, UpsEventChannel.Listener listener)
+        throws IOException {
+      return UpsEventChannel.open(server.getChannelUri(aeTitle), null, listener);
+    }
+
+    @Override
+    public void changeWorkitemState(String workitemUid, String state, String transactionUid) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateWorkitem(String workitemUid, String transactionUid, Attributes changes) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright 2020 Google LLC
+//
+// This Source Code Form is subject to the terms of the Mozilla Public
+// License, v. 2.0. If a copy of the MPL was not distributed with this
+// file, you can obtain one at http://mozilla.org/MPL/2.0/.
+package com.google.health.dicomproxy;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class WorklistMatchLimitsTest {
+
+  @Test
+  public void empty_isUnlimited() {
+    WorklistMatchLimits limits = WorklistMatchLimits.parse("");
+
+    assertThat(limits.getLimit("CT1")).isEqualTo(0);
+  }
+
+  @Test
+  public void aeTitleLimit_overridesDefault() {
+    WorklistMatchLimits limits = WorklistMatchLimits.parse("*=500, CT1=200");
+
+    assertThat(limits.getLimit("CT1")).isEqualTo(200);
+    assertThat(limits.getLimit("MR1")).isEqualTo(500);
+  }
+
+  @Test
+  public void noDefault_otherAeTitlesUnlimited() {
+    WorklistMatchLimits limits = WorklistMatchLimits.parse("CT1=200");
+
+    assertThat(limits.getLimit("MR1")).isEqualTo(0);
+  }
+
+  @Test
+  public void invalidEntry_fails() {
+    for (String invalid : new String[] {"CT1", "=200", "CT1=many", "CT1=-1"}) {
+      try {
+        WorklistMatchLimits.parse(invalid);
+        fail("Expected IllegalArgumentException for " + invalid);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}